@@ -4,7 +4,6 @@
 package lw.sockets;
 
 import java.net.Socket;
-import java.util.logging.Logger;
 
 import lw.sockets.interfaces.LwIXMLSocketServerListener;
 
@@ -17,18 +16,17 @@ import lw.sockets.interfaces.LwIXMLSocketServerListener;
  * 
  */
 class AcceptedSocket extends SocketComms implements Runnable {
-	private static final Logger logger = Logger.getLogger("gemha");
-
 	volatile private boolean shutDown = false;	// If set to true, will shut down server. Can be set through the socket SERV_SHUTDOWN command
 												// Needs to be volatile as object may be instantiated by one thread and run() in another
 
 	final private XMLSocketServer parent;			// the parent socket server - need this to tell him to shut down, if allowed
 	final private LwIXMLSocketServerListener app; // The object that will be implementing interface LwIXMLSocketServerListener
 	final private int portNumber;
-	final private SocketType socketType;
+	final private ServerProtocol protocol;			// the server side of the conversation
+	final private long acceptedAt;					// from System.nanoTime(), to tell how long the connection waited for a Thread
 
-	public AcceptedSocket(XMLSocketServer parent, LwIXMLSocketServerListener app, Socket incoming, SocketType socketType, int portNumber) throws SocketException {
-		super(incoming, socketType);
+	public AcceptedSocket(XMLSocketServer parent, LwIXMLSocketServerListener app, Socket incoming, SocketType socketType, int portNumber, SocketCommsConfig config) throws SocketException {
+		super(incoming, socketType, config);
 		
 		assert parent != null;
 		assert app != null;
@@ -36,12 +34,16 @@ class AcceptedSocket extends SocketComms implements Runnable {
 		
 		this.parent = parent;
 		this.app = app;
-		this.socketType = socketType;
 		this.portNumber = portNumber;
+		this.acceptedAt = System.nanoTime();
+		setMetrics(parent.getMetrics());
+		this.protocol = new ServerProtocol(this, app, socketType, portNumber, parent.getRequestPool(), parent.getOrderedPool(), parent.getPreParser(), parent.getAdmission(), parent.getResponseCache(), null);
+		setShelfBudget(parent.getShelfBudget());
 	}
 
 	@Override
 	public void run() {
+		getMetrics().connectionOpened();
 		try {
 			acceptMessages();
 		}
@@ -49,6 +51,24 @@ class AcceptedSocket extends SocketComms implements Runnable {
 			String TID = (getTID() == null ? "Unknown TID" : getTID());
 			app.handleError(new SocketEvent(TID, portNumber), e);
 		}
+		finally {
+			getMetrics().connectionClosed();
+			parent.getAdmission().connectionClosed();
+		}
+	}
+
+	/**
+	  * Refuse the connection, as the server is overloaded, in place of running it.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	void refuse() throws SocketException {
+		try {
+			protocol.refuseConnection();
+		}
+		finally {
+			closeConnection();
+		}
 	}
 
 	/**
@@ -59,82 +79,33 @@ class AcceptedSocket extends SocketComms implements Runnable {
 	  */
 	private void acceptMessages() throws SocketException {
 
+		// Waited for a Thread, so may be too late to be worth opening
+		if (!parent.getAdmission().admit(System.nanoTime() - acceptedAt)) {
+			refuse();
+			return;
+		}
+
 		// First send Server-ready message to client...
-		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]:Connection accepted. Going to send SERV_READY instruction...");
-		Integer errNo = new Integer(0);
-		sendMessage(new SocketTransferMessage(errNo, "1", SocketService.READY, SocketFormat.XML, "Server Ready"));
+		protocol.sendReady();
 
 		boolean closeConnection = false;
 		while (!closeConnection && !shutDown) {
 			closeConnection = next(); // Returns true if irrecoverable technical problem encountered (e.g. client rudely closes without sending CLOSE instr)
-			
-			switch(getLastService()) {
-				case CLOSE :
-					logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to CLOSE current socket received.");
-					closeConnection = true;
-					break;
-				case SHUTDOWN :
-					logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SHUTDOWN received.");
 
-					if ( app.canCloseServerSocket(new SocketEvent(getTID(), portNumber)) ) {
-						logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Controling application granted request to close Socket Server. Setting shutDown to true.");
+			if (!closeConnection) {
+				switch(protocol.process()) {
+					case CLOSE :
+						closeConnection = true;
+						break;
+					case SHUTDOWN :
 						shutDown = true;
-					}
-					else {
-						logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Controling application REFUSED request to close Socket Server. Request ignored.");
-					}
-
-					closeConnection = true;
-					break;
-				case CONSUME :
-				case CONSUME_RESPOND :
-					switch(getLastFormat()) {
-						case XML:
-							consumeXMLMsg();
-							break;
-						case UNRECOGNISED:
-							break;
-						default:
-							break;
-					}
-					break;
-				case MORE :
-					switch(getLastFormat()) {
-						case XML :
-							logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SERV_MORE OBJ_XML received.");
-
-							// Now Respond
-							errNo   = new Integer(0);
-							
-							sendMessage(new SocketTransferMessage(errNo, getTID(), SocketComms.SocketService.MORE, SocketComms.SocketFormat.XML, "Message part saved. Awaiting more"));
-							logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response returned to socket client.");
-							break;
-						case UNRECOGNISED:
-							break;
-						default:
-							break;
-					}
-					break;
-				case DISCARD :
-					switch(getLastFormat()) {
-						case XML :
-							logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SERV_DISCARD OBJ_XML received.");
-
-							removeMessageForTID(getTID());
+						closeConnection = true;
+						break;
+					default :
+						break;
+				}
+			}
 
-							// Now Respond
-							errNo   = new Integer(0);
-							sendMessage(new SocketTransferMessage(errNo, getTID(), SocketComms.SocketService.DISCARD, SocketComms.SocketFormat.XML, "Message discarded"));
-							logger.fine("Response returned to socket client.");
-							break;
-						case UNRECOGNISED:
-							break;
-						default:
-							break;
-					}
-					break;
-			} // end switch(serv)
-			
 			// Check for interruption (e.g. by an ExecutorService)
 			if (Thread.interrupted()) {
 				closeConnection = true;
@@ -143,69 +114,17 @@ class AcceptedSocket extends SocketComms implements Runnable {
 			}
 		} // end while (!closeConnection && !shutDown)
 		
+		// Requests handed on and still being processed are owed their answers
+		try {
+			protocol.awaitRequests();
+		}
+		catch(InterruptedException e) {
+			// Re-set the interrupted flag, in case others within this thread need it
+			Thread.currentThread().interrupt();
+		}
 		closeConnection();
 		if (shutDown) {
 			parent.terminateProcessing();
 		}
 	}
-
-	/**
-	 * Process the incoming message
-	 */
-	private void consumeXMLMsg() throws SocketException {
-		String TID = getTID();
-		Integer errNo;
-		SocketComms.SocketService service = getLastService();
-		logger.fine("Request to " + service.toString() + " OBJ_XML received.");
-
-		StringBuilder payLoad = getMessageForTID(TID);
-		if (payLoad == null) {
-			throw new SocketException("Could not get payLoad for TID " + TID + ", so cannot consumeXMLMsg.");
-		}
-		
-		boolean consumeMessage = false;
-		if (service == SocketComms.SocketService.CONSUME) { // deliver it to the implementing application
-			// Give the implementor of this interface the opportunity to process the message...
-			consumeMessage = app.messageReceived(new SocketEvent(TID, portNumber, payLoad.toString()));
-			// TODO: ...
-/* NEED TO IMPLEMENT THIS FOR MULTIPLE THREADS !!!!!
-			// Is OK to use this synchQueue method, if take() is used on other side (it also blocks)
-			if (synchQueue != null) { // the consumeMessage was not really known when we returned from app.messageReceived(), so wait
-				// Now just awaiting processing of message and setting of consumeMessage flag
-				try { synchQueue.put("waiting");
-				} catch(InterruptedException e) { 
-					shutDown = true; // Want to terminate this Thread.
-					return;
-				}
-				consumeMessage = app.getConsumeMessage();
-			}
-*/
-			// Now Respond
-			errNo   = new Integer(consumeMessage ? 0 : 1);
-			sendMessage(new SocketTransferMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, "Message " + (consumeMessage ? "" : "not ") + "consumed"));
-			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response returned to socket client.");
-		}
-		else { // is SERV_CONSUME_RESPOND
-			consumeMessage = true;
-			logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: XML Response Message is expected to be returned to socket client.");
-			// Just send confirmation of receipt of msg
-			errNo   = new Integer(consumeMessage ? 0 : 1);
-			
-			sendMessage(new SocketTransferMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, "Message " + (consumeMessage ? "" : "not ") + "consumed"));
-			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Receipt Response returned to socket client.");
-
-			// Give the implementor of this interface the opportunity to consume the message...
-			String responseMessage = app.messageReceivedAndWantResponse(new SocketEvent(TID, portNumber, payLoad.toString()));
-			if (responseMessage != null) {
-				errNo   = new Integer(0);
-				// Now return the meat response...
-				sendMessage(new SocketTransferMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, responseMessage));
-				
-				responseMessage = null;
-			}
-		}
-
-		// Then get rid of the message...
-		removeMessageForTID(getTID());
-	}
 }
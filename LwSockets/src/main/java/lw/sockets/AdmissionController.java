@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author wadel
+ *
+ * Package-private class deciding what a server takes on, so that overload is met with quick, cheap REFUSE answers
+ * rather than with work queued until every client has given up on it.
+ *
+ * Three checks, each off unless configured (see SocketCommsConfig):
+ *   1. Connections: at most maxConnections accepted and not yet closed, counting those still waiting for a Thread.
+ *   2. Requests: at most maxInFlight whole requests being processed at once, across every connection.
+ *   3. Queue delay, after CoDel: the time each connection, or multiplexed request, waited for a Thread is watched
+ *      over intervals of INTERVAL. If even the shortest wait of an interval was over the target, the queue is standing,
+ *      not just a passing burst, and until an interval ends with a wait under the target, anything that waited over
+ *      twice the target is refused, as its client has most likely given up on it, or soon will.
+ *
+ * Every refusal carries a hint of when to try again (see retryAfterMillis()).
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class AdmissionController {
+	// How often a standing queue is looked for
+	static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	final private int maxConnections;			// 0 for no limit
+	final private int maxInFlight;				// 0 for no limit
+	final private long target;					// nanoseconds of queue delay, 0 for no check
+	final private AtomicInteger connections = new AtomicInteger();
+	final private AtomicInteger inFlight = new AtomicInteger();
+	final private AtomicLong intervalEnd = new AtomicLong(System.nanoTime() + INTERVAL);
+	final private AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);	// shortest wait so far this interval
+	volatile private long standingDelay = 0;	// shortest wait of the last interval, if over the target, otherwise 0
+
+	/**
+	  * @param config the settings of the server
+	  */
+	AdmissionController(SocketCommsConfig config) {
+		this.maxConnections = config.getMaxConnections();
+		this.maxInFlight = config.getMaxInFlight();
+		this.target = TimeUnit.MILLISECONDS.toNanos(config.getQueueDelayTarget());
+	}
+
+	/**
+	  * Count a connection just accepted.
+	  *
+	  * @return true if counted, false if the limit has been reached, so the connection is to be refused
+	  */
+	boolean tryOpenConnection() {
+		return tryIncrement(connections, maxConnections);
+	}
+
+	/**
+	  * Count a connection counted by tryOpenConnection() as closed.
+	  */
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	  * Count a whole request about to be processed.
+	  *
+	  * @return true if counted, false if the limit has been reached, so the request is to be refused
+	  */
+	boolean tryAcquire() {
+		return tryIncrement(inFlight, maxInFlight);
+	}
+
+	/**
+	  * Count a request counted by tryAcquire() as answered.
+	  */
+	void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	  * Decide whether something that waited for a Thread is still worth processing.
+	  *
+	  * @param delay the nanoseconds waited
+	  *
+	  * @return true if it is to be processed, false if refused
+	  */
+	boolean admit(long delay) {
+		if (target == 0) {
+			return true;
+		}
+
+		long now = System.nanoTime();
+		long end = intervalEnd.get();
+		if (now - end >= 0 && intervalEnd.compareAndSet(end, now + INTERVAL)) {
+			// Only the Thread that moved the interval on gets here
+			long shortest = minDelay.getAndSet(Long.MAX_VALUE);
+			standingDelay = (shortest != Long.MAX_VALUE && shortest > target ? shortest : 0);
+		}
+
+		long shortest;
+		while (delay < (shortest = minDelay.get()) && !minDelay.compareAndSet(shortest, delay)) {
+			// Lost to another Thread, so try again
+		}
+
+		return (standingDelay == 0 || delay <= 2 * target);
+	}
+
+	/**
+	  * @return the milliseconds a client refused should leave before trying again: an interval, or the standing
+	  * 		queue delay if that is longer, as it's about how long the queue would take to drain
+	  */
+	long retryAfterMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(Math.max(INTERVAL, standingDelay));
+	}
+
+	/**
+	  * @return the number of connections accepted and not yet closed
+	  */
+	int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	  * @return the number of whole requests being processed
+	  */
+	int getInFlight() {
+		return inFlight.get();
+	}
+
+	private static boolean tryIncrement(AtomicInteger count, int max) {
+		int current;
+		do {
+			current = count.get();
+			if (max > 0 && current >= max) {
+				return false;
+			}
+		} while (!count.compareAndSet(current, current + 1));
+		return true;
+	}
+}
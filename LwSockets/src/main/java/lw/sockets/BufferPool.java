@@ -0,0 +1,269 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A pool of direct ByteBuffers, re-used for the packets a server sends, rather than each being allocated (outside
+ * the heap, which is slow) and then left for the garbage collector.
+ *
+ * Buffers come in size classes, each a power of 2 from MIN_CLASS_SIZE to MAX_CLASS_SIZE bytes, and a request
+ * is given a buffer of the smallest class that will hold it. Bigger requests are allocated and dropped as before.
+ * Buffers given back are kept for re-use up to a limit of bytes (see SocketCommsConfig.setBufferPoolSize()).
+ *
+ * Each buffer handed out is reference-counted (see PooledBuffer), going back to the pool once released by
+ * everything holding it. With leak detection on, a buffer dropped without being released is reported (when the
+ * garbage collector finds it), along with where it was acquired. On by default with the system property
+ * lw.sockets.bufferPool.leakDetection=true, as it is for the tests.
+ *
+ * Thread-safety: This class is thread safe, and lock-free.
+ */
+public final class BufferPool {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	public static final int MIN_CLASS_SIZE = 1024;				// a legacy packet
+	public static final int MAX_CLASS_SIZE = 1024 * 1024;		// a version 2 packet of compressed data
+	private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_CLASS_SHIFT + 1;
+
+	private static final boolean LEAK_DETECTION_DEFAULT = Boolean.getBoolean("lw.sockets.bufferPool.leakDetection");
+
+	final private long maxPooledBytes;							// most bytes kept for re-use
+	// Free buffers, by size class. Last in, first out, so the buffer re-used is the one most likely still in cache
+	final private ConcurrentLinkedDeque<ByteBuffer>[] free;
+	final private AtomicLong pooledBytes = new AtomicLong();	// bytes kept for re-use
+	final private AtomicLong inUseBytes = new AtomicLong();		// bytes handed out, not yet released
+	final private AtomicInteger inUseCount = new AtomicInteger();
+	final private AtomicLong numAllocated = new AtomicLong();
+	final private AtomicLong numReused = new AtomicLong();
+	final private AtomicLong numLeaked = new AtomicLong();
+
+	volatile private boolean leakDetection = LEAK_DETECTION_DEFAULT;
+	final private ReferenceQueue<PooledBuffer> dropped = new ReferenceQueue<PooledBuffer>();
+	// Keeps each LeakRecord reachable until its buffer is released (or found leaked)
+	final private Set<LeakRecord> outstanding = ConcurrentHashMap.newKeySet();
+
+	/**
+	  * Notes where a buffer was acquired, and is enqueued if the buffer becomes unreachable without being released.
+	  */
+	static final class LeakRecord extends PhantomReference<PooledBuffer> {
+		final Throwable acquiredAt;
+		final int capacity;
+
+		LeakRecord(PooledBuffer referent, ReferenceQueue<PooledBuffer> q) {
+			super(referent, q);
+			this.acquiredAt = new Throwable("Buffer of " + referent.buffer().capacity() + " bytes acquired here");
+			this.capacity = referent.buffer().capacity();
+		}
+	}
+
+	/**
+	  * Constructor.
+	  *
+	  * @param maxPooledBytes the most bytes of buffers to keep for re-use, or 0 to keep none
+	  */
+	public BufferPool(long maxPooledBytes) {
+		if (maxPooledBytes < 0) throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: maxPooledBytes must not be negative, but was " + maxPooledBytes);
+
+		this.maxPooledBytes = maxPooledBytes;
+		this.free = newFreeLists();
+	}
+
+	/**
+	  * @return an empty list of free buffers for each size class
+	  */
+	private static ConcurrentLinkedDeque<ByteBuffer>[] newFreeLists() {
+		// No generic array can be created, but every element is set to the right type here
+		@SuppressWarnings("unchecked")
+		ConcurrentLinkedDeque<ByteBuffer>[] free = (ConcurrentLinkedDeque<ByteBuffer>[]) new ConcurrentLinkedDeque<?>[NUM_CLASSES];
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			free[i] = new ConcurrentLinkedDeque<ByteBuffer>();
+		}
+		return free;
+	}
+
+	/**
+	  * Acquire a cleared buffer, holding a single reference to it.
+	  *
+	  * @param minCapacity the min bytes needed
+	  *
+	  * @return the buffer, of at least minCapacity bytes, to be released when no longer needed
+	  */
+	PooledBuffer acquire(int minCapacity) {
+		if (leakDetection) {
+			reportLeaks();
+		}
+
+		int sizeClass = sizeClass(minCapacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = free[sizeClass].pollFirst();
+		}
+		if (buffer != null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			numReused.incrementAndGet();
+			buffer.clear();
+		}
+		else {
+			buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? MIN_CLASS_SIZE << sizeClass : minCapacity);
+			numAllocated.incrementAndGet();
+		}
+
+		inUseBytes.addAndGet(buffer.capacity());
+		inUseCount.incrementAndGet();
+
+		PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass);
+		if (leakDetection) {
+			LeakRecord record = new LeakRecord(pooled, dropped);
+			outstanding.add(record);
+			pooled.setLeakRecord(record);
+		}
+		return pooled;
+	}
+
+	/**
+	  * Take back a buffer, once released by everything holding it.
+	  */
+	void giveBack(ByteBuffer buffer, int sizeClass, LeakRecord record) {
+		if (record != null) {
+			outstanding.remove(record);
+			record.clear();
+		}
+		inUseBytes.addAndGet(-buffer.capacity());
+		inUseCount.decrementAndGet();
+
+		if (sizeClass < 0) {
+			return; // Too big to keep
+		}
+		long pooled;
+		do {
+			pooled = pooledBytes.get();
+			if (pooled + buffer.capacity() > maxPooledBytes) {
+				return; // Pool is full, so leave it for the garbage collector
+			}
+		} while (!pooledBytes.compareAndSet(pooled, pooled + buffer.capacity()));
+		free[sizeClass].offerFirst(buffer);
+	}
+
+	/**
+	  * Report every buffer found by the garbage collector to have been dropped without being released.
+	  *
+	  * @return the number of leaks found
+	  */
+	int reportLeaks() {
+		int numFound = 0;
+		Reference<? extends PooledBuffer> ref;
+		while ((ref = dropped.poll()) != null) {
+			LeakRecord record = (LeakRecord) ref;
+			if (outstanding.remove(record)) {
+				inUseBytes.addAndGet(-record.capacity);
+				inUseCount.decrementAndGet();
+				numLeaked.incrementAndGet();
+				numFound++;
+				logger.severe("[" + Thread.currentThread().getName() + "]: LEAK: pooled buffer dropped without being released. " + stackTrace(record.acquiredAt));
+			}
+		}
+		return numFound;
+	}
+
+	/**
+	  * @return the size class holding minCapacity bytes, or -1 if too big for any
+	  */
+	private static int sizeClass(int minCapacity) {
+		if (minCapacity > MAX_CLASS_SIZE) {
+			return -1;
+		}
+		if (minCapacity <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		return (32 - Integer.numberOfLeadingZeros(minCapacity - 1)) - MIN_CLASS_SHIFT;
+	}
+
+	private static String stackTrace(Throwable t) {
+		StringBuilder trace = new StringBuilder(t.getMessage());
+		for (StackTraceElement element : t.getStackTrace()) {
+			trace.append("\n\tat ").append(element);
+		}
+		return trace.toString();
+	}
+
+	/**
+	  * Report buffers dropped without being released, along with where each was acquired. Costs a stack trace per
+	  * buffer acquired, so best kept for testing. Only affects buffers acquired afterwards.
+	  *
+	  * @param leakDetection true to report leaks
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public BufferPool setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+		return this;
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	/**
+	  * @return the bytes of buffers kept for re-use
+	  */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	  * @return the bytes of buffers handed out and not yet released
+	  */
+	public long getInUseBytes() {
+		return inUseBytes.get();
+	}
+
+	/**
+	  * @return the number of buffers handed out and not yet released
+	  */
+	public int getInUseCount() {
+		return inUseCount.get();
+	}
+
+	/**
+	  * @return the number of buffers allocated because none was free to re-use
+	  */
+	public long getAllocatedCount() {
+		return numAllocated.get();
+	}
+
+	/**
+	  * @return the number of buffers handed out again, rather than allocated
+	  */
+	public long getReusedCount() {
+		return numReused.get();
+	}
+
+	/**
+	  * @return the number of buffers found to have been dropped without being released (only with leak detection on)
+	  */
+	public long getLeakedCount() {
+		return numLeaked.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BufferPool[pooled=" + getPooledBytes() + "/" + maxPooledBytes + " bytes, inUse=" + getInUseCount() + " (" + getInUseBytes() + " bytes)"
+				+ ", allocated=" + getAllocatedCount() + ", reused=" + getReusedCount() + ", leaked=" + getLeakedCount() + "]";
+	}
+}
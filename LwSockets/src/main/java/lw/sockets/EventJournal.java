@@ -0,0 +1,375 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+
+/**
+ * A journal of every packet sent and received, cheap enough to leave on at production rates.
+ *
+ * Recording an event formats nothing: once the level is checked, a few numbers and references are written to a slot
+ * of a ring buffer, and a background Thread turns them into lines, for the "gemha" logger or a file, off the path of
+ * the connection.
+ * Claiming a slot is lock-free, so connections never wait on each other, or on the I/O. If the background Thread
+ * falls a whole buffer behind, events are dropped (and counted) rather than held up.
+ *
+ * Payloads are not recorded unless setPayloadLogging(true), and then only their first MAX_PAYLOAD_CHARS chars.
+ * setSampleEvery() records one event in so many, to cut the cost further.
+ *
+ * Passed to connections with SocketCommsConfig.setEventJournal(), and may be shared by any number of them.
+ * start() must be called to start the background Thread, and close() to stop it, once the connections are done.
+ *
+ * Thread-safety: This class is thread safe, and lock-free to record.
+ */
+public final class EventJournal {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	static final int MAX_PAYLOAD_CHARS = 256;		// of each payload recorded
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);	// background Thread's nap when there's nothing to write
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final int PACKET_RECEIVED = 0;
+	private static final int PACKET_SENT = 1;
+	private static final SocketType[] SIDES = SocketType.values();
+	private static final SocketService[] SERVICES = SocketService.values();
+	private static final SocketFormat[] FORMATS = SocketFormat.values();
+
+	final private int capacity;					// slots in the ring, a power of 2
+	final private int mask;						// capacity - 1, to wrap a sequence number to its slot
+	// The fixed layout of an event, a slot each: when, what (kind, side, service, format, errNo), how many bytes
+	final private long[] times;
+	final private long[] codes;
+	final private int[] numBytes;
+	final private Object[] threads;				// the Thread that recorded it, for its name, looked up only once written
+	final private String[] TIDs;
+	final private String[] payloads;			// only when payload logging is on
+	// The sequence number of the event in each slot, once written, so the background Thread knows it's ready to read
+	final private AtomicLongArray published;
+	final private AtomicLong claimed = new AtomicLong();	// sequence number of the next event to be recorded
+	final private AtomicLong drained = new AtomicLong();	// sequence number of the next event to be written out
+	final private LongAdder dropped = new LongAdder();
+
+	volatile private int sampleEvery = 1;		// record one event in so many
+	volatile private boolean payloadLogging = false;
+
+	final private Writer file;					// where events are written, or null for the logger
+	final private Level level;					// at which events are logged, when not to a file
+	final private AtomicBoolean running = new AtomicBoolean();
+	private Thread drainer;
+
+	/**
+	  * Create a journal written to the "gemha" logger, at INFO.
+	  *
+	  * @param capacity the number of events the ring holds, rounded up to a power of 2
+	  */
+	public EventJournal(int capacity) {
+		this(capacity, null, Level.INFO);
+	}
+
+	/**
+	  * Create a journal written to a file, appended to if it exists.
+	  *
+	  * @param capacity the number of events the ring holds, rounded up to a power of 2
+	  * @param file the file
+	  *
+	  * @throws IOException if the file cannot be opened
+	  */
+	public EventJournal(int capacity, Path file) throws IOException {
+		this(capacity, new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), CHARSET)), null);
+	}
+
+	private EventJournal(int capacity, Writer file, Level level) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: capacity must be between 1 and 2^30, but was " + capacity);
+		}
+		this.capacity = (capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+		this.mask = this.capacity - 1;
+		this.times = new long[this.capacity];
+		this.codes = new long[this.capacity];
+		this.numBytes = new int[this.capacity];
+		this.threads = new Object[this.capacity];
+		this.TIDs = new String[this.capacity];
+		this.payloads = new String[this.capacity];
+		this.published = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			published.set(i, -1);
+		}
+		this.file = file;
+		this.level = level;
+	}
+
+	/**
+	  * @param sampleEvery record one event in so many e.g. 100, or 1 to record every event
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public EventJournal setSampleEvery(int sampleEvery) {
+		if (sampleEvery < 1) {
+			throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: sampleEvery must be at least 1, but was " + sampleEvery);
+		}
+		this.sampleEvery = sampleEvery;
+		return this;
+	}
+
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	/**
+	  * @param payloadLogging true to record the first MAX_PAYLOAD_CHARS chars of each payload (off by default,
+	  * 		as payloads may hold anything, and copying them costs)
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public EventJournal setPayloadLogging(boolean payloadLogging) {
+		this.payloadLogging = payloadLogging;
+		return this;
+	}
+
+	public boolean isPayloadLogging() {
+		return payloadLogging;
+	}
+
+	/**
+	  * Start the background Thread writing events out. Only the first call does anything.
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public EventJournal start() {
+		if (running.compareAndSet(false, true)) {
+			drainer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drainUntilClosed();
+				}
+			}, "EventJournal");
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+		return this;
+	}
+
+	/**
+	  * Stop the background Thread, once it has written out every event recorded so far, and close the file, if any.
+	  */
+	public void close() {
+		if (!running.compareAndSet(true, false)) {
+			return;
+		}
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join(TimeUnit.SECONDS.toMillis(10));
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (file != null) {
+			try {
+				file.close();
+			}
+			catch(IOException e) {
+				logger.warning("[" + Thread.currentThread().getName() + "]: Could not close event journal file: " + e);
+			}
+		}
+	}
+
+	/**
+	  * @return the number of events recorded and not yet written out
+	  */
+	public long getPendingCount() {
+		return claimed.get() - drained.get();
+	}
+
+	/**
+	  * @return the number of events dropped, because the ring was full
+	  */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	  * Record a packet received.
+	  *
+	  * @param side the side of the connection that received it
+	  * @param message the message parsed from the packet
+	  * @param packetSize the size of the packet, in bytes
+	  */
+	void packetReceived(SocketType side, SocketTransferMessage message, int packetSize) {
+		if (!sampled()) {
+			return;
+		}
+		String payload = null;
+		if (payloadLogging) {
+			payload = (message.getFormat() == SocketFormat.BINARY ? null : truncated(message.getPayload(), 0, message.getPayload().length()));
+		}
+		record(PACKET_RECEIVED, side, message.getErrNo(), message.getTID(), message.getService(), message.getFormat(), packetSize, payload);
+	}
+
+	/**
+	  * Record a packet sent.
+	  *
+	  * @param side the side of the connection that sent it
+	  * @param packetSize the size of the packet, in bytes
+	  * @param data the chars sent, or null if bytes
+	  * @param start index of the first char of data sent
+	  * @param end index after the last char of data sent
+	  */
+	void packetSent(SocketType side, int errNo, String TID, SocketService service, SocketFormat format, int packetSize, CharSequence data, int start, int end) {
+		if (!sampled()) {
+			return;
+		}
+		String payload = null;
+		if (payloadLogging && data != null) {
+			payload = truncated(data, start, end);
+		}
+		record(PACKET_SENT, side, errNo, TID, service, format, packetSize, payload);
+	}
+
+	/**
+	  * @return true if the event is to be recorded: the logger would log it, and it's picked by the sampling
+	  */
+	private boolean sampled() {
+		if (file == null && !logger.isLoggable(level)) {
+			return false;
+		}
+		int every = sampleEvery;
+		return (every == 1 || ThreadLocalRandom.current().nextInt(every) == 0);
+	}
+
+	private static String truncated(CharSequence data, int start, int end) {
+		return data.subSequence(start, Math.min(end, start + MAX_PAYLOAD_CHARS)).toString();
+	}
+
+	/**
+	  * Write an event to the next slot, unless the ring is full.
+	  */
+	private void record(int kind, SocketType side, int errNo, String TID, SocketService service, SocketFormat format, int packetSize, String payload) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - drained.get() >= capacity) {
+				dropped.increment();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		int slot = (int) sequence & mask;
+		times[slot] = System.currentTimeMillis();
+		codes[slot] = ((long) kind << 56) | ((long) side.ordinal() << 48) | ((long) service.ordinal() << 40) | ((long) format.ordinal() << 32) | (errNo & 0xFFFFFFFFL);
+		numBytes[slot] = packetSize;
+		threads[slot] = Thread.currentThread();
+		TIDs[slot] = TID;
+		payloads[slot] = payload;
+		published.lazySet(slot, sequence); // after the slot, so the background Thread sees it all
+	}
+
+	/**
+	  * Run by the background Thread: write events out as they are published, napping when there are none.
+	  */
+	private void drainUntilClosed() {
+		StringBuilder line = new StringBuilder(128 + MAX_PAYLOAD_CHARS);
+		SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date date = new Date();
+		long droppedReported = 0;
+
+		while (true) {
+			boolean stopping = !running.get(); // read before draining, so nothing recorded before close() is missed
+			int numWritten = drain(line, timeFormat, date);
+
+			long numDropped = dropped.sum();
+			if (numDropped > droppedReported) {
+				logger.warning("[" + Thread.currentThread().getName() + "]: " + (numDropped - droppedReported) + " events dropped from the journal, as it was full.");
+				droppedReported = numDropped;
+			}
+
+			if (numWritten == 0) {
+				flush();
+				if (stopping) {
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	  * Write out every event published, in order, up to the first still being written.
+	  *
+	  * @return the number of events written out
+	  */
+	private int drain(StringBuilder line, SimpleDateFormat timeFormat, Date date) {
+		int numWritten = 0;
+		long sequence = drained.get();
+		int slot;
+		while (published.get(slot = (int) sequence & mask) == sequence) {
+			line.setLength(0);
+			date.setTime(times[slot]);
+			long code = codes[slot];
+			Thread thread = (Thread) threads[slot];
+			line.append(timeFormat.format(date)).append(" [").append(SIDES[(int) (code >>> 48) & 0xFF]).append('-').append(thread.getName()).append("]: ")
+					.append(((code >>> 56) & 0xFF) == PACKET_SENT ? "Sent " : "Received ")
+					.append(SERVICES[(int) (code >>> 40) & 0xFF]).append(' ').append(FORMATS[(int) (code >>> 32) & 0xFF])
+					.append(" errNo=").append((int) code).append(" TID=").append(TIDs[slot]).append(" bytes=").append(numBytes[slot]);
+			if (payloads[slot] != null) {
+				line.append(" payload=[").append(payloads[slot]).append(']');
+			}
+
+			// Let go of what the slot refers to before handing it back
+			threads[slot] = null;
+			TIDs[slot] = null;
+			payloads[slot] = null;
+			drained.lazySet(++sequence);
+
+			write(line);
+			numWritten++;
+		}
+		return numWritten;
+	}
+
+	private void write(StringBuilder line) {
+		if (file == null) {
+			logger.log(level, line.toString());
+			return;
+		}
+		try {
+			file.append(line).append(System.lineSeparator());
+		}
+		catch(IOException e) {
+			logger.warning("[" + Thread.currentThread().getName() + "]: Could not write to event journal file: " + e);
+		}
+	}
+
+	private void flush() {
+		if (file != null) {
+			try {
+				file.flush();
+			}
+			catch(IOException e) {
+				logger.warning("[" + Thread.currentThread().getName() + "]: Could not flush event journal file: " + e);
+			}
+		}
+	}
+}
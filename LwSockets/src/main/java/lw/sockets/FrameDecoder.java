@@ -0,0 +1,269 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+
+/**
+ * @author wadel
+ *
+ * Package-private class for parsing packets, of either protocol, straight from the bytes read from the transport.
+ * Header digits are read as bytes and the TID and payload are each decoded just once, so the only objects built
+ * for a packet are the SocketTransferMessage and its two Strings.
+ *
+ * Compressed version 2 payloads (see FrameV2) are expanded with an Inflater kept for the life of the connection.
+ * A SocketFormat.BINARY payload is copied out as it is, rather than decoded.
+ *
+ * Thread-safety: This class is NOT thread safe. Each connection has its own.
+ *
+ */
+final class FrameDecoder {
+	private static final int TID_SIZE = 255;		// chars for the (space-padded) TID in a legacy packet
+	private static final int HEADER_SIZE = 18;		// "999_999_999_99999_" in a legacy packet
+
+	///////////////////////////////////////////////
+	// Legacy packets are UTF-8 whatever the platform, so both ends agree on where a packet's bytes run out.
+	// ASCII chars are single ASCII bytes, so a TID of only ASCII chars can be found by counting bytes, without decoding it first.
+	///////////////////////////////////////////////
+	static final Charset LEGACY_CHARSET = Charset.forName("UTF-8");
+
+	private CharsetDecoder legacyDecoder;			// only needed for TIDs holding non-ASCII chars
+	private CharBuffer legacyChars;
+
+	private Inflater inflater;						// only needed once a compressed payload arrives
+	private byte[] inflated;						// a compressed payload once expanded, re-used (and grown when needed)
+
+	FrameDecoder() {
+	}
+
+	/**
+	  * @param packet a buffer holding at least the first 3 bytes of a legacy packet
+	  * @param offset where in the buffer the packet starts
+	  *
+	  * @return the error number of the packet
+	  */
+	static int legacyErrNo(byte[] packet, int offset) {
+		return parseNumber(packet, offset, 3);
+	}
+
+	/**
+	  * Parse a whole legacy packet: "EEE_SSS_FFF_LLLLL_" then the TID, space-padded to 255 chars, then the data,
+	  * then nulls up to the packet size. As always, the TID and data are trimmed.
+	  *
+	  * @param packet a buffer holding the whole packet
+	  * @param offset where in the buffer the packet starts
+	  * @param length the size of the packet
+	  *
+	  * @return the message held in the packet
+	  */
+	SocketTransferMessage decodeLegacy(byte[] packet, int offset, int length) {
+		int errNo = parseNumber(packet, offset, 3);
+		SocketService service = SocketService.fromNumber(parseNumber(packet, offset + 4, 3));
+		SocketFormat format = SocketFormat.fromNumber(parseNumber(packet, offset + 8, 3));
+		// The data length field isn't needed: the data runs up to the nulls filling the packet
+
+		int textStart = offset + HEADER_SIZE;
+		int textEnd = offset + length;
+		String TID;
+		String payload;
+
+		// Skip the nulls (and any trailing spaces) without decoding them
+		while (textEnd > textStart && (packet[textEnd - 1] & 0xFF) <= ' ') {
+			textEnd--;
+		}
+
+		int TIDEnd = Math.min(textStart + TID_SIZE, textEnd);
+		if (isAscii(packet, textStart, TIDEnd)) {
+			// One byte per char, so the TID is exactly the first 255 bytes
+			TID = trimmedString(packet, textStart, TIDEnd, LEGACY_CHARSET);
+			payload = trimmedString(packet, TIDEnd, textEnd, LEGACY_CHARSET);
+		}
+		else {
+			CharBuffer chars = decodeLegacyChars(packet, textStart, textEnd);
+			int TIDChars = Math.min(TID_SIZE, chars.limit());
+			TID = trimmedString(chars.array(), 0, TIDChars);
+			payload = trimmedString(chars.array(), TIDChars, chars.limit());
+		}
+
+		return new SocketTransferMessage(errNo, TID, service, format, payload);
+	}
+
+	/**
+	  * Parse a whole protocol version 2 packet (see FrameV2).
+	  *
+	  * @param packet a buffer holding the whole packet
+	  * @param offset where in the buffer the packet starts
+	  *
+	  * @return the message held in the packet
+	  *
+	  * @throws SocketException if a compressed payload cannot be expanded
+	  */
+	SocketTransferMessage decodeV2(byte[] packet, int offset) throws SocketException {
+		// version, at offset 0, already checked by FrameV2.bodyLength()
+		int errNo = (short) (((packet[offset + 1] & 0xFF) << 8) | (packet[offset + 2] & 0xFF));
+		SocketService service = SocketService.fromNumber(packet[offset + 3] & 0xFF);
+		SocketFormat format = SocketFormat.fromNumber(packet[offset + 4] & 0xFF);
+		byte flags = packet[offset + 5];
+		int TIDLength = packet[offset + 6] & 0xFF;
+		int payloadLength = FrameV2.getInt(packet, offset + 7);
+
+		int TIDStart = offset + FrameV2.HEADER_SIZE;
+		String TID = new String(packet, TIDStart, TIDLength, FrameV2.CHARSET);
+		byte[] payloadBytes = packet;
+		int payloadStart = TIDStart + TIDLength;
+		if ((flags & FrameV2.FLAG_COMPRESSED) != 0) {
+			payloadLength = inflate(packet, payloadStart, payloadLength);
+			payloadBytes = inflated;
+			payloadStart = 0;
+		}
+
+		if (format == SocketFormat.BINARY) {
+			return new SocketTransferMessage(errNo, TID, service, Arrays.copyOfRange(payloadBytes, payloadStart, payloadStart + payloadLength));
+		}
+		return new SocketTransferMessage(errNo, TID, service, format, new String(payloadBytes, payloadStart, payloadLength, FrameV2.CHARSET));
+	}
+
+	/**
+	  * Expand a compressed payload into inflated.
+	  *
+	  * @return the number of bytes expanded to
+	  *
+	  * @throws SocketException if the payload is not compressed data, or expands beyond FrameV2.MAX_UNCOMPRESSED_SIZE
+	  */
+	private int inflate(byte[] packet, int start, int length) throws SocketException {
+		if (inflater == null) {
+			inflater = new Inflater();
+			inflated = new byte[FrameV2.MAX_DATA_SIZE * 3];
+		}
+		inflater.reset();
+		inflater.setInput(packet, start, length);
+
+		int inflatedLength = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflatedLength == inflated.length) {
+					if (inflated.length >= FrameV2.MAX_UNCOMPRESSED_SIZE) {
+						throw new SocketException("Compressed payload expands beyond " + FrameV2.MAX_UNCOMPRESSED_SIZE + " bytes", -1011);
+					}
+					inflated = Arrays.copyOf(inflated, Math.min(2 * inflated.length, FrameV2.MAX_UNCOMPRESSED_SIZE));
+				}
+				int numInflated = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+				if (numInflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new SocketException("Compressed payload is truncated", -1011);
+				}
+				inflatedLength += numInflated;
+			}
+		}
+		catch(DataFormatException e) {
+			throw new SocketException("Compressed payload is not valid: " + e.getMessage(), -1011);
+		}
+		return inflatedLength;
+	}
+
+	/**
+	  * Free the Inflater's memory, now the connection is closed.
+	  */
+	void release() {
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+			inflated = null;
+		}
+	}
+
+	/**
+	  * Decode the text of a legacy packet (TID and data) whose TID holds non-ASCII chars, into a buffer re-used for them.
+	  *
+	  * @return the chars, from position 0 to the limit
+	  */
+	private CharBuffer decodeLegacyChars(byte[] packet, int start, int end) {
+		if (legacyDecoder == null) {
+			// Same as new String(byte[]), which always replaced what it could not decode
+			legacyDecoder = LEGACY_CHARSET.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		int maxChars = (int) Math.ceil((end - start) * legacyDecoder.maxCharsPerByte()) + 1;
+		if (legacyChars == null || legacyChars.capacity() < maxChars) {
+			legacyChars = CharBuffer.allocate(maxChars);
+		}
+
+		legacyChars.clear();
+		legacyDecoder.reset();
+		legacyDecoder.decode(ByteBuffer.wrap(packet, start, end - start), legacyChars, true);
+		legacyDecoder.flush(legacyChars);
+		legacyChars.flip();
+		return legacyChars;
+	}
+
+	/**
+	  * Read a number, as written by "%0Nd".
+	  *
+	  * @throws NumberFormatException if the bytes are not a number
+	  */
+	private static int parseNumber(byte[] packet, int offset, int width) {
+		int i = offset;
+		int end = offset + width;
+		boolean negative = (packet[i] == '-');
+		if (negative) {
+			i++;
+		}
+		if (i >= end) {
+			throw new NumberFormatException("Number expected in packet at offset " + offset);
+		}
+
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = packet[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Number expected in packet at offset " + offset + ", but found byte " + packet[i]);
+			}
+			value = value * 10 + digit;
+		}
+		return (negative ? -value : value);
+	}
+
+	/**
+	  * @return a String of the bytes, as String.trim() would leave it
+	  */
+	private static String trimmedString(byte[] bytes, int start, int end, Charset charset) {
+		while (start < end && (bytes[start] & 0xFF) <= ' ') {
+			start++;
+		}
+		while (end > start && (bytes[end - 1] & 0xFF) <= ' ') {
+			end--;
+		}
+		return (start == end ? "" : new String(bytes, start, end - start, charset));
+	}
+
+	/**
+	  * @return a String of the chars, as String.trim() would leave it
+	  */
+	private static String trimmedString(char[] chars, int start, int end) {
+		while (start < end && chars[start] <= ' ') {
+			start++;
+		}
+		while (end > start && chars[end - 1] <= ' ') {
+			end--;
+		}
+		return (start == end ? "" : new String(chars, start, end - start));
+	}
+
+	private static boolean isAscii(byte[] bytes, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
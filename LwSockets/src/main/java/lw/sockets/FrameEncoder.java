@@ -0,0 +1,413 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.Deflater;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+
+/**
+ * @author wadel
+ *
+ * Package-private class for building packets, of either protocol, straight into a buffer that is re-used for
+ * every packet sent over a connection.
+ * Header digits, TID and payload are written as bytes where they belong - no Strings are built along the way.
+ *
+ * The buffer returned by each encode method is only valid until the next call.
+ *
+ * A legacy packet is a fixed number of bytes, so legacyDataEnd() finds how many chars of a message will fit in one,
+ * once encoded, before it is built.
+ *
+ * Version 2 payloads may be compressed (see FrameV2), with a Deflater kept for the life of the connection.
+ * The buffers needed for that are only allocated once compression is first used.
+ *
+ * Given a BufferPool, the buffer is a direct one acquired from it, and given back by release().
+ *
+ * Thread-safety: This class is NOT thread safe. Each connection has its own.
+ *
+ */
+final class FrameEncoder {
+	private static final int TID_SIZE = 255;		// chars for the (space-padded) TID in a legacy packet
+	private static final int HEADER_SIZE = 18;		// "999_999_999_99999_" in a legacy packet
+
+	final private int messageSize;					// total size of a legacy packet
+	final private int capacity;						// of the buffer, until compression is first used
+	final private BufferPool pool;					// where the buffer comes from, null to allocate it in the heap
+	private PooledBuffer pooled;					// the buffer, when from the pool
+	private ByteBuffer buffer;						// replaced by a bigger one when compression is first used
+	final private CharsetEncoder legacyEncoder = newEncoder(FrameDecoder.LEGACY_CHARSET);
+	final private CharsetEncoder v2Encoder = newEncoder(FrameV2.CHARSET);
+
+	private Deflater deflater;						// compresses every compressed payload, reset for each
+	private ByteBuffer plain;						// a payload to be compressed, encoded but not yet compressed
+	private byte[] compressed;						// a payload once compressed
+	private boolean released = false;				// true once the Deflater is ended (and buffer given back), so no more compressing
+
+	/**
+	  * Constructor.
+	  *
+	  * @param messageSize the total size of a legacy packet
+	  * @param maxDataSize the most chars of payload that will be passed for a single legacy packet
+	  * @param pool where to acquire a direct buffer (best when writing to a channel), or null to allocate one in the heap
+	  */
+	FrameEncoder(int messageSize, int maxDataSize, BufferPool pool) {
+		this.messageSize = messageSize;
+		this.pool = pool;
+
+		// Room for the worst case of either protocol
+		int maxBytesPerChar = (int) Math.ceil(Math.max(legacyEncoder.maxBytesPerChar(), v2Encoder.maxBytesPerChar()));
+		int legacyCapacity = Math.max(messageSize, HEADER_SIZE + (TID_SIZE + maxDataSize) * maxBytesPerChar);
+		int v2Capacity = FrameV2.HEADER_SIZE + FrameV2.MAX_TID_SIZE + FrameV2.MAX_DATA_SIZE * maxBytesPerChar;
+		this.capacity = Math.max(legacyCapacity, v2Capacity);
+
+		allocate(capacity);
+	}
+
+	/**
+	  * Build a legacy packet: "EEE_SSS_FFF_LLLLL_" then the TID, space-padded to 255 chars, then the data, then nulls up to the packet size.
+	  *
+	  * @param errNo the error number to be sent
+	  * @param TID the Transaction ID to be sent (only the first 255 chars are sent)
+	  * @param service the Service requested to be sent
+	  * @param format the format of the message being sent
+	  * @param data holds the actual data to be sent
+	  * @param start index of the first char of data to be sent
+	  * @param end index after the last char of data to be sent
+	  *
+	  * @return the packet, ready to be written
+	  */
+	ByteBuffer encodeLegacy(int errNo, CharSequence TID, SocketService service, SocketFormat format, CharSequence data, int start, int end) {
+		if (buffer == null) {
+			allocate(capacity); // Sending after release()
+		}
+		buffer.clear();
+
+		putNumber(errNo, 3);
+		buffer.put((byte) '_');
+		putNumber(service.asNumber(), 3);
+		buffer.put((byte) '_');
+		putNumber(format.asNumber(), 3);
+		buffer.put((byte) '_');
+		putNumber(TID_SIZE + (end - start), 5);
+		buffer.put((byte) '_');
+
+		int TIDLength = Math.min(TID.length(), TID_SIZE);
+		putChars(legacyEncoder, buffer, TID, 0, TIDLength);
+		for (int i = TIDLength; i < TID_SIZE; i++) {
+			buffer.put((byte) ' ');
+		}
+
+		putChars(legacyEncoder, buffer, data, start, end);
+		while (buffer.position() < messageSize) {
+			buffer.put((byte) 0);
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	  * Find how much data fits in a legacy packet, once encoded, without splitting a character.
+	  * The buffer is used to find out, so the last packet built is no longer valid.
+	  *
+	  * @param TID the Transaction ID to be sent (only the first 255 chars are sent)
+	  * @param data holds the actual data to be sent
+	  * @param start index of the first char of data to be sent
+	  * @param end index after the last char of data to be sent
+	  *
+	  * @return index after the last char of data that fits (always at least one character, so every packet makes progress)
+	  */
+	int legacyDataEnd(CharSequence TID, CharSequence data, int start, int end) {
+		int TIDLength = Math.min(TID.length(), TID_SIZE);
+		// Room for the TID and the data, the TID's padding being single spaces
+		int room = messageSize - HEADER_SIZE - (TID_SIZE - TIDLength);
+
+		if (isAscii(TID, 0, TIDLength)) {
+			// One byte per ASCII char, so no need to encode anything, unless the data holds other chars
+			int fastEnd = Math.min(end, start + room - TIDLength);
+			if (isAscii(data, start, fastEnd)) {
+				return fastEnd;
+			}
+		}
+
+		if (buffer == null) {
+			allocate(capacity); // Sending after release()
+		}
+		buffer.clear();
+		buffer.limit(room);
+		putChars(legacyEncoder, buffer, TID, 0, TIDLength);
+		// Stops at the last whole character that fits, keeping surrogate pairs together
+		CharBuffer chars = CharBuffer.wrap(data, start, end);
+		legacyEncoder.reset();
+		if (legacyEncoder.encode(chars, buffer, true).isUnderflow()) {
+			legacyEncoder.flush(buffer);
+		}
+		buffer.clear();
+
+		int dataEnd = chars.position();
+		if (dataEnd == start && start < end) {
+			dataEnd = start + (Character.isHighSurrogate(data.charAt(start)) && start + 1 < end ? 2 : 1);
+		}
+		return dataEnd;
+	}
+
+	/**
+	  * Build a protocol version 2 packet (see FrameV2).
+	  *
+	  * @param errNo the error number to be sent
+	  * @param TID the Transaction ID to be sent (only the first 255 bytes are sent, without splitting a character)
+	  * @param service the Service requested to be sent
+	  * @param format the format of the message being sent
+	  * @param data holds the actual data to be sent
+	  * @param start index of the first char of data to be sent
+	  * @param end index after the last char of data to be sent
+	  * @param compress true to compress the data, which may then be up to FrameV2.MAX_COMPRESSED_DATA_SIZE chars.
+	  * 		Data that doesn't get any smaller is sent as it is.
+	  *
+	  * @return the packet, ready to be written
+	  */
+	ByteBuffer encodeV2(int errNo, CharSequence TID, SocketService service, SocketFormat format, CharSequence data, int start, int end, boolean compress) {
+		compress = compress && !released;
+		int payloadStart = startV2(errNo, TID, service, format, compress);
+
+		if (compress) {
+			plain.clear();
+			putChars(v2Encoder, plain, data, start, end);
+			putCompressed(plain.array(), 0, plain.position());
+		}
+		else {
+			putChars(v2Encoder, buffer, data, start, end);
+		}
+
+		return finishV2(payloadStart);
+	}
+
+	/**
+	  * Build a protocol version 2 packet carrying bytes, exactly as given, in SocketFormat.BINARY.
+	  *
+	  * @param errNo the error number to be sent
+	  * @param TID the Transaction ID to be sent (only the first 255 bytes are sent, without splitting a character)
+	  * @param service the Service requested to be sent
+	  * @param data holds the actual data to be sent
+	  * @param start index of the first byte of data to be sent
+	  * @param end index after the last byte of data to be sent, up to FrameV2.MAX_BINARY_DATA_SIZE bytes after start
+	  * @param compress true to compress the data, which may then be up to FrameV2.MAX_COMPRESSED_BINARY_DATA_SIZE bytes.
+	  * 		Data that doesn't get any smaller is sent as it is.
+	  *
+	  * @return the packet, ready to be written
+	  */
+	ByteBuffer encodeV2(int errNo, CharSequence TID, SocketService service, byte[] data, int start, int end, boolean compress) {
+		compress = compress && !released;
+		int payloadStart = startV2(errNo, TID, service, SocketFormat.BINARY, compress);
+
+		if (compress) {
+			putCompressed(data, start, end - start);
+		}
+		else {
+			buffer.put(data, start, end - start);
+		}
+
+		return finishV2(payloadStart);
+	}
+
+	/**
+	  * Clear the buffer and put the header (lengths to follow) and TID of a protocol version 2 packet.
+	  *
+	  * @return where the payload starts
+	  */
+	private int startV2(int errNo, CharSequence TID, SocketService service, SocketFormat format, boolean compress) {
+		if (compress) {
+			prepareCompression();
+		}
+		if (buffer == null) {
+			allocate(capacity); // Sending after release()
+		}
+		buffer.clear();
+
+		buffer.put(FrameV2.VERSION);
+		buffer.putShort((short) errNo);
+		buffer.put((byte) service.asNumber());
+		buffer.put((byte) format.asNumber());
+		buffer.put((byte) 0);	// flags
+		buffer.put((byte) 0);	// TID length
+		buffer.putInt(0);		// payload length
+
+		// The limit makes the encoder stop at the last whole character that fits
+		buffer.limit(FrameV2.HEADER_SIZE + FrameV2.MAX_TID_SIZE);
+		putChars(v2Encoder, buffer, TID, 0, Math.min(TID.length(), FrameV2.MAX_TID_SIZE));
+		buffer.limit(buffer.capacity());
+		buffer.put(6, (byte) (buffer.position() - FrameV2.HEADER_SIZE));
+
+		return buffer.position();
+	}
+
+	/**
+	  * Put the payload length of a protocol version 2 packet, now the payload is in place.
+	  *
+	  * @return the packet, ready to be written
+	  */
+	private ByteBuffer finishV2(int payloadStart) {
+		buffer.putInt(7, buffer.position() - payloadStart);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	  * Put a payload compressed, flagging the packet as such, or as it is if it doesn't get any smaller.
+	  */
+	private void putCompressed(byte[] payload, int offset, int length) {
+		int compressedLength = deflate(payload, offset, length);
+		if (compressedLength < length) {
+			buffer.put(compressed, 0, compressedLength);
+			buffer.put(5, FrameV2.FLAG_COMPRESSED);
+		}
+		else {
+			buffer.put(payload, offset, length);
+		}
+	}
+
+	/**
+	  * Compress a payload into compressed.
+	  *
+	  * @param length the number of bytes of payload
+	  *
+	  * @return the number of bytes compressed to, or length if it would be no fewer
+	  */
+	private int deflate(byte[] payload, int offset, int length) {
+		deflater.reset();
+		deflater.setInput(payload, offset, length);
+		deflater.finish();
+
+		int compressedLength = 0;
+		while (!deflater.finished() && compressedLength < length) {
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+		return (deflater.finished() ? compressedLength : length);
+	}
+
+	/**
+	  * Allocate what's needed to compress, the first time it is.
+	  */
+	private void prepareCompression() {
+		if (deflater != null) {
+			return;
+		}
+
+		// Fastest, rather than smallest: the point is to spend less time sending, not more time compressing
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		int maxPlainSize = FrameV2.MAX_COMPRESSED_DATA_SIZE * (int) Math.ceil(v2Encoder.maxBytesPerChar());
+		plain = ByteBuffer.allocate(maxPlainSize);
+		compressed = new byte[maxPlainSize];
+
+		int compressedCapacity = FrameV2.HEADER_SIZE + FrameV2.MAX_TID_SIZE + maxPlainSize;
+		if (buffer == null || buffer.capacity() < compressedCapacity) {
+			allocate(compressedCapacity);
+		}
+	}
+
+	/**
+	  * Replace the buffer with one of at least capacity bytes, giving any pooled one back.
+	  */
+	private void allocate(int capacity) {
+		if (pooled != null) {
+			pooled.release();
+			pooled = null;
+		}
+		if (pool != null && !released) {
+			pooled = pool.acquire(capacity);
+			buffer = pooled.buffer();
+		}
+		else {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+	}
+
+	/**
+	  * Free the Deflater's memory, and give back any pooled buffer, now the connection is closed.
+	  * Anything encoded after this is not compressed, and goes through a buffer allocated in the heap.
+	  */
+	void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+			plain = null;
+			compressed = null;
+		}
+		if (pooled != null) {
+			pooled.release();
+			pooled = null;
+			buffer = null;
+		}
+	}
+
+	/**
+	  * Write a number, as "%0Nd" would format it.
+	  *
+	  * @param value the number
+	  * @param width the min number of chars, including any sign
+	  */
+	private void putNumber(int value, int width) {
+		long remaining = value;
+		if (remaining < 0) {
+			buffer.put((byte) '-');
+			remaining = -remaining;
+			width--;
+		}
+
+		long divisor = 1;
+		int numDigits = 1;
+		while (divisor * 10 <= remaining) {
+			divisor *= 10;
+			numDigits++;
+		}
+
+		for (int i = numDigits; i < width; i++) {
+			buffer.put((byte) '0');
+		}
+		while (divisor > 0) {
+			buffer.put((byte) ('0' + (remaining / divisor) % 10));
+			divisor /= 10;
+		}
+	}
+
+	/**
+	  * Encode chars into a buffer, stopping early only if the buffer's limit is reached.
+	  */
+	private static void putChars(CharsetEncoder encoder, ByteBuffer target, CharSequence chars, int start, int end) {
+		if (start >= end) {
+			return;
+		}
+
+		encoder.reset();
+		CoderResult result = encoder.encode(CharBuffer.wrap(chars, start, end), target, true);
+		if (result.isUnderflow()) {
+			encoder.flush(target);
+		}
+	}
+
+	private static boolean isAscii(CharSequence chars, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (chars.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static CharsetEncoder newEncoder(Charset charset) {
+		// Same as String.getBytes(), which always replaced what it could not encode
+		return charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.charset.Charset;
+
+/**
+ * @author wadel
+ *
+ * Package-private class describing protocol version 2 packets (FrameEncoder builds them, FrameDecoder parses them).
+ *
+ * Rather than the legacy fixed 1024 bytes of text, a version 2 packet is only as long as it needs to be:
+ *
+ *   offset  size  content
+ *   0       1     version (always 2, so a lost packet boundary is caught at once)
+ *   1       2     error number (signed)
+ *   3       1     service (SocketService.asNumber())
+ *   4       1     format (SocketFormat.asNumber())
+ *   5       1     flags (FLAG_COMPRESSED, otherwise 0)
+ *   6       1     TID length in bytes (0-255)
+ *   7       4     payload length in bytes
+ *   11            the TID, then the payload, both UTF-8 (but a SocketFormat.BINARY payload is bytes, exactly as given)
+ *
+ * All numbers are big-endian.
+ *
+ * When compression has been agreed (see ProtocolOptions), the payload of a packet flagged FLAG_COMPRESSED is the
+ * UTF-8 payload compressed, on its own, by a java.util.zip.Deflater. A compressed packet may carry up to
+ * MAX_COMPRESSED_DATA_SIZE chars, so a big message goes in far fewer parts.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class FrameV2 {
+	static final int HEADER_SIZE = 11;
+	static final byte VERSION = 2;
+	static final int MAX_TID_SIZE = 255;
+	///////////////////////////////////////////////
+	// Max chars of payload sent per packet. Larger messages go in parts, as with the legacy protocol,
+	// just many fewer of them.
+	///////////////////////////////////////////////
+	static final int MAX_DATA_SIZE = 16 * 1024;
+	///////////////////////////////////////////////
+	// Max bytes of payload accepted per packet - anything bigger means we've lost track of packet boundaries
+	// (or the peer is misbehaving).
+	///////////////////////////////////////////////
+	static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+	// Set in the flags of a packet whose payload is compressed
+	static final byte FLAG_COMPRESSED = 0x01;
+	///////////////////////////////////////////////
+	// Max chars of payload sent per compressed packet. At 3 UTF-8 bytes per char, even a payload that doesn't
+	// compress at all (and so is sent as it is) stays within MAX_PAYLOAD_SIZE.
+	///////////////////////////////////////////////
+	static final int MAX_COMPRESSED_DATA_SIZE = 256 * 1024;
+	// Max bytes a compressed payload may expand to - anything bigger was never sent by this code
+	static final int MAX_UNCOMPRESSED_SIZE = 3 * MAX_COMPRESSED_DATA_SIZE;
+
+	///////////////////////////////////////////////
+	// Max bytes of a BINARY payload sent per packet, and per compressed packet: the same bytes as the most
+	// an XML payload can take.
+	///////////////////////////////////////////////
+	static final int MAX_BINARY_DATA_SIZE = 3 * MAX_DATA_SIZE;
+	static final int MAX_COMPRESSED_BINARY_DATA_SIZE = MAX_UNCOMPRESSED_SIZE;
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private FrameV2() {
+	}
+
+	/**
+	  * Find how much follows the header of a packet.
+	  *
+	  * @param header a buffer holding at least the header of the packet
+	  * @param offset where in the buffer the packet starts
+	  *
+	  * @return the number of bytes (TID plus payload) following the header
+	  *
+	  * @throws SocketException if the header is not valid
+	  */
+	static int bodyLength(byte[] header, int offset) throws SocketException {
+		if (header[offset] != VERSION) {
+			throw new SocketException("Protocol version 2 packet expected, but found version " + header[offset], -1003);
+		}
+
+		int payloadLength = getInt(header, offset + 7);
+		if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_SIZE) {
+			throw new SocketException("Protocol version 2 packet has invalid payload length " + payloadLength, -1004);
+		}
+
+		return (header[offset + 6] & 0xFF) + payloadLength;
+	}
+
+	/**
+	  * Read a big-endian int.
+	  */
+	static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+	}
+}
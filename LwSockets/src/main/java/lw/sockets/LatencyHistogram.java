@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, cheap enough to record every request: recording is a few shifts and
+ * an atomic increment, with no lock and no allocation.
+ *
+ * Values are counted in buckets: one per value below 2^SUB_BUCKET_BITS, then SUB_BUCKETS buckets for each power
+ * of 2 above, so every value is held to within about 3% (1 / SUB_BUCKETS) of its true value, from nanoseconds to
+ * hours, in a fixed array.
+ *
+ * Percentiles are read from the counts as they stand, so may be a little out of step with the count and max
+ * while values are still being recorded.
+ *
+ * Thread-safety: This class is thread safe, and lock-free.
+ */
+public final class LatencyHistogram {
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// The SUB_BUCKETS single values, then a group of buckets per power of 2 from SUB_BUCKETS up to 2^62
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	final private AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	final private AtomicLong totalCount = new AtomicLong();
+	final private AtomicLong totalNanos = new AtomicLong();
+	final private AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	  * Record a latency.
+	  *
+	  * @param nanos the latency, in nanoseconds. Negative values (e.g. from a clock that has gone back) count as 0
+	  */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	  * Record a latency measured by a closed loop (each request waiting for the answer to the one before), along with
+	  * the latencies of the requests that would have been sent meanwhile, had the loop kept to its expected pace.
+	  * Otherwise a stall is counted once, however many requests it held up (so-called coordinated omission).
+	  *
+	  * @param nanos the latency, in nanoseconds
+	  * @param expectedIntervalNanos the expected time between requests, in nanoseconds, or 0 to record the latency alone
+	  */
+	public void recordCorrected(long nanos, long expectedIntervalNanos) {
+		record(nanos);
+		if (expectedIntervalNanos <= 0) {
+			return;
+		}
+		for (long missed = nanos - expectedIntervalNanos; missed >= expectedIntervalNanos; missed -= expectedIntervalNanos) {
+			record(missed);
+		}
+	}
+
+	/**
+	  * Record the latency since a time taken earlier.
+	  *
+	  * @param startNanos the time taken earlier, from System.nanoTime()
+	  */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	  * @return the bucket counting the value
+	  */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);	// value is at least 2^magnitude
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+	}
+
+	/**
+	  * @return the highest value counted by the bucket
+	  */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long lowest = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+		long highest = lowest + (1L << shift) - 1;
+		return (highest < 0 ? Long.MAX_VALUE : highest);	// the last bucket runs to the highest long
+	}
+
+	/**
+	  * @param percentile the percentile wanted e.g. 99.9
+	  *
+	  * @return the latency, in nanoseconds, that percentile of those recorded are at or below, or 0 if none recorded
+	  */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: percentile must be from 0 to 100, but was " + percentile);
+
+		long[] snapshot = new long[NUM_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= wanted) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	  * @return the number of latencies recorded
+	  */
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	  * @return the highest latency recorded, in nanoseconds
+	  */
+	public long getMax() {
+		return maxNanos.get();
+	}
+
+	/**
+	  * @return the mean latency recorded, in nanoseconds, or 0 if none recorded
+	  */
+	public double getMean() {
+		long count = totalCount.get();
+		return (count == 0 ? 0 : (double) totalNanos.get() / count);
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram[count=" + getCount() + ", p50=" + getValueAtPercentile(50) + "ns, p99=" + getValueAtPercentile(99)
+				+ "ns, p99.9=" + getValueAtPercentile(99.9) + "ns, max=" + getMax() + "ns]";
+	}
+}
@@ -0,0 +1,638 @@
+package lw.sockets;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+/**
+  * A load generator, for capacity planning: opens a number of SocketComms client connections to a server,
+  * drives traffic over them for a while, then reports the throughput and latency percentiles.
+  *
+  * Traffic is either:
+  * 	closed loop (the default): each connection sends its next request as soon as the last is answered, or
+  * 	open loop (setRate()): requests are sent on a fixed schedule, shared out across the connections,
+  * 		whether or not the server is keeping up.
+  *
+  * Each request is a CONSUME or CONSUME_RESPOND (see setRespondRatio()) of an XML message whose size is picked from
+  * a weighted mix (see setPayloadMix()).
+  *
+  * Latencies are corrected for coordinated omission: a load generator that waits on a stalled server stops sending,
+  * so would otherwise count the stall once, rather than against every request held up by it.
+  * 	Open loop: each request's latency runs from when it was scheduled to be sent, not from when it actually was.
+  * 		Requests still unsent when the run ends are counted as answered then.
+  * 	Closed loop: each latency is back-filled (see LatencyHistogram.recordCorrected()), at the pace each connection
+  * 		kept while warming up.
+  * The uncorrected service time (from send to answer) is reported too, for comparison.
+  *
+  * Run from the command line, it brings its own echo server (see main()), so it can be run on loopback alone.
+  *
+  * Thread-safety: This class is NOT thread safe. Finish setting it up before calling run().
+  */
+public class LoadGenerator {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	private int connections = 4;				// number of client connections
+	private double rate = 0;					// requests per second across all connections, 0 for a closed loop
+	private long warmupMillis = 2000;			// before latencies are counted
+	private long durationMillis = 10000;		// while latencies are counted, after warming up
+	private double respondRatio = 1.0;			// the fraction of requests that are CONSUME_RESPOND, the rest CONSUME
+	private int[] payloadSizes = {100};			// chars of each size of payload
+	private int[] payloadWeights = {1};			// how often each size is picked, relative to the others
+	private SocketCommsConfig config = SocketCommsConfig.lowLatency();
+
+	/**
+	  * The results of a run.
+	  */
+	public static final class Report {
+		final private LatencyHistogram corrected;
+		final private LatencyHistogram serviceTime;
+		final private long errors;
+		final private long unsent;
+		final private long durationMillis;
+		final private boolean openLoop;
+
+		Report(LatencyHistogram corrected, LatencyHistogram serviceTime, long errors, long unsent, long durationMillis, boolean openLoop) {
+			this.corrected = corrected;
+			this.serviceTime = serviceTime;
+			this.errors = errors;
+			this.unsent = unsent;
+			this.durationMillis = durationMillis;
+			this.openLoop = openLoop;
+		}
+
+		/**
+		  * @return the latencies, in nanoseconds, corrected for coordinated omission
+		  */
+		public LatencyHistogram getCorrected() {
+			return corrected;
+		}
+
+		/**
+		  * @return the latencies, in nanoseconds, from each request being sent to its answer arriving
+		  */
+		public LatencyHistogram getServiceTime() {
+			return serviceTime;
+		}
+
+		/**
+		  * @return the number of requests answered while measuring
+		  */
+		public long getRequests() {
+			return serviceTime.getCount();
+		}
+
+		/**
+		  * @return the number of requests refused, or answered with an error, or lost with their connection
+		  */
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		  * @return the number of requests an open loop had scheduled, but was still waiting to send when the run ended
+		  */
+		public long getUnsent() {
+			return unsent;
+		}
+
+		/**
+		  * @return requests answered per second, while measuring
+		  */
+		public double getThroughput() {
+			return getRequests() * 1000.0 / durationMillis;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(openLoop ? "Open" : "Closed").append(" loop: ").append(getRequests()).append(" requests in ")
+					.append(durationMillis).append("ms = ").append(String.format("%.1f", getThroughput())).append("/s, ")
+					.append(errors).append(" errors");
+			if (openLoop) {
+				report.append(", ").append(unsent).append(" unsent");
+			}
+			report.append(System.lineSeparator());
+			report.append(String.format("%-22s %10s %10s %10s %10s %10s %10s%n", "Latency (us)", "p50", "p90", "p99", "p99.9", "p99.99", "max"));
+			appendRow(report, "corrected", corrected);
+			appendRow(report, "service time", serviceTime);
+			return report.toString();
+		}
+
+		private static void appendRow(StringBuilder report, String name, LatencyHistogram histogram) {
+			report.append(String.format("%-22s %10d %10d %10d %10d %10d %10d%n", name,
+					micros(histogram.getValueAtPercentile(50)), micros(histogram.getValueAtPercentile(90)),
+					micros(histogram.getValueAtPercentile(99)), micros(histogram.getValueAtPercentile(99.9)),
+					micros(histogram.getValueAtPercentile(99.99)), micros(histogram.getMax())));
+		}
+
+		private static long micros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+	}
+
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	  * @param connections the number of client connections, each driven by a Thread of its own
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setConnections(int connections) {
+		if (connections < 1) {
+			throw new IllegalArgumentException("connections must be at least 1, but was " + connections);
+		}
+		this.connections = connections;
+		return this;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	  * @param rate the requests per second to send across all connections (an open loop), or 0 to send each
+	  * 		request as soon as the last on its connection is answered (a closed loop)
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setRate(double rate) {
+		if (rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative, but was " + rate);
+		}
+		this.rate = rate;
+		return this;
+	}
+
+	/**
+	  * @param warmupMillis how long to send requests before latencies are counted. A closed loop also finds the pace
+	  * 		of each connection while warming up, so its latencies are only corrected if this is more than 0.
+	  * @param durationMillis how long to send requests while latencies are counted
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setDuration(long warmupMillis, long durationMillis) {
+		if (warmupMillis < 0 || durationMillis < 1) {
+			throw new IllegalArgumentException("warmupMillis must not be negative, and durationMillis must be at least 1, but were " + warmupMillis + " and " + durationMillis);
+		}
+		this.warmupMillis = warmupMillis;
+		this.durationMillis = durationMillis;
+		return this;
+	}
+
+	public double getRespondRatio() {
+		return respondRatio;
+	}
+
+	/**
+	  * @param respondRatio the fraction, from 0 to 1, of requests sent as CONSUME_RESPOND. The rest are sent as CONSUME.
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setRespondRatio(double respondRatio) {
+		if (respondRatio < 0 || respondRatio > 1) {
+			throw new IllegalArgumentException("respondRatio must be from 0 to 1, but was " + respondRatio);
+		}
+		this.respondRatio = respondRatio;
+		return this;
+	}
+
+	/**
+	  * @param mix the sizes of payload to send, and how often, as size:weight pairs, comma-separated e.g. "100:80,4096:15,65536:5".
+	  * 		A weight may be left off, for 1.
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setPayloadMix(String mix) {
+		String[] entries = mix.split(",");
+		int[] sizes = new int[entries.length];
+		int[] weights = new int[entries.length];
+		try {
+			for (int i = 0; i < entries.length; i++) {
+				String[] sizeAndWeight = entries[i].trim().split(":");
+				sizes[i] = Integer.parseInt(sizeAndWeight[0].trim());
+				weights[i] = (sizeAndWeight.length > 1 ? Integer.parseInt(sizeAndWeight[1].trim()) : 1);
+				if (sizes[i] < 1 || weights[i] < 1 || sizeAndWeight.length > 2) {
+					throw new IllegalArgumentException("payload mix must be size:weight pairs, each at least 1, but was " + mix);
+				}
+			}
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("payload mix must be size:weight pairs, each at least 1, but was " + mix, e);
+		}
+		this.payloadSizes = sizes;
+		this.payloadWeights = weights;
+		return this;
+	}
+
+	/**
+	  * @param config transport settings for every client connection (by default, SocketCommsConfig.lowLatency())
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public LoadGenerator setConfig(SocketCommsConfig config) {
+		checkNullArgument(config);
+		this.config = config;
+		return this;
+	}
+
+	/**
+	  * Connect to a server, drive traffic over every connection until the run is over, then close them.
+	  *
+	  * @param host the host of the server
+	  * @param portNumber the port of the server
+	  *
+	  * @return the results
+	  *
+	  * @throws SocketException if the connections cannot all be made
+	  */
+	public Report run(String host, int portNumber) throws SocketException {
+		checkNullArgument(host);
+
+		String[] payloads = new String[payloadSizes.length];
+		for (int i = 0; i < payloads.length; i++) {
+			payloads[i] = xmlPayload(payloadSizes[i]);
+		}
+
+		LatencyHistogram corrected = new LatencyHistogram();
+		LatencyHistogram serviceTime = new LatencyHistogram();
+		AtomicLong errors = new AtomicLong();
+		AtomicLong unsent = new AtomicLong();
+
+		List<Worker> workers = new ArrayList<Worker>(connections);
+		try {
+			for (int i = 0; i < connections; i++) {
+				workers.add(new Worker(i, connect(host, portNumber), payloads, corrected, serviceTime, errors, unsent));
+			}
+
+			ExecutorService pool = Executors.newFixedThreadPool(connections);
+			long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10); // so every Worker is going before the first request is due
+			for (Worker worker : workers) {
+				worker.startNanos = startNanos;
+				pool.execute(worker);
+			}
+			pool.shutdown();
+			try {
+				if (!pool.awaitTermination(warmupMillis + durationMillis + 60000, TimeUnit.MILLISECONDS)) {
+					logger.warning("[CLIENT-" + Thread.currentThread().getName() + "]: Load generator connections still busy after the run, left to finish.");
+				}
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		finally {
+			for (Worker worker : workers) {
+				worker.close();
+			}
+		}
+
+		return new Report(corrected, serviceTime, errors.get(), unsent.get(), durationMillis, rate > 0);
+	}
+
+	private SocketComms connect(String host, int portNumber) throws SocketException {
+		Socket socket;
+		try {
+			socket = new Socket(host, portNumber);
+		}
+		catch(IOException e) {
+			throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Could not connect to " + host + ":" + portNumber, e);
+		}
+
+		try {
+			SocketComms comms = new SocketComms(socket, SocketType.CLIENT, config);
+			// Read Server Ready message, then move to the best protocol the server offers.
+			comms.readReady(host + ":" + portNumber);
+			comms.upgradeProtocol();
+			return comms;
+		}
+		catch(SocketException e) {
+			try { socket.close(); } catch (IOException e1) { /* Ignore */}
+			throw e;
+		}
+	}
+
+	/**
+	  * Drives the traffic over a single connection, in a Thread of its own.
+	  */
+	private final class Worker implements Runnable {
+		final private int id;
+		final private SocketComms comms;
+		final private String[] payloads;
+		final private LatencyHistogram corrected;
+		final private LatencyHistogram serviceTime;
+		final private AtomicLong errors;
+		final private AtomicLong unsent;
+		final private int totalWeight;
+		final private LatencyHistogram warmupTime = new LatencyHistogram();	// of this connection, to find its pace
+		private long startNanos;
+		private long numSent = 0;
+
+		Worker(int id, SocketComms comms, String[] payloads, LatencyHistogram corrected, LatencyHistogram serviceTime, AtomicLong errors, AtomicLong unsent) {
+			this.id = id;
+			this.comms = comms;
+			this.payloads = payloads;
+			this.corrected = corrected;
+			this.serviceTime = serviceTime;
+			this.errors = errors;
+			this.unsent = unsent;
+			int total = 0;
+			for (int weight : payloadWeights) {
+				total += weight;
+			}
+			this.totalWeight = total;
+		}
+
+		@Override
+		public void run() {
+			long measureNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+			long endNanos = measureNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+			try {
+				if (rate > 0) {
+					runOpenLoop(measureNanos, endNanos);
+				}
+				else {
+					runClosedLoop(measureNanos, endNanos);
+				}
+			}
+			catch(SocketException e) {
+				errors.incrementAndGet();
+				logger.warning("[CLIENT-" + Thread.currentThread().getName() + "]: Load generator connection " + id + " lost: " + e.getMessage());
+			}
+		}
+
+		/**
+		  * Send each request when it is due, the connections taking turns, so between them they keep to the rate.
+		  */
+		private void runOpenLoop(long measureNanos, long endNanos) throws SocketException {
+			double intervalNanos = TimeUnit.SECONDS.toNanos(1) * connections / rate;
+			long firstDue = startNanos + (long) (intervalNanos * id / connections);
+			long due;
+			while ((due = firstDue + (long) (intervalNanos * numSent)) < endNanos) {
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+					continue; // May wake early
+				}
+				long sentNanos = System.nanoTime();
+				boolean answered = exchange();
+				long answeredNanos = System.nanoTime();
+				if (due >= measureNanos) {
+					record(answered, answeredNanos - due, answeredNanos - sentNanos, 0);
+				}
+				if (answeredNanos >= endNanos) {
+					break;
+				}
+			}
+
+			// Those still waiting to be sent when the run ended were held up at least until then
+			long now = System.nanoTime();
+			while ((due = firstDue + (long) (intervalNanos * numSent)) < endNanos) {
+				if (due >= measureNanos) {
+					corrected.record(now - due);
+					unsent.incrementAndGet();
+				}
+				numSent++;
+			}
+		}
+
+		/**
+		  * Send each request as soon as the last is answered.
+		  */
+		private void runClosedLoop(long measureNanos, long endNanos) throws SocketException {
+			long expectedIntervalNanos = -1; // found once warmed up
+			long sentNanos;
+			while ((sentNanos = System.nanoTime()) < endNanos) {
+				boolean answered = exchange();
+				long elapsed = System.nanoTime() - sentNanos;
+				if (sentNanos < measureNanos) {
+					warmupTime.record(elapsed);
+					continue;
+				}
+				if (expectedIntervalNanos < 0) {
+					expectedIntervalNanos = warmupTime.getValueAtPercentile(50);
+				}
+				record(answered, elapsed, elapsed, expectedIntervalNanos);
+			}
+		}
+
+		private void record(boolean answered, long latency, long service, long expectedIntervalNanos) {
+			if (!answered) {
+				errors.incrementAndGet();
+				return;
+			}
+			corrected.recordCorrected(latency, expectedIntervalNanos);
+			serviceTime.record(service);
+		}
+
+		/**
+		  * Send a request, and wait for it to be answered.
+		  *
+		  * @return true if answered without error
+		  */
+		private boolean exchange() throws SocketException {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			String TID = "L" + id + "-" + numSent++;
+			String payload = pickPayload(random);
+			boolean wantResponse = random.nextDouble() < respondRatio;
+
+			comms.sendMessage(new SocketTransferMessage(0, TID, (wantResponse ? SocketService.CONSUME_RESPOND : SocketService.CONSUME), SocketFormat.XML, payload));
+			try {
+				boolean ok = awaitAnswer(); // the receipt
+				if (ok && wantResponse) {
+					comms.removeMessageForTID(TID);
+					ok = awaitAnswer(); // the response
+				}
+				return ok;
+			}
+			finally {
+				comms.removeMessageForTID(TID);
+			}
+		}
+
+		/**
+		  * Read until a whole answer has arrived, passing over acknowledgements of parts sent and parts of the answer.
+		  *
+		  * @return true if the answer was not an error
+		  */
+		private boolean awaitAnswer() throws SocketException {
+			do {
+				if (comms.next()) {
+					throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Connection lost");
+				}
+			} while (comms.getLastService() == SocketService.MORE && comms.getLastErrorNo() == 0);
+			return comms.getLastErrorNo() == 0 && comms.getLastService() != SocketService.REFUSE;
+		}
+
+		private String pickPayload(ThreadLocalRandom random) {
+			int pick = random.nextInt(totalWeight);
+			for (int i = 0; i < payloadWeights.length; i++) {
+				pick -= payloadWeights[i];
+				if (pick < 0) {
+					return payloads[i];
+				}
+			}
+			return payloads[payloads.length - 1];
+		}
+
+		void close() {
+			try {
+				comms.sendMessage(new SocketTransferMessage(0, "L" + id, SocketService.CLOSE, SocketFormat.XML, "Close me"));
+			}
+			catch(SocketException e) {
+				// Ignore, closing anyway
+			}
+			comms.closeConnection();
+		}
+	}
+
+	/**
+	  * @return a well-formed XML message of the given number of chars (a few more if too few for the outer element)
+	  */
+	static String xmlPayload(int size) {
+		StringBuilder message = new StringBuilder(size).append("<LOAD>");
+		int key = 0;
+		while (message.length() + "<KEY>nnnnnn</KEY></LOAD>".length() <= size) {
+			message.append("<KEY>").append(String.format("%06d", key++ % 1000000)).append("</KEY>");
+		}
+		while (message.length() + "</LOAD>".length() < size) {
+			message.append(' ');
+		}
+		return message.append("</LOAD>").toString();
+	}
+
+	/**
+	  * Start an XMLSocketServer with an echo listener (which consumes everything, and answers each request with
+	  * the request itself), run against it, then close it.
+	  *
+	  * @param portNumber the port on which the server is to listen
+	  *
+	  * @return the results
+	  *
+	  * @throws SocketException if the server cannot be started, or the connections cannot all be made
+	  */
+	public Report runWithEchoServer(int portNumber) throws SocketException {
+		ExecutorService execPool = Executors.newFixedThreadPool(connections);
+		XMLSocketServer server = null;
+		try {
+			server = new XMLSocketServer(execPool, new EchoListener(), portNumber, SocketCommsConfig.lowLatency());
+			new Thread(server, "LoadGenerator-EchoServer-" + portNumber).start();
+			return run("localhost", portNumber);
+		}
+		finally {
+			if (server != null) {
+				server.terminateProcessing();
+			}
+			execPool.shutdown();
+		}
+	}
+
+	/**
+	  * Consumes everything, and answers every request with the request itself.
+	  */
+	private static final class EchoListener implements LwIXMLSocketServerListener {
+		@Override
+		public boolean messageReceived(SocketEvent event) {
+			return true;
+		}
+
+		@Override
+		public String messageReceivedAndWantResponse(SocketEvent event) {
+			return event.getReceivedMessage();
+		}
+
+		@Override
+		public void handleError(SocketEvent event, SocketException exception) {
+		}
+
+		@Override
+		public boolean canCloseServerSocket(SocketEvent event) {
+			return false;
+		}
+
+		@Override
+		public boolean getConsumeMessage() {
+			return true;
+		}
+	}
+
+	/**
+	  * Check argument for null.
+	  *
+	  */
+	private void checkNullArgument(Object o) {
+		if (o == null) throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: Null value received.");
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java lw.sockets.LoadGenerator [options]");
+		System.out.println("  -host h              connect to a server already running on host h (default: start an echo server on localhost)");
+		System.out.println("  -port n              the port of the server (default 11819)");
+		System.out.println("  -connections n       client connections (default 4)");
+		System.out.println("  -rate r              requests per second, sent on a fixed schedule (default: closed loop)");
+		System.out.println("  -warmup s            seconds before latencies are counted (default 2)");
+		System.out.println("  -duration s          seconds while latencies are counted (default 10)");
+		System.out.println("  -sizes mix           payload chars and weights e.g. 100:80,4096:15,65536:5 (default 100)");
+		System.out.println("  -respond f           fraction of requests sent CONSUME_RESPOND, the rest CONSUME (default 1.0)");
+	}
+
+	public static void main(String argv[]) {
+		LoadGenerator generator = new LoadGenerator();
+		String host = null;
+		int portNumber = 11819;
+		double warmupSeconds = 2;
+		double durationSeconds = 10;
+
+		try {
+			for (int i = 0; i < argv.length; i++) {
+				String option = argv[i];
+				if (i + 1 >= argv.length) {
+					throw new IllegalArgumentException("No value given for " + option);
+				}
+				String value = argv[++i];
+				if (option.equals("-host")) host = value;
+				else if (option.equals("-port")) portNumber = Integer.parseInt(value);
+				else if (option.equals("-connections")) generator.setConnections(Integer.parseInt(value));
+				else if (option.equals("-rate")) generator.setRate(Double.parseDouble(value));
+				else if (option.equals("-warmup")) warmupSeconds = Double.parseDouble(value);
+				else if (option.equals("-duration")) durationSeconds = Double.parseDouble(value);
+				else if (option.equals("-sizes")) generator.setPayloadMix(value);
+				else if (option.equals("-respond")) generator.setRespondRatio(Double.parseDouble(value));
+				else throw new IllegalArgumentException("Unknown option " + option);
+			}
+			generator.setDuration((long) (warmupSeconds * 1000), (long) (durationSeconds * 1000));
+		}
+		catch(IllegalArgumentException e) { // NumberFormatException too
+			System.out.println(e.getMessage());
+			usage();
+			System.exit(1);
+		}
+
+		// Only warnings, so nothing logged (e.g. each connection opened) gets in the way of the report
+		logger.setLevel(Level.WARNING);
+
+		try {
+			Report report = (host == null ? generator.runWithEchoServer(portNumber) : generator.run(host, portNumber));
+			System.out.print(report);
+		}
+		catch(SocketException e) {
+			System.out.println("Load generator failed: " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+
+/**
+ * @author wadel
+ *
+ * Package-private class packing many CONSUME messages into the payload of a single BATCH message,
+ * so a burst of small messages goes in as few packets (and flushes) as possible, and is answered
+ * with a single acknowledgement.
+ *
+ * Each message is written as the length of its TID, ':', the TID, the length of its payload, ':', the payload
+ * e.g. "2:T112:<A>one</A>2:T212:<A>two</A>". Lengths are in chars, so nothing in a TID or payload needs escaping.
+ *
+ * The acknowledgement holds one errNo digit per message, in the order packed: '0' if consumed, '1' if not.
+ *
+ * Thread-safety: This class is thread safe (it has no state).
+ *
+ */
+final class MessageBatch {
+	static final char CONSUMED = '0';
+	static final char NOT_CONSUMED = '1';
+
+	private MessageBatch() {
+	}
+
+	/**
+	  * Pack messages into the payload of a BATCH message.
+	  *
+	  * @param messages the messages to be packed, each a CONSUME of an XML message
+	  *
+	  * @return the payload of the BATCH message
+	  *
+	  * @throws IllegalArgumentException if any message is not a CONSUME of an XML message
+	  */
+	static String pack(List<SocketTransferMessage> messages) {
+		int size = 0;
+		for (SocketTransferMessage message : messages) {
+			if (message.getService() != SocketService.CONSUME || message.getFormat() != SocketFormat.XML) {
+				throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: Only CONSUME of XML messages can be batched, not " + message.getService() + " of " + message.getFormat() + " for TID " + message.getTID());
+			}
+			size += message.getTID().length() + message.getPayload().length() + 12;
+		}
+
+		StringBuilder payload = new StringBuilder(size);
+		for (SocketTransferMessage message : messages) {
+			payload.append(message.getTID().length()).append(':').append(message.getTID());
+			payload.append(message.getPayload().length()).append(':').append(message.getPayload());
+		}
+		return payload.toString();
+	}
+
+	/**
+	  * Unpack the messages from the payload of a BATCH message.
+	  *
+	  * @param payload the payload of the BATCH message
+	  *
+	  * @return the messages, in the order packed
+	  *
+	  * @throws IllegalArgumentException if the payload is not a packed batch
+	  */
+	static List<SocketTransferMessage> unpack(CharSequence payload) {
+		List<SocketTransferMessage> messages = new ArrayList<SocketTransferMessage>();
+		int[] at = {0};
+		while (at[0] < payload.length()) {
+			String TID = field(payload, at);
+			String message = field(payload, at);
+			messages.add(new SocketTransferMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, message));
+		}
+		return messages;
+	}
+
+	/**
+	  * Read a length-prefixed field.
+	  *
+	  * @param payload the payload holding the field
+	  * @param at where the field starts, moved on to where the next starts
+	  *
+	  * @return the field
+	  */
+	private static String field(CharSequence payload, int[] at) {
+		int i = at[0];
+		int length = 0;
+		while (i < payload.length() && payload.charAt(i) != ':') {
+			char digit = payload.charAt(i++);
+			if (digit < '0' || digit > '9' || length > (Integer.MAX_VALUE - 9) / 10) {
+				throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: Bad length in batch, at char " + at[0]);
+			}
+			length = (length * 10) + (digit - '0');
+		}
+		if (i == at[0] || i >= payload.length() || length > payload.length() - i - 1) {
+			throw new IllegalArgumentException("[" + Thread.currentThread().getName() + "]: Truncated batch, at char " + at[0]);
+		}
+		i++; // the ':'
+
+		at[0] = i + length;
+		return payload.subSequence(i, i + length).toString();
+	}
+
+	/**
+	  * Read the acknowledgement of a batch.
+	  *
+	  * @param payload the payload of the acknowledgement
+	  * @param numMessages the number of messages in the batch
+	  *
+	  * @return whether each message was consumed, in the order packed, or null if the acknowledgement is not for that many messages
+	  */
+	static boolean[] results(String payload, int numMessages) {
+		if (payload == null || payload.length() != numMessages) {
+			return null;
+		}
+
+		boolean[] consumed = new boolean[numMessages];
+		for (int i = 0; i < numMessages; i++) {
+			consumed[i] = (payload.charAt(i) == CONSUMED);
+		}
+		return consumed;
+	}
+}
@@ -0,0 +1,398 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+/**
+ * @author wadel
+ *
+ * Package-private class for handling requests over a connection accepted by a NioXMLSocketServer.
+ * The non-blocking equivalent of AcceptedSocket: rather than a Thread sitting in next(), the owning
+ * NioEventLoop calls handle() whenever the channel is ready, and whole packets are passed on to the
+ * same ServerProtocol that AcceptedSocket uses.
+ *
+ * Packets are encoded into, and any the channel won't take at once are queued in, direct buffers from the
+ * server's BufferPool, so the channel writes them without copying and nothing is left for the garbage collector.
+ *
+ * Thread-safety: This class is NOT thread safe, apart from writePacket(). All other methods must be called
+ * in the Thread of the owning NioEventLoop.
+ *
+ */
+class NioConnection extends SocketComms {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	final private NioXMLSocketServer parent;		// the parent socket server - need this to tell him to shut down, if allowed
+	final private NioEventLoop eventLoop;			// the loop that owns this connection
+	final private SocketChannel channel;
+	final private LwIXMLSocketServerListener app; // The object that will be implementing interface LwIXMLSocketServerListener
+	final private int portNumber;
+	final private ServerProtocol protocol;			// the server side of the conversation
+	final private boolean admitted;					// false if over the server's limit of connections, so only to be refused
+
+	final private SocketCommsConfig config;
+	private ByteBuffer readBuffer;					// holds packets as they are read. Grows to fit a big packet, until emptied
+	final private BufferPool bufferPool;
+	final private ConcurrentLinkedQueue<PooledBuffer> writeQueue = new ConcurrentLinkedQueue<PooledBuffer>(); // packets not yet (fully) written
+
+	private SelectionKey key;
+	private boolean closeWhenFlushed = false;		// set when the conversation is over, but replies are still to be written
+	private boolean closed = false;
+
+	// Used to flush the write queue, when writePacket() is called outside the event loop
+	final private Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			}
+			catch(SocketException e) {
+				fail(e);
+			}
+		}
+	};
+
+	NioConnection(NioXMLSocketServer parent, NioEventLoop eventLoop, LwIXMLSocketServerListener app, SocketChannel channel, int portNumber, SocketCommsConfig config, boolean admitted) {
+		super(SocketType.SERVER, config, parent.getBufferPool());
+
+		assert parent != null;
+		assert eventLoop != null;
+		assert app != null;
+		assert channel != null;
+
+		this.parent = parent;
+		this.eventLoop = eventLoop;
+		this.app = app;
+		this.channel = channel;
+		this.portNumber = portNumber;
+		this.config = config;
+		this.admitted = admitted;
+		this.bufferPool = parent.getBufferPool();
+		this.readBuffer = ByteBuffer.allocate(2 * getMessageSize());
+		setMetrics(parent.getMetrics());
+		getMetrics().connectionOpened();
+		// Once the last request handed on is answered, a pending close can go ahead
+		this.protocol = new ServerProtocol(this, app, SocketType.SERVER, portNumber, parent.getRequestPool(), parent.getOrderedPool(), parent.getPreParser(), parent.getAdmission(), parent.getResponseCache(), new Runnable() {
+			@Override
+			public void run() {
+				try {
+					NioConnection.this.eventLoop.execute(flushTask);
+				}
+				catch(RejectedExecutionException e) {
+					// Event loop has ended, and closed the connection with it
+				}
+			}
+		});
+		setShelfBudget(parent.getShelfBudget());
+	}
+
+	/**
+	  * Register with the Selector of the owning event loop and open the conversation.
+	  *
+	  * @param selector the Selector of the owning event loop
+	  */
+	void register(Selector selector) {
+		try {
+			applyConfig(channel.socket(), config);
+			channel.configureBlocking(false);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+			if (admitted) {
+				protocol.sendReady();
+			}
+			else {
+				protocol.refuseConnection();
+				closeWhenFlushed = true;
+				flush();
+			}
+		}
+		catch(IOException e) {
+			fail(new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: Caught IOException registering new connection: " + e, -1001));
+		}
+		catch(ClosedSelectorException e) {
+			// Event loop has already shut down
+			closeConnection();
+		}
+		catch(SocketException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	  * Act on the readiness of the channel, as reported by the Selector.
+	  *
+	  * @param key the key for this connection, as selected
+	  */
+	void handle(SelectionKey key) {
+		try {
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+			if (key.isValid() && key.isReadable()) {
+				read();
+			}
+		}
+		catch(SocketException e) {
+			fail(e);
+		}
+		catch(RuntimeException e) {
+			// e.g. from a listener call-back: drop this connection only, not every connection of the event loop
+			fail(new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: Caught RuntimeException handling connection: " + e, e));
+		}
+	}
+
+	/**
+	  * Read whatever is available on the channel, processing each packet as it is completed.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void read() throws SocketException {
+		while (!closed && !closeWhenFlushed) {
+			int numBytesTransferred;
+			try {
+				numBytesTransferred = channel.read(readBuffer);
+			}
+			catch(IOException e) {
+				throw new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: Error: " + e);
+			}
+
+			if (numBytesTransferred < 0) {
+				logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Client closed connection without telling me. Shutting down accepted socket.");
+				closeConnection();
+				return;
+			}
+			if (numBytesTransferred == 0) {
+				return;
+			}
+
+			processPackets();
+		}
+	}
+
+	/**
+	  * Process every whole packet in the read buffer, keeping any partial packet for next time.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void processPackets() throws SocketException {
+		readBuffer.flip();
+
+		int packetLength = -1;
+		while (!closed && !closeWhenFlushed) {
+			// Protocol may be switched by the packet just processed, so check every time
+			packetLength = nextPacketLength();
+			if (packetLength < 0 || readBuffer.remaining() < packetLength) {
+				break;
+			}
+
+			int packetStart = readBuffer.position();
+			readBuffer.position(packetStart + packetLength);
+
+			if (getProtocolVersion() == ProtocolOptions.PROTOCOL_V2) {
+				receiveV2Packet(readBuffer.array(), packetStart);
+			}
+			else if (receivePacket(readBuffer.array(), packetStart, packetLength)) {
+				closeConnection();
+				return;
+			}
+
+			switch(protocol.process()) {
+				case CLOSE :
+					closeWhenFlushed = true;
+					flush();
+					break;
+				case SHUTDOWN :
+					closeWhenFlushed = true;
+					flush();
+					parent.terminateProcessing();
+					break;
+				default :
+					break;
+			}
+		}
+
+		readBuffer.compact();
+
+		// Make sure there's room for the whole of the next packet
+		if (packetLength > readBuffer.capacity()) {
+			readBuffer.flip();
+			readBuffer = ByteBuffer.allocate(packetLength).put(readBuffer);
+		}
+		// ...but once empty, give back any room grown for a big one, so an idle connection holds only the default
+		else if (readBuffer.position() == 0 && readBuffer.capacity() > 2 * getMessageSize()) {
+			readBuffer = ByteBuffer.allocate(2 * getMessageSize());
+		}
+	}
+
+	/**
+	  * @return the length of the packet at the start of the read buffer, or -1 if not yet known
+	  *
+	  * @throws SocketException if the packet is not valid
+	  */
+	private int nextPacketLength() throws SocketException {
+		if (getProtocolVersion() == ProtocolOptions.PROTOCOL_V2) {
+			if (readBuffer.remaining() < FrameV2.HEADER_SIZE) {
+				return -1;
+			}
+			return FrameV2.HEADER_SIZE + FrameV2.bodyLength(readBuffer.array(), readBuffer.position());
+		}
+
+		return getMessageSize();
+	}
+
+	/**
+	  * Write a fully-formatted packet, queueing whatever the channel will not take at once. May be called from any Thread.
+	  * In the event loop, with nothing already queued, the packet goes straight from the encoder's buffer to the channel.
+	  *
+	  * @param packet the packet, exactly as it is to be sent over the wire, between its position and limit.
+	  * 		Only valid until this method returns.
+	  *
+	  */
+	@Override
+	void writePacket(ByteBuffer packet) throws SocketException {
+		if (eventLoop.inEventLoop()) {
+			if (writeQueue.isEmpty() && key != null && !closed) {
+				try {
+					channel.write(packet);
+				}
+				catch(IOException e) {
+					throw new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: failed to write socket! Exception:" + e);
+				}
+			}
+			if (packet.hasRemaining()) {
+				writeQueue.add(copyOf(packet));
+				flush();
+			}
+		}
+		else {
+			PooledBuffer copy = copyOf(packet);
+			writeQueue.add(copy);
+			try {
+				eventLoop.execute(flushTask);
+			}
+			catch(RejectedExecutionException e) {
+				// Unless the connection, closing, has already released it
+				if (writeQueue.remove(copy)) {
+					copy.release();
+				}
+				throw new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: failed to write socket, as its event loop has ended");
+			}
+		}
+	}
+
+	/**
+	  * @return a copy of the remainder of a packet, to be kept in the write queue (and released once written)
+	  */
+	private PooledBuffer copyOf(ByteBuffer packet) {
+		PooledBuffer copy = bufferPool.acquire(packet.remaining());
+		copy.buffer().put(packet);
+		copy.buffer().flip();
+		return copy;
+	}
+
+	/**
+	  * Write as much of the write queue as the channel will take, asking to be told when it will take more.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void flush() throws SocketException {
+		if (closed) {
+			releaseWriteQueue(); // Too late, but queued since the connection closed
+			return;
+		}
+		if (key == null) {
+			return; // Not registered yet (register() will flush the READY message)
+		}
+
+		PooledBuffer packet;
+		while ((packet = writeQueue.peek()) != null) {
+			try {
+				channel.write(packet.buffer());
+			}
+			catch(IOException e) {
+				throw new SocketException("[SERVER-" + Thread.currentThread().getName() + "]: failed to write socket! Exception:" + e);
+			}
+
+			if (packet.buffer().hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			writeQueue.poll();
+			packet.release();
+		}
+
+		if (closeWhenFlushed) {
+			if (protocol.hasRequestsInFlight()) {
+				key.interestOps(0); // Nothing more to read or write until they are answered
+			}
+			else {
+				closeConnection();
+			}
+		}
+		else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	  * Report a problem to the controlling application and drop the connection.
+	  *
+	  * @param e the problem
+	  */
+	private void fail(SocketException e) {
+		String TID = (getTID() == null ? "Unknown TID" : getTID());
+		app.handleError(new SocketEvent(TID, portNumber), e);
+		closeConnection();
+	}
+
+	/**
+	  * Close the channel
+	  *
+	  */
+	@Override
+	public void closeConnection() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		getMetrics().connectionClosed();
+		if (admitted) {
+			parent.getAdmission().connectionClosed();
+		}
+
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		}
+		catch(IOException e) {
+			logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) IOException trying to close current socket: " + e);
+		}
+		// Only ever closed in the event loop, which is also the Thread reading
+		releaseEncoder();
+		releaseDecoder();
+		releaseShelf();
+		releaseWriteQueue();
+	}
+
+	/**
+	  * Give back to the pool every packet that will now never be written.
+	  */
+	private void releaseWriteQueue() {
+		PooledBuffer packet;
+		while ((packet = writeQueue.poll()) != null) {
+			packet.release();
+		}
+	}
+}
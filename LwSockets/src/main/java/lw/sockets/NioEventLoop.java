@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * @author wadel
+ *
+ * Package-private class running one Selector, and all the connections registered with it, in its own Thread.
+ * A NioXMLSocketServer shards its accepted connections across a number of these.
+ *
+ * Work for a connection owned by this loop must only be done in the loop's own thread, so other threads
+ * hand work over by calling execute().
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+class NioEventLoop implements Runnable {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	volatile private boolean shutDown = false;	// If set to true, the loop will close all its connections and end
+	volatile private boolean ended = false;		// set once the loop has stopped taking tasks
+
+	final private String name;
+	final private Selector selector;
+	final private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // work handed over by other threads
+
+	// Only set before the loop starts, read afterwards, so volatile is enough
+	volatile private Thread thread;
+
+	NioEventLoop(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	/**
+	  * Start the loop in a new (daemon) Thread
+	  *
+	  */
+	void start() {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	  * @return true if the caller is running in this loop's Thread
+	  */
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	  * Have a task run in this loop's Thread, as soon as possible.
+	  *
+	  * @param task the work to be done
+	  *
+	  * @throws RejectedExecutionException if the loop has ended, when the task will not be run
+	  */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (ended && tasks.remove(task)) {
+			// Added after closeAll() ran the last of them (if it had taken it, remove() would have found nothing)
+			throw new RejectedExecutionException("Event loop " + name + " has ended");
+		}
+		if (!inEventLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	  * Hand a newly-accepted connection over to this loop.
+	  *
+	  * @param connection the connection, not yet registered with any Selector
+	  */
+	void register(final NioConnection connection) {
+		try {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					if (ended) {
+						// Handed over as the loop ended, so never to be serviced
+						connection.closeConnection();
+					}
+					else {
+						connection.register(selector);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			// Not registered, so no other Thread has it
+			connection.closeConnection();
+		}
+	}
+
+	/**
+	  * Stop the loop, closing all its connections.
+	  *
+	  */
+	void shutDown() {
+		shutDown = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Event loop started.");
+
+		try {
+			while (!shutDown) {
+				selector.select();
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((NioConnection) key.attachment()).handle(key);
+				}
+			}
+		}
+		catch(IOException e) {
+			logger.severe("[SERVER-" + Thread.currentThread().getName() + "]: Caught IOException in event loop, closing all its connections: " + e);
+		}
+		catch(ClosedSelectorException e) {
+			logger.severe("[SERVER-" + Thread.currentThread().getName() + "]: Selector closed under event loop, closing all its connections: " + e);
+		}
+		finally {
+			// Whatever ended the loop, no connection is left registered but never serviced
+			closeAll();
+		}
+	}
+
+	/**
+	  * Run all work handed over by other threads.
+	  *
+	  */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	  * Run the work still handed over, so nothing queued is lost, then close every connection registered with
+	  * the Selector, and the Selector itself.
+	  *
+	  */
+	private void closeAll() {
+		ended = true;
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			}
+			catch(RuntimeException e) {
+				logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) RuntimeException running task as event loop ended: " + e);
+			}
+		}
+
+		try {
+			for (SelectionKey key : selector.keys()) {
+				((NioConnection) key.attachment()).closeConnection();
+			}
+		}
+		catch(ClosedSelectorException e) {
+			// Nothing left to close
+		}
+
+		try {
+			selector.close();
+		}
+		catch(IOException e) {
+			logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) IOException trying to close Selector: " + e);
+		}
+		logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Event loop ended.");
+	}
+}
@@ -0,0 +1,288 @@
+package lw.sockets;
+
+import java.util.logging.*;
+import java.util.concurrent.ExecutorService;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+import lw.utils.LwLogger;
+
+/**
+  * This class encapsulates a socket server for accepting XML messages (in parts, if required), using non-blocking
+  * channels rather than a thread per connection.
+  * It speaks exactly the same protocol as XMLSocketServer, and drives the same LwIXMLSocketServerListener call-backs,
+  * so clients (e.g. SocketComms) cannot tell the difference.
+  *
+  * Accepted connections are shared out, in turn, across a fixed number of event loops (by default, one per processor),
+  * each running its own Selector in its own Thread. So thousands of mostly-idle connections need only a handful of threads.
+  *
+  * Note it runs in it's own thread, so x.start() must be called to start (which will call run() below).
+  * NOTE:
+  * 	The listener call-backs are made in the Thread of the event loop that owns the connection, so a slow
+  * 	call-back delays every other connection on that loop. Keep them short, or give the server a request pool
+  * 	with SocketCommsConfig.setOrderedDispatch(true), so they are made in the pool instead.
+  */
+public class NioXMLSocketServer implements Runnable {
+
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	volatile private boolean shutDownRequested = false;	// If set to true, will shut down server. Can be set by calling terminateProcessing() or through the socket SERV_SHUTDOWN command
+
+	final private LwIXMLSocketServerListener app; // The object that will be implementing interface LwIXMLSocketServerListener
+	final private int portNumber;
+	final private SocketCommsConfig config;				// transport settings for the server socket and every accepted connection
+	volatile private ExecutorService requestPool = null;	// where multiplexed requests are processed, null to refuse multiplexing
+	final private ShelfBudget shelfBudget;				// shared by every connection, unlimited unless configured, but always counting
+	final private ServerMetrics metrics;				// counted by every connection, and registered over JMX while open
+	final private XMLPreParser preParser;				// shared by every connection, null unless XML messages are parsed
+	final private AdmissionController admission;		// shared by every connection, deciding what is taken on
+	final private ResponseCache responseCache;			// shared by every connection, null unless responses are replayed
+	final private BufferPool bufferPool;				// direct buffers for the packets of every connection
+
+	final private ServerSocketChannel servChannel;
+	final private NioEventLoop[] eventLoops;			// the loops across which accepted connections are shared
+	private int nextEventLoop = 0;						// the loop to get the next accepted connection. Only used by accepting thread
+
+
+
+	public NioXMLSocketServer(LwIXMLSocketServerListener app, int portNumber) throws SocketException {
+		this(app, portNumber, Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioXMLSocketServer(LwIXMLSocketServerListener app, int portNumber, int numEventLoops) throws SocketException {
+		this(app, portNumber, numEventLoops, new SocketCommsConfig());
+	}
+
+	public NioXMLSocketServer(LwIXMLSocketServerListener app, int portNumber, int numEventLoops, SocketCommsConfig config) throws SocketException {
+		checkNullArgument(app);
+		checkNullArgument(config);
+		if (numEventLoops < 1) throw new IllegalArgumentException("[SERVER-" + Thread.currentThread().getName() + "]: numEventLoops must be at least 1, but was " + numEventLoops);
+
+		this.app = app;
+		this.portNumber = portNumber;
+		this.config = config;
+		this.shelfBudget = new ShelfBudget(config.getShelfBudget() > 0 ? config.getShelfBudget() : Long.MAX_VALUE);
+		this.metrics = new ServerMetrics(portNumber, shelfBudget);
+		this.preParser = (config.isParseXML() ? new XMLPreParser() : null);
+		this.admission = new AdmissionController(config);
+		this.responseCache = (config.getResponseCacheSize() > 0 ? new ResponseCache(config, metrics) : null);
+		this.bufferPool = new BufferPool(config.getBufferPoolSize());
+
+		try {
+			servChannel = ServerSocketChannel.open();
+			if (config.getReceiveBufferSize() > 0) {
+				servChannel.socket().setReceiveBufferSize(config.getReceiveBufferSize()); // must be before bind(), for sizes over 64K
+			}
+			servChannel.socket().bind(new InetSocketAddress(portNumber), config.getBacklog());
+		}
+		catch(IOException e) {
+			throw new SocketException("NioXMLSocketServer.constructor: Error creating new Server Socket", e);
+		}
+
+		eventLoops = new NioEventLoop[numEventLoops];
+		try {
+			for (int i = 0; i < numEventLoops; i++) {
+				eventLoops[i] = new NioEventLoop("NioEventLoop-" + portNumber + "-" + i);
+			}
+		}
+		catch(IOException e) {
+			try { servChannel.close(); } catch (IOException e1) { /* Ignore */}
+			throw new SocketException("NioXMLSocketServer.constructor: Error creating new Selector", e);
+		}
+		metrics.register("NioXMLSocketServer");
+		logger.info("[SERVER-" + Thread.currentThread().getName() + "]: NIO Socket Server created with " + numEventLoops + " event loops.");
+	}
+
+	/**
+	  * Allow clients to multiplex requests over a connection (see SocketComms.isMultiplexed()).
+	  * Each whole request is then processed in, and answered from, a Thread of this pool rather than the
+	  * event loop, so slow listener call-backs no longer hold up other connections, but must be thread safe.
+	  *
+	  * Only affects connections accepted afterwards. The pool is not shut down by this server.
+	  *
+	  * @param requestPool where multiplexed requests are to be processed, or null to refuse multiplexing
+	  */
+	public void setRequestPool(ExecutorService requestPool) {
+		this.requestPool = requestPool;
+	}
+
+	/**
+	  * @return where multiplexed requests are processed, or null if multiplexing is refused
+	  */
+	ExecutorService getRequestPool() {
+		return requestPool;
+	}
+
+	/**
+	  * @return where the requests of connections that aren't multiplexed are processed, one at a time and in order,
+	  * 		or null if in the Thread reading the connection (see SocketCommsConfig.setOrderedDispatch())
+	  */
+	ExecutorService getOrderedPool() {
+		return (config.isOrderedDispatch() ? requestPool : null);
+	}
+
+	/**
+	  * @return the budget shared by the shelves of every connection, unlimited unless set (see SocketCommsConfig.setShelfBudget())
+	  */
+	ShelfBudget getShelfBudget() {
+		return shelfBudget;
+	}
+
+	/**
+	  * @return the metrics of the server, also registered over JMX as lw.sockets:type=NioXMLSocketServer,port=N while the server is open
+	  */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	  * @return what parses XML messages for every connection, or null if they're not parsed (see SocketCommsConfig.setParseXML())
+	  */
+	XMLPreParser getPreParser() {
+		return preParser;
+	}
+
+	/**
+	  * @return what decides which connections and requests are taken on (see SocketCommsConfig.setMaxConnections(),
+	  * 		setMaxInFlight() and setQueueDelayTarget())
+	  */
+	AdmissionController getAdmission() {
+		return admission;
+	}
+
+	/**
+	  * @return the responses held for replay to resent requests, or null if none are (see SocketCommsConfig.setResponseCacheSize())
+	  */
+	ResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	/**
+	  * @return the pool of direct buffers used by every connection, for its metrics
+	  */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	  * Start the Thread
+	  *
+	  */
+	public void run() {
+		try {
+			accept();
+		}
+		catch(SocketException e) {
+			app.handleError(new SocketEvent("TID Unavailable", portNumber), e);
+		}
+
+	}
+
+	/**
+	  * Start the event loops, then block on the socket, waiting for new connections.
+	  *
+	  */
+	public void accept() throws SocketException {
+		for (NioEventLoop eventLoop : eventLoops) {
+			eventLoop.start();
+		}
+
+		while (!shutDownRequested) {
+			SocketChannel incoming;
+			try {
+				incoming = servChannel.accept();
+			} catch(IOException e) {
+				if (shutDownRequested) {
+					break; // ...out of while (!shutDownRequested)
+				} else {
+					throw new SocketException("NioXMLSocketServer.accept(): Caught IOException accepting new socket connection: ", e);
+				}
+			}
+
+			// Check for interruption (e.g. by an ExecutorService)
+			if (Thread.interrupted()) {
+				shutDownRequested = true;
+				// Re-set the interrupted flag, in case others within this thread need it
+				Thread.currentThread().interrupt();
+				try { incoming.close(); } catch (IOException e) { /* Ignore */}
+				break;
+			}
+
+			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: New client connection accepted.");
+
+			NioEventLoop eventLoop = eventLoops[nextEventLoop];
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+			// One over the limit is still registered, but only to be sent REFUSE
+			eventLoop.register(new NioConnection(this, eventLoop, app, incoming, portNumber, config, admission.tryOpenConnection()));
+		}
+
+		close(null);
+	}
+
+	/**
+	  * Close the server channel and all connections.
+	  *
+     * @param out the Logger to use to report events etc
+     *
+	  * @throws SocketException when any error is encountered
+	  */
+	public void close(LwLogger out) throws SocketException {
+		// LwLogger used when close() is called by
+		// a VM shutdown hook, in which case the logger may be dead (it's shutdown hook may be
+		// executed before ours), so a FileWriter object is used instead.
+		for (NioEventLoop eventLoop : eventLoops) {
+			eventLoop.shutDown();
+		}
+		metrics.unregister();
+
+		try {
+			servChannel.close();
+			if (out != null) {
+				out.appendln("Closed Server socket on port " + portNumber);
+			}
+			else {
+				logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Closed Server socket on port " + portNumber);
+			}
+		}
+		catch(IOException e) {
+			if (out != null) {
+				try {
+					out.appendln("NioXMLSocketServer.close(): Caught (and muffled) IOException trying to close Server socket: " + e);
+				}
+				catch(IOException e2) {
+					System.out.println("NioXMLSocketServer.close(): While writing exception to LwLogger, caught IOException: " + e2.getMessage());
+				}
+			}
+			else {
+				logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) IOException trying to close Server socket: " + e);
+			}
+		}
+	}
+
+	/**
+	  * Stop the Server
+	  *
+	  */
+	public void terminateProcessing() {
+		logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Request to Terminate processing received.");
+		shutDownRequested = true;
+		try {
+			close(null); // Only way to interrupt accept(), as it doesn't check Thread.interrupted()
+		} catch (SocketException e) {
+			// Ignore any prob here
+			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Ignored LwSocketException closing server socket on port " + portNumber + ": " + e);
+		}
+	}
+
+	/**
+	 * @param o the object to be checked for null.
+	 *
+	 * @throws IllegalArgumentException if o is null
+	 */
+	private void checkNullArgument(Object o) {
+		if ((o == null)) throw new IllegalArgumentException("[SERVER-" + Thread.currentThread().getName() + "]: Null value received.");
+	}
+}
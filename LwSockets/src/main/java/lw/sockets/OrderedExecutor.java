@@ -0,0 +1,196 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * @author wadel
+ *
+ * Package-private class running tasks one at a time, in the order given, in the Threads of a shared pool.
+ * Each connection has one of its own, so its requests are processed in the order they arrived, while the pool is
+ * shared by every connection and no Thread is held by a connection with nothing to do.
+ *
+ * At most BATCH tasks are run before going to the back of the pool's queue, so a busy connection cannot keep
+ * a Thread from the others.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class OrderedExecutor implements Executor {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	// Most tasks run before giving the Thread back to the pool
+	static final int BATCH = 16;
+
+	final private Executor pool;
+	// Not synchronized, so a virtual thread adding a task doesn't pin its carrier
+	final private ReentrantLock lock = new ReentrantLock();
+	final private ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();	// Guarded by lock
+	private boolean scheduled = false;				// true while tasks are queued, or being run, in the pool. Guarded by lock
+
+	final private Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	  * Thrown when the pool refuses, holding every task given and not yet run (the one just given among them),
+	  * in the order given, so the caller can refuse each.
+	  */
+	static final class RejectedTasks extends RejectedExecutionException {
+		private static final long serialVersionUID = 1L;
+
+		final private List<Runnable> tasks;
+
+		RejectedTasks(List<Runnable> tasks, RejectedExecutionException cause) {
+			super("Pool refused " + tasks.size() + " ordered task(s)", cause);
+			this.tasks = tasks;
+		}
+
+		List<Runnable> getTasks() {
+			return tasks;
+		}
+	}
+
+	/**
+	  * @param pool where the tasks are run
+	  */
+	OrderedExecutor(Executor pool) {
+		assert pool != null;
+
+		this.pool = pool;
+	}
+
+	/**
+	  * Run a task once every task given before it has been run.
+	  *
+	  * @param task the task to run
+	  *
+	  * @throws RejectedTasks if the pool refuses it (e.g. it is shutting down), when neither it nor any other task
+	  * 		still queued will be run
+	  */
+	@Override
+	public void execute(Runnable task) {
+		lock.lock();
+		try {
+			tasks.add(task);
+			if (scheduled) {
+				return;
+			}
+			scheduled = true;
+		}
+		finally {
+			lock.unlock();
+		}
+
+		try {
+			pool.execute(drainTask);
+		}
+		catch(RejectedExecutionException e) {
+			// Including any given by other Threads meanwhile: not run here, as this may be a Thread only meant for I/O
+			List<Runnable> rejected;
+			lock.lock();
+			try {
+				rejected = new ArrayList<Runnable>(tasks);
+				tasks.clear();
+				scheduled = false;
+			}
+			finally {
+				lock.unlock();
+			}
+			throw new RejectedTasks(rejected, e);
+		}
+	}
+
+	/**
+	  * @return the number of tasks given and not yet run
+	  */
+	int getPendingCount() {
+		lock.lock();
+		try {
+			return tasks.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			boolean finished;
+			try {
+				finished = runBatch();
+			}
+			catch(Error e) {
+				// Those behind it are still to be run, so scheduled mustn't be left set with nothing to run them
+				logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught Error running ordered task, rescheduling those behind it: " + e);
+				if (!reschedule()) {
+					// Pool is shutting down, so carry on with them in this, one of its Threads, as below
+					drain();
+				}
+				throw e;
+			}
+
+			if (finished || reschedule()) {
+				return;
+			}
+			// Pool is shutting down, but those still queued were accepted, so carry on with them in this, one of its Threads
+		}
+	}
+
+	/**
+	  * Run up to BATCH tasks.
+	  *
+	  * @return true if there are none left, and no longer scheduled
+	  */
+	private boolean runBatch() {
+		for (int i = 0; i < BATCH; i++) {
+			Runnable task;
+			lock.lock();
+			try {
+				task = tasks.poll();
+				if (task == null) {
+					scheduled = false;
+					return true;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+
+			try {
+				task.run();
+			}
+			catch(RuntimeException e) {
+				// Those behind it are still to be run
+				logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) RuntimeException running ordered task: " + e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	  * Go to the back of the pool's queue, as there's more to do.
+	  *
+	  * @return true if the pool accepted, false if it's shutting down
+	  */
+	private boolean reschedule() {
+		try {
+			pool.execute(drainTask);
+			return true;
+		}
+		catch(RejectedExecutionException e) {
+			return false;
+		}
+	}
+}
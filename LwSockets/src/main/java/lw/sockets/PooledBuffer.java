@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author wadel
+ *
+ * Package-private class holding a buffer acquired from a BufferPool, and counting the references to it.
+ * Acquired with one reference. Whatever else is to hold the buffer must retain() it, and everything holding it
+ * must release() it once finished, the last giving it back to the pool. The buffer must not be touched after that.
+ *
+ * Thread-safety: retain() and release() are thread safe. The buffer itself is not.
+ *
+ */
+final class PooledBuffer {
+	final private BufferPool pool;
+	final private ByteBuffer buffer;
+	final private int sizeClass;					// -1 if too big to be kept by the pool
+	final private AtomicInteger refCount = new AtomicInteger(1);
+	private BufferPool.LeakRecord leakRecord = null;	// only with leak detection on
+
+	PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.sizeClass = sizeClass;
+	}
+
+	void setLeakRecord(BufferPool.LeakRecord leakRecord) {
+		this.leakRecord = leakRecord;
+	}
+
+	/**
+	  * @return the buffer, which may have more capacity than was asked for
+	  */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	  * Add a reference to the buffer.
+	  *
+	  * @return this object
+	  *
+	  * @throws IllegalStateException if the buffer has already been given back to the pool
+	  */
+	PooledBuffer retain() {
+		int count;
+		do {
+			count = refCount.get();
+			if (count <= 0) {
+				throw new IllegalStateException("[" + Thread.currentThread().getName() + "]: Buffer retained after being released.");
+			}
+		} while (!refCount.compareAndSet(count, count + 1));
+		return this;
+	}
+
+	/**
+	  * Drop a reference to the buffer, giving it back to the pool if it was the last.
+	  *
+	  * @return true if the buffer was given back
+	  *
+	  * @throws IllegalStateException if the buffer has already been given back to the pool
+	  */
+	boolean release() {
+		int count = refCount.decrementAndGet();
+		if (count < 0) {
+			throw new IllegalStateException("[" + Thread.currentThread().getName() + "]: Buffer released more times than retained.");
+		}
+		if (count == 0) {
+			pool.giveBack(buffer, sizeClass, leakRecord);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	  * @return the number of references to the buffer
+	  */
+	int refCount() {
+		return refCount.get();
+	}
+}
@@ -0,0 +1,235 @@
+/**
+ *
+ */
+package lw.sockets;
+
+/**
+ * @author wadel
+ *
+ * Package-private class holding the protocol options negotiated during the READY handshake.
+ *
+ * The handshake always uses legacy packets, so old peers are never sent anything they cannot read:
+ *   1. The server's READY message offers the protocols it speaks e.g. "Server Ready; protocols=1,2".
+ *      Old clients never look beyond "Server Ready".
+ *   2. A client wanting more than the legacy protocol replies with its own READY message e.g. "protocol=2".
+ *      Old clients never send this, so both sides stay with the legacy protocol.
+ *   3. The server answers with a READY message holding the options it accepted e.g. "protocol=2",
+ *      after which both sides switch.
+ *
+ * Options are written as key=value pairs, separated by ';'. Anything else is ignored, so a server that
+ * does not know an option simply leaves it out of its answer, and the client does without it.
+ *
+ * Options:
+ *   protocol=N  the packet format (see FrameV2)
+ *   window=N    the max parts of a message the client may send before it must wait for the server to
+ *               acknowledge them. The server then acknowledges parts cumulatively, every ackInterval()
+ *               parts, with "parts=K" in the payload, rather than acknowledging each part.
+ *   multiplex=1 the client may send requests without waiting for the answers to those before. The server
+ *               processes them concurrently, answering each with a single message (no receipt for
+ *               CONSUME_RESPOND; errNo 1 if there is no response), in whatever order they finish.
+ *               Parts of requests are only acknowledged if a window is agreed too.
+ *   batch=1     the client may send BATCH messages, each packing many CONSUME messages (see MessageBatch),
+ *               which the server consumes one after another, answering with a single acknowledgement.
+ *   compress=1  either side may send packets whose payload is compressed (see FrameV2). Each side decides for itself
+ *               which messages are worth compressing (see SocketCommsConfig.setCompressThreshold()).
+ *               Only agreed with protocol version 2.
+ *   binary=1    either side may send messages in SocketFormat.BINARY, whose payload is bytes, carried exactly as
+ *               given. Only agreed with protocol version 2.
+ *
+ * Thread-safety: This class is NOT thread safe.
+ *
+ */
+final class ProtocolOptions {
+	// The original protocol: fixed-size, text packets
+	static final int PROTOCOL_LEGACY = 1;
+	// Variable-length packets, with a compact binary header
+	static final int PROTOCOL_V2 = 2;
+	// The highest protocol this code speaks
+	static final int PROTOCOL_HIGHEST = PROTOCOL_V2;
+
+	// Added by a server to its READY message
+	static final String OFFER = "protocols=1,2";
+
+	// The most parts a server lets a client have unacknowledged
+	static final int MAX_WINDOW = 1024;
+	// Key of the count of parts saved, in the payload of a windowed MORE acknowledgement
+	static final String PARTS = "parts";
+	// Key of the milliseconds to wait before trying again, in the payload of a REFUSE sent by an overloaded server
+	static final String RETRY_AFTER = "retryAfter";
+
+	private int version = PROTOCOL_LEGACY;
+	private int window = 0;		// 0 for the legacy behaviour of acknowledging every part
+	private boolean multiplex = false;
+	private boolean batch = false;
+	private boolean compress = false;
+	private boolean binary = false;
+
+	ProtocolOptions() {
+	}
+
+	ProtocolOptions(int version) {
+		this.version = version;
+	}
+
+	ProtocolOptions(int version, int window, boolean multiplex, boolean batch, boolean compress, boolean binary) {
+		this.version = version;
+		this.window = window;
+		this.multiplex = multiplex;
+		this.batch = batch;
+		this.compress = compress;
+		this.binary = binary;
+	}
+
+	/**
+	  * Read the options from the payload of a READY message.
+	  *
+	  * @param payload the payload of the READY message
+	  *
+	  * @return the options found, with defaults for any not found
+	  */
+	static ProtocolOptions parse(String payload) {
+		ProtocolOptions options = new ProtocolOptions();
+		if (payload == null) {
+			return options;
+		}
+
+		for (String option : payload.split(";")) {
+			int equalsAt = option.indexOf('=');
+			if (equalsAt < 0) {
+				continue;
+			}
+			String key = option.substring(0, equalsAt).trim();
+			String value = option.substring(equalsAt + 1).trim();
+
+			try {
+				if ("protocol".equals(key)) {
+					options.version = Integer.parseInt(value);
+				}
+				else if ("window".equals(key)) {
+					options.window = Math.max(0, Integer.parseInt(value));
+				}
+				else if ("multiplex".equals(key)) {
+					options.multiplex = (Integer.parseInt(value) != 0);
+				}
+				else if ("batch".equals(key)) {
+					options.batch = (Integer.parseInt(value) != 0);
+				}
+				else if ("compress".equals(key)) {
+					options.compress = (Integer.parseInt(value) != 0);
+				}
+				else if ("binary".equals(key)) {
+					options.binary = (Integer.parseInt(value) != 0);
+				}
+			}
+			catch(NumberFormatException e) {
+				// Leave the default in place
+			}
+		}
+
+		return options;
+	}
+
+	/**
+	  * @param payload the payload of a server's READY message
+	  *
+	  * @return true if the server offers protocol version 2
+	  */
+	static boolean offersV2(String payload) {
+		if (payload == null) {
+			return false;
+		}
+
+		for (String option : payload.split(";")) {
+			String trimmed = option.trim();
+			if (trimmed.startsWith("protocols=")) {
+				for (String offered : trimmed.substring("protocols=".length()).split(",")) {
+					if (offered.trim().equals(String.valueOf(PROTOCOL_V2))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	  * Find a whole number option in a payload e.g. "parts=K" in a windowed MORE acknowledgement.
+	  *
+	  * @param payload the payload holding the option
+	  * @param key the name of the option
+	  *
+	  * @return the value of the option, or -1 if not found
+	  */
+	static int intOption(String payload, String key) {
+		if (payload == null) {
+			return -1;
+		}
+
+		for (String option : payload.split(";")) {
+			int equalsAt = option.indexOf('=');
+			if (equalsAt >= 0 && key.equals(option.substring(0, equalsAt).trim())) {
+				try {
+					return Integer.parseInt(option.substring(equalsAt + 1).trim());
+				}
+				catch(NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	  * How often a server acknowledges parts of a message, when a window is in use.
+	  * Half the window, so the client is sent an acknowledgement before it runs out of window.
+	  *
+	  * @param window the window in use, greater than 0
+	  *
+	  * @return the number of parts per acknowledgement
+	  */
+	static int ackInterval(int window) {
+		return Math.max(1, window / 2);
+	}
+
+	/**
+	  * Work out what a server can accept of the options requested by a client.
+	  *
+	  * @param canMultiplex true if the server has somewhere to process requests concurrently
+	  * @param canBatch true if the server can unpack BATCH messages (it can't if it never gathers up whole messages)
+	  *
+	  * @return the options the server will use
+	  */
+	ProtocolOptions accept(boolean canMultiplex, boolean canBatch) {
+		int acceptedVersion = Math.max(PROTOCOL_LEGACY, Math.min(version, PROTOCOL_HIGHEST));
+		return new ProtocolOptions(acceptedVersion, Math.min(window, MAX_WINDOW), multiplex && canMultiplex, batch && canBatch, compress && acceptedVersion == PROTOCOL_V2, binary && acceptedVersion == PROTOCOL_V2);
+	}
+
+	int getVersion() {
+		return version;
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	boolean isMultiplex() {
+		return multiplex;
+	}
+
+	boolean isBatch() {
+		return batch;
+	}
+
+	boolean isCompress() {
+		return compress;
+	}
+
+	boolean isBinary() {
+		return binary;
+	}
+
+	@Override
+	public String toString() {
+		return "protocol=" + version + (window > 0 ? ";window=" + window : "") + (multiplex ? ";multiplex=1" : "") + (batch ? ";batch=1" : "") + (compress ? ";compress=1" : "") + (binary ? ";binary=1" : "");
+	}
+}
@@ -0,0 +1,378 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author wadel
+ *
+ * Package-private class holding the messages of a connection while their parts arrive, by TID (the shelf).
+ * A message is held as chars, or as bytes if in SocketFormat.BINARY.
+ *
+ * Unlike a plain map, it can be bounded, so a client that keeps sending parts (hostile, or just buggy) can't use up
+ * the heap:
+ *   - no message may grow beyond maxMessageSize chars (or bytes)
+ *   - a message no part of which has arrived for idleTimeout milliseconds is evicted (refused), whether or not
+ *     anything more arrives on the connection (see ShelfSweeper)
+ *   - every shelf of a server may share a ShelfBudget, which no more than a set number of bytes may be held against
+ * A message breaking a limit is refused: what arrived of it is dropped, as is anything more that arrives for it,
+ * until its last part (or a DISCARD) is removed from the shelf, so the server can answer it with REFUSE.
+ *
+ * Thread-safety: This class is thread safe. Only the Thread reading the connection appends to it, but another
+ * connection's Thread may evict from it, to make room in a shared ShelfBudget, as may the ShelfSweeper.
+ *
+ */
+final class ReassemblyShelf {
+	// Each char held in a StringBuilder is counted as 2 bytes against the budget
+	static final int BYTES_PER_CHAR = 2;
+
+	/**
+	  * A message on the shelf. Only a refused message has neither chars nor bytes.
+	  */
+	private static final class Entry {
+		final StringBuilder message;	// null if refused, or BINARY
+		byte[] bytes;					// the message if BINARY, otherwise null. Grown as parts arrive
+		int numBytes;					// of bytes, in use
+		long lastAppended;				// when a part last arrived, in milliseconds
+
+		Entry(StringBuilder message, byte[] bytes, long lastAppended) {
+			this.message = message;
+			this.bytes = bytes;
+			this.numBytes = (bytes == null ? 0 : bytes.length);
+			this.lastAppended = lastAppended;
+		}
+
+		boolean isRefused() {
+			return message == null && bytes == null;
+		}
+
+		/**
+		  * @return the chars, or bytes if BINARY, held
+		  */
+		int size() {
+			return (message != null ? message.length() : numBytes);
+		}
+
+		/**
+		  * @return the bytes held against any budget
+		  */
+		long budgetBytes() {
+			return (message != null ? (long) message.length() * BYTES_PER_CHAR : numBytes);
+		}
+	}
+
+	final private HashMap<String,Entry> entries = new HashMap<String,Entry>();
+	// Not synchronized, so virtual threads aren't pinned
+	final private ReentrantLock lock = new ReentrantLock();
+	final private int maxMessageSize;		// max chars per message, 0 for no limit
+	final private long idleTimeout;			// milliseconds a message may go without a part arriving, 0 for no limit
+	private ShelfBudget budget = null;		// shared by every shelf of a server, null for no limit
+	private long reserved = 0;				// bytes held against the budget by this shelf
+	private long nextEviction = 0;			// when to next look for idle messages, in milliseconds
+	private ScheduledFuture<?> sweep = null;	// evicts idle messages while nothing arrives, null if not swept. Guarded by lock
+
+	/**
+	  * Constructor.
+	  *
+	  * @param maxMessageSize the max chars of a message, or 0 for no limit
+	  * @param idleTimeout the milliseconds a message may go without a part arriving, or 0 for no limit
+	  */
+	ReassemblyShelf(int maxMessageSize, long idleTimeout) {
+		this.maxMessageSize = maxMessageSize;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	  * Have idle messages evicted even while nothing more arrives, until cleared. Otherwise, only as parts arrive
+	  * (or another shelf needs room in a shared ShelfBudget).
+	  */
+	void startSweeping() {
+		lock.lock();
+		try {
+			if (idleTimeout > 0 && sweep == null) {
+				sweep = ShelfSweeper.schedule(this, idleTimeout);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Hold every message appended from now on against a budget shared with other shelves.
+	  *
+	  * @param budget the budget, or null for no limit
+	  */
+	void setBudget(ShelfBudget budget) {
+		lock.lock();
+		try {
+			this.budget = budget;
+			if (budget != null) {
+				budget.register(this);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Store a part of a message, adding it to the parts already received.
+	  *
+	  * @param TID the Transaction ID of the message
+	  * @param part the part just arrived
+	  *
+	  * @return false if the message is refused, now or earlier, in which case the part is dropped
+	  */
+	boolean append(String TID, String part) {
+		return append(TID, part, null);
+	}
+
+	/**
+	  * Store a part of a message in SocketFormat.BINARY, adding it to the parts already received.
+	  *
+	  * @param TID the Transaction ID of the message
+	  * @param part the part just arrived. Not copied if the first part, so must not be changed afterwards.
+	  *
+	  * @return false if the message is refused, now or earlier (or its earlier parts weren't BINARY), in which case the part is dropped
+	  */
+	boolean appendBytes(String TID, byte[] part) {
+		return append(TID, null, part);
+	}
+
+	/**
+	  * Store a part of a message, either chars or bytes.
+	  */
+	private boolean append(String TID, String chars, byte[] bytes) {
+		lock.lock();
+		try {
+			long now = (idleTimeout > 0 ? System.currentTimeMillis() : 0);
+			if (idleTimeout > 0 && now >= nextEviction) {
+				evictIdle(now);
+				nextEviction = now + Math.max(1, idleTimeout / 2);
+			}
+
+			Entry entry = entries.get(TID);
+			if (entry != null && entry.isRefused()) {
+				entry.lastAppended = now;
+				return false;
+			}
+			if (entry != null && (entry.message == null) != (chars == null)) {
+				// Parts of one message can't be both chars and bytes
+				refuse(TID, entry, now);
+				return false;
+			}
+
+			int partSize = (chars != null ? chars.length() : bytes.length);
+			int length = (entry == null ? 0 : entry.size()) + partSize;
+			if (maxMessageSize > 0 && length > maxMessageSize) {
+				refuse(TID, entry, now);
+				return false;
+			}
+			if (budget != null) {
+				long budgetBytes = (chars != null ? (long) partSize * BYTES_PER_CHAR : partSize);
+				if (!budget.reserve(budgetBytes, this)) {
+					refuse(TID, entry, now);
+					return false;
+				}
+				reserved += budgetBytes;
+			}
+
+			if (entry == null) {
+				entries.put(TID, (chars != null ? new Entry(new StringBuilder(chars), null, now) : new Entry(null, bytes, now)));
+			}
+			else {
+				if (chars != null) {
+					entry.message.append(chars);
+				}
+				else {
+					if (entry.bytes.length < length) {
+						entry.bytes = Arrays.copyOf(entry.bytes, Math.max(length, 2 * entry.bytes.length));
+					}
+					System.arraycopy(bytes, 0, entry.bytes, entry.numBytes, bytes.length);
+					entry.numBytes = length;
+				}
+				entry.lastAppended = now;
+			}
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Drop what has arrived of a message, and anything more that arrives for it.
+	  */
+	private void refuse(String TID, Entry entry, long now) {
+		if (entry != null) {
+			release(entry);
+		}
+		entries.put(TID, new Entry(null, null, now));
+	}
+
+	/**
+	  * @param TID the Transaction ID of the message
+	  *
+	  * @return the message, or null if there is none (or it has been refused, or is BINARY)
+	  */
+	StringBuilder get(String TID) {
+		lock.lock();
+		try {
+			Entry entry = entries.get(TID);
+			return (entry == null ? null : entry.message);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * @param TID the Transaction ID of the message
+	  *
+	  * @return the message in SocketFormat.BINARY, read-only, or null if there is none (or it has been refused, or isn't BINARY)
+	  */
+	ByteBuffer getBytes(String TID) {
+		lock.lock();
+		try {
+			Entry entry = entries.get(TID);
+			return (entry == null || entry.bytes == null ? null : ByteBuffer.wrap(entry.bytes, 0, entry.numBytes).asReadOnlyBuffer());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * @param TID the Transaction ID of the message
+	  *
+	  * @return true if the message has been refused (and not yet removed)
+	  */
+	boolean isRefused(String TID) {
+		lock.lock();
+		try {
+			Entry entry = entries.get(TID);
+			return (entry != null && entry.isRefused());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Remove a message, refused or not, so the TID can be used again.
+	  *
+	  * @param TID the Transaction ID of the message
+	  *
+	  * @return the message, or null if there was none (or it had been refused, or was BINARY)
+	  */
+	StringBuilder remove(String TID) {
+		lock.lock();
+		try {
+			Entry entry = entries.remove(TID);
+			if (entry == null) {
+				return null;
+			}
+			release(entry);
+			return entry.message;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Remove every message, and stop using the budget, now the connection is closed.
+	  */
+	void clear() {
+		lock.lock();
+		try {
+			if (sweep != null) {
+				sweep.cancel(false);
+				sweep = null;
+			}
+			entries.clear();
+			if (budget != null) {
+				budget.release(reserved);
+				budget.unregister(this);
+			}
+			reserved = 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Refuse every message no part of which has arrived for idleTimeout milliseconds, unless another Thread is using
+	  * the shelf at the moment (so shelves can evict from each other without any risk of deadlock).
+	  *
+	  * @return the number of messages refused, so their bytes given back to any budget
+	  */
+	int evictIdleIfFree() {
+		if (idleTimeout <= 0 || !lock.tryLock()) {
+			return 0;
+		}
+		try {
+			return evictIdle(System.currentTimeMillis());
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * @return the number of messages (refused or not) on the shelf
+	  */
+	int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * An idle message is refused, rather than removed, so any straggling parts aren't taken for a new message.
+	  * An idle refused message is removed. Must hold the lock.
+	  */
+	private int evictIdle(long now) {
+		int numEvicted = 0;
+		for (Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String,Entry> mapEntry = it.next();
+			Entry entry = mapEntry.getValue();
+			if (now - entry.lastAppended >= idleTimeout) {
+				if (entry.isRefused()) {
+					it.remove();
+				}
+				else {
+					release(entry);
+					mapEntry.setValue(new Entry(null, null, now));
+					numEvicted++;
+				}
+			}
+		}
+		return numEvicted;
+	}
+
+	/**
+	  * Give back to the budget the bytes held for a message. Must hold the lock.
+	  */
+	private void release(Entry entry) {
+		if (budget != null && !entry.isRefused()) {
+			long bytes = entry.budgetBytes();
+			budget.release(bytes);
+			reserved -= bytes;
+		}
+	}
+}
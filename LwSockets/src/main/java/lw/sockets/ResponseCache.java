@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * @author wadel
+ *
+ * Package-private class holding the responses a server has computed, by TID (and, if configured, a SHA-256 digest of
+ * the payload), so a client resending a CONSUME_RESPOND request after timing out is sent the response already computed,
+ * rather than have the listener compute it again.
+ *
+ * A resend arriving while the first is still being computed waits for that computation (single-flight), rather
+ * than starting another. A computation that fails is forgotten, so a resend tries again.
+ *
+ * Bounded by both maxEntries, the least recently used going first, and a time to live from when the response was
+ * computed. Shared by every connection of the server, as a client usually resends over a new connection.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class ResponseCache {
+	private static final Charset PAYLOAD_CHARSET = Charset.forName("UTF-8");	// of XML payloads, when digested
+
+	final private int maxEntries;
+	final private long ttl;						// nanoseconds a response is replayed for, 0 for no limit
+	final private boolean keyedByPayload;		// true if the key includes a digest of the payload
+	final private ServerMetrics metrics;
+	// Not synchronized, so a virtual thread looking up a response doesn't pin its carrier
+	final private ReentrantLock lock = new ReentrantLock();
+	final private LinkedHashMap<String,Cached> entries;	// In least recently used order. Guarded by lock
+
+	/**
+	  * A response, computed or being computed.
+	  */
+	private static final class Cached {
+		final CompletableFuture<String> response = new CompletableFuture<String>();
+		volatile long expiresAt = 0;	// from System.nanoTime(), set once computed
+	}
+
+	/**
+	  * @param config the settings of the server
+	  * @param metrics counts the responses replayed
+	  */
+	ResponseCache(SocketCommsConfig config, ServerMetrics metrics) {
+		assert config.getResponseCacheSize() > 0;
+
+		this.maxEntries = config.getResponseCacheSize();
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(config.getResponseCacheTtl());
+		this.keyedByPayload = config.isResponseCacheKeyedByPayload();
+		this.metrics = metrics;
+		this.entries = new LinkedHashMap<String,Cached>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Cached> eldest) {
+				// One still being computed goes too: those already waiting still get it, but a later resend computes it again
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	  * Get the response to a request: the one computed (or being computed) for an earlier copy of it, if any,
+	  * otherwise the one compute gives, in the calling Thread.
+	  *
+	  * @param request the CONSUME_RESPOND request
+	  * @param compute computes the response, completing with a String or null
+	  *
+	  * @return completed with the response, or null if none, or exceptionally if the computation failed
+	  */
+	CompletableFuture<String> get(SocketEvent request, Supplier<? extends CompletionStage<?>> compute) {
+		String key = keyOf(request);
+		final Cached entry;
+		lock.lock();
+		try {
+			Cached existing = entries.get(key);
+			if (existing != null && isLive(existing)) {
+				metrics.responseReplayed();
+				return existing.response;
+			}
+			entry = new Cached();
+			entries.put(key, entry);
+		}
+		finally {
+			lock.unlock();
+		}
+
+		final String entryKey = key;
+		CompletionStage<?> computed;
+		try {
+			computed = compute.get();
+		}
+		catch(RuntimeException e) {
+			forget(entryKey, entry);
+			entry.response.completeExceptionally(e);
+			return entry.response;
+		}
+		catch(Error e) {
+			// Not left for resends to wait on forever
+			forget(entryKey, entry);
+			entry.response.completeExceptionally(e);
+			throw e;
+		}
+		computed.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object response, Throwable failure) {
+				if (failure != null) {
+					forget(entryKey, entry);
+					entry.response.completeExceptionally(failure);
+					return;
+				}
+				entry.expiresAt = System.nanoTime() + ttl;
+				entry.response.complete((String) response);
+			}
+		});
+		return entry.response;
+	}
+
+	/**
+	  * @return the number of responses held, or being computed, whether expired or not
+	  */
+	int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private String keyOf(SocketEvent request) {
+		if (!keyedByPayload) {
+			return request.getTID();
+		}
+		// Not a hashCode(), as two payloads sharing one would be sent each other's responses
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is required of every Java platform", e);
+		}
+		ByteBuffer bytes = request.getReceivedBytes();
+		CharSequence chars = request.getReceivedChars();
+		char format = '-';
+		if (bytes != null) {
+			format = 'B';
+			digest.update(bytes.duplicate());
+		}
+		else if (chars != null) {
+			format = 'X';
+			digest.update(PAYLOAD_CHARSET.encode(CharBuffer.wrap(chars)));
+		}
+
+		StringBuilder key = new StringBuilder(request.getTID()).append('#').append(format);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+
+	/**
+	  * @return true if the entry is still being computed, or its response hasn't expired
+	  */
+	private boolean isLive(Cached entry) {
+		return !entry.response.isDone() || ttl == 0 || entry.expiresAt - System.nanoTime() > 0;
+	}
+
+	/**
+	  * Remove the entry for a key, unless it has already been replaced.
+	  */
+	private void forget(String key, Cached entry) {
+		lock.lock();
+		try {
+			entries.remove(key, entry);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.interfaces.LwIServerMetricsMXBean;
+
+/**
+ * The metrics of a socket server, counted by every connection it accepts, and registered with the platform
+ * MBeanServer for as long as the server is open (see LwIServerMetricsMXBean).
+ *
+ * Counting is done on every packet and request, so adds no lock and no allocation: counters are LongAdders,
+ * which don't make connections contend with each other, and latencies go into LatencyHistograms.
+ *
+ * Thread-safety: This class is thread safe.
+ */
+public final class ServerMetrics implements LwIServerMetricsMXBean {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	private static final SocketService[] SERVICES = SocketService.values();
+
+	final private int portNumber;
+	final private ShelfBudget shelfBudget;			// counts the bytes on the shelves of every connection
+	final private LongAdder activeConnections = new LongAdder();
+	final private LongAdder totalConnections = new LongAdder();
+	final private LongAdder framesIn = new LongAdder();
+	final private LongAdder framesOut = new LongAdder();
+	final private LongAdder bytesIn = new LongAdder();
+	final private LongAdder bytesOut = new LongAdder();
+	final private LongAdder moreFramesOut = new LongAdder();
+	final private LongAdder refusedConnections = new LongAdder();
+	final private LongAdder shedRequests = new LongAdder();
+	final private LongAdder replayedResponses = new LongAdder();
+	final private LongAdder[] framesInByService = new LongAdder[SERVICES.length];
+	final private LatencyHistogram listenerLatency = new LatencyHistogram();
+	final private LatencyHistogram requestLatency = new LatencyHistogram();
+	final private AtomicReference<ObjectName> name = new AtomicReference<ObjectName>();	// while registered
+
+	/**
+	  * Constructor.
+	  *
+	  * @param portNumber the port on which the server listens
+	  * @param shelfBudget the budget shared by the shelves of every connection of the server
+	  */
+	ServerMetrics(int portNumber, ShelfBudget shelfBudget) {
+		this.portNumber = portNumber;
+		this.shelfBudget = shelfBudget;
+		for (int i = 0; i < framesInByService.length; i++) {
+			framesInByService[i] = new LongAdder();
+		}
+	}
+
+	/**
+	  * Register with the platform MBeanServer. A failure (e.g. another server of the same type on the port, in another
+	  * class loader) is logged, as the server works just as well without.
+	  *
+	  * @param type the type of the server e.g. XMLSocketServer
+	  */
+	void register(String type) {
+		try {
+			ObjectName candidate = new ObjectName("lw.sockets:type=" + type + ",port=" + portNumber);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+			name.set(candidate);
+		}
+		catch(JMException e) {
+			logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Could not register metrics of " + type + " on port " + portNumber + ": " + e);
+		}
+	}
+
+	/**
+	  * Unregister from the platform MBeanServer, if registered. Only the first call does anything.
+	  */
+	void unregister() {
+		ObjectName registered = name.getAndSet(null);
+		if (registered == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(registered)) {
+				server.unregisterMBean(registered);
+			}
+		}
+		catch(JMException e) {
+			logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Could not unregister metrics " + registered + ": " + e);
+		}
+	}
+
+	/**
+	  * @return the name under which registered, or null if not
+	  */
+	ObjectName getObjectName() {
+		return name.get();
+	}
+
+	void connectionOpened() {
+		activeConnections.increment();
+		totalConnections.increment();
+	}
+
+	void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	void packetReceived(SocketService service, int numBytes) {
+		framesIn.increment();
+		bytesIn.add(numBytes);
+		framesInByService[service.ordinal()].increment();
+	}
+
+	void packetSent(SocketService service, int numBytes) {
+		framesOut.increment();
+		bytesOut.add(numBytes);
+		if (service == SocketService.MORE) {
+			moreFramesOut.increment();
+		}
+	}
+
+	void connectionRefused() {
+		refusedConnections.increment();
+	}
+
+	void requestShed() {
+		shedRequests.increment();
+	}
+
+	void responseReplayed() {
+		replayedResponses.increment();
+	}
+
+	/**
+	  * @return the latency of calls to the listener, in nanoseconds
+	  */
+	public LatencyHistogram getListenerLatency() {
+		return listenerLatency;
+	}
+
+	/**
+	  * @return the latency of whole requests, from the last part arriving to the answer being sent, in nanoseconds
+	  */
+	public LatencyHistogram getRequestLatency() {
+		return requestLatency;
+	}
+
+	@Override
+	public int getPortNumber() {
+		return portNumber;
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	@Override
+	public long getTotalConnections() {
+		return totalConnections.sum();
+	}
+
+	@Override
+	public long getFramesIn() {
+		return framesIn.sum();
+	}
+
+	@Override
+	public long getFramesOut() {
+		return framesOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public Map<String, Long> getFramesInByService() {
+		Map<String, Long> byService = new LinkedHashMap<String, Long>();
+		for (SocketService service : SERVICES) {
+			long count = framesInByService[service.ordinal()].sum();
+			if (count > 0) {
+				byService.put(service.toString(), Long.valueOf(count));
+			}
+		}
+		return byService;
+	}
+
+	@Override
+	public long getMoreFramesOut() {
+		return moreFramesOut.sum();
+	}
+
+	@Override
+	public long getShelfBytes() {
+		return shelfBudget.getUsedBytes();
+	}
+
+	@Override
+	public long getListenerCalls() {
+		return listenerLatency.getCount();
+	}
+
+	@Override
+	public long getListenerLatencyP50Micros() {
+		return micros(listenerLatency.getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getListenerLatencyP99Micros() {
+		return micros(listenerLatency.getValueAtPercentile(99));
+	}
+
+	@Override
+	public long getListenerLatencyP999Micros() {
+		return micros(listenerLatency.getValueAtPercentile(99.9));
+	}
+
+	@Override
+	public long getListenerLatencyMaxMicros() {
+		return micros(listenerLatency.getMax());
+	}
+
+	@Override
+	public long getRequests() {
+		return requestLatency.getCount();
+	}
+
+	@Override
+	public long getRequestLatencyP50Micros() {
+		return micros(requestLatency.getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getRequestLatencyP99Micros() {
+		return micros(requestLatency.getValueAtPercentile(99));
+	}
+
+	@Override
+	public long getRequestLatencyP999Micros() {
+		return micros(requestLatency.getValueAtPercentile(99.9));
+	}
+
+	@Override
+	public long getRequestLatencyMaxMicros() {
+		return micros(requestLatency.getMax());
+	}
+
+	@Override
+	public long getRefusedConnections() {
+		return refusedConnections.sum();
+	}
+
+	@Override
+	public long getShedRequests() {
+		return shedRequests.sum();
+	}
+
+	@Override
+	public long getReplayedResponses() {
+		return replayedResponses.sum();
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	@Override
+	public String toString() {
+		return "ServerMetrics[port=" + portNumber + ", connections=" + getActiveConnections() + "/" + getTotalConnections()
+				+ ", frames=" + getFramesIn() + "/" + getFramesOut() + ", bytes=" + getBytesIn() + "/" + getBytesOut()
+				+ ", shelfBytes=" + getShelfBytes() + ", refused=" + getRefusedConnections() + "/" + getShedRequests() + ", replayed=" + getReplayedResponses() + ", listener=" + listenerLatency + ", request=" + requestLatency + "]";
+	}
+}
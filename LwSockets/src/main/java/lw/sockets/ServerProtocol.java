@@ -0,0 +1,1062 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerAsyncListener;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+import lw.sockets.interfaces.LwIXMLSocketServerStreamListener;
+
+import org.w3c.dom.Document;
+
+/**
+ * @author wadel
+ *
+ * Package-private class holding the server side of the conversation over an accepted connection.
+ * Acts on the last message received by a SocketComms object, delivering complete messages to the
+ * LwIXMLSocketServerListener and returning the replies the client expects.
+ *
+ * Shared by the thread-per-connection engine (AcceptedSocket) and the NIO engine (NioConnection),
+ * so both speak exactly the same protocol.
+ *
+ * When multiplexed (see ProtocolOptions), whole requests are handed to the server's request pool, and answered
+ * from its threads. With ordered dispatch (see SocketCommsConfig.setOrderedDispatch()), so are those of a connection
+ * that isn't, but one at a time, in the order they arrived, so the Thread reading the connection is never held up
+ * by the listener.
+ *
+ * If the listener is a LwIXMLSocketServerStreamListener, messages are never gathered up on the shelf: each part is
+ * passed to the listener as it arrives.
+ *
+ * If the listener is a LwIXMLSocketServerAsyncListener, whole requests are given to it from the Thread reading, and
+ * answered from whichever Thread completes the stage it returns. Those of a connection that isn't multiplexed are
+ * chained, each answer sent after the one before.
+ *
+ * If the server parses XML messages (see XMLPreParser), each is parsed in the Thread that gives it to the listener,
+ * and one that is not well-formed is answered with REFUSE (errNo 2) rather than reaching the listener.
+ *
+ * When the server is overloaded (see AdmissionController), a whole request is answered at once with REFUSE (errNo 3),
+ * holding a hint of when to try again, rather than reaching the listener.
+ *
+ * Thread-safety: This class is NOT thread safe. Each instance belongs to a single connection, and only
+ * the Thread reading the connection may call process().
+ *
+ */
+class ServerProtocol {
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	// What the connection should do, once the last message has been processed
+	static enum Outcome {
+		CONTINUE,
+		CLOSE,
+		SHUTDOWN;
+	}
+
+	// Replies sent over and over, so built just once
+	private static final String READY_MESSAGE = "Server Ready; " + ProtocolOptions.OFFER;
+	private static final String MORE_MESSAGE = "Message part saved. Awaiting more";
+	private static final String PARTS_MESSAGE = "Message parts saved. Awaiting more; " + ProtocolOptions.PARTS + "=";
+	private static final String DISCARD_MESSAGE = "Message discarded";
+	private static final String CONSUMED_MESSAGE = "Message consumed";
+	private static final String NOT_CONSUMED_MESSAGE = "Message not consumed";
+	private static final String REFUSED_MESSAGE = "Message refused; too big to hold";
+	private static final String MALFORMED_MESSAGE = "Message refused; not well-formed XML";
+	private static final String OVERLOADED_MESSAGE = "Message refused; server overloaded; " + ProtocolOptions.RETRY_AFTER + "=";
+	private static final String CONNECTION_REFUSED_MESSAGE = "Connection refused; server overloaded; " + ProtocolOptions.RETRY_AFTER + "=";
+
+	final private SocketComms comms;				// the connection over which the conversation takes place
+	final private LwIXMLSocketServerListener app; // The object that will be implementing interface LwIXMLSocketServerListener
+	final private LwIXMLSocketServerStreamListener streamListener;	// app, if it takes messages part by part, otherwise null
+	final private LwIXMLSocketServerAsyncListener asyncListener;	// app, if it answers through CompletionStages, otherwise null
+	final private int portNumber;
+	final private SocketType socketType;
+	final private Executor requestPool;				// where multiplexed requests are processed, null if they can't be
+	final private OrderedExecutor orderedPool;		// where other requests are processed, in order, null for the Thread reading
+	final private Runnable whenIdle;				// run when the last request in the pool is answered, may be null
+	final private XMLPreParser preParser;			// parses whole XML messages before the listener gets them, null if not
+	final private ServerMetrics metrics;			// of the server, timing the listener and every request
+	final private AdmissionController admission;	// of the server, deciding which requests are taken on
+	final private ResponseCache responseCache;		// of the server, replaying responses to resent requests, or null
+	// Not synchronized/wait(), so a virtual thread waiting to close its connection doesn't pin its carrier
+	final private ReentrantLock requestsLock = new ReentrantLock();
+	final private Condition requestsAnswered = requestsLock.newCondition();
+	private int requestsInFlight = 0;				// requests handed on and not yet answered. Guarded by requestsLock
+	// Completes once the last request given to the async listener, if the connection isn't multiplexed, is answered
+	private CompletableFuture<Void> lastAnswered = CompletableFuture.completedFuture(null);
+	// Parts received so far of each message still arriving, when a send window is in use
+	final private HashMap<String,Integer> partsReceived = new HashMap<String,Integer>();
+
+	/**
+	  * Constructor.
+	  *
+	  * @param comms the connection over which the conversation takes place
+	  * @param app the object that will receive call-backs
+	  * @param socketType the side of the connection e.g. SERVER
+	  * @param portNumber the port of the server
+	  * @param requestPool where multiplexed requests are processed, or null to refuse multiplexing (unless the listener is async)
+	  * @param orderedPool where requests that aren't multiplexed are processed, one at a time and in order,
+	  * 		or null to process them in the Thread reading the connection
+	  * @param preParser parses whole XML messages before the listener gets them, or null to pass them on as they are
+	  * @param admission decides which requests are taken on, shared by every connection of the server
+	  * @param responseCache holds responses for replay to resent requests, shared by every connection of the server, or null for none
+	  * @param whenIdle run, in the Thread that answered it (of the request pool, or completing an async stage), whenever the last request in flight is answered. May be null
+	  */
+	ServerProtocol(SocketComms comms, LwIXMLSocketServerListener app, SocketType socketType, int portNumber, Executor requestPool, Executor orderedPool, XMLPreParser preParser, AdmissionController admission, ResponseCache responseCache, Runnable whenIdle) {
+		assert comms != null;
+		assert app != null;
+		assert socketType != null;
+		assert admission != null;
+		assert comms.getMetrics() != null;
+
+		this.comms = comms;
+		this.metrics = comms.getMetrics();
+		this.app = app;
+		this.socketType = socketType;
+		this.portNumber = portNumber;
+		this.requestPool = requestPool;
+		this.admission = admission;
+		this.whenIdle = whenIdle;
+
+		this.streamListener = (app instanceof LwIXMLSocketServerStreamListener ? (LwIXMLSocketServerStreamListener) app : null);
+		if (streamListener != null) {
+			comms.setShelving(false);
+		}
+		this.asyncListener = (streamListener == null && app instanceof LwIXMLSocketServerAsyncListener ? (LwIXMLSocketServerAsyncListener) app : null);
+		// Parts streamed to the listener can't be parsed as a whole
+		this.preParser = (streamListener == null ? preParser : null);
+		// Nor can the parts already streamed be taken back, to replay a response instead
+		this.responseCache = (streamListener == null ? responseCache : null);
+		// Parts are streamed to the listener by the Thread reading, so the ends of messages must be too, to keep them in order
+		this.orderedPool = (streamListener == null && orderedPool != null ? new OrderedExecutor(orderedPool) : null);
+	}
+
+	/**
+	  * Send the Server-ready message to the client, to open the conversation.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	void sendReady() throws SocketException {
+		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]:Connection accepted. Going to send SERV_READY instruction...");
+		comms.sendMessage(0, "1", SocketService.READY, SocketFormat.XML, READY_MESSAGE);
+	}
+
+	/**
+	  * Send REFUSE (errNo 3) to the client in place of the Server-ready message, as the server is overloaded.
+	  * The connection is to be closed straight after.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	void refuseConnection() throws SocketException {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection refused, as server overloaded.");
+		}
+		metrics.connectionRefused();
+		comms.sendMessage(3, "1", SocketService.REFUSE, SocketFormat.XML, CONNECTION_REFUSED_MESSAGE + admission.retryAfterMillis());
+	}
+
+	/**
+	  * Answer a client's request, in the READY handshake, to switch protocol (see ProtocolOptions).
+	  * The answer goes in a legacy packet, after which the connection switches.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void negotiateProtocol() throws SocketException {
+		String TID = comms.getTID();
+		// The async listener answers out of order without a request pool
+		ProtocolOptions accepted = ProtocolOptions.parse(comms.getLastMessageReceived()).accept(requestPool != null || asyncListener != null, streamListener == null);
+		// The READY message was never a real message...
+		comms.removeMessageForTID(TID);
+
+		comms.sendMessage(0, TID, SocketService.READY, SocketFormat.XML, accepted.toString());
+		comms.setProtocolVersion(accepted.getVersion());
+		comms.setWindow(accepted.getWindow());
+		comms.setMultiplexed(accepted.isMultiplex());
+		comms.setBatched(accepted.isBatch());
+		comms.setCompressed(accepted.isCompress());
+		comms.setBinary(accepted.isBinary());
+		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Protocol version " + accepted.getVersion() + " in use, send window " + accepted.getWindow() + ", multiplexed " + accepted.isMultiplex() + ", batched " + accepted.isBatch() + ", compressed " + accepted.isCompress() + ", binary " + accepted.isBinary() + ".");
+	}
+
+	/**
+	  * Act on the last message received over the connection.
+	  *
+	  * @return what the connection should do next
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	Outcome process() throws SocketException {
+		switch(comms.getLastService()) {
+			case READY :
+				negotiateProtocol();
+				break;
+			case CLOSE :
+				logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to CLOSE current socket received.");
+				return Outcome.CLOSE;
+			case SHUTDOWN :
+				logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SHUTDOWN received.");
+
+				if ( app.canCloseServerSocket(new SocketEvent(comms.getTID(), portNumber)) ) {
+					logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Controling application granted request to close Socket Server. Setting shutDown to true.");
+					return Outcome.SHUTDOWN;
+				}
+				else {
+					logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Controling application REFUSED request to close Socket Server. Request ignored.");
+				}
+
+				return Outcome.CLOSE;
+			case CONSUME :
+			case CONSUME_RESPOND :
+			case BATCH :
+				switch(comms.getLastFormat()) {
+					case XML:
+					case BINARY:
+						consumeMsg();
+						break;
+					case UNRECOGNISED:
+						break;
+					default:
+						break;
+				}
+				break;
+			case MORE :
+				switch(comms.getLastFormat()) {
+					case XML :
+					case BINARY :
+						if (logger.isLoggable(Level.FINE)) {
+							logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SERV_MORE OBJ_" + comms.getLastFormat() + " received.");
+						}
+
+						if (streamListener != null) {
+							streamListener.messagePartReceived(partEvent(comms.getTID()));
+						}
+						if (comms.getWindow() > 0) {
+							acknowledgeParts();
+						}
+						else if (!comms.isMultiplexed()) { // a multiplexed client can't tell an acknowledgement from part of an answer, so is only sent them with a window
+							// Now Respond
+							comms.sendMessage(0, comms.getTID(), SocketComms.SocketService.MORE, SocketComms.SocketFormat.XML, MORE_MESSAGE);
+							if (logger.isLoggable(Level.FINE)) {
+								logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response returned to socket client.");
+							}
+						}
+						break;
+					case UNRECOGNISED:
+						break;
+					default:
+						break;
+				}
+				break;
+			case DISCARD :
+				switch(comms.getLastFormat()) {
+					case XML :
+					case BINARY :
+						if (logger.isLoggable(Level.FINE)) {
+							logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Request to SERV_DISCARD OBJ_" + comms.getLastFormat() + " received.");
+						}
+
+						comms.removeMessageForTID(comms.getTID());
+						partsReceived.remove(comms.getTID());
+						if (streamListener != null) {
+							streamListener.messageStreamDiscarded(new SocketEvent(comms.getTID(), portNumber));
+						}
+
+						// Now Respond
+						comms.sendMessage(0, comms.getTID(), SocketComms.SocketService.DISCARD, SocketComms.SocketFormat.XML, DISCARD_MESSAGE);
+						logger.fine("Response returned to socket client.");
+						break;
+					case UNRECOGNISED:
+						break;
+					default:
+						break;
+				}
+				break;
+			default :
+				break;
+		} // end switch(serv)
+
+		return Outcome.CONTINUE;
+	}
+
+	/**
+	  * Count a part of a message received while a send window is in use, acknowledging the parts received
+	  * so far at every ackInterval() parts, rather than each one.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void acknowledgeParts() throws SocketException {
+		String TID = comms.getTID();
+		Integer parts = partsReceived.get(TID);
+		int received = (parts == null ? 1 : parts.intValue() + 1);
+		partsReceived.put(TID, Integer.valueOf(received));
+
+		if (received % ProtocolOptions.ackInterval(comms.getWindow()) == 0) {
+			comms.sendMessage(0, TID, SocketComms.SocketService.MORE, SocketComms.SocketFormat.XML, PARTS_MESSAGE + received);
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Parts up to " + received + " acknowledged to socket client.");
+			}
+		}
+	}
+
+	/**
+	  * @return an event holding the part of a message just received, for the stream listener
+	  */
+	private SocketEvent partEvent(String TID) {
+		if (comms.getLastFormat() == SocketFormat.BINARY) {
+			return new SocketEvent(TID, portNumber, comms.getLastBinaryMessageReceived());
+		}
+		return new SocketEvent(TID, portNumber, comms.getLastMessageReceived());
+	}
+
+	/**
+	 * Process the incoming message
+	 */
+	private void consumeMsg() throws SocketException {
+		long receivedAt = System.nanoTime();
+		String TID = comms.getTID();
+		SocketComms.SocketService service = comms.getLastService();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Request to " + service.toString() + " OBJ_" + comms.getLastFormat() + " received.");
+		}
+
+		if (comms.isRefused(TID)) {
+			// Broke a limit of the shelf, so whatever arrived of it has been dropped
+			logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + TID + " refused, as too big to hold.");
+			comms.removeMessageForTID(TID);
+			partsReceived.remove(TID);
+			comms.sendMessage(1, TID, SocketService.REFUSE, SocketFormat.XML, REFUSED_MESSAGE);
+			return;
+		}
+
+		if (!admission.tryAcquire()) {
+			comms.removeMessageForTID(TID);
+			partsReceived.remove(TID);
+			shed(TID, "too many requests in flight");
+			return;
+		}
+
+		boolean dispatched = false;
+		try {
+			dispatched = consumeAdmitted(TID, service, receivedAt);
+		}
+		finally {
+			if (!dispatched) {
+				admission.release();
+			}
+		}
+	}
+
+	/**
+	  * Process the incoming message, already counted as in flight.
+	  *
+	  * @return true if handed to the request pool, which then has the job of releasing it
+	  */
+	private boolean consumeAdmitted(String TID, SocketService service, long receivedAt) throws SocketException {
+		SocketEvent message;		// holds the whole message, unless passed to the stream listener part by part
+		if (streamListener != null) {
+			if (service == SocketService.BATCH) {
+				// Never agreed, as the parts aren't gathered up to be unpacked
+				logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: BATCH message " + TID + " refused, as messages are streamed to the listener.");
+				comms.sendMessage(1, TID, SocketService.BATCH, SocketFormat.XML, "");
+				partsReceived.remove(TID);
+				return false;
+			}
+			streamListener.messagePartReceived(partEvent(TID));
+			message = new SocketEvent(TID, portNumber);
+		}
+		else if (comms.getLastFormat() == SocketFormat.BINARY) {
+			ByteBuffer payLoad = comms.getBinaryMessageForTID(TID);
+			if (payLoad == null || service == SocketService.BATCH) {
+				throw new SocketException("Could not get BINARY payLoad for " + service + " TID " + TID + ", so cannot consumeMsg.");
+			}
+			message = new SocketEvent(TID, portNumber, payLoad);
+		}
+		else {
+			StringBuilder payLoad = comms.getMessageForTID(TID);
+			if (payLoad == null) {
+				throw new SocketException("Could not get payLoad for TID " + TID + ", so cannot consumeMsg.");
+			}
+			// Parsed straight from the shelf, so no String is made unless the listener asks for one
+			message = (preParser != null ? new SocketEvent(TID, portNumber, payLoad, null) : new SocketEvent(TID, portNumber, payLoad.toString()));
+		}
+
+		comms.removeMessageForTID(TID);
+		partsReceived.remove(TID);
+
+		if (asyncListener != null) {
+			consumeAsync(TID, service, message, receivedAt);
+			return true;
+		}
+		if (comms.isMultiplexed()) {
+			dispatch(TID, service, message, receivedAt, false);
+			return true;
+		}
+		if (orderedPool != null) {
+			dispatch(TID, service, message, receivedAt, true);
+			return true;
+		}
+
+		consumeInOrder(TID, service, message, receivedAt);
+		return false;
+	}
+
+	/**
+	  * Give a whole request to the application and send its answers, just as the client expects them when requests
+	  * are not multiplexed: for CONSUME_RESPOND, a receipt before any response.
+	  *
+	  * @param receivedAt when the last part of the request arrived, from System.nanoTime()
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void consumeInOrder(String TID, SocketService service, SocketEvent message, long receivedAt) throws SocketException {
+		int errNo;
+		message = preParse(service, message);
+		if (message == null) {
+			return;
+		}
+
+		boolean consumeMessage = false;
+		if (service == SocketService.BATCH) {
+			consumeBatch(TID, message.getReceivedMessage());
+		}
+		else if (service == SocketComms.SocketService.CONSUME) { // deliver it to the implementing application
+			// Give the implementor of this interface the opportunity to process the message...
+			consumeMessage = consume(message);
+			// TODO: ...
+/* NEED TO IMPLEMENT THIS FOR MULTIPLE THREADS !!!!!
+			// Is OK to use this synchQueue method, if take() is used on other side (it also blocks)
+			if (synchQueue != null) { // the consumeMessage was not really known when we returned from app.messageReceived(), so wait
+				// Now just awaiting processing of message and setting of consumeMessage flag
+				try { synchQueue.put("waiting");
+				} catch(InterruptedException e) {
+					shutDown = true; // Want to terminate this Thread.
+					return;
+				}
+				consumeMessage = app.getConsumeMessage();
+			}
+*/
+			// Now Respond
+			errNo   = (consumeMessage ? 0 : 1);
+			comms.sendMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, (consumeMessage ? CONSUMED_MESSAGE : NOT_CONSUMED_MESSAGE));
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response returned to socket client.");
+			}
+		}
+		else { // is SERV_CONSUME_RESPOND
+			consumeMessage = true;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: XML Response Message is expected to be returned to socket client.");
+			}
+			// Just send confirmation of receipt of msg
+			errNo   = (consumeMessage ? 0 : 1);
+
+			comms.sendMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, (consumeMessage ? CONSUMED_MESSAGE : NOT_CONSUMED_MESSAGE));
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Receipt Response returned to socket client.");
+			}
+
+			// Give the implementor of this interface the opportunity to consume the message...
+			String responseMessage = respond(message);
+			if (responseMessage != null) {
+				errNo   = 0;
+				// Now return the meat response...
+				comms.sendMessage(errNo, TID, SocketService.CONSUME, SocketComms.SocketFormat.XML, responseMessage);
+
+				responseMessage = null;
+			}
+		}
+
+		metrics.getRequestLatency().recordSince(receivedAt);
+	}
+
+	/**
+	  * Give a whole request to the async listener, answering it once the stage returned completes. If the connection
+	  * isn't multiplexed, the answer also waits for that of the request before, so they go in the order sent.
+	  *
+	  * @param receivedAt when the last part of the request arrived, from System.nanoTime()
+	  */
+	private void consumeAsync(final String TID, final SocketService service, SocketEvent message, final long receivedAt) {
+		requestsLock.lock();
+		try {
+			requestsInFlight++;
+		}
+		finally {
+			requestsLock.unlock();
+		}
+
+		final boolean inOrder = !comms.isMultiplexed();
+		SocketException malformed = null;
+		CompletableFuture<?> result;
+		if (service == SocketService.BATCH) {
+			result = consumeBatchAsync(TID, message.getReceivedMessage());
+		}
+		else {
+			if (preParser != null && message.getReceivedBytes() == null) {
+				try {
+					message = parse(message);
+				}
+				catch(SocketException e) {
+					logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + TID + " refused: " + e.getMessage());
+					malformed = e;
+				}
+			}
+			if (malformed != null) {
+				result = CompletableFuture.completedFuture(null);
+			}
+			else if (service == SocketService.CONSUME) {
+				result = callAsync(message, false);
+			}
+			else if (responseCache != null) {
+				final SocketEvent request = message;
+				result = responseCache.get(request, new Supplier<CompletableFuture<Object>>() {
+					@Override
+					public CompletableFuture<Object> get() {
+						return callAsync(request, true);
+					}
+				});
+			}
+			else {
+				result = callAsync(message, true);
+			}
+		}
+
+		final boolean refuse = (malformed != null);
+		final BiFunction<Object, Throwable, Void> reply = new BiFunction<Object, Throwable, Void>() {
+			@Override
+			public Void apply(Object answer, Throwable failure) {
+				try {
+					answerAsync(TID, service, answer, failure, refuse, inOrder, receivedAt);
+				}
+				catch(SocketException e) {
+					app.handleError(new SocketEvent(TID, portNumber), e);
+				}
+				catch(RuntimeException e) {
+					// Requests behind it are still to be answered
+					logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Caught (and muffled) RuntimeException answering " + TID + ": " + e);
+				}
+				finally {
+					admission.release();
+					requestFinished();
+				}
+				return null;
+			}
+		};
+
+		if (!inOrder) {
+			result.handle(reply);
+			return;
+		}
+
+		final CompletableFuture<?> answer = result;
+		lastAnswered = lastAnswered.thenCompose(new Function<Void, CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> apply(Void ignored) {
+				return answer.handle(reply);
+			}
+		});
+	}
+
+	/**
+	  * Give each message packed in a BATCH message to the async listener.
+	  *
+	  * @return completed, once every message's stage has, with one errNo digit per message, or with null if the batch
+	  * 		cannot be unpacked. Never completed exceptionally.
+	  */
+	private CompletableFuture<Object> consumeBatchAsync(String TID, CharSequence batch) {
+		List<SocketTransferMessage> messages;
+		try {
+			messages = MessageBatch.unpack(batch);
+		}
+		catch(IllegalArgumentException e) {
+			logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Could not unpack batch " + TID + ": " + e.getMessage());
+			return CompletableFuture.completedFuture(null);
+		}
+
+		final List<CompletableFuture<Boolean>> consumed = new ArrayList<CompletableFuture<Boolean>>(messages.size());
+		for (SocketTransferMessage message : messages) {
+			SocketEvent event = new SocketEvent(message.getTID(), portNumber, message.getPayload());
+			if (preParser != null) {
+				try {
+					event = parse(event);
+				}
+				catch(SocketException e) {
+					logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + message.getTID() + " in batch " + TID + " not consumed: " + e.getMessage());
+					consumed.add(CompletableFuture.completedFuture(Boolean.FALSE));
+					continue;
+				}
+			}
+			final String messageTID = message.getTID();
+			consumed.add(callAsync(event, false).handle(new BiFunction<Object, Throwable, Boolean>() {
+				@Override
+				public Boolean apply(Object answer, Throwable failure) {
+					if (failure != null) {
+						listenerFailed(messageTID, failure);
+					}
+					return Boolean.valueOf(failure == null && Boolean.TRUE.equals(answer));
+				}
+			}));
+		}
+
+		return CompletableFuture.allOf(consumed.toArray(new CompletableFuture<?>[consumed.size()])).thenApply(new Function<Void, Object>() {
+			@Override
+			public Object apply(Void ignored) {
+				StringBuilder results = new StringBuilder(consumed.size());
+				for (CompletableFuture<Boolean> each : consumed) {
+					results.append(each.join().booleanValue() ? MessageBatch.CONSUMED : MessageBatch.NOT_CONSUMED);
+				}
+				return results.toString();
+			}
+		});
+	}
+
+	/**
+	  * Call the async listener, timing it until the stage it returns completes.
+	  *
+	  * @param wantResponse true to call messageReceivedAndWantResponseAsync(), false for messageReceivedAsync()
+	  *
+	  * @return completed as the stage returned is, or exceptionally if the listener threw or returned null
+	  */
+	private CompletableFuture<Object> callAsync(SocketEvent message, boolean wantResponse) {
+		final long start = System.nanoTime();
+		final CompletableFuture<Object> result = new CompletableFuture<Object>();
+		try {
+			CompletionStage<?> stage = (wantResponse ? asyncListener.messageReceivedAndWantResponseAsync(message) : asyncListener.messageReceivedAsync(message));
+			if (stage == null) {
+				throw new NullPointerException("Listener returned no CompletionStage");
+			}
+			stage.whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object answer, Throwable failure) {
+					metrics.getListenerLatency().recordSince(start);
+					if (failure != null) {
+						result.completeExceptionally(failure);
+					}
+					else {
+						result.complete(answer);
+					}
+				}
+			});
+		}
+		catch(RuntimeException e) {
+			metrics.getListenerLatency().recordSince(start);
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	  * Send the answers to a request given to the async listener, once its stage has completed, exactly as they would
+	  * have been sent had the listener answered at once.
+	  *
+	  * @param answer what the stage completed with: a Boolean for CONSUME, a String (or null) for CONSUME_RESPOND,
+	  * 		or the errNo digits (or null) for BATCH
+	  * @param failure what the stage completed exceptionally with, otherwise null
+	  * @param refuse true if the request is to be refused, as not well-formed
+	  * @param inOrder true if the connection isn't multiplexed
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void answerAsync(String TID, SocketService service, Object answer, Throwable failure, boolean refuse, boolean inOrder, long receivedAt) throws SocketException {
+		if (refuse) {
+			comms.sendMessage(2, TID, SocketService.REFUSE, SocketFormat.XML, MALFORMED_MESSAGE);
+			return;
+		}
+		if (failure != null) {
+			listenerFailed(TID, failure);
+			answer = null;
+		}
+
+		if (service == SocketService.BATCH) {
+			String results = (String) answer;
+			boolean allConsumed = (results != null && results.indexOf(MessageBatch.NOT_CONSUMED) < 0);
+			comms.sendMessage((allConsumed ? 0 : 1), TID, SocketService.BATCH, SocketFormat.XML, (results == null ? "" : results));
+		}
+		else if (service == SocketService.CONSUME) {
+			boolean consumeMessage = Boolean.TRUE.equals(answer);
+			comms.sendMessage((consumeMessage ? 0 : 1), TID, SocketService.CONSUME, SocketFormat.XML, (consumeMessage ? CONSUMED_MESSAGE : NOT_CONSUMED_MESSAGE));
+		}
+		else {
+			String responseMessage = (String) answer;
+			if (inOrder) {
+				// The receipt, then any response, as the client expects when not multiplexed
+				comms.sendMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, CONSUMED_MESSAGE);
+				if (responseMessage != null) {
+					comms.sendMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, responseMessage);
+				}
+			}
+			else if (responseMessage != null) {
+				comms.sendMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, responseMessage);
+			}
+			else {
+				comms.sendMessage(1, TID, SocketService.CONSUME, SocketFormat.XML, NOT_CONSUMED_MESSAGE);
+			}
+		}
+		metrics.getRequestLatency().recordSince(receivedAt);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response for " + TID + " returned to socket client.");
+		}
+	}
+
+	/**
+	  * Report a stage of the async listener completed exceptionally to the application.
+	  */
+	private void listenerFailed(String TID, Throwable failure) {
+		app.handleError(new SocketEvent(TID, portNumber), new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Listener failed to answer " + TID + ": " + failure, failure));
+	}
+
+	/**
+	  * Hand a whole request to the request pool, leaving this Thread free to read the next.
+	  *
+	  * @param inOrder false for a multiplexed request, answered whenever it's done, true for one to be answered once
+	  * 		those before it on the connection have been (see SocketCommsConfig.setOrderedDispatch())
+	  */
+	private void dispatch(String TID, SocketService service, SocketEvent message, long receivedAt, boolean inOrder) {
+		requestsLock.lock();
+		try {
+			requestsInFlight++;
+		}
+		finally {
+			requestsLock.unlock();
+		}
+
+		Request request = new Request(TID, service, message, receivedAt, inOrder);
+		try {
+			(inOrder ? orderedPool : requestPool).execute(request);
+		}
+		catch(OrderedExecutor.RejectedTasks e) {
+			// Those queued behind others on the connection can't be answered in order now either
+			for (Runnable queued : e.getTasks()) {
+				((Request) queued).refuse();
+			}
+		}
+		catch(RejectedExecutionException e) {
+			request.refuse();
+		}
+	}
+
+	/**
+	  * A whole request, handed to the request pool.
+	  */
+	private final class Request implements Runnable {
+		final private String TID;
+		final private SocketService service;
+		final private SocketEvent message;
+		final private long receivedAt;			// when the last part arrived, from System.nanoTime()
+		final private boolean inOrder;
+
+		Request(String TID, SocketService service, SocketEvent message, long receivedAt, boolean inOrder) {
+			this.TID = TID;
+			this.service = service;
+			this.message = message;
+			this.receivedAt = receivedAt;
+			this.inOrder = inOrder;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// Waited for a Thread, so may be too late to be worth answering
+				if (!admission.admit(System.nanoTime() - receivedAt)) {
+					shed(TID, "waited too long for a Thread");
+				}
+				else if (inOrder) {
+					consumeInOrder(TID, service, message, receivedAt);
+				}
+				else {
+					answer(TID, service, message, receivedAt);
+				}
+			}
+			catch(SocketException e) {
+				app.handleError(new SocketEvent(TID, portNumber), e);
+			}
+			finally {
+				admission.release();
+				requestFinished();
+			}
+		}
+
+		/**
+		  * Refuse the request, as the pool is shutting down, rather than process it in the Thread reading the connection.
+		  */
+		void refuse() {
+			try {
+				shed(TID, "the request pool is shutting down");
+			}
+			catch(SocketException e) {
+				app.handleError(new SocketEvent(TID, portNumber), e);
+			}
+			finally {
+				admission.release();
+				requestFinished();
+			}
+		}
+	}
+
+	/**
+	  * Give a multiplexed request to the application and send its answer: a single message, as the client
+	  * cannot tell a receipt from a response once they arrive out of order.
+	  *
+	  * @param receivedAt when the last part of the request arrived, from System.nanoTime()
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void answer(String TID, SocketService service, SocketEvent message, long receivedAt) throws SocketException {
+		message = preParse(service, message);
+		if (message == null) {
+			return;
+		}
+
+		if (service == SocketService.BATCH) {
+			consumeBatch(TID, message.getReceivedMessage());
+		}
+		else if (service == SocketService.CONSUME) {
+			boolean consumeMessage = consume(message);
+			comms.sendMessage((consumeMessage ? 0 : 1), TID, SocketService.CONSUME, SocketFormat.XML, (consumeMessage ? CONSUMED_MESSAGE : NOT_CONSUMED_MESSAGE));
+		}
+		else {
+			String responseMessage = respond(message);
+			if (responseMessage != null) {
+				comms.sendMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, responseMessage);
+			}
+			else {
+				comms.sendMessage(1, TID, SocketService.CONSUME, SocketFormat.XML, NOT_CONSUMED_MESSAGE);
+			}
+		}
+		metrics.getRequestLatency().recordSince(receivedAt);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Response for " + TID + " returned to socket client.");
+		}
+	}
+
+	/**
+	  * Refuse a whole request, as the server is overloaded, with REFUSE (errNo 3) and a hint of when to try again.
+	  * Counted in the metrics, rather than logged as a warning, so as not to add to the load.
+	  *
+	  * @param reason why refused, for the log
+	  *
+	  * @throws SocketException when any error is encountered sending the refusal
+	  */
+	private void shed(String TID, String reason) throws SocketException {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + TID + " refused, as " + reason + ".");
+		}
+		metrics.requestShed();
+		if (streamListener != null) {
+			// Has had parts of it already
+			streamListener.messageStreamDiscarded(new SocketEvent(TID, portNumber));
+		}
+		comms.sendMessage(3, TID, SocketService.REFUSE, SocketFormat.XML, OVERLOADED_MESSAGE + admission.retryAfterMillis());
+	}
+
+	/**
+	  * Parse a whole XML message before the application gets it, if the server parses messages, refusing it
+	  * (in place of any receipt) if it is not well-formed. BATCH messages are parsed message by message.
+	  *
+	  * @return the message, parsed if need be, or null if refused
+	  *
+	  * @throws SocketException when any error is encountered sending the refusal
+	  */
+	private SocketEvent preParse(SocketService service, SocketEvent message) throws SocketException {
+		if (preParser == null || service == SocketService.BATCH || message.getReceivedBytes() != null) {
+			return message;
+		}
+
+		try {
+			return parse(message);
+		}
+		catch(SocketException e) {
+			logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + message.getTID() + " refused: " + e.getMessage());
+			comms.sendMessage(2, message.getTID(), SocketService.REFUSE, SocketFormat.XML, MALFORMED_MESSAGE);
+			return null;
+		}
+	}
+
+	/**
+	  * @return the message, with the Document parsed from it
+	  *
+	  * @throws SocketException if the message is not well-formed XML
+	  */
+	private SocketEvent parse(SocketEvent message) throws SocketException {
+		return new SocketEvent(message.getTID(), portNumber, message.getReceivedChars(), preParser.parse(message.getTID(), message.getReceivedChars()));
+	}
+
+	/**
+	  * Give a whole message to the application to consume.
+	  *
+	  * @param message holds the message, or nothing if its parts have been passed to the stream listener
+	  *
+	  * @return true if the message was consumed
+	  */
+	private boolean consume(SocketEvent message) {
+		long start = System.nanoTime();
+		try {
+			if (streamListener != null) {
+				return streamListener.messageStreamEnded(message);
+			}
+			return app.messageReceived(message);
+		}
+		finally {
+			metrics.getListenerLatency().recordSince(start);
+		}
+	}
+
+	/**
+	  * Give a whole message to the application to respond to.
+	  *
+	  * @param message holds the message, or nothing if its parts have been passed to the stream listener
+	  *
+	  * @return the response, or null if none
+	  */
+	private String respond(final SocketEvent message) {
+		if (responseCache == null) {
+			return callListener(message);
+		}
+
+		try {
+			// A resend waits here for the Thread computing the response, if still computing it
+			return responseCache.get(message, new Supplier<CompletableFuture<String>>() {
+				@Override
+				public CompletableFuture<String> get() {
+					return CompletableFuture.completedFuture(callListener(message));
+				}
+			}).join();
+		}
+		catch(CompletionException e) {
+			// The listener threw, whether in this Thread or, for a resend, in the one computing the response
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	  * Call the listener for a response, timing it.
+	  *
+	  * @return the response, or null if none
+	  */
+	private String callListener(SocketEvent message) {
+		long start = System.nanoTime();
+		try {
+			if (streamListener != null) {
+				return streamListener.messageStreamEndedWantResponse(message);
+			}
+			return app.messageReceivedAndWantResponse(message);
+		}
+		finally {
+			metrics.getListenerLatency().recordSince(start);
+		}
+	}
+
+	/**
+	  * Give each message packed in a BATCH message (see MessageBatch) to the application in turn, then send a
+	  * single acknowledgement for them all: errNo 0 if every one was consumed, 1 if not, with one errNo digit
+	  * per message in the payload. A batch that cannot be unpacked is acknowledged with errNo 1 and no digits.
+	  *
+	  * @throws SocketException when any error is encountered
+	  */
+	private void consumeBatch(String TID, CharSequence batch) throws SocketException {
+		List<SocketTransferMessage> messages;
+		try {
+			messages = MessageBatch.unpack(batch);
+		}
+		catch(IllegalArgumentException e) {
+			logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Could not unpack batch " + TID + ": " + e.getMessage());
+			comms.sendMessage(1, TID, SocketService.BATCH, SocketFormat.XML, "");
+			return;
+		}
+
+		StringBuilder results = new StringBuilder(messages.size());
+		boolean allConsumed = true;
+		for (SocketTransferMessage message : messages) {
+			boolean consumeMessage;
+			if (preParser != null) {
+				try {
+					Document document = preParser.parse(message.getTID(), message.getPayload());
+					consumeMessage = consume(new SocketEvent(message.getTID(), portNumber, message.getPayload(), document));
+				}
+				catch(SocketException e) {
+					logger.warning("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Message " + message.getTID() + " in batch " + TID + " not consumed: " + e.getMessage());
+					consumeMessage = false;
+				}
+			}
+			else {
+				consumeMessage = consume(new SocketEvent(message.getTID(), portNumber, message.getPayload()));
+			}
+			results.append(consumeMessage ? MessageBatch.CONSUMED : MessageBatch.NOT_CONSUMED);
+			allConsumed &= consumeMessage;
+		}
+
+		comms.sendMessage((allConsumed ? 0 : 1), TID, SocketService.BATCH, SocketFormat.XML, results);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Acknowledgement of " + messages.size() + " messages in batch " + TID + " returned to socket client.");
+		}
+	}
+
+	private void requestFinished() {
+		requestsLock.lock();
+		try {
+			requestsInFlight--;
+			if (requestsInFlight > 0) {
+				return;
+			}
+			requestsAnswered.signalAll();
+		}
+		finally {
+			requestsLock.unlock();
+		}
+
+		if (whenIdle != null) {
+			whenIdle.run();
+		}
+	}
+
+	/**
+	  * @return true if any request handed on (to the request pool or the async listener) has yet to be answered
+	  */
+	boolean hasRequestsInFlight() {
+		requestsLock.lock();
+		try {
+			return requestsInFlight > 0;
+		}
+		finally {
+			requestsLock.unlock();
+		}
+	}
+
+	/**
+	  * Wait until every request handed on has been answered, so the connection can be closed.
+	  *
+	  * @throws InterruptedException if interrupted while waiting
+	  */
+	void awaitRequests() throws InterruptedException {
+		requestsLock.lock();
+		try {
+			while (requestsInFlight > 0) {
+				requestsAnswered.await();
+			}
+		}
+		finally {
+			requestsLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author wadel
+ *
+ * Package-private class limiting the bytes held on the shelves (see ReassemblyShelf) of every connection of a server,
+ * so the heap they use stays predictable however many connections send however much.
+ *
+ * When the budget runs out, messages left idle on any shelf are evicted before anything is refused.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class ShelfBudget {
+	final private long maxBytes;
+	final private AtomicLong usedBytes = new AtomicLong();
+	final private Set<ReassemblyShelf> shelves = Collections.newSetFromMap(new ConcurrentHashMap<ReassemblyShelf,Boolean>());
+
+	/**
+	  * @param maxBytes the most bytes that may be held on all the shelves together
+	  */
+	ShelfBudget(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	void register(ReassemblyShelf shelf) {
+		shelves.add(shelf);
+	}
+
+	void unregister(ReassemblyShelf shelf) {
+		shelves.remove(shelf);
+	}
+
+	/**
+	  * Hold bytes against the budget.
+	  *
+	  * @param bytes the number of bytes needed
+	  * @param requester the shelf needing them (already locked by the calling Thread)
+	  *
+	  * @return true if held, false if the budget has run out
+	  */
+	boolean reserve(long bytes, ReassemblyShelf requester) {
+		if (tryReserve(bytes)) {
+			return true;
+		}
+
+		// Make room, if any shelf has messages left idle
+		int numEvicted = 0;
+		for (ReassemblyShelf shelf : shelves) {
+			if (shelf != requester) {
+				numEvicted += shelf.evictIdleIfFree();
+			}
+		}
+		return (numEvicted > 0 && tryReserve(bytes));
+	}
+
+	void release(long bytes) {
+		usedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	  * @return the bytes held against the budget
+	  */
+	long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private boolean tryReserve(long bytes) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + bytes > maxBytes) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + bytes));
+		return true;
+	}
+}
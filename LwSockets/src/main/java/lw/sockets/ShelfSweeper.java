@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author wadel
+ *
+ * Package-private class evicting idle messages from shelves (see ReassemblyShelf) in a shared background Thread,
+ * so a connection that sends parts of many messages, then goes quiet, doesn't keep them until it closes.
+ * A shelf also evicts as parts arrive, so this only matters to connections with no traffic.
+ *
+ * Shelves are only weakly held, so one never cleared (e.g. by a client never closed) can still be collected.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class ShelfSweeper {
+	private static final ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ShelfSweeper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		// A closed connection's sweep goes at once, rather than wait in the queue until due
+		sweeper.setRemoveOnCancelPolicy(true);
+	}
+
+	private ShelfSweeper() {
+	}
+
+	/**
+	  * Sweep a shelf every half of its idle timeout, until the returned sweep is cancelled (or the shelf collected).
+	  *
+	  * @param shelf the shelf to sweep
+	  * @param idleTimeout the milliseconds a message may go without a part arriving, more than 0
+	  *
+	  * @return the sweep, to be cancelled once the shelf is cleared
+	  */
+	static ScheduledFuture<?> schedule(ReassemblyShelf shelf, long idleTimeout) {
+		assert idleTimeout > 0;
+
+		Sweep sweep = new Sweep(shelf);
+		long period = Math.max(1, idleTimeout / 2);
+		sweep.future = sweeper.scheduleWithFixedDelay(sweep, period, period, TimeUnit.MILLISECONDS);
+		return sweep.future;
+	}
+
+	/**
+	  * The sweep of one shelf.
+	  */
+	private static final class Sweep implements Runnable {
+		final private WeakReference<ReassemblyShelf> shelf;
+		volatile ScheduledFuture<?> future;		// set once scheduled
+
+		Sweep(ReassemblyShelf shelf) {
+			this.shelf = new WeakReference<ReassemblyShelf>(shelf);
+		}
+
+		@Override
+		public void run() {
+			ReassemblyShelf swept = shelf.get();
+			if (swept == null) {
+				if (future != null) {
+					future.cancel(false);
+				}
+				return;
+			}
+			// Skipped if the connection's own Thread is using the shelf, so that Thread is never held up
+			swept.evictIdleIfFree();
+		}
+	}
+}
@@ -8,7 +8,12 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -17,8 +22,10 @@ import java.util.logging.Logger;
  * This class handles all communications with a socket, either client or server.
  * Although it is fine to create an instance of this class in one thread and
  * call methods from another, the methods should only ever be called from a single thread.
+ * The exception is sending: packets are sent one at a time, so a server can answer multiplexed
+ * requests (see ProtocolOptions) from many threads at once.
  * 
- * Thread-safety: This class is NOT thread safe.
+ * Thread-safety: This class is NOT thread safe, except for sendMessage().
  *
  */
 public class SocketComms {
@@ -26,10 +33,31 @@ public class SocketComms {
 	final private InputStream is;
 	final private OutputStream os;
 	final private SocketType socketType;
-	final private HashMap<String,StringBuilder> messageShelf = new HashMap<String,StringBuilder>();
+	final private int messageSize;		// Total size of every legacy packet
+	final private int maxDataSize;		// Num bytes left for the message in a legacy packet, after the codes, control information are subtracted.
+	final private ReassemblyShelf messageShelf;	// messages whose parts are still arriving, by TID
+	final private FrameEncoder encoder;	// builds every packet sent, in a buffer re-used for the life of the connection
+	final private ReentrantLock sendLock = new ReentrantLock();	// held while a packet is built and written. Not synchronized, so virtual threads aren't pinned
+	final private FrameDecoder decoder = new FrameDecoder();	// parses every packet received
+	private byte[] readBuffer;			// every packet is read into this, re-used (and grown when needed) for the life of the connection
 
 	// Only set by called method(s) (==> always same thread), not in Constructor, so no need to make volatile
 	private SocketTransferMessage lastMessageReceived;
+	// Which packets to send and expect. Switched only by the READY handshake - see ProtocolOptions.
+	private int protocolVersion = ProtocolOptions.PROTOCOL_LEGACY;
+	final private int requestedWindow;	// the send window to ask for when upgrading the protocol
+	private int window = 0;				// the send window agreed with the server, 0 if none (see ProtocolOptions)
+	final private boolean requestedMultiplex;	// whether to ask for multiplexing when upgrading the protocol
+	private boolean multiplexed = false;	// true if requests may be answered out of order (see ProtocolOptions)
+	private boolean batched = false;	// true if many messages may be sent in a single BATCH message (see ProtocolOptions)
+	private int batchCount = 0;			// BATCH messages sent so far, to give each its own TID
+	final private int compressThreshold;	// min chars of a message worth compressing, 0 to never compress
+	private boolean compressed = false;	// true if packets may be compressed (see ProtocolOptions)
+	private boolean binary = false;		// true if messages may be sent in SocketFormat.BINARY (see ProtocolOptions)
+	private boolean shelving = true;	// false if the parts of messages received are not to be gathered up on the shelf
+	volatile private boolean connectionLost = false;	// set once a read or write fails, or the other side is found to have gone
+	private ServerMetrics metrics = null;	// counts every packet, for connections accepted by a server, otherwise null
+	final private EventJournal journal;	// records every packet, null for none
 
 	// The type of socket comunications to set up
 	static public enum SocketType {
@@ -47,7 +75,8 @@ public class SocketComms {
 		DISCARD(5),
 		CONSUME(6),
 		CONSUME_RESPOND(7),
-		REFUSE(8);
+		REFUSE(8),
+		BATCH(9);
 		
 		private int numVal;
 		
@@ -77,6 +106,8 @@ public class SocketComms {
 					 return SocketService.CONSUME_RESPOND;
 				case 8 :
 					 return SocketService.REFUSE;
+				case 9 :
+					 return SocketService.BATCH;
 				default :
 					 return SocketService.UNRECOGNISED;
 			}
@@ -85,7 +116,8 @@ public class SocketComms {
 
 	static public enum SocketFormat {
 		UNRECOGNISED(0),
-		XML(1);
+		XML(1),
+		BINARY(2);	// bytes, sent exactly as given. Only with protocol version 2, once agreed (see isBinary())
 
 		private int numVal;
 		
@@ -101,6 +133,8 @@ public class SocketComms {
 			switch(numVal) {
 				case 1 :
 					 return SocketFormat.XML;
+				case 2 :
+					 return SocketFormat.BINARY;
 				default :
 					 return SocketFormat.UNRECOGNISED;
 			}
@@ -108,15 +142,12 @@ public class SocketComms {
 	}
 
 	///////////////////////////////////////////////
-	// Total size of transmission message
+	// Default total size of transmission message (see SocketCommsConfig.setFrameSize())
 	// Note: when put up to 4196, it pushed each send to a whole second duration!!!!
 	//		 Leaving at 1024 means 4 or 5 transactions per second, if they are sub-1000.
+	//		 That was Nagle's algorithm waiting on delayed ACKs - see SocketCommsConfig.lowLatency().
 	///////////////////////////////////////////////
-	private static final int MESSAGE_SIZE =  1024;
-	///////////////////////////////////////////////
-	// Num bytes left for the message to be transferred, after the codes, control information are subtracted.
-	///////////////////////////////////////////////
-	private final int MAX_DATA_SIZE =  MESSAGE_SIZE - 18 - 255;
+	static final int MESSAGE_SIZE =  1024;
 
     private static final Logger logger = Logger.getLogger("gemha");
 
@@ -128,9 +159,37 @@ public class SocketComms {
 	  *
 	  */
     public SocketComms(Socket incoming, SocketType socketType) throws SocketException {
+		this(incoming, socketType, new SocketCommsConfig());
+	}
+
+	/**
+	  * Constructor.
+	  * 
+	  * @param incoming the socket with which communications is to be established
+	  * @param socketType the side of the connection using this LwSocketComms object e.g. SERVER
+	  * @param config the transport settings, applied to the socket here
+	  *
+	  */
+    public SocketComms(Socket incoming, SocketType socketType, SocketCommsConfig config) throws SocketException {
 		checkNullArgument(incoming);
+		checkNullArgument(config);
 
 		this.incoming = incoming;
+		this.messageSize = config.getFrameSize();
+		this.maxDataSize = messageSize - 18 - 255;
+		this.requestedWindow = config.getSendWindow();
+		this.requestedMultiplex = config.isMultiplex();
+		this.compressThreshold = config.getCompressThreshold();
+		this.messageShelf = new ReassemblyShelf(config.getMaxMessageSize(), config.getShelfIdleTimeout());
+		this.encoder = new FrameEncoder(messageSize, maxDataSize, null);
+		this.journal = config.getEventJournal();
+		this.readBuffer = new byte[messageSize];
+
+		try {
+			applyConfig(incoming, config);
+		} catch (IOException e) {
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Caught IOException setting socket options: " + e, -1006);
+		}
     	
 		try {
 			is = incoming.getInputStream();
@@ -146,6 +205,61 @@ public class SocketComms {
 		}
 		
 		this.socketType = socketType;
+		// Only once the connection is made, as until then there is nothing to clear the shelf
+		messageShelf.startSweeping();
+	}
+
+	/**
+	  * Constructor for subclasses that supply their own transport (e.g. a non-blocking channel).
+	  * Such subclasses must override writePacket() and feed incoming packets to receivePacket() or receiveV2Packet(),
+	  * as next() cannot be used.
+	  * 
+	  * @param socketType the side of the connection using this LwSocketComms object e.g. SERVER
+	  * @param config the transport settings (the subclass must apply any socket options itself)
+	  * @param bufferPool where the encoder's direct buffer comes from
+	  *
+	  */
+	SocketComms(SocketType socketType, SocketCommsConfig config, BufferPool bufferPool) {
+		checkNullArgument(socketType);
+		checkNullArgument(config);
+
+		this.messageSize = config.getFrameSize();
+		this.maxDataSize = messageSize - 18 - 255;
+		this.requestedWindow = config.getSendWindow();
+		this.requestedMultiplex = config.isMultiplex();
+		this.compressThreshold = config.getCompressThreshold();
+		this.messageShelf = new ReassemblyShelf(config.getMaxMessageSize(), config.getShelfIdleTimeout());
+		// Subclasses write to channels, which can take direct buffers without copying
+		this.encoder = new FrameEncoder(messageSize, maxDataSize, bufferPool);
+		this.journal = config.getEventJournal();
+		this.incoming = null;
+		this.is = null;
+		this.os = null;
+		this.socketType = socketType;
+		messageShelf.startSweeping();
+	}
+
+	/**
+	  * Apply the socket options held in a SocketCommsConfig. Options left at their defaults are not touched.
+	  * 
+	  * @param socket the socket to be set up
+	  * @param config the transport settings
+	  *
+	  * @throws IOException if the socket rejects an option
+	  */
+	static void applyConfig(Socket socket, SocketCommsConfig config) throws IOException {
+		if (config.isTcpNoDelay()) {
+			socket.setTcpNoDelay(true);
+		}
+		if (config.getSendBufferSize() > 0) {
+			socket.setSendBufferSize(config.getSendBufferSize());
+		}
+		if (config.getReceiveBufferSize() > 0) {
+			socket.setReceiveBufferSize(config.getReceiveBufferSize());
+		}
+		if (config.getReadTimeout() > 0) {
+			socket.setSoTimeout(config.getReadTimeout());
+		}
 	}
 
 	/**
@@ -156,36 +270,310 @@ public class SocketComms {
 	  * @return true if irrecoverable technical problem encountered (e.g. client rudely closes without sending CLOSE instr)
 	  */
 	public boolean next() throws SocketException {
-		String str = readMsg();
-		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Msg received is:" + str.trim());
+		try {
+			if (protocolVersion == ProtocolOptions.PROTOCOL_V2) {
+				if (!readV2Msg()) {
+					logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection no longer valid. Assuming is due to client closing without telling me. Shutting down accepted socket.");
+					connectionLost = true;
+					releaseDecoder();
+					return true;
+				}
+				receiveV2Packet(readBuffer, 0);
+				return false;
+			}
 
-		String lastErrNo = str.substring(0, 3);
+			// For when connection is severed.
+			if (!readMsg()) {
+				logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection no longer valid. Assuming is due to client closing without telling me. Shutting down accepted socket.");
+				connectionLost = true;
+				return true;
+			}
+
+			return receivePacket(readBuffer, 0, messageSize);
+		}
+		catch(SocketException e) {
+			// Can't know where the next packet starts, even if the socket is still open
+			connectionLost = true;
+			releaseDecoder();
+			throw e;
+		}
+	}
 
+	/**
+	  * Parse a whole packet, already read from the transport, to extract the Error code, Service, Format,
+	  * Payload and Transaction Id (TID), which are saved for subsequent retrieval by the caller.
+	  *
+	  * @param packet a buffer holding the packet, exactly as read from the transport
+	  * @param offset where in the buffer the packet starts
+	  * @param length the size of the packet
+	  * 
+	  * @return true if irrecoverable technical problem encountered (e.g. client rudely closes without sending CLOSE instr)
+	  */
+	boolean receivePacket(byte[] packet, int offset, int length) {
 		// If things go wrong, 999 is to shut down server
-		if ("999".equals(lastErrNo)) {
+		if (FrameDecoder.legacyErrNo(packet, offset) == 999) {
 			logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Received Error code 999. Assuming is due to client closing without telling me. Shutting down accepted socket.");
+			connectionLost = true;
 			return true;
 		}
-		else {
-			SocketService lastService = SocketService.fromNumber(Integer.parseInt(str.substring(4, 7)));
-			SocketFormat lastFormat  = SocketFormat.fromNumber(Integer.parseInt(str.substring(8, 11)));
-			int lastDataLength = Integer.parseInt(str.substring(12, 17));
-			String lastTID = str.substring(18, 18 + 255).trim();
-			String lastPayload = str.substring(18 + 255).trim();
-			lastMessageReceived = new SocketTransferMessage(Integer.parseInt(lastErrNo), lastTID, lastService, lastFormat, lastPayload);
-			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Service =" + lastService + " Object  =" + lastFormat + " DataLen =" + lastDataLength);
-			
-			if (lastTID.length() > 0) {
-				addLastPayloadToShelf();
-			}
-			logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Socket received data on port for message " + lastTID);
+
+		SocketTransferMessage message = decoder.decodeLegacy(packet, offset, length);
+		if (metrics != null) {
+			metrics.packetReceived(message.getService(), length);
 		}
+		if (journal != null) {
+			journal.packetReceived(socketType, message, length);
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Service =" + message.getService() + " Object  =" + message.getFormat() + " DataLen =" + message.getPayload().length());
+		}
+		receiveMessage(message);
 
 		return false;
 	}
+
+	/**
+	  * Parse a whole protocol version 2 packet, already read from the transport, saving its message
+	  * for subsequent retrieval by the caller.
+	  *
+	  * @param packet a buffer holding the whole packet
+	  * @param offset where in the buffer the packet starts
+	  *
+	  * @throws SocketException if a compressed payload cannot be expanded
+	  */
+	void receiveV2Packet(byte[] packet, int offset) throws SocketException {
+		SocketTransferMessage message = decoder.decodeV2(packet, offset);
+		if (metrics != null || journal != null) {
+			int packetSize = FrameV2.HEADER_SIZE + FrameV2.bodyLength(packet, offset);
+			if (metrics != null) {
+				metrics.packetReceived(message.getService(), packetSize);
+			}
+			if (journal != null) {
+				journal.packetReceived(socketType, message, packetSize);
+			}
+		}
+		receiveMessage(message);
+	}
+
+	/**
+	  * Save a message, already parsed from a packet, for subsequent retrieval by the caller.
+	  *
+	  * @param message the message parsed from the packet
+	  */
+	void receiveMessage(SocketTransferMessage message) {
+		lastMessageReceived = message;
+
+		if (shelving && message.getTID().length() > 0) {
+			addLastPayloadToShelf();
+		}
+		// Per packet, so only when asked for. See EventJournal for a journal of every packet cheap enough to leave on
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Msg received is:" + (message.getFormat() == SocketFormat.BINARY ? message.getBinaryPayload().length + " bytes" : message.getPayload()));
+		}
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Socket received data on port for message " + message.getTID());
+		}
+	}
+
+	/**
+	  * Read the server's READY message, which opens the conversation. To be called by a client, straight after connecting.
+	  * An overloaded server sends REFUSE (errNo 3) in its place, then closes the connection.
+	  *
+	  * @param serverName the server, for the message of any exception e.g. localhost:11819
+	  *
+	  * @throws SocketException -1012 if the server refused the connection (see SocketException.getRetryAfter()),
+	  * 		or -1005 if anything else arrives in place of READY
+	  */
+	public void readReady(String serverName) throws SocketException {
+		boolean lost = next();
+		if (!lost && getLastService() == SocketService.REFUSE) {
+			String reason = getLastMessageReceived();
+			removeMessageForTID(getTID());
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection refused by " + serverName + ": " + reason, -1012, Math.max(0, ProtocolOptions.intOption(reason, ProtocolOptions.RETRY_AFTER)));
+		}
+		if (lost || getLastService() != SocketService.READY) {
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Server Ready message expected from " + serverName, -1005);
+		}
+	}
+
+	/**
+	  * Ask the server to switch to the newest protocol both sides speak (see ProtocolOptions).
+	  * To be called by a client, straight after reading the server's READY message with readReady() (or next()).
+	  * If the server does not offer a newer protocol (e.g. it is an older version of this code), nothing is sent
+	  * and the legacy protocol remains in use.
+	  *
+	  * @return true if protocol version 2 is now in use
+	  *
+	  * @throws SocketException if the connection fails during the handshake
+	  */
+	public boolean upgradeProtocol() throws SocketException {
+		if (getLastService() != SocketService.READY || !ProtocolOptions.offersV2(getLastMessageReceived())) {
+			return false;
+		}
+		// The READY message was never a real message...
+		removeMessageForTID(getTID());
+
+		sendMessage(new SocketTransferMessage(0, getTID(), SocketService.READY, SocketFormat.XML, new ProtocolOptions(ProtocolOptions.PROTOCOL_HIGHEST, requestedWindow, requestedMultiplex, true, true, true).toString()));
+		if (next()) {
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection lost during protocol handshake", -1005);
+		}
+		removeMessageForTID(getTID());
+
+		if (getLastService() == SocketService.READY && getLastErrorNo() == 0) {
+			ProtocolOptions accepted = ProtocolOptions.parse(getLastMessageReceived());
+			protocolVersion = accepted.getVersion();
+			window = accepted.getWindow();
+			multiplexed = accepted.isMultiplex();
+			batched = accepted.isBatch();
+			compressed = accepted.isCompress();
+			binary = accepted.isBinary();
+		}
+		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Protocol version " + protocolVersion + " in use, send window " + window + ", multiplexed " + multiplexed + ", batched " + batched + ", compressed " + compressed + ", binary " + binary + ".");
+
+		return protocolVersion == ProtocolOptions.PROTOCOL_V2;
+	}
+
+	/**
+	  * Switch the packets sent and expected. Used by the server side of the READY handshake.
+	  *
+	  * @param protocolVersion the protocol version to use from now on
+	  */
+	void setProtocolVersion(int protocolVersion) {
+		this.protocolVersion = protocolVersion;
+	}
+
+	/**
+	  * @param window the send window to use from now on, 0 for none
+	  */
+	void setWindow(int window) {
+		this.window = window;
+	}
+
+	/**
+	  * @return the send window in use, 0 if none
+	  */
+	int getWindow() {
+		return window;
+	}
+
+	/**
+	  * @param multiplexed true if requests may be answered out of order from now on
+	  */
+	void setMultiplexed(boolean multiplexed) {
+		this.multiplexed = multiplexed;
+	}
+
+	/**
+	  * When multiplexed, a client may send many requests, each with its own TID, without waiting for answers.
+	  * The server answers each with a single message (there is no separate receipt for CONSUME_RESPOND),
+	  * in whatever order they finish, so use the TID of each message read to match it to its request.
+	  * 
+	  * @return true if the server agreed, in upgradeProtocol(), to answer requests out of order
+	  */
+	public boolean isMultiplexed() {
+		return multiplexed;
+	}
+
+	/**
+	  * @param batched true if BATCH messages may be received from now on
+	  */
+	void setBatched(boolean batched) {
+		this.batched = batched;
+	}
+
+	/**
+	  * @return true if the server agreed, in upgradeProtocol(), to accept BATCH messages (see sendMessages())
+	  */
+	public boolean isBatched() {
+		return batched;
+	}
+
+	/**
+	  * Stop (or resume) gathering up the parts of messages received on the shelf, for a caller that handles each
+	  * part itself, as it arrives (see getLastMessageReceived()).
+	  *
+	  * @param shelving false if the parts of messages received are not to be put on the shelf
+	  */
+	void setShelving(boolean shelving) {
+		this.shelving = shelving;
+	}
+
+	/**
+	  * Hold the messages on the shelf against a budget shared by every connection of a server.
+	  *
+	  * @param budget the budget, or null for none
+	  */
+	void setShelfBudget(ShelfBudget budget) {
+		messageShelf.setBudget(budget);
+	}
+
+	/**
+	  * Count every packet sent and received in the metrics of a server.
+	  *
+	  * @param metrics the metrics, or null for none
+	  */
+	void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	  * @return the metrics counting every packet, or null if none
+	  */
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	  * @param compressed true if packets may be compressed from now on
+	  */
+	void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	  * When compressed, messages of at least SocketCommsConfig.getCompressThreshold() chars are sent compressed,
+	  * and compressed messages received are expanded before they reach the shelf, so callers see no difference.
+	  *
+	  * @return true if the server agreed, in upgradeProtocol(), that packets may be compressed
+	  */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	  * @param binary true if messages in SocketFormat.BINARY may be sent from now on
+	  */
+	void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	  * When agreed, messages may be sent in SocketFormat.BINARY (see SocketTransferMessage), their bytes arriving
+	  * exactly as sent, and such messages received are gathered up by getBinaryMessageForTID().
+	  *
+	  * @return true if the server agreed, in upgradeProtocol(), to messages in SocketFormat.BINARY
+	  */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	  * @return the total size of every legacy packet
+	  */
+	int getMessageSize() {
+		return messageSize;
+	}
+
+	/**
+	  * @return the protocol version in use
+	  */
+	int getProtocolVersion() {
+		return protocolVersion;
+	}
 	
 	/**
 	  * Send a message over the socket, breaking into chunks, if necessary.
+	  * A message in SocketFormat.BINARY may only be sent once agreed (see isBinary()).
 	  * 
 	  * @param socketTransferMessage the information to be sent over the wire
 	  * 
@@ -193,25 +581,259 @@ public class SocketComms {
 	  */
 	public void sendMessage(SocketTransferMessage socketTransferMessage) throws SocketException {
 		checkNullArgument(socketTransferMessage);
-		
+
+		if (socketTransferMessage.getFormat() == SocketFormat.BINARY) {
+			sendBinaryMessage(socketTransferMessage.getErrNo(), socketTransferMessage.getTID(), socketTransferMessage.getService(), socketTransferMessage.getBinaryPayload());
+			return;
+		}
+		sendMessage(socketTransferMessage.getErrNo(), socketTransferMessage.getTID(), socketTransferMessage.getService(), socketTransferMessage.getFormat(), socketTransferMessage.getPayload());
+	}
+
+	/**
+	  * Send a message over the socket, breaking into chunks, if necessary.
+	  * Saves building a SocketTransferMessage, for replies sent often.
+	  * 
+	  * If a client has agreed a send window with the server, no more than that many chunks are sent ahead of
+	  * the server's acknowledgements, and every acknowledgement is read (and removed from the shelf) before
+	  * returning, so the next message read is the server's answer to the whole message.
+	  * 
+	  * @param errNo the error number to be sent
+	  * @param TID the Transaction ID to be sent
+	  * @param service the Service requested to be sent
+	  * @param format the format of the message being sent
+	  * @param payload the actual data to be sent
+	  *
+	  */
+	void sendMessage(int errNo, String TID, SocketService service, SocketFormat format, CharSequence payload) throws SocketException {
+		checkNullArgument(TID);
+		checkNullArgument(service);
+		checkNullArgument(format);
+		checkNullArgument(payload);
+
+		boolean compress = (compressed && compressThreshold > 0 && payload.length() >= compressThreshold);
+		sendParts(errNo, TID, service, format, payload, null, compress);
+	}
+
+	/**
+	  * Send a message in SocketFormat.BINARY, breaking into chunks, if necessary.
+	  * 
+	  * @param errNo the error number to be sent
+	  * @param TID the Transaction ID to be sent
+	  * @param service the Service requested to be sent
+	  * @param payload the actual data to be sent, exactly as it is to arrive
+	  *
+	  * @throws SocketException if BINARY messages were not agreed in upgradeProtocol(), or the send fails
+	  */
+	private void sendBinaryMessage(int errNo, String TID, SocketService service, byte[] payload) throws SocketException {
+		checkNullArgument(TID);
+		checkNullArgument(service);
+		checkNullArgument(payload);
+		if (!binary) {
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: BINARY message " + TID + " cannot be sent, as the peer has not agreed to BINARY messages", -1013);
+		}
+
+		boolean compress = (compressed && compressThreshold > 0 && payload.length >= compressThreshold);
+		sendParts(errNo, TID, service, SocketFormat.BINARY, null, payload, compress);
+	}
+
+	/**
+	  * Send a message of either chars or bytes, breaking into chunks, if necessary.
+	  * 
+	  * @param chars the chars to be sent, or null if bytes
+	  * @param bytes the bytes to be sent, or null if chars
+	  * @param compress true to compress the data (only with protocol version 2)
+	  */
+	private void sendParts(int errNo, String TID, SocketService service, SocketFormat format, CharSequence chars, byte[] bytes, boolean compress) throws SocketException {
 		// instrCode instruction for the consumer : 0: No more data for this Message; 1: more data to come for this Message; -1: discard all data for this Message
 		// Now return the meat response, sending, in chunks if necessary
-		StringBuffer wholeMessage = new StringBuffer(socketTransferMessage.getPayload());
+		int length = (chars != null ? chars.length() : bytes.length);
+		int start = 0;
+		boolean windowed = (window > 0 && socketType == SocketType.CLIENT);
+		int partsSent = 0;
+		int partsAcked = 0;
 		
-		while (wholeMessage.length() > 0) {
-			if (wholeMessage.length() <= MAX_DATA_SIZE) {
-				sendPacket(socketTransferMessage.getErrNo(), socketTransferMessage.getTID(), socketTransferMessage.getService(), socketTransferMessage.getFormat(), wholeMessage.toString());
-				wholeMessage.delete(0, MAX_DATA_SIZE);
-				logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: sent data for message " + socketTransferMessage.getTID() + ". Final chunk.");
+		// An empty message still goes, as a single empty packet, so it can be answered
+		do {
+			int end = partEnd(TID, chars, length, start, compress);
+			if (end >= length) {
+				sendPacket(errNo, TID, service, format, chars, bytes, start, length, compress);
+				start = length;
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: sent data for message " + TID + ". Final chunk.");
+				}
 			}
 			else {
-				sendPacket(socketTransferMessage.getErrNo(), socketTransferMessage.getTID(), SocketService.MORE, socketTransferMessage.getFormat(), wholeMessage.substring(0, MAX_DATA_SIZE));
-				wholeMessage.delete(0, MAX_DATA_SIZE);
-				logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: sent data for message " + socketTransferMessage.getTID() + ". More to follow.");
+				if (windowed && partsSent - partsAcked >= window) {
+					partsAcked = awaitPartsAck(TID, partsAcked);
+				}
+				sendPacket(errNo, TID, SocketService.MORE, format, chars, bytes, start, end, compress);
+				partsSent++;
+				start = end;
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: sent data for message " + TID + ". More to follow.");
+				}
+			}
+		} while (start < length);
+
+		if (windowed) {
+			// The server acknowledges every ackInterval() parts, so knows how many acknowledgements are still to come
+			int lastPartAcked = partsSent - (partsSent % ProtocolOptions.ackInterval(window));
+			while (partsAcked < lastPartAcked) {
+				partsAcked = awaitPartsAck(TID, partsAcked);
 			}
 		}
 		
 	}
+
+	/**
+	  * Find where the next part of a message ends.
+	  * 
+	  * @param chars the chars being sent, or null if bytes
+	  * @param length the number of chars (or bytes) being sent
+	  * @param start index of the first char (or byte) of the part
+	  * @param compress true if the part is to be compressed
+	  * 
+	  * @return index after the last char (or byte) of the part
+	  */
+	private int partEnd(String TID, CharSequence chars, int length, int start, boolean compress) {
+		if (chars == null) {
+			return Math.min(length, start + (compress ? FrameV2.MAX_COMPRESSED_BINARY_DATA_SIZE : FrameV2.MAX_BINARY_DATA_SIZE));
+		}
+
+		if (protocolVersion != ProtocolOptions.PROTOCOL_V2) {
+			// A legacy packet is a fixed number of bytes, so what fits depends on how the chars encode.
+			// Measured with the encoder's buffer, so only one at a time
+			sendLock.lock();
+			try {
+				return encoder.legacyDataEnd(TID, chars, start, length);
+			}
+			finally {
+				sendLock.unlock();
+			}
+		}
+
+		int end = start + (compress ? FrameV2.MAX_COMPRESSED_DATA_SIZE : FrameV2.MAX_DATA_SIZE);
+		if (end >= length) {
+			return length;
+		}
+		// Version 2 packets carry UTF-8, so mustn't split a surrogate pair across packets
+		if (Character.isHighSurrogate(chars.charAt(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	  * Send many messages for the server's listener to consume, and wait for the answers to all of them.
+	  * 
+	  * If the server agreed to it in upgradeProtocol(), the messages are packed into a single BATCH message
+	  * (see MessageBatch), so a burst of small messages goes in as few packets and flushes as possible, and is
+	  * answered with a single acknowledgement. Otherwise (e.g. an older server) they are sent as separate CONSUME
+	  * messages, one after another, before any answer is read, so there is still only one round trip.
+	  * 
+	  * To be called by a client. Must not be called while another Thread may be reading the connection.
+	  * When multiplexed, answers to other requests may arrive meanwhile. They are left on the shelf.
+	  * 
+	  * @param messages the messages, each a CONSUME of an XML message. When not batched, each must have a TID of its own.
+	  * 
+	  * @return whether each message was consumed, in the order given. None are if the server refused them (see SocketService.REFUSE).
+	  * 
+	  * @throws SocketException if the connection is lost, or the answers cannot be matched to the messages
+	  * @throws IllegalArgumentException if any message is not a CONSUME of an XML message
+	  */
+	public boolean[] sendMessages(List<SocketTransferMessage> messages) throws SocketException {
+		checkNullArgument(messages);
+
+		if (batched) {
+			String TID = "BATCH-" + (++batchCount);
+			sendMessage(0, TID, SocketService.BATCH, SocketFormat.XML, MessageBatch.pack(messages));
+
+			awaitAnswer(TID, SocketService.BATCH);
+			boolean[] consumed = (getLastService() == SocketService.REFUSE ? new boolean[messages.size()] : MessageBatch.results(getLastMessageReceived(), messages.size()));
+			removeMessageForTID(TID);
+			if (consumed == null) {
+				throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Acknowledgement of batch " + TID + " does not match its " + messages.size() + " messages", -1010);
+			}
+			return consumed;
+		}
+
+		// Checked before anything is sent, as in MessageBatch.pack()
+		for (SocketTransferMessage message : messages) {
+			if (message.getService() != SocketService.CONSUME || message.getFormat() != SocketFormat.XML) {
+				throw new IllegalArgumentException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Only CONSUME of XML messages can be sent with sendMessages(), not " + message.getService() + " of " + message.getFormat() + " for TID " + message.getTID());
+			}
+		}
+		for (SocketTransferMessage message : messages) {
+			sendMessage(message);
+		}
+		// Answered in the order sent, unless multiplexed
+		boolean[] consumed = new boolean[messages.size()];
+		for (int i = 0; i < consumed.length; i++) {
+			String TID = messages.get(i).getTID();
+			awaitAnswer(TID, SocketService.CONSUME);
+			consumed[i] = (getLastErrorNo() == 0);
+			removeMessageForTID(TID);
+		}
+		return consumed;
+	}
+
+	/**
+	  * Wait for the server's answer to a message sent with sendMessages(), skipping any acknowledgements of its parts.
+	  * 
+	  * @param TID the Transaction ID of the message
+	  * @param service the Service of the expected answer (REFUSE is accepted too)
+	  * 
+	  * @throws SocketException if the connection is lost, or something else arrives instead, when not multiplexed
+	  */
+	private void awaitAnswer(String TID, SocketService service) throws SocketException {
+		while (true) {
+			if (next()) {
+				throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection lost awaiting answer to message " + TID, -1010);
+			}
+			if (!TID.equals(getTID())) {
+				if (multiplexed) {
+					continue; // the answer to another request, left on the shelf
+				}
+			}
+			else if (getLastService() == SocketService.MORE) {
+				// Acknowledgement of a part of the message. Not part of any answer...
+				removeMessageForTID(TID);
+				continue;
+			}
+			else if (getLastService() == service || getLastService() == SocketService.REFUSE) {
+				return;
+			}
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Expected answer to message " + TID + ", but received " + getLastService() + " for message " + getTID(), -1010);
+		}
+	}
+
+	/**
+	  * Wait for the server's next acknowledgement of parts of a message, when a send window is in use.
+	  * When multiplexed, answers to other requests may arrive first. They are left on the shelf.
+	  * 
+	  * @param TID the Transaction ID of the message being sent
+	  * @param partsAcked the number of parts acknowledged so far
+	  * 
+	  * @return the number of parts acknowledged now
+	  * 
+	  * @throws SocketException if the connection is lost, or something other than an acknowledgement arrives
+	  */
+	private int awaitPartsAck(String TID, int partsAcked) throws SocketException {
+		do {
+			if (next()) {
+				throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Connection lost awaiting acknowledgement of parts of message " + TID, -1007);
+			}
+		} while (multiplexed && !TID.equals(getTID()));
+
+		int parts = ProtocolOptions.intOption(getLastMessageReceived(), ProtocolOptions.PARTS);
+		if (getLastService() != SocketService.MORE || !TID.equals(getTID()) || parts < 0) {
+			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Expected acknowledgement of parts of message " + TID + ", but received " + getLastService() + " for message " + getTID(), -1008);
+		}
+		// The acknowledgement was never a real message...
+		removeMessageForTID(TID);
+
+		return Math.max(partsAcked, parts);
+	}
 	
 
 	/**
@@ -221,42 +843,60 @@ public class SocketComms {
 	  * @param TID the Transaction ID to be sent
 	  * @param lastService the Service requested to be sent
 	  * @param lastFormat the format of the message being sent
-	  * @param dataPart the actual data to be sent
+	  * @param data holds the actual data to be sent, or null if bytes
+	  * @param bytes holds the actual data to be sent, in SocketFormat.BINARY (only with protocol version 2), or null if chars
+	  * @param start index of the first char (or byte) of data to be sent
+	  * @param end index after the last char (or byte) of data to be sent
+	  * @param compress true to compress the data (only with protocol version 2)
 	  * 
 	  *
 	  */
-	private void sendPacket(Integer errNo, String TID, SocketService lastService, SocketFormat lastFormat, String dataPart) throws SocketException {
-		checkNullArgument(TID);
-		checkNullArgument(lastService);
-		checkNullArgument(lastFormat);
-		checkNullArgument(dataPart);
+	private void sendPacket(int errNo, String TID, SocketService lastService, SocketFormat lastFormat, CharSequence data, byte[] bytes, int start, int end, boolean compress) throws SocketException {
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Sending Data Part=[" + errNo + "_" + lastService.asNumber() + "_" + lastFormat.asNumber() + "_" + TID + "_" + (data != null ? data.subSequence(start, end) : (end - start) + " bytes") + "]");
+		}
 
-		// Make sure lastTID only 255 chars...
-		if (TID.length() > 255) {
-			TID = TID.substring(0, 255);
+		// The encoder's buffer is shared, so only one packet at a time
+		sendLock.lock();
+		try {
+			ByteBuffer packet;
+			if (bytes != null) {
+				packet = encoder.encodeV2(errNo, TID, lastService, bytes, start, end, compress);
+			}
+			else if (protocolVersion == ProtocolOptions.PROTOCOL_V2) {
+				packet = encoder.encodeV2(errNo, TID, lastService, lastFormat, data, start, end, compress);
+			}
+			else {
+				packet = encoder.encodeLegacy(errNo, TID, lastService, lastFormat, data, start, end);
+			}
+
+			if (metrics != null) {
+				metrics.packetSent(lastService, packet.remaining());
+			}
+			if (journal != null) {
+				journal.packetSent(socketType, errNo, TID, lastService, lastFormat, packet.remaining(), data, start, end);
+			}
+			writePacket(packet);
 		}
-		dataPart = padSpace(TID, 255) + dataPart;
-		
-		// Make sure data part has at least one chars - avoid stringoutofbounds errors on other side...
-		if (dataPart == null || dataPart.length() == 0) {
-			dataPart = " ";
+		finally {
+			sendLock.unlock();
 		}
+	}
 
-		Integer datalen  = new Integer(dataPart.length());
-//		System.out.println(String.format("sendMsg: Formatted=[%03d_%03d_%03d_%05d_" + dataPart.trim() + "]", errNo, lastService.asNumber(), lastFormat.asNumber(), datalen));
-		dataPart = String.format("%03d_%03d_%03d_%05d_" + dataPart, errNo, lastService.asNumber(), lastFormat.asNumber(), datalen);
-//		dataPart = padZero(errNo) + "_" + padZero(lastService.asNumber()) + "_" + padZero(lastFormat.asNumber()) + "_" + padZero(datalen, 5) + "_" + dataPart;
-		dataPart = fillString(dataPart);
-		
-		logger.info("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Sending Data Part=[" + dataPart.trim() + "]");
-		
-		byte[] rawData = dataPart.getBytes();
-		
+	/**
+	  * Write a fully-formatted packet to the transport.
+	  * 
+	  * @param packet the packet, exactly as it is to be sent over the wire, between its position and limit.
+	  * 		Only valid until this method returns.
+	  *
+	  */
+	void writePacket(ByteBuffer packet) throws SocketException {
 		try {
-			os.write(rawData);
+			os.write(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining());
 			os.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
+			connectionLost = true;
 			throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: failed to write/flush socket! Exception:" + e);
 		}
 	}
@@ -276,12 +916,26 @@ public class SocketComms {
 		return messageShelf.get(lastTID);
 	}
 
+	/**
+	  * Retrieve a (partial) message in SocketFormat.BINARY, previously stored
+	  *
+	  * @param lastTID the key under which data is stored
+	  * 
+	  * @return the stored message, read-only between its position and limit, or null if none (or not BINARY)
+	  *
+	  */
+	public ByteBuffer getBinaryMessageForTID(String lastTID) {
+		checkNullArgument(lastTID);
+
+		return messageShelf.getBytes(lastTID);
+	}
+
 	/**
 	  * Removed a stored message
 	  *
 	  * @param lastTID the key under which data is stored
 	  *
-	  *@return the previous value associated with lastTID, or null if there was no message for lastTID.
+	  *@return the previous value associated with lastTID, or null if there was no message for lastTID (or it was BINARY).
 	  */
 	public StringBuilder removeMessageForTID(String lastTID) {
 		checkNullArgument(lastTID);
@@ -289,12 +943,35 @@ public class SocketComms {
 		return messageShelf.remove(lastTID);
 	}
 
+	/**
+	  * A message is refused if it breaks a limit of the shelf (see SocketCommsConfig.setMaxMessageSize()), in which
+	  * case getMessageForTID() returns null, and parts still arriving are dropped, until removeMessageForTID() is called.
+	  *
+	  * @param TID the key under which data is stored
+	  *
+	  * @return true if the message is refused
+	  */
+	boolean isRefused(String TID) {
+		return messageShelf.isRefused(TID);
+	}
+
 	
 	/**
 	  * Close the socket
 	  *
 	  */
 	public void closeConnection() {
+		closeSocket();
+		releaseEncoder();
+		releaseShelf();
+	}
+
+	/**
+	  * Close the socket only, unblocking a Thread reading it, which is then left to release the shelf and the
+	  * decoder, as they may still be in use by it.
+	  */
+	void closeSocket() {
+		connectionLost = true;
 		if (incoming != null) {
 			try {
 				incoming.close();
@@ -305,6 +982,93 @@ public class SocketComms {
 		}
 	}
 
+	/**
+	  * Drop every message on the shelf, giving back what they held of any budget.
+	  */
+	void releaseShelf() {
+		messageShelf.clear();
+	}
+
+	/**
+	  * Free the memory held for compressing packets sent, and give back any pooled buffer. The Thread reading the
+	  * connection frees that for expanding packets received, once the read fails (see next()).
+	  */
+	void releaseEncoder() {
+		sendLock.lock();
+		try {
+			encoder.release();
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	  * Free the memory held for expanding packets received. Only for the Thread reading the connection.
+	  */
+	void releaseDecoder() {
+		decoder.release();
+	}
+
+	/**
+	  * @return true once the connection is known to be unusable: next() returned true, or a read or write failed
+	  */
+	public boolean isConnectionLost() {
+		return connectionLost;
+	}
+
+	/**
+	  * Check an idle connection is still usable, without waiting more than a millisecond.
+	  * Nothing should arrive on a connection that is idle, so anything that does (including the other side
+	  * closing it) means it's not.
+	  * Must not be called while another Thread may be reading the connection.
+	  *
+	  * @return true if the connection is still usable
+	  */
+	boolean checkIdleConnection() {
+		if (connectionLost || incoming == null || incoming.isClosed()) {
+			return false;
+		}
+
+		try {
+			if (is.available() > 0) {
+				connectionLost = true;
+				return false;
+			}
+
+			int readTimeout = incoming.getSoTimeout();
+			incoming.setSoTimeout(1);
+			try {
+				is.read(); // Either end of stream, or a byte nobody was waiting for
+				connectionLost = true;
+			}
+			catch(SocketTimeoutException e) {
+				// Good, nothing there
+			}
+			finally {
+				incoming.setSoTimeout(readTimeout);
+			}
+		}
+		catch(IOException e) {
+			connectionLost = true;
+		}
+
+		return !connectionLost;
+	}
+
+	/**
+	  * @return true if anything has arrived, but not yet been read with next()
+	  */
+	boolean hasUnreadData() {
+		try {
+			return (is != null && is.available() > 0);
+		}
+		catch(IOException e) {
+			connectionLost = true;
+			return false;
+		}
+	}
+
 	public int getLastErrorNo() {
 		return (lastMessageReceived == null ? 0 : lastMessageReceived.getErrNo());
 	}
@@ -321,10 +1085,20 @@ public class SocketComms {
 		return (lastMessageReceived == null ? null : lastMessageReceived.getFormat());
 	}
 
+	/**
+	  * @return the payload of the last packet received, or null if in SocketFormat.BINARY
+	  */
 	public String getLastMessageReceived() {
 		return (lastMessageReceived == null ? null : lastMessageReceived.getPayload());
 	}
 
+	/**
+	  * @return the payload of the last packet received if in SocketFormat.BINARY, read-only, otherwise null
+	  */
+	public ByteBuffer getLastBinaryMessageReceived() {
+		return (lastMessageReceived == null || lastMessageReceived.getBinaryPayload() == null ? null : ByteBuffer.wrap(lastMessageReceived.getBinaryPayload()).asReadOnlyBuffer());
+	}
+
 	/**
 	  * Store a partial message, or add a new piece to one already received
 	  *
@@ -332,53 +1106,21 @@ public class SocketComms {
 	private void addLastPayloadToShelf() {
 		checkNullArgument(lastMessageReceived);
 		
-		if (messageShelf.containsKey(lastMessageReceived.getTID())) {
-			StringBuilder storedMessage = messageShelf.get(lastMessageReceived.getTID());
-			storedMessage.append(new StringBuilder(lastMessageReceived.getPayload()));
-		}
-		else {
-			messageShelf.put(lastMessageReceived.getTID(), new StringBuilder(lastMessageReceived.getPayload()));
+		boolean held = (lastMessageReceived.getFormat() == SocketFormat.BINARY ? messageShelf.appendBytes(lastMessageReceived.getTID(), lastMessageReceived.getBinaryPayload()) : messageShelf.append(lastMessageReceived.getTID(), lastMessageReceived.getPayload()));
+		if (!held) {
+			logger.fine("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Part of refused message " + lastMessageReceived.getTID() + " dropped.");
 		}
 	}
 
 	/**
-	  * Pad a String with trailing blanks, up to a given size.
-	  * @param s the String to be padded
-	  * @param size the size to which the String should be increased, with this padding.
-	  * @return a String containing the padding.
-	  */
-	static private String padSpace(String s, int size)
-	// This method pads a string number with leading zeros, up to the specified size.
-	{
-		while (s.length() < size)
-			s = s + " ";
-
-		return s;
-	}
-
-	/**
-	  * Right-Fill a String with nulls.
-	  * @param str the String to be filled
-	  * 
-	  * @return a String containing the padding.
-	  */
-	static private String fillString(String str)
-	//	This method nullChar-fills the string to MESSAGE_SIZE characters.
-	{
-		int len = MESSAGE_SIZE-str.length();
-		for (int i = len; i > 0 ; i--)
-			str = str + '\0';
-	
-		return str;
-	}
-
-	/**
-	  * Read a message from the input stream.
+	  * Read a legacy packet from the input stream, into the read buffer.
+	  *
+	  * @return false if the connection has been severed
 	  */
-	private String readMsg() throws SocketException
+	private boolean readMsg() throws SocketException
 	// Get a response from the the connected socket.
 	{
-		byte[] response = new byte[MESSAGE_SIZE];
+		byte[] response = readBuffer;
 		int numBytesTransferred = 0;     // Bytes received so far.
 		int numTries = 0;
 
@@ -393,7 +1135,7 @@ public class SocketComms {
 				numTries++;
 				numBytesTransferred += e.bytesTransferred;
 				if (numBytesTransferred >= response.length)
-					return new String(response);
+					return true;
 			}
 			catch(IOException e) {
 				throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Error: " + e);
@@ -402,9 +1144,63 @@ public class SocketComms {
 
 		// For when connection is severed.
 		if (numBytesTransferred <= 0)
-			return new String("999_999_999_00027_Connection no longer valid.");
+			return false;
+
+		// A short packet is parsed as always, as if the rest had been nulls (a previous packet is still in the buffer)
+		if (numBytesTransferred < response.length)
+			Arrays.fill(response, Math.max(numBytesTransferred, 0), response.length, (byte) 0);
+
+		return true;
+	}
+
+	/**
+	  * Read a protocol version 2 packet from the input stream, into the read buffer.
+	  *
+	  * @return false if the connection has been severed
+	  */
+	private boolean readV2Msg() throws SocketException {
+		if (!readFully(readBuffer, 0, FrameV2.HEADER_SIZE)) {
+			return false;
+		}
+
+		int packetLength = FrameV2.HEADER_SIZE + FrameV2.bodyLength(readBuffer, 0);
+		if (packetLength > readBuffer.length) {
+			readBuffer = Arrays.copyOf(readBuffer, Math.max(packetLength, 2 * readBuffer.length));
+		}
+
+		return readFully(readBuffer, FrameV2.HEADER_SIZE, packetLength - FrameV2.HEADER_SIZE);
+	}
+
+	/**
+	  * Read an exact number of bytes from the input stream.
+	  *
+	  * @return false if the connection is severed before they all arrive
+	  */
+	private boolean readFully(byte[] buffer, int offset, int length) throws SocketException {
+		int numBytesTransferred = 0;     // Bytes received so far.
+		int numTries = 0;
+
+		// Combination of numTries<6 and socket timeout of 10 seconds will mean try for one minute
+		while (numBytesTransferred < length) {
+			try {
+				int numRead = is.read(buffer, offset + numBytesTransferred, length - numBytesTransferred);
+				if (numRead < 0) {
+					return false;
+				}
+				numBytesTransferred += numRead;
+			}
+			catch(InterruptedIOException e) {
+				numBytesTransferred += e.bytesTransferred;
+				if (++numTries >= 6 && numBytesTransferred < length) {
+					return false;
+				}
+			}
+			catch(IOException e) {
+				throw new SocketException("[" + socketType.toString() + "-" + Thread.currentThread().getName() + "]: Error: " + e);
+			}
+		}
 
-		return new String(response);
+		return true;
 	}
 
 	/**
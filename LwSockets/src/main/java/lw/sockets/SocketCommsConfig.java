@@ -0,0 +1,492 @@
+package lw.sockets;
+
+/**
+  * Transport settings for SocketComms, XMLSocketServer and NioXMLSocketServer.
+  *
+  * A new SocketCommsConfig leaves every setting as it always was (i.e. the operating system's socket defaults and
+  * 1024-byte packets), so passing one changes nothing until it is tuned. lowLatency() gives the settings
+  * recommended for request/response traffic.
+  *
+  * Note the legacy packet size must be the same at both ends of a connection.
+  *
+  * Thread-safety: This class is NOT thread safe. Finish setting it up before passing it on.
+  */
+public class SocketCommsConfig {
+	// Smallest legacy packet that still has room for 1 char of data after the codes and TID
+	static final int MIN_FRAME_SIZE = 18 + 255 + 1;
+	// The data length field in a legacy packet is only 5 digits
+	static final int MAX_FRAME_SIZE = 18 + 99999;
+
+	private boolean tcpNoDelay = false;			// true to switch off Nagle's algorithm
+	private int sendBufferSize = 0;				// SO_SNDBUF, 0 for the operating system default
+	private int receiveBufferSize = 0;			// SO_RCVBUF, 0 for the operating system default
+	private int backlog = 50;					// max queued incoming connections, for servers
+	private int readTimeout = 0;				// SO_TIMEOUT in milliseconds, 0 to wait forever
+	private int frameSize = 1024;				// total size of a legacy packet
+	private int sendWindow = 0;					// max unacknowledged parts of a message, 0 for the legacy acknowledgement of every part
+	private boolean multiplex = false;			// true to ask for requests to be answered out of order
+	private int compressThreshold = 0;			// min chars of a message worth compressing, 0 to never compress
+	private int maxMessageSize = 0;				// max chars of a message received, 0 for no limit
+	private long shelfIdleTimeout = 0;			// milliseconds a part-received message is held without another part, 0 for no limit
+	private long shelfBudget = 0;				// max bytes of part-received messages held by all a server's connections, 0 for no limit
+	private long bufferPoolSize = 16 * 1024 * 1024;	// max bytes of direct buffers an NIO server keeps for re-use, 0 to keep none
+	private boolean parseXML = false;			// true for a server to parse XML messages before they reach the listener
+	private EventJournal eventJournal = null;	// records every packet sent and received, null for none
+	private int maxConnections = 0;				// max connections a server holds open (or waiting for a Thread), 0 for no limit
+	private int maxInFlight = 0;				// max whole requests a server processes at once, 0 for no limit
+	private long queueDelayTarget = 0;			// milliseconds of waiting for a Thread a server tolerates, 0 for no check
+	private boolean orderedDispatch = false;	// true for a server to process requests that aren't multiplexed in its request pool
+	private int responseCacheSize = 0;			// max responses a server holds for replay to resent requests, 0 for none
+	private long responseCacheTtl = 0;			// milliseconds a response is replayed for, 0 for no limit
+	private boolean responseCacheKeyedByPayload = false;	// true to replay a response only to a request with the same payload too
+
+	public SocketCommsConfig() {
+	}
+
+	/**
+	  * Copy the settings of another, so they can be changed without affecting the original.
+	  *
+	  * @param other the settings to copy
+	  */
+	SocketCommsConfig(SocketCommsConfig other) {
+		this.tcpNoDelay = other.tcpNoDelay;
+		this.sendBufferSize = other.sendBufferSize;
+		this.receiveBufferSize = other.receiveBufferSize;
+		this.backlog = other.backlog;
+		this.readTimeout = other.readTimeout;
+		this.frameSize = other.frameSize;
+		this.sendWindow = other.sendWindow;
+		this.multiplex = other.multiplex;
+		this.compressThreshold = other.compressThreshold;
+		this.maxMessageSize = other.maxMessageSize;
+		this.shelfIdleTimeout = other.shelfIdleTimeout;
+		this.shelfBudget = other.shelfBudget;
+		this.bufferPoolSize = other.bufferPoolSize;
+		this.parseXML = other.parseXML;
+		this.eventJournal = other.eventJournal;
+		this.maxConnections = other.maxConnections;
+		this.maxInFlight = other.maxInFlight;
+		this.queueDelayTarget = other.queueDelayTarget;
+		this.orderedDispatch = other.orderedDispatch;
+		this.responseCacheSize = other.responseCacheSize;
+		this.responseCacheTtl = other.responseCacheTtl;
+		this.responseCacheKeyedByPayload = other.responseCacheKeyedByPayload;
+	}
+
+	/**
+	  * Settings for request/response traffic: Nagle's algorithm is switched off, so a small packet (e.g. a receipt
+	  * followed by a response) is never held back waiting for the peer's delayed acknowledgement of the one before.
+	  *
+	  * @return the new settings
+	  */
+	static public SocketCommsConfig lowLatency() {
+		return new SocketCommsConfig().setTcpNoDelay(true);
+	}
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	  * @param tcpNoDelay true to switch off Nagle's algorithm (TCP_NODELAY)
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	  * @param sendBufferSize SO_SNDBUF in bytes, or 0 for the operating system default
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setSendBufferSize(int sendBufferSize) {
+		checkNotNegative(sendBufferSize, "sendBufferSize");
+		this.sendBufferSize = sendBufferSize;
+		return this;
+	}
+
+	public int getReceiveBufferSize() {
+		return receiveBufferSize;
+	}
+
+	/**
+	  * @param receiveBufferSize SO_RCVBUF in bytes, or 0 for the operating system default.
+	  * 		Servers apply it before binding, so sizes above 64K take effect on accepted connections.
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setReceiveBufferSize(int receiveBufferSize) {
+		checkNotNegative(receiveBufferSize, "receiveBufferSize");
+		this.receiveBufferSize = receiveBufferSize;
+		return this;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	  * @param backlog the max number of incoming connections a server queues before refusing more
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setBacklog(int backlog) {
+		checkNotNegative(backlog, "backlog");
+		this.backlog = backlog;
+		return this;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	  * Note a blocking connection is treated as lost after 6 reads in a row time out.
+	  * Not used by NioXMLSocketServer, whose connections never block on a read.
+	  *
+	  * @param readTimeout SO_TIMEOUT in milliseconds, or 0 to wait forever
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setReadTimeout(int readTimeout) {
+		checkNotNegative(readTimeout, "readTimeout");
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	  * Must be the same at both ends of a connection. Not used once protocol version 2 is in use.
+	  *
+	  * @param frameSize the total size, in bytes, of every legacy packet
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setFrameSize(int frameSize) {
+		if (frameSize < MIN_FRAME_SIZE || frameSize > MAX_FRAME_SIZE) {
+			throw new IllegalArgumentException("frameSize must be between " + MIN_FRAME_SIZE + " and " + MAX_FRAME_SIZE + ", but was " + frameSize);
+		}
+		this.frameSize = frameSize;
+		return this;
+	}
+
+	public int getSendWindow() {
+		return sendWindow;
+	}
+
+	/**
+	  * Requested by SocketComms.upgradeProtocol(), so only used by clients, and only if the server accepts it.
+	  * With a window, a big message goes without waiting on a round-trip for each part: the client sends up to
+	  * sendWindow parts ahead of the server's acknowledgements, which each cover many parts.
+	  * Without one, the server acknowledges every part, as always.
+	  *
+	  * @param sendWindow the max number of parts of a message sent ahead of the server's acknowledgement,
+	  * 		or 0 for no window
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setSendWindow(int sendWindow) {
+		checkNotNegative(sendWindow, "sendWindow");
+		this.sendWindow = sendWindow;
+		return this;
+	}
+
+	public boolean isMultiplex() {
+		return multiplex;
+	}
+
+	/**
+	  * Requested by SocketComms.upgradeProtocol(), so only used by clients, and only if the server accepts it
+	  * (a server accepts only if given a request pool to process requests in). Once multiplexed, many requests
+	  * can be outstanding on one connection, and a slow one no longer holds up those behind it
+	  * - see SocketComms.isMultiplexed().
+	  *
+	  * @param multiplex true to ask for requests to be answered out of order
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setMultiplex(boolean multiplex) {
+		this.multiplex = multiplex;
+		return this;
+	}
+
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	/**
+	  * Used by clients and servers alike, once SocketComms.upgradeProtocol() has agreed compression (servers of this
+	  * version always agree). A message of at least compressThreshold chars is then sent compressed, in parts of up to
+	  * 256K chars rather than 16K, so a big, repetitive message (e.g. most XML) takes far fewer bytes and far fewer parts.
+	  * Compressed messages are always accepted, whatever the setting.
+	  *
+	  * @param compressThreshold the min number of chars of a message worth compressing, or 0 to never compress
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setCompressThreshold(int compressThreshold) {
+		checkNotNegative(compressThreshold, "compressThreshold");
+		this.compressThreshold = compressThreshold;
+		return this;
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	  * The parts of a message are held (on the shelf) until the last arrives. A server refuses a message that grows
+	  * beyond maxMessageSize chars, dropping what it holds of it, and answers it with REFUSE.
+	  * Not used for messages passed part by part to a LwIXMLSocketServerStreamListener.
+	  *
+	  * @param maxMessageSize the max number of chars of a message received, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setMaxMessageSize(int maxMessageSize) {
+		checkNotNegative(maxMessageSize, "maxMessageSize");
+		this.maxMessageSize = maxMessageSize;
+		return this;
+	}
+
+	public long getShelfIdleTimeout() {
+		return shelfIdleTimeout;
+	}
+
+	/**
+	  * A message no part of which has arrived for shelfIdleTimeout milliseconds is dropped, as its sender has
+	  * evidently given up on it (should the rest arrive after all, it is refused).
+	  *
+	  * @param shelfIdleTimeout the milliseconds a part-received message is held without another part arriving, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setShelfIdleTimeout(long shelfIdleTimeout) {
+		checkNotNegative(shelfIdleTimeout, "shelfIdleTimeout");
+		this.shelfIdleTimeout = shelfIdleTimeout;
+		return this;
+	}
+
+	public long getShelfBudget() {
+		return shelfBudget;
+	}
+
+	/**
+	  * Used by servers only: a limit on the memory held for messages still arriving, shared by every connection.
+	  * Once it is used up, messages left idle on any connection are dropped (see setShelfIdleTimeout()) and, if that
+	  * doesn't make room, a message needing more is refused, as for setMaxMessageSize().
+	  *
+	  * @param shelfBudget the max bytes (2 per char) of part-received messages held by all the server's connections, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setShelfBudget(long shelfBudget) {
+		checkNotNegative(shelfBudget, "shelfBudget");
+		this.shelfBudget = shelfBudget;
+		return this;
+	}
+
+	public long getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	/**
+	  * Used by NioXMLSocketServer only: the packets it encodes, and those it can't write at once, go through direct
+	  * buffers from a BufferPool shared by every connection, keeping up to bufferPoolSize bytes of them for re-use.
+	  *
+	  * @param bufferPoolSize the max bytes of buffers kept for re-use, or 0 to keep none
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setBufferPoolSize(long bufferPoolSize) {
+		checkNotNegative(bufferPoolSize, "bufferPoolSize");
+		this.bufferPoolSize = bufferPoolSize;
+		return this;
+	}
+
+	public boolean isParseXML() {
+		return parseXML;
+	}
+
+	/**
+	  * Used by servers only: each whole XML message is parsed once, before it reaches the listener, which is handed
+	  * the result by SocketEvent.getDocument(). A message that is not well-formed XML (or holds a DTD) never reaches
+	  * the listener: it is answered with REFUSE (errNo 2), or counted as not consumed if part of a BATCH message.
+	  * Not used for a LwIXMLSocketServerStreamListener, as it is given each part as it arrives.
+	  *
+	  * @param parseXML true to parse XML messages before they reach the listener
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setParseXML(boolean parseXML) {
+		this.parseXML = parseXML;
+		return this;
+	}
+
+	public EventJournal getEventJournal() {
+		return eventJournal;
+	}
+
+	/**
+	  * Every connection given these settings records each packet it sends and receives in the journal, which
+	  * may be shared by any number of connections. The journal must be started (see EventJournal.start()).
+	  *
+	  * @param eventJournal the journal, or null to record nothing
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setEventJournal(EventJournal eventJournal) {
+		this.eventJournal = eventJournal;
+		return this;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	  * Used by servers only: a connection accepted beyond the limit is answered with REFUSE (errNo 3) in place of READY,
+	  * then closed, rather than left waiting for a Thread of an XMLSocketServer's pool until its client gives up.
+	  * Connections still waiting for a Thread count towards the limit.
+	  *
+	  * @param maxConnections the max number of connections held open at once, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setMaxConnections(int maxConnections) {
+		checkNotNegative(maxConnections, "maxConnections");
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	  * Used by servers only: a whole request arriving while maxInFlight others, on any connection, are still being
+	  * processed is answered at once with REFUSE (errNo 3), rather than queued behind them.
+	  *
+	  * @param maxInFlight the max number of whole requests processed at once, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setMaxInFlight(int maxInFlight) {
+		checkNotNegative(maxInFlight, "maxInFlight");
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	public long getQueueDelayTarget() {
+		return queueDelayTarget;
+	}
+
+	/**
+	  * Used by servers only: the time connections (for an XMLSocketServer) and multiplexed requests wait for a Thread is
+	  * watched, CoDel fashion. Once even the shortest wait over 100ms is longer than queueDelayTarget, anything that
+	  * waited over twice as long is answered with REFUSE (errNo 3) rather than processed, until the queue drains.
+	  * Short bursts, which drain by themselves, are never refused. 5 milliseconds is a good start.
+	  *
+	  * @param queueDelayTarget the milliseconds of waiting for a Thread tolerated, or 0 for no check
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setQueueDelayTarget(long queueDelayTarget) {
+		checkNotNegative(queueDelayTarget, "queueDelayTarget");
+		this.queueDelayTarget = queueDelayTarget;
+		return this;
+	}
+
+	public boolean isOrderedDispatch() {
+		return orderedDispatch;
+	}
+
+	/**
+	  * Used by servers with a request pool only (see XMLSocketServer.setRequestPool()): the requests of a connection that
+	  * isn't multiplexed are processed in the pool too, one at a time, in the order they arrived, and answered exactly as
+	  * before. The Thread reading the connection (for a NioXMLSocketServer, an event loop shared with many others) then
+	  * only reads, reassembles and acknowledges parts, however slow the listener, and the pool bounds how many Threads
+	  * run listener call-backs, which must be thread safe. Not used for a LwIXMLSocketServerStreamListener.
+	  *
+	  * @param orderedDispatch true to process requests that aren't multiplexed in the request pool
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setOrderedDispatch(boolean orderedDispatch) {
+		this.orderedDispatch = orderedDispatch;
+		return this;
+	}
+
+	public int getResponseCacheSize() {
+		return responseCacheSize;
+	}
+
+	/**
+	  * Used by servers only: the responses to CONSUME_RESPOND requests are held, by TID, so a client that timed out and
+	  * resends a request (on any connection) is sent the response already computed, rather than the listener computing
+	  * it again. A resend arriving while the first is still being computed waits for it. TIDs must then be unique across
+	  * every client, unless setResponseCacheKeyedByPayload() is used too. Not used for a LwIXMLSocketServerStreamListener.
+	  *
+	  * @param responseCacheSize the max number of responses held, the least recently used going first, or 0 for none
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setResponseCacheSize(int responseCacheSize) {
+		checkNotNegative(responseCacheSize, "responseCacheSize");
+		this.responseCacheSize = responseCacheSize;
+		return this;
+	}
+
+	public long getResponseCacheTtl() {
+		return responseCacheTtl;
+	}
+
+	/**
+	  * Used by servers only: how long after being computed a response is replayed (see setResponseCacheSize()). After
+	  * that, a request with the same TID is given to the listener again.
+	  *
+	  * @param responseCacheTtl the milliseconds a response is replayed for, or 0 for no limit
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setResponseCacheTtl(long responseCacheTtl) {
+		checkNotNegative(responseCacheTtl, "responseCacheTtl");
+		this.responseCacheTtl = responseCacheTtl;
+		return this;
+	}
+
+	public boolean isResponseCacheKeyedByPayload() {
+		return responseCacheKeyedByPayload;
+	}
+
+	/**
+	  * Used by servers only: a response is replayed (see setResponseCacheSize()) only to a request with the same TID
+	  * and the same payload (by SHA-256 digest), so a TID re-used by another client, or for another request, is not mistaken for
+	  * a resend.
+	  *
+	  * @param responseCacheKeyedByPayload true to match the payload as well as the TID
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsConfig setResponseCacheKeyedByPayload(boolean responseCacheKeyedByPayload) {
+		this.responseCacheKeyedByPayload = responseCacheKeyedByPayload;
+		return this;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if value is negative
+	 */
+	private void checkNotNegative(long value, String name) {
+		if (value < 0) throw new IllegalArgumentException(name + " cannot be negative, but was " + value);
+	}
+}
@@ -0,0 +1,457 @@
+package lw.sockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+
+/**
+  * A pool of client connections to a single server (one pool per host and port), each kept open past the
+  * READY handshake (and protocol upgrade), so a borrower can send straight away.
+  *
+  * Usage:
+  * 	SocketComms comms = pool.borrow();
+  * 	try {
+  * 		comms.sendMessage(...);
+  * 		comms.next();
+  * 		...
+  * 	}
+  * 	finally {
+  * 		pool.release(comms);
+  * 	}
+  *
+  * Don't send CLOSE on a borrowed connection - the pool does that when it finally closes the connection.
+  * A connection is closed rather than re-used if it is found to be lost (see SocketComms.isConnectionLost()),
+  * if anything has arrived on it that the borrower didn't read, or if it sits idle for longer than the idle timeout.
+  * One idle for longer than the validation interval is checked before being lent again.
+  *
+  * Thread-safety: This class is thread safe. Each borrowed SocketComms is for the borrowing Thread alone.
+  */
+public class SocketCommsPool {
+
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	final private String host;
+	final private int portNumber;
+	final private SocketCommsConfig config;			// transport settings for every connection
+	final private int maxConnections;				// max connections open at once, lent or idle
+
+	volatile private int connectTimeout = 0;					// milliseconds to wait for a new connection, 0 to wait forever
+	volatile private long idleTimeout = 60000;				// milliseconds after which an idle connection is closed
+	volatile private long validateAfterIdle = 1000;			// milliseconds after which an idle connection is checked before being lent
+	volatile private long borrowTimeout = 30000;				// milliseconds to wait for a connection, when all are lent
+
+	final private ReentrantLock lock = new ReentrantLock();
+	final private Condition released = lock.newCondition();
+	final private ArrayDeque<IdleConnection> idle = new ArrayDeque<IdleConnection>();	// most recently used first. Guarded by lock
+	final private Set<SocketComms> lent = Collections.newSetFromMap(new IdentityHashMap<SocketComms,Boolean>());	// Guarded by lock
+	private int numConnections = 0;					// open (or being opened), lent or idle. Guarded by lock
+	private boolean closed = false;					// Guarded by lock
+
+	/**
+	  * A connection awaiting a borrower.
+	  */
+	private static final class IdleConnection {
+		final SocketComms comms;
+		final long idleSince;
+
+		IdleConnection(SocketComms comms, long idleSince) {
+			this.comms = comms;
+			this.idleSince = idleSince;
+		}
+	}
+
+	/**
+	  * Create a pool. No connections are opened until needed, or warmUp() is called.
+	  *
+	  * @param host the host of the server
+	  * @param portNumber the port of the server
+	  * @param config transport settings for every connection
+	  * @param maxConnections the most connections to have open at once, lent or idle
+	  */
+	public SocketCommsPool(String host, int portNumber, SocketCommsConfig config, int maxConnections) {
+		checkNullArgument(host);
+		checkNullArgument(config);
+		if (maxConnections < 1) throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: maxConnections must be at least 1, but was " + maxConnections);
+
+		this.host = host;
+		this.portNumber = portNumber;
+		this.config = new SocketCommsConfig(config);
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	  * @param connectTimeout milliseconds to wait for a new connection to be made, or 0 to wait forever
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsPool setConnectTimeout(int connectTimeout) {
+		checkNotNegative(connectTimeout, "connectTimeout");
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	  * @param idleTimeout milliseconds after which an idle connection is closed, rather than lent again
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsPool setIdleTimeout(long idleTimeout) {
+		checkNotNegative(idleTimeout, "idleTimeout");
+		this.idleTimeout = idleTimeout;
+		return this;
+	}
+
+	/**
+	  * @param validateAfterIdle milliseconds after which an idle connection is checked before being lent, 0 to check every time.
+	  * 		The check takes up to a millisecond.
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsPool setValidateAfterIdle(long validateAfterIdle) {
+		checkNotNegative(validateAfterIdle, "validateAfterIdle");
+		this.validateAfterIdle = validateAfterIdle;
+		return this;
+	}
+
+	/**
+	  * @param borrowTimeout milliseconds borrow() waits for a connection to be released, when maxConnections are lent
+	  *
+	  * @return this object, so calls can be chained
+	  */
+	public SocketCommsPool setBorrowTimeout(long borrowTimeout) {
+		checkNotNegative(borrowTimeout, "borrowTimeout");
+		this.borrowTimeout = borrowTimeout;
+		return this;
+	}
+
+	/**
+	  * Open connections ahead of need, so the first borrowers don't wait for them.
+	  *
+	  * @param count the number of idle connections wanted (no more than maxConnections are ever opened)
+	  *
+	  * @throws SocketException if a connection cannot be made
+	  */
+	public void warmUp(int count) throws SocketException {
+		for (int i = 0; i < count; i++) {
+			lock.lock();
+			try {
+				if (closed || numConnections >= maxConnections || idle.size() >= count) {
+					return;
+				}
+				numConnections++;
+			}
+			finally {
+				lock.unlock();
+			}
+
+			SocketComms comms = open();
+			lock.lock();
+			try {
+				idle.addLast(new IdleConnection(comms, System.currentTimeMillis()));
+				released.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	  * Borrow a connection, ready to send on: an idle one if there is one, else a new one if fewer than
+	  * maxConnections are open, else the first to be released within the borrow timeout.
+	  *
+	  * @return the connection, to be given back with release()
+	  *
+	  * @throws SocketException if a new connection cannot be made, none is released in time, or the pool is closed
+	  */
+	public SocketComms borrow() throws SocketException {
+		evictExpired();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+
+		while (true) {
+			IdleConnection candidate = null;
+			boolean openNew = false;
+
+			lock.lock();
+			try {
+				while (candidate == null && !openNew) {
+					if (closed) {
+						throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Pool for " + host + ":" + portNumber + " is closed", -1009);
+					}
+					candidate = idle.pollFirst();
+					if (candidate == null) {
+						if (numConnections < maxConnections) {
+							numConnections++;
+							openNew = true;
+						}
+						else {
+							long remaining = deadline - System.nanoTime();
+							if (remaining <= 0) {
+								throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: No connection to " + host + ":" + portNumber + " released within " + borrowTimeout + "ms", -1009);
+							}
+							try {
+								released.awaitNanos(remaining);
+							}
+							catch(InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Interrupted waiting for a connection to " + host + ":" + portNumber, -1009);
+							}
+						}
+					}
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+
+			// Opened and checked outside the lock, so other borrowers aren't held up meanwhile
+			SocketComms comms;
+			if (openNew) {
+				comms = open();
+			}
+			else if (usable(candidate)) {
+				comms = candidate.comms;
+			}
+			else {
+				evict(candidate.comms);
+				continue;
+			}
+
+			lock.lock();
+			try {
+				lent.add(comms);
+			}
+			finally {
+				lock.unlock();
+			}
+			return comms;
+		}
+	}
+
+	/**
+	  * Give back a borrowed connection. If it is no longer fit for use (e.g. next() returned true,
+	  * or there is something left unread on it), it is closed instead.
+	  *
+	  * @param comms the connection, as borrowed
+	  */
+	public void release(SocketComms comms) {
+		checkNullArgument(comms);
+
+		boolean reuse = !comms.isConnectionLost() && !comms.hasUnreadData();
+		lock.lock();
+		try {
+			if (!lent.remove(comms)) {
+				throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: Connection was not borrowed from this pool.");
+			}
+			if (reuse && !closed) {
+				idle.addFirst(new IdleConnection(comms, System.currentTimeMillis()));
+				released.signal();
+				reuse = true;
+			}
+			else {
+				reuse = false;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		if (reuse) {
+			evictExpired();
+		}
+		else {
+			evict(comms);
+		}
+	}
+
+	/**
+	  * Close a borrowed connection that the borrower knows is unfit for use, rather than giving it back.
+	  *
+	  * @param comms the connection, as borrowed
+	  */
+	public void invalidate(SocketComms comms) {
+		checkNullArgument(comms);
+
+		lock.lock();
+		try {
+			if (!lent.remove(comms)) {
+				throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: Connection was not borrowed from this pool.");
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+
+		evict(comms);
+	}
+
+	/**
+	  * @return the number of connections open, lent or idle
+	  */
+	public int getNumConnections() {
+		lock.lock();
+		try {
+			return numConnections;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * @return the number of connections awaiting a borrower
+	  */
+	public int getNumIdle() {
+		lock.lock();
+		try {
+			return idle.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	  * Close every idle connection, and every lent one as it is released. Borrowers waiting are refused.
+	  */
+	public void close() {
+		IdleConnection[] toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = idle.toArray(new IdleConnection[idle.size()]);
+			idle.clear();
+			released.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+
+		for (IdleConnection connection : toClose) {
+			evict(connection.comms);
+		}
+	}
+
+	/**
+	  * Open a new connection, as far as the end of the READY handshake. The caller has already counted it.
+	  */
+	private SocketComms open() throws SocketException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, portNumber), connectTimeout);
+
+			SocketComms comms = new SocketComms(socket, SocketType.CLIENT, config);
+			comms.readReady(host + ":" + portNumber);
+			comms.removeMessageForTID(comms.getTID());
+			comms.upgradeProtocol();
+
+			logger.info("[CLIENT-" + Thread.currentThread().getName() + "]: New pooled connection to " + host + ":" + portNumber + " ready.");
+			return comms;
+		}
+		catch(IOException e) {
+			forget();
+			try { socket.close(); } catch (IOException e1) { /* Ignore */}
+			throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Could not connect to " + host + ":" + portNumber, e);
+		}
+		catch(SocketException e) {
+			forget();
+			try { socket.close(); } catch (IOException e1) { /* Ignore */}
+			throw e;
+		}
+	}
+
+	/**
+	  * @return true if an idle connection can be lent again
+	  */
+	private boolean usable(IdleConnection candidate) {
+		long idleFor = System.currentTimeMillis() - candidate.idleSince;
+		if (idleFor > idleTimeout) {
+			return false;
+		}
+		if (idleFor >= validateAfterIdle) {
+			return candidate.comms.checkIdleConnection();
+		}
+		return !candidate.comms.isConnectionLost();
+	}
+
+	/**
+	  * Close the connections that have been idle longest, if for longer than the idle timeout.
+	  */
+	private void evictExpired() {
+		long expiredBefore = System.currentTimeMillis() - idleTimeout;
+		while (true) {
+			IdleConnection oldest;
+			lock.lock();
+			try {
+				oldest = idle.peekLast();
+				if (oldest == null || oldest.idleSince >= expiredBefore) {
+					return;
+				}
+				idle.pollLast();
+			}
+			finally {
+				lock.unlock();
+			}
+			evict(oldest.comms);
+		}
+	}
+
+	/**
+	  * Close a connection that is no longer to be used, telling the server if it's still there.
+	  */
+	private void evict(SocketComms comms) {
+		if (!comms.isConnectionLost()) {
+			try {
+				comms.sendMessage(new SocketTransferMessage(0, "POOL", SocketService.CLOSE, SocketFormat.XML, "Close me"));
+			}
+			catch(SocketException e) {
+				// Closing anyway
+			}
+		}
+		comms.closeConnection();
+		forget();
+		logger.info("[CLIENT-" + Thread.currentThread().getName() + "]: Pooled connection to " + host + ":" + portNumber + " closed.");
+	}
+
+	/**
+	  * Stop counting a connection, so another can be opened in its place.
+	  */
+	private void forget() {
+		lock.lock();
+		try {
+			numConnections--;
+			released.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if value is negative
+	 */
+	private void checkNotNegative(long value, String name) {
+		if (value < 0) throw new IllegalArgumentException(name + " cannot be negative, but was " + value);
+	}
+
+	/**
+	 * @param o the object to be checked for null.
+	 *
+	 * @throws IllegalArgumentException if o is null
+	 */
+	private void checkNullArgument(Object o) {
+		if ((o == null)) throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: Null value received.");
+	}
+}
@@ -1,5 +1,9 @@
 package lw.sockets;
 
+import java.nio.ByteBuffer;
+
+import org.w3c.dom.Document;
+
 /**
   * Encapsulates information about an event arising from socket activity.
   * @author Liam Wade
@@ -31,6 +35,34 @@ public class SocketEvent
 		this.receivedMessage = receivedMessage;
 	}
 
+  /**
+    * Will create a new event for a message received in SocketFormat.BINARY.
+    *
+	* @param TID the unique Transaction ID for the message involved in this event
+	* @param portNumber the port on which the socket server listens (aid to identifying actual problem)
+	* @param receivedBytes the message received over the socket, exactly as sent
+    */
+	public SocketEvent(String TID, int portNumber, ByteBuffer receivedBytes) {
+		this.TID = TID;
+		this.portNumber = portNumber;
+		this.receivedBytes = receivedBytes;
+	}
+
+  /**
+    * Will create a new event for an XML message the server has already parsed (see SocketCommsConfig.setParseXML()).
+    *
+	* @param TID the unique Transaction ID for the message involved in this event
+	* @param portNumber the port on which the socket server listens (aid to identifying actual problem)
+	* @param receivedMessage the message received over the socket, only made a String if asked for
+	* @param document the message, parsed
+    */
+	public SocketEvent(String TID, int portNumber, CharSequence receivedMessage, Document document) {
+		this.TID = TID;
+		this.portNumber = portNumber;
+		this.receivedChars = receivedMessage;
+		this.document = document;
+	}
+
 	/**
 	  *
 	  * Get the port Number (useful as a unique id)
@@ -48,9 +80,39 @@ public class SocketEvent
 	  * @return the received Message
 	  */
 	public String getReceivedMessage() {
+		if (receivedMessage == null && receivedChars != null) {
+			receivedMessage = receivedChars.toString();
+		}
 		return receivedMessage;
 	}
 
+	/**
+	  *
+	  * Get the Message received over the socket, already parsed by the server (see SocketCommsConfig.setParseXML())
+	  *
+	  * @return the parsed Message, or null if the server doesn't parse messages
+	  */
+	public Document getDocument() {
+		return document;
+	}
+
+	/**
+	  * @return the chars of the Message, without making a String of them, or null if none
+	  */
+	CharSequence getReceivedChars() {
+		return (receivedChars != null ? receivedChars : receivedMessage);
+	}
+
+	/**
+	  *
+	  * Get the Message received over the socket in SocketFormat.BINARY, in which case getReceivedMessage() returns null
+	  *
+	  * @return the received Message, read-only between its position and limit, or null if not BINARY
+	  */
+	public ByteBuffer getReceivedBytes() {
+		return receivedBytes;
+	}
+
 	/**
 	  *
 	  * Get the unique Transaction ID for the message involved in this event
@@ -63,5 +125,8 @@ public class SocketEvent
 
 	private int portNumber = 0;				// aid to identifying actual problem
 	private String receivedMessage = null;	// the message received over the socket
+	private ByteBuffer receivedBytes = null;	// the message received over the socket, if BINARY
+	private CharSequence receivedChars = null;	// the message received over the socket, until made a String
+	private Document document = null;		// the message received over the socket, if parsed by the server
 	private String TID = "";				// a unique transaction ID
 }
\ No newline at end of file
@@ -46,6 +46,18 @@ public class SocketException extends Exception
 			this.errorCode = errorCode;
 		}
 
+		/**
+		  * Will create a new exception for a refusal by an overloaded server.
+		  * @param message the text explaining the error
+		  * @param errorCode the error code associated with the exception
+		  * @param retryAfter the milliseconds the server asked to be left before trying again
+		  */
+		public SocketException(String message, int errorCode, long retryAfter) {
+			super(message);
+			this.errorCode = errorCode;
+			this.retryAfter = retryAfter;
+		}
+
 	/**
 	  *
 	  * Get the last error code
@@ -56,5 +68,14 @@ public class SocketException extends Exception
 		return errorCode;
 	}
 
+	/**
+	  *
+	  * @return the milliseconds the server asked to be left before trying again, having refused as overloaded, otherwise 0
+	  */
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
 	private int errorCode = 0;		// aid to identifying actual problem
+	private long retryAfter = 0;	// hint from an overloaded server
 }
\ No newline at end of file
@@ -16,7 +16,8 @@ public class SocketTransferMessage {
 	final private String TID;				// a unique transaction ID
 	final private SocketService service;	// Service requested in messqge
 	final private SocketFormat format ;		// Format for message
-	final private String payload;			// message payload
+	final private String payload;			// message payload, null if BINARY
+	final private byte[] binaryPayload;		// message payload if BINARY, otherwise null
 	
   /**
     * Will create a new exception with the given reason.
@@ -33,6 +34,23 @@ public class SocketTransferMessage {
 		this.service = service;
 		this.format = format;
 		this.payload = payload;
+		this.binaryPayload = null;
+	}
+
+  /**
+    * Create a message carrying bytes, exactly as given, in SocketFormat.BINARY (see SocketComms.isBinary()).
+    *
+	* @param TID the unique Transaction ID for the message
+	* @param service the Service requested
+	* @param payload the bytes to be sent. Not copied, so must not be changed afterwards.
+    */
+	public SocketTransferMessage(int errNo, String TID, SocketService service, byte[] payload) {
+		this.errNo = errNo;
+		this.TID = TID;
+		this.service = service;
+		this.format = SocketFormat.BINARY;
+		this.payload = null;
+		this.binaryPayload = payload;
 	}
 
 	
@@ -52,8 +70,18 @@ public class SocketTransferMessage {
 		return format;
 	}
 	
+	/**
+	  * @return the payload, or null if the format is BINARY
+	  */
 	public String getPayload() {
 		return payload;
 	}
 
+	/**
+	  * @return the payload if the format is BINARY (not a copy, so must not be changed), otherwise null
+	  */
+	public byte[] getBinaryPayload() {
+		return binaryPayload;
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * @author wadel
+ *
+ * Package-private helper for creating virtual threads (Java 21 and later).
+ * Reflection is used so this project still builds and runs on older JVMs, where
+ * isAvailable() simply returns false.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/**
+	  * @return true if the running JVM supports virtual threads
+	  */
+	static boolean isAvailable() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	  * Create an ExecutorService that starts a new virtual thread for each task.
+	  *
+	  * @param namePrefix the prefix for the name of each thread, to which a counter is added (e.g. "AcceptedSocket-" gives "AcceptedSocket-0", "AcceptedSocket-1" ...)
+	  *
+	  * @return the ExecutorService
+	  *
+	  * @throws SocketException if the running JVM does not support virtual threads
+	  */
+	static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) throws SocketException {
+		try {
+			// Equivalent to Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory())
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+		}
+		catch(ClassNotFoundException e) {
+			throw new SocketException("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"), e);
+		}
+		catch(NoSuchMethodException e) {
+			throw new SocketException("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"), e);
+		}
+		catch(IllegalAccessException e) {
+			throw new SocketException("Could not create virtual thread executor", e);
+		}
+		catch(InvocationTargetException e) {
+			throw new SocketException("Could not create virtual thread executor", e.getCause());
+		}
+	}
+}
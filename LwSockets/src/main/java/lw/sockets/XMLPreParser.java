@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package lw.sockets;
+
+import java.io.Reader;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * @author wadel
+ *
+ * Package-private class parsing whole XML messages into a DOM once, as they come off the shelf, so the listener
+ * is handed a Document (see SocketEvent.getDocument()) rather than each listener parsing the message again.
+ *
+ * Parses with StAX, reading straight from the chars gathered on the shelf, so no String of the message is made
+ * unless the listener asks for one. StAX factories and DOM builders are not thread safe, so each parse borrows
+ * a pair from a pool, and gives it back afterwards.
+ *
+ * DTDs are refused, so a message cannot make the server read files or expand entities without limit.
+ *
+ * Thread-safety: This class is thread safe.
+ *
+ */
+final class XMLPreParser {
+	// Parsers kept for re-use. More may be in use at once, but any more than this are dropped once finished
+	static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+	private static final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+	static {
+		builderFactory.setNamespaceAware(true);
+	}
+
+	// Last in, first out, so the parser re-used is the one most likely still in cache
+	final private ConcurrentLinkedDeque<Parser> pool = new ConcurrentLinkedDeque<Parser>();
+	final private AtomicInteger numPooled = new AtomicInteger();
+	final private AtomicLong numParsed = new AtomicLong();
+	final private AtomicLong numRejected = new AtomicLong();
+
+	/**
+	  * A StAX factory, and a DOM builder to build with, used by one Thread at a time.
+	  */
+	private static final class Parser {
+		final XMLInputFactory inputFactory;
+		final DocumentBuilder documentBuilder;
+
+		Parser() {
+			inputFactory = XMLInputFactory.newInstance();
+			inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+			inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+			try {
+				documentBuilder = builderFactory.newDocumentBuilder();
+			}
+			catch(ParserConfigurationException e) {
+				throw new IllegalStateException("[" + Thread.currentThread().getName() + "]: Could not create a DocumentBuilder", e);
+			}
+		}
+	}
+
+	/**
+	  * Parse a whole XML message.
+	  *
+	  * @param TID the Transaction ID of the message, for the error
+	  * @param xml the message
+	  *
+	  * @return the parsed message
+	  *
+	  * @throws SocketException (error -1014) if the message is not well-formed XML, or holds a DTD
+	  */
+	Document parse(String TID, CharSequence xml) throws SocketException {
+		Parser parser = pool.pollFirst();
+		if (parser != null) {
+			numPooled.decrementAndGet();
+		}
+		else {
+			parser = new Parser();
+		}
+
+		XMLStreamReader reader = null;
+		try {
+			reader = parser.inputFactory.createXMLStreamReader(new CharSequenceReader(xml));
+			Document document = parser.documentBuilder.newDocument();
+			build(reader, document);
+			numParsed.incrementAndGet();
+			return document;
+		}
+		catch(XMLStreamException e) {
+			numRejected.incrementAndGet();
+			throw new SocketException("[" + Thread.currentThread().getName() + "]: Message " + TID + " is not well-formed XML: " + e.getMessage(), -1014);
+		}
+		finally {
+			if (reader != null) {
+				try { reader.close(); } catch (XMLStreamException e) { /* Ignore, nothing held open */}
+			}
+			giveBack(parser);
+		}
+	}
+
+	/**
+	  * Build a DOM from the events of a StAX reader.
+	  */
+	private static void build(XMLStreamReader reader, Document document) throws XMLStreamException {
+		Node current = document;
+		while (reader.hasNext()) {
+			switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					Element element = startElement(reader, document);
+					current.appendChild(element);
+					current = element;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					current = current.getParentNode();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					if (current != document) { // a Document can't hold text, only the whitespace around its element
+						current.appendChild(document.createTextNode(reader.getText()));
+					}
+					break;
+				case XMLStreamConstants.CDATA:
+					current.appendChild(document.createCDATASection(reader.getText()));
+					break;
+				case XMLStreamConstants.COMMENT:
+					current.appendChild(document.createComment(reader.getText()));
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					current.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+					break;
+				case XMLStreamConstants.DTD:
+					throw new XMLStreamException("DTD not accepted", reader.getLocation());
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	  * @return the element the reader has just started, with its namespace declarations and attributes
+	  */
+	private static Element startElement(XMLStreamReader reader, Document document) {
+		Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()), qualifiedName(reader.getPrefix(), reader.getLocalName()));
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, qualifiedName(XMLConstants.XMLNS_ATTRIBUTE, emptyToNull(prefix)), reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)), qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+		}
+		return element;
+	}
+
+	/**
+	  * @return prefix:name, or just the name (or prefix, for a default namespace declaration) if the other is empty
+	  */
+	private static String qualifiedName(String prefix, String name) {
+		if (prefix == null || prefix.isEmpty()) {
+			return name;
+		}
+		if (name == null) {
+			return prefix;
+		}
+		return prefix + ":" + name;
+	}
+
+	private static String emptyToNull(String s) {
+		return (s == null || s.isEmpty() ? null : s);
+	}
+
+	private void giveBack(Parser parser) {
+		parser.documentBuilder.reset();
+		if (numPooled.incrementAndGet() > MAX_POOLED) {
+			numPooled.decrementAndGet();
+			return; // Pool is full, so leave it for the garbage collector
+		}
+		pool.offerFirst(parser);
+	}
+
+	/**
+	  * @return the number of messages parsed
+	  */
+	long getParsedCount() {
+		return numParsed.get();
+	}
+
+	/**
+	  * @return the number of messages found not to be well-formed
+	  */
+	long getRejectedCount() {
+		return numRejected.get();
+	}
+
+	/**
+	  * @return the number of parsers kept for re-use
+	  */
+	int getPooledCount() {
+		return numPooled.get();
+	}
+
+	/**
+	  * Reads the chars of a CharSequence e.g. a message on the shelf, without copying them into a String first.
+	  */
+	private static final class CharSequenceReader extends Reader {
+		final private CharSequence chars;
+		private int next = 0;
+
+		CharSequenceReader(CharSequence chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (next >= chars.length()) {
+				return -1;
+			}
+			int end = Math.min(chars.length(), next + len);
+			if (chars instanceof StringBuilder) {
+				((StringBuilder) chars).getChars(next, end, cbuf, off);
+			}
+			else {
+				for (int i = next; i < end; i++) {
+					cbuf[off++] = chars.charAt(i);
+				}
+			}
+			int numRead = end - next;
+			next = end;
+			return numRead;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
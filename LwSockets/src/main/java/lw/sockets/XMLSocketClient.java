@@ -0,0 +1,393 @@
+package lw.sockets;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+
+/**
+  * Asynchronous client for an XMLSocketServer or NioXMLSocketServer.
+  *
+  * Requests are sent at once and answered through a CompletableFuture, so any number can be outstanding
+  * without a Thread blocked on each. A single background Thread reads the connection, matching each
+  * answer to its request by TID (so every outstanding request needs a TID of its own).
+  *
+  * The client asks for multiplexing (see SocketComms.isMultiplexed()), in which case the server answers
+  * requests concurrently, in whatever order they finish. Servers that don't multiplex (including older
+  * versions) answer strictly in the order sent, which works too, just without the concurrency.
+  * Note such a server sends nothing at all when its listener has no response for a CONSUME_RESPOND
+  * request, so that request is only completed (with null) once the answer to a later one arrives.
+  *
+  * Thread-safety: This class is thread safe.
+  */
+public class XMLSocketClient {
+
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	private static final String CLOSE_TID = "CLOSE";
+
+	final private SocketComms comms;
+	final private String name;						// for logging and naming the reader Thread e.g. localhost:11819
+	final private ReentrantLock sendLock = new ReentrantLock();	// held while a whole request is sent, so requests are registered in the order sent
+	final private ConcurrentHashMap<String,Request> outstanding = new ConcurrentHashMap<String,Request>();	// requests not yet answered, by TID
+	final private ConcurrentLinkedQueue<Request> sendOrder = new ConcurrentLinkedQueue<Request>();	// outstanding requests in the order sent, when not multiplexed
+	final private Thread reader;
+	volatile private boolean closed = false;
+
+	/**
+	  * A request awaiting its answer. Only one of response and consumed is set.
+	  */
+	private static final class Request {
+		final String TID;
+		final CompletableFuture<String> response;		// for sendAndReceive()
+		final CompletableFuture<Boolean> consumed;		// for consume()
+		boolean receiptSeen = false;					// when not multiplexed: true once the receipt for a CONSUME_RESPOND is read
+
+		Request(String TID, CompletableFuture<String> response, CompletableFuture<Boolean> consumed) {
+			this.TID = TID;
+			this.response = response;
+			this.consumed = consumed;
+		}
+
+		/**
+		  * Complete with no answer: null response, or not consumed.
+		  */
+		void completeEmpty() {
+			if (response != null) {
+				response.complete(null);
+			}
+			else {
+				consumed.complete(Boolean.FALSE);
+			}
+		}
+
+		void fail(Throwable t) {
+			if (response != null) {
+				response.completeExceptionally(t);
+			}
+			else {
+				consumed.completeExceptionally(t);
+			}
+		}
+	}
+
+	public XMLSocketClient(String host, int portNumber) throws SocketException {
+		this(host, portNumber, new SocketCommsConfig());
+	}
+
+	/**
+	  * Connect to a server, and start reading its answers.
+	  *
+	  * @param host the host of the server
+	  * @param portNumber the port of the server
+	  * @param config transport settings for the connection. The send window and read timeout are not used,
+	  * 		as only the background Thread may read the connection, and it must wait for as long as requests are outstanding.
+	  *
+	  * @throws SocketException if the connection cannot be made, or is refused by an overloaded server (-1012, see SocketException.getRetryAfter())
+	  */
+	public XMLSocketClient(String host, int portNumber, SocketCommsConfig config) throws SocketException {
+		checkNullArgument(host);
+		checkNullArgument(config);
+
+		this.name = host + ":" + portNumber;
+		SocketCommsConfig clientConfig = new SocketCommsConfig(config).setSendWindow(0).setReadTimeout(0).setMultiplex(true);
+
+		Socket socket;
+		try {
+			socket = new Socket(host, portNumber);
+		}
+		catch(IOException e) {
+			throw new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Could not connect to " + name, e);
+		}
+
+		try {
+			comms = new SocketComms(socket, SocketType.CLIENT, clientConfig);
+			// Read Server Ready message, then move to the best protocol the server offers.
+			comms.readReady(name);
+			comms.upgradeProtocol();
+		}
+		catch(SocketException e) {
+			try { socket.close(); } catch (IOException e1) { /* Ignore */}
+			throw e;
+		}
+
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readAnswers();
+			}
+		}, "XMLSocketClient-" + name);
+		reader.setDaemon(true);
+		reader.start();
+		logger.info("[CLIENT-" + Thread.currentThread().getName() + "]: Connected to " + name + ", multiplexed " + comms.isMultiplexed() + ".");
+	}
+
+	/**
+	  * Send a request for the server's listener to answer (CONSUME_RESPOND).
+	  *
+	  * @param TID the Transaction ID of the request, not shared with any other outstanding request
+	  * @param payload the request
+	  *
+	  * @return completed with the response, or with null if the listener had none.
+	  * 		Completed exceptionally with a SocketException if the request cannot be sent, is refused (see SocketService.REFUSE), or the connection is lost.
+	  */
+	public CompletableFuture<String> sendAndReceive(String TID, String payload) {
+		checkNullArgument(payload);
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		send(new Request(TID, response, null), new SocketTransferMessage(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload));
+		return response;
+	}
+
+	/**
+	  * Send a request of raw bytes (SocketFormat.BINARY) for the server's listener to answer (CONSUME_RESPOND).
+	  * The server must have agreed to BINARY (see SocketComms.isBinary()).
+	  *
+	  * @param TID the Transaction ID of the request, not shared with any other outstanding request
+	  * @param payload the request, sent exactly as is
+	  *
+	  * @return as for sendAndReceive(String, String), or completed exceptionally with error -1013 if the server can't take BINARY
+	  */
+	public CompletableFuture<String> sendAndReceive(String TID, byte[] payload) {
+		checkNullArgument(payload);
+		CompletableFuture<String> response = new CompletableFuture<String>();
+		send(new Request(TID, response, null), new SocketTransferMessage(0, TID, SocketService.CONSUME_RESPOND, payload));
+		return response;
+	}
+
+	/**
+	  * Send a message for the server's listener to consume (CONSUME), without any response.
+	  * There's no need to wait for the result, but no harm either: nothing is blocked meanwhile.
+	  *
+	  * @param TID the Transaction ID of the message, not shared with any other outstanding request
+	  * @param payload the message
+	  *
+	  * @return completed with true if the listener consumed the message.
+	  * 		Completed exceptionally with a SocketException if the message cannot be sent, is refused (see SocketService.REFUSE), or the connection is lost.
+	  */
+	public CompletableFuture<Boolean> consume(String TID, String payload) {
+		checkNullArgument(payload);
+		CompletableFuture<Boolean> consumed = new CompletableFuture<Boolean>();
+		send(new Request(TID, null, consumed), new SocketTransferMessage(0, TID, SocketService.CONSUME, SocketFormat.XML, payload));
+		return consumed;
+	}
+
+	/**
+	  * Send a message of raw bytes (SocketFormat.BINARY) for the server's listener to consume (CONSUME), without any response.
+	  * The server must have agreed to BINARY (see SocketComms.isBinary()).
+	  *
+	  * @param TID the Transaction ID of the message, not shared with any other outstanding request
+	  * @param payload the message, sent exactly as is
+	  *
+	  * @return as for consume(String, String), or completed exceptionally with error -1013 if the server can't take BINARY
+	  */
+	public CompletableFuture<Boolean> consume(String TID, byte[] payload) {
+		checkNullArgument(payload);
+		CompletableFuture<Boolean> consumed = new CompletableFuture<Boolean>();
+		send(new Request(TID, null, consumed), new SocketTransferMessage(0, TID, SocketService.CONSUME, payload));
+		return consumed;
+	}
+
+	/**
+	  * @return the number of requests awaiting an answer
+	  */
+	public int getOutstandingCount() {
+		return outstanding.size();
+	}
+
+	/**
+	  * @return true if the server answers requests concurrently, rather than in the order sent
+	  */
+	public boolean isMultiplexed() {
+		return comms.isMultiplexed();
+	}
+
+	/**
+	  * Tell the server we're finished and close the connection.
+	  * Requests still outstanding are completed exceptionally.
+	  */
+	public void close() {
+		sendLock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			comms.sendMessage(new SocketTransferMessage(0, CLOSE_TID, SocketService.CLOSE, SocketFormat.XML, "Close me"));
+		}
+		catch(SocketException e) {
+			logger.info("[CLIENT-" + Thread.currentThread().getName() + "]: Ignored SocketException sending CLOSE to " + name + ": " + e);
+		}
+		finally {
+			sendLock.unlock();
+		}
+
+		// Unblocks the reader, which fails anything still outstanding, then releases the shelf and buffers it reads into
+		comms.closeSocket();
+	}
+
+	/**
+	  * Register a request, then send it.
+	  */
+	private void send(Request request, SocketTransferMessage message) {
+		checkNullArgument(request.TID);
+
+		sendLock.lock();
+		try {
+			if (closed) {
+				request.fail(new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Connection to " + name + " is closed"));
+				return;
+			}
+			if (outstanding.putIfAbsent(request.TID, request) != null) {
+				throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: A request with TID " + request.TID + " is already outstanding.");
+			}
+			if (!comms.isMultiplexed()) {
+				sendOrder.add(request);
+			}
+
+			try {
+				comms.sendMessage(message);
+			}
+			catch(SocketException e) {
+				forget(request);
+				request.fail(e);
+			}
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	  * Read answers until the connection is closed or lost. Runs in the reader Thread, the only one to read the connection.
+	  */
+	private void readAnswers() {
+		SocketException failure = null;
+		try {
+			while (!comms.next()) {
+				answerReceived();
+			}
+			failure = new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Connection to " + name + " lost");
+		}
+		catch(SocketException e) {
+			failure = e;
+		}
+
+		// Under the lock, so no request can be registered after those outstanding are failed below
+		sendLock.lock();
+		try {
+			if (!closed) {
+				logger.warning("[CLIENT-" + Thread.currentThread().getName() + "]: Stopped reading from " + name + ": " + failure);
+			}
+			closed = true;
+		}
+		finally {
+			sendLock.unlock();
+		}
+		// Here, not in close(), as only this Thread may still be appending to the shelf
+		comms.closeConnection();
+
+		// Nothing more can be answered
+		for (Iterator<Request> it = outstanding.values().iterator(); it.hasNext(); ) {
+			Request request = it.next();
+			it.remove();
+			request.fail(failure);
+		}
+		sendOrder.clear();
+	}
+
+	/**
+	  * Act on the message just read, completing its request if it's the last of the answer.
+	  */
+	private void answerReceived() {
+		String TID = comms.getTID();
+		Request request = (TID == null ? null : outstanding.get(TID));
+		if (request == null) {
+			// Nothing awaits it e.g. the answer to a request that couldn't be sent
+			if (TID != null) {
+				comms.removeMessageForTID(TID);
+			}
+			return;
+		}
+
+		if (comms.isMultiplexed()) {
+			if (comms.getLastService() != SocketService.MORE) { // else part of the answer, left on the shelf
+				complete(request);
+			}
+			return;
+		}
+
+		// Not multiplexed, so the server answers in the order sent. Anything sent earlier still waiting
+		// for its response must have had none.
+		Request earlier;
+		while ((earlier = sendOrder.peek()) != null && earlier != request) {
+			forget(earlier);
+			earlier.completeEmpty();
+		}
+
+		if (comms.getLastService() == SocketService.REFUSE) {
+			// Refused in place of a receipt, so no response is coming
+			complete(request);
+		}
+		else if (!request.receiptSeen) {
+			if (comms.getLastService() == SocketService.MORE) {
+				// Acknowledgement of a part of the request. Not part of any answer...
+				comms.removeMessageForTID(TID);
+			}
+			else if (request.consumed != null) {
+				complete(request);
+			}
+			else {
+				comms.removeMessageForTID(TID);
+				request.receiptSeen = true;
+			}
+		}
+		else if (comms.getLastService() != SocketService.MORE) {
+			complete(request);
+		}
+	}
+
+	/**
+	  * Complete a request with the whole answer, just read, or fail it if the server refused it.
+	  */
+	private void complete(Request request) {
+		StringBuilder answer = comms.getMessageForTID(request.TID);
+		boolean ok = (comms.getLastErrorNo() == 0);
+		comms.removeMessageForTID(request.TID);
+		forget(request);
+
+		if (comms.getLastService() == SocketService.REFUSE) {
+			long retryAfter = Math.max(0, ProtocolOptions.intOption(answer == null ? null : answer.toString(), ProtocolOptions.RETRY_AFTER));
+			request.fail(new SocketException("[CLIENT-" + Thread.currentThread().getName() + "]: Message " + request.TID + " refused by " + name + ": " + answer, -1012, retryAfter));
+			return;
+		}
+
+		if (request.consumed != null) {
+			request.consumed.complete(Boolean.valueOf(ok));
+		}
+		else {
+			request.response.complete(ok && answer != null ? answer.toString() : null);
+		}
+	}
+
+	private void forget(Request request) {
+		outstanding.remove(request.TID);
+		sendOrder.remove(request);
+	}
+
+	/**
+	 * @param o the object to be checked for null.
+	 *
+	 * @throws IllegalArgumentException if o is null
+	 */
+	private void checkNullArgument(Object o) {
+		if ((o == null)) throw new IllegalArgumentException("[CLIENT-" + Thread.currentThread().getName() + "]: Null value received.");
+	}
+}
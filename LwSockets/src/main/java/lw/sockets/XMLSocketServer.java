@@ -2,6 +2,7 @@ package lw.sockets;
 
 import java.util.logging.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.io.*;
 import java.net.*;
@@ -32,44 +33,161 @@ public class XMLSocketServer implements Runnable {
 	final private SynchronousQueue<String> synchQueue;	// synchronize messages between receiving and getting processed/consumed (SynchronousQueue has no space, so blocks on put)
 														// this is required to allow us await instruction to consume or not.
 	final private ExecutorService execPool;				// the pool of threads for handling Accepted Connections
+	final private boolean ownsExecPool;					// true if execPool was created here (so is to be shut down here)
+	final private SocketCommsConfig config;				// transport settings for the server socket and every accepted connection
+	volatile private ExecutorService requestPool = null;	// where multiplexed requests are processed, null to refuse multiplexing
+	final private ShelfBudget shelfBudget;				// shared by every connection, unlimited unless configured, but always counting
+	final private ServerMetrics metrics;				// counted by every connection, and registered over JMX while open
+	final private XMLPreParser preParser;				// shared by every connection, null unless XML messages are parsed
+	final private AdmissionController admission;		// shared by every connection, deciding what is taken on
+	final private ResponseCache responseCache;			// shared by every connection, null unless responses are replayed
 	
 
 
 
 	public XMLSocketServer(ExecutorService execPool, LwIXMLSocketServerListener app, int portNumber) throws SocketException {
-		checkNullArgument(execPool);
-		checkNullArgument(app);
-		
-		this.execPool = execPool;
-		this.app = app;
-		this.portNumber = portNumber;
-		this.synchQueue = null;
-
-		try {
-			servSocket = new ServerSocket(portNumber);
-			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Socket Server created.");
-		}
-		catch(IOException e) {
-			throw new SocketException("LwXMLSocketServer.constructor: Error creating new Server Socket", e);
-		}
+		this(execPool, app, portNumber, null, false, new SocketCommsConfig());
 	}
 
 	public XMLSocketServer(ExecutorService execPool, LwIXMLSocketServerListener app, int portNumber, SynchronousQueue<String> synchQueue) throws SocketException {
+		this(execPool, app, portNumber, synchQueue, false, new SocketCommsConfig());
+	}
+
+	public XMLSocketServer(ExecutorService execPool, LwIXMLSocketServerListener app, int portNumber, SocketCommsConfig config) throws SocketException {
+		this(execPool, app, portNumber, null, false, config);
+	}
+
+	/**
+	  * Create a server that runs each accepted connection in a virtual thread of its own (Java 21 or later).
+	  * There is no pool to size: a connection blocked reading or writing its socket parks its virtual thread
+	  * rather than holding on to a platform thread, so tens of thousands of concurrent connections are practical.
+	  *
+	  * @param app the object that will receive call-backs
+	  * @param portNumber the port on which to listen
+	  *
+	  * @throws SocketException if the running JVM does not support virtual threads, or the server socket cannot be created
+	  */
+	public XMLSocketServer(LwIXMLSocketServerListener app, int portNumber) throws SocketException {
+		this(app, portNumber, new SocketCommsConfig());
+	}
+
+	/**
+	  * Create a server that runs each accepted connection in a virtual thread of its own (Java 21 or later).
+	  *
+	  * @param app the object that will receive call-backs
+	  * @param portNumber the port on which to listen
+	  * @param config transport settings for the server socket and every accepted connection
+	  *
+	  * @throws SocketException if the running JVM does not support virtual threads, or the server socket cannot be created
+	  */
+	public XMLSocketServer(LwIXMLSocketServerListener app, int portNumber, SocketCommsConfig config) throws SocketException {
+		this(VirtualThreads.newVirtualThreadPerTaskExecutor("AcceptedSocket-" + portNumber + "-"), app, portNumber, null, true, config);
+		// A virtual thread per request too, so multiplexing is on offer
+		this.requestPool = execPool;
+	}
+
+	private XMLSocketServer(ExecutorService execPool, LwIXMLSocketServerListener app, int portNumber, SynchronousQueue<String> synchQueue, boolean ownsExecPool, SocketCommsConfig config) throws SocketException {
 		checkNullArgument(execPool);
 		checkNullArgument(app);
+		checkNullArgument(config);
 
 		this.execPool = execPool;
+		this.ownsExecPool = ownsExecPool;
 		this.app = app;
 		this.synchQueue = synchQueue;
 		this.portNumber = portNumber;
+		this.config = config;
+		this.shelfBudget = new ShelfBudget(config.getShelfBudget() > 0 ? config.getShelfBudget() : Long.MAX_VALUE);
+		this.metrics = new ServerMetrics(portNumber, shelfBudget);
+		this.preParser = (config.isParseXML() ? new XMLPreParser() : null);
+		this.admission = new AdmissionController(config);
+		this.responseCache = (config.getResponseCacheSize() > 0 ? new ResponseCache(config, metrics) : null);
 
+		ServerSocket newSocket = null;
 		try {
-			servSocket = new ServerSocket(portNumber);
-			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Socket Server created.");
+			newSocket = new ServerSocket();
+			if (config.getReceiveBufferSize() > 0) {
+				newSocket.setReceiveBufferSize(config.getReceiveBufferSize()); // must be before bind(), for sizes over 64K
+			}
+			newSocket.bind(new InetSocketAddress(portNumber), config.getBacklog());
 		}
 		catch(IOException e) {
+			if (newSocket != null) {
+				try { newSocket.close(); } catch (IOException e1) { /* Ignore */}
+			}
+			// Nothing will ever be run in it
+			if (ownsExecPool) {
+				execPool.shutdownNow();
+			}
 			throw new SocketException("LwXMLSocketServer.constructor: Error creating new Server Socket", e);
 		}
+		servSocket = newSocket;
+		metrics.register("XMLSocketServer");
+		logger.info("[SERVER-" + Thread.currentThread().getName() + "]: Socket Server created.");
+	}
+
+	/**
+	  * Allow clients to multiplex requests over a connection (see SocketComms.isMultiplexed()).
+	  * Each whole request is then processed in, and answered from, a Thread of this pool, so the listener
+	  * call-backs must be thread safe. Servers using virtual threads have one already.
+	  *
+	  * Only affects connections accepted afterwards. The pool is not shut down by this server.
+	  *
+	  * @param requestPool where multiplexed requests are to be processed, or null to refuse multiplexing
+	  */
+	public void setRequestPool(ExecutorService requestPool) {
+		this.requestPool = requestPool;
+	}
+
+	/**
+	  * @return where multiplexed requests are processed, or null if multiplexing is refused
+	  */
+	ExecutorService getRequestPool() {
+		return requestPool;
+	}
+
+	/**
+	  * @return where the requests of connections that aren't multiplexed are processed, one at a time and in order,
+	  * 		or null if in the Thread reading the connection (see SocketCommsConfig.setOrderedDispatch())
+	  */
+	ExecutorService getOrderedPool() {
+		return (config.isOrderedDispatch() ? requestPool : null);
+	}
+
+	/**
+	  * @return the budget shared by the shelves of every connection, unlimited unless set (see SocketCommsConfig.setShelfBudget())
+	  */
+	ShelfBudget getShelfBudget() {
+		return shelfBudget;
+	}
+
+	/**
+	  * @return the metrics of the server, also registered over JMX as lw.sockets:type=XMLSocketServer,port=N while the server is open
+	  */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	  * @return what parses XML messages for every connection, or null if they're not parsed (see SocketCommsConfig.setParseXML())
+	  */
+	XMLPreParser getPreParser() {
+		return preParser;
+	}
+
+	/**
+	  * @return what decides which connections and requests are taken on (see SocketCommsConfig.setMaxConnections(),
+	  * 		setMaxInFlight() and setQueueDelayTarget())
+	  */
+	AdmissionController getAdmission() {
+		return admission;
+	}
+
+	/**
+	  * @return the responses held for replay to resent requests, or null if none are (see SocketCommsConfig.setResponseCacheSize())
+	  */
+	ResponseCache getResponseCache() {
+		return responseCache;
 	}
 
 	/**
@@ -114,15 +232,68 @@ public class XMLSocketServer implements Runnable {
 			
 			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: New client connection accepted.");
 			
-			// May throw LwSocketException
-			AcceptedSocket acceptedSocketConnection = new AcceptedSocket(this, app, incoming, SocketType.SERVER, portNumber);
-			execPool.execute(acceptedSocketConnection);
+			if (!admission.tryOpenConnection()) {
+				refuse(incoming);
+				continue;
+			}
+
+			AcceptedSocket acceptedSocketConnection;
+			try {
+				acceptedSocketConnection = new AcceptedSocket(this, app, incoming, SocketType.SERVER, portNumber, config);
+			}
+			catch(SocketException e) {
+				// Only this connection is lost, not the server
+				logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) LwSocketException setting up new socket connection: " + e);
+				admission.connectionClosed();
+				try { incoming.close(); } catch (IOException e1) { /* Ignore */}
+				continue;
+			}
+
+			try {
+				execPool.execute(acceptedSocketConnection);
+			}
+			catch(RejectedExecutionException e) {
+				// A bounded pool, with no Thread free, so refused at once rather than left unanswered
+				if (logger.isLoggable(Level.FINE)) {
+					logger.fine("[SERVER-" + Thread.currentThread().getName() + "]: New client connection refused, as no Thread free to serve it.");
+				}
+				try {
+					acceptedSocketConnection.refuse();
+				}
+				catch(SocketException e1) {
+					logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) LwSocketException refusing new socket connection: " + e1);
+					try { incoming.close(); } catch (IOException e2) { /* Ignore */}
+				}
+				finally {
+					admission.connectionClosed();
+				}
+				continue;
+			}
 			logger.info("[SERVER-" + Thread.currentThread().getName() + "]: New LwAcceptedSocket object created and executed.");
 		}
 		
 		close(null);
 	}
 	
+	/**
+	  * Refuse a connection at once, from this Thread, rather than leave it waiting for one of the pool.
+	  * The REFUSE fits in a single packet, so goes straight into the socket's send buffer.
+	  *
+	  * @param incoming the connection just accepted
+	  */
+	private void refuse(Socket incoming) {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("[SERVER-" + Thread.currentThread().getName() + "]: New client connection refused, as " + admission.getConnections() + " already open.");
+		}
+		try {
+			new AcceptedSocket(this, app, incoming, SocketType.SERVER, portNumber, config).refuse();
+		}
+		catch(SocketException e) {
+			logger.warning("[SERVER-" + Thread.currentThread().getName() + "]: Caught (and muffled) LwSocketException refusing new socket connection: " + e);
+			try { incoming.close(); } catch (IOException e1) { /* Ignore */}
+		}
+	}
+
 	/**
 	  * Close the connection
 	  *
@@ -134,6 +305,11 @@ public class XMLSocketServer implements Runnable {
 		// LwLogger used when close() is called by
 		// a VM shutdown hook, in which case the logger may be dead (it's shutdown hook may be
 		// executed before ours), so a FileWriter object is used instead.
+		if (ownsExecPool) {
+			execPool.shutdown(); // Connections already running are left to finish
+		}
+		metrics.unregister();
+
 		try {
 			servSocket.close();
 			if (out != null) {
@@ -0,0 +1,110 @@
+package lw.sockets.interfaces;
+
+import java.util.Map;
+
+/**
+  * The metrics of a socket server, as seen over JMX, under the name lw.sockets:type=XMLSocketServer,port=N
+  * (or type=NioXMLSocketServer).
+  *
+  * Counts run from when the server was created. Latencies are in microseconds, each percentile held to within
+  * about 3%.
+  */
+public interface LwIServerMetricsMXBean {
+
+
+//////////////////////////////////////////////////////////////////////////
+//				Start: Interface Methods
+//////////////////////////////////////////////////////////////////////////
+/**
+  * @return the port on which the server listens
+  */
+int getPortNumber();
+
+/**
+  * @return the number of connections open now
+  */
+long getActiveConnections();
+
+/**
+  * @return the number of connections accepted
+  */
+long getTotalConnections();
+
+/**
+  * @return the number of packets received
+  */
+long getFramesIn();
+
+/**
+  * @return the number of packets sent
+  */
+long getFramesOut();
+
+/**
+  * @return the number of bytes received, in whole packets
+  */
+long getBytesIn();
+
+/**
+  * @return the number of bytes sent, in whole packets
+  */
+long getBytesOut();
+
+/**
+  * @return the number of packets received, by the name of their SocketService (MORE counting every part but the last)
+  */
+Map<String, Long> getFramesInByService();
+
+/**
+  * @return the number of packets sent that were parts of a bigger message, other than the last part
+  */
+long getMoreFramesOut();
+
+/**
+  * @return the bytes (2 per char) held on the shelves of every connection for messages still arriving
+  */
+long getShelfBytes();
+
+/**
+  * @return the number of calls made to the listener
+  */
+long getListenerCalls();
+
+long getListenerLatencyP50Micros();
+
+long getListenerLatencyP99Micros();
+
+long getListenerLatencyP999Micros();
+
+long getListenerLatencyMaxMicros();
+
+/**
+  * @return the number of whole requests answered. Latency runs from the last part arriving to the answer being sent.
+  */
+long getRequests();
+
+long getRequestLatencyP50Micros();
+
+long getRequestLatencyP99Micros();
+
+long getRequestLatencyP999Micros();
+
+long getRequestLatencyMaxMicros();
+
+/**
+  * @return the number of connections answered with REFUSE in place of READY, as the server was overloaded
+  */
+long getRefusedConnections();
+
+/**
+  * @return the number of whole requests answered with REFUSE rather than processed, as the server was overloaded
+  */
+long getShedRequests();
+
+/**
+  * @return the number of requests answered from the response cache, or by waiting for a copy already being answered,
+  * 		rather than by the listener (see SocketCommsConfig.setResponseCacheSize())
+  */
+long getReplayedResponses();
+
+}
@@ -0,0 +1,49 @@
+package lw.sockets.interfaces;
+
+import java.util.concurrent.CompletionStage;
+
+import lw.sockets.SocketEvent;
+
+/**
+  * Opt-in variant of LwIXMLSocketServerListener, for listeners whose answers wait on something else e.g. a database
+  * or another service.
+  *
+  * A server given one of these calls messageReceivedAsync() (or messageReceivedAndWantResponseAsync()) in place of
+  * messageReceived() (or messageReceivedAndWantResponse()), and answers the request once the stage returned completes,
+  * from whichever Thread completes it. So no Thread of the server waits for an answer, and thousands of requests can be
+  * outstanding however few Threads the server has. Clients are multiplexed even without a request pool.
+  *
+  * Both methods are called from the Thread reading the connection (for a NioXMLSocketServer, an event loop shared with
+  * many other connections), so must return at once, leaving the work to the stage.
+  *
+  * The requests of a connection that isn't multiplexed are still answered in the order sent, each waiting for the
+  * answer before it. A stage completed exceptionally is passed to handleError(), and answered as for false or null.
+  * Each message packed in a BATCH message is given to messageReceivedAsync(), and all are acknowledged together.
+  *
+  * Not used for a LwIXMLSocketServerStreamListener, whose parts are passed on as they arrive.
+  */
+public interface LwIXMLSocketServerAsyncListener extends LwIXMLSocketServerListener {
+
+
+//////////////////////////////////////////////////////////////////////////
+//				Start: Interface Methods
+//////////////////////////////////////////////////////////////////////////
+/**
+  * Will be called by the supporting object when a message is received.
+  *
+  * @param event holds information on the event
+  *
+  * @return a stage completed with true if the message is to be consumed, otherwise false
+  */
+CompletionStage<Boolean> messageReceivedAsync(SocketEvent event);
+
+/**
+  * Will be called by the supporting object when a message is received, and a response is expected.
+  *
+  * @param event holds information on the event
+  *
+  * @return a stage completed with the response to be sent back over the socket, or null if none
+  */
+CompletionStage<String> messageReceivedAndWantResponseAsync(SocketEvent event);
+
+}
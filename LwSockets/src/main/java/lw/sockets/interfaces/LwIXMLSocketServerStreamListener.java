@@ -0,0 +1,62 @@
+package lw.sockets.interfaces;
+
+import lw.sockets.SocketEvent;
+
+/**
+  * Opt-in variant of LwIXMLSocketServerListener, for messages too big to be held whole.
+  *
+  * A server given one of these never gathers up the parts of a message: each part is passed to messagePartReceived()
+  * as soon as it arrives, then messageStreamEnded() (or messageStreamEndedWantResponse()) is called once the last has,
+  * in place of messageReceived() (or messageReceivedAndWantResponse()). So a message can be parsed and processed as it
+  * arrives, in as little memory as the processing needs.
+  *
+  * The parts of a message are passed in order, all from the Thread reading the connection, which reads nothing more
+  * until each call returns. When the connection is multiplexed, parts of different messages may be interleaved
+  * (use the TID of each event to tell them apart), and the end of each message may be called from another Thread,
+  * though only after all its parts have been passed.
+  *
+  * Many messages cannot be sent in a single BATCH message to such a server, so messageReceived() and
+  * messageReceivedAndWantResponse() are not called.
+  */
+public interface LwIXMLSocketServerStreamListener extends LwIXMLSocketServerListener {
+
+
+//////////////////////////////////////////////////////////////////////////
+//				Start: Interface Methods
+//////////////////////////////////////////////////////////////////////////
+/**
+  * Will be called by the supporting object for each part of a message, as it arrives.
+  * The last part is passed too (and may be empty), before the end of the message is called.
+  *
+  * @param event holds information on the event. getReceivedMessage() returns just this part of the message.
+  */
+void messagePartReceived(SocketEvent event);
+
+/**
+  * Will be called by the supporting object once every part of a message has been passed to messagePartReceived().
+  *
+  * @param event holds information on the event (getReceivedMessage() returns null)
+  *
+  * @return true if the message is to be consumed, otherwise false
+  */
+boolean messageStreamEnded(SocketEvent event);
+
+/**
+  * Will be called by the supporting object once every part of a message has been passed to messagePartReceived(),
+  * when a response is expected.
+  *
+  * @param event holds information on the event (getReceivedMessage() returns null)
+  *
+  * @return the response to be sent back over the socket
+  */
+String messageStreamEndedWantResponse(SocketEvent event);
+
+/**
+  * Will be called by the supporting object when the client gives up on a message part way through.
+  * No more parts of it will be passed.
+  *
+  * @param event holds information on the event (getReceivedMessage() returns null)
+  */
+void messageStreamDiscarded(SocketEvent event);
+
+}
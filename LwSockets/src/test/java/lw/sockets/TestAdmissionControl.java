@@ -0,0 +1,247 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.Test;
+
+/**
+ * Ensure an overloaded server answers with REFUSE, holding a hint of when to try again, rather than queueing
+ * connections and requests it cannot get to.
+ */
+public class TestAdmissionControl {
+
+	@Test
+	public void testQueueDelay() throws InterruptedException {
+		long target = TimeUnit.MILLISECONDS.toNanos(5);
+		AdmissionController admission = new AdmissionController(new SocketCommsConfig().setQueueDelayTarget(5));
+
+		// A burst is let through, however long it waits...
+		assertTrue(admission.admit(10 * target));
+		assertTrue(admission.admit(10 * target));
+		assertEquals(100, admission.retryAfterMillis());
+
+		// ...but once every wait over an interval was too long, the queue is standing
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AdmissionController.INTERVAL) + 10);
+		assertFalse(admission.admit(10 * target));
+		assertTrue("Short waits still let through", admission.admit(target / 2));
+		assertTrue("Waits under twice the target still let through", admission.admit(2 * target));
+
+		// A single short wait in an interval shows the queue drained
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(AdmissionController.INTERVAL) + 10);
+		assertTrue(admission.admit(10 * target));
+
+		assertTrue(new AdmissionController(new SocketCommsConfig()).admit(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception {
+		ExecutorService execPool = Executors.newFixedThreadPool(1);
+		XMLSocketServer server = new XMLSocketServer(execPool, new Echo(null), 11848, SocketCommsConfig.lowLatency().setMaxConnections(1));
+		new Thread(server).start();
+		try {
+			checkMaxConnections(11848, server.getAdmission(), server.getMetrics());
+		} finally {
+			server.terminateProcessing();
+			execPool.shutdownNow();
+		}
+
+		NioXMLSocketServer nioServer = new NioXMLSocketServer(new Echo(null), 11849, 1, SocketCommsConfig.lowLatency().setMaxConnections(1));
+		new Thread(nioServer).start();
+		try {
+			checkMaxConnections(11849, nioServer.getAdmission(), nioServer.getMetrics());
+		} finally {
+			nioServer.terminateProcessing();
+		}
+	}
+
+	@Test
+	public void testSaturatedPool() throws Exception {
+		// One Thread, and nowhere to queue, so a second connection is rejected by the pool itself
+		ThreadPoolExecutor execPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+		XMLSocketServer server = new XMLSocketServer(execPool, new Echo(null), 11857, SocketCommsConfig.lowLatency());
+		new Thread(server).start();
+		try {
+			XMLSocketClient first = new XMLSocketClient("localhost", 11857, SocketCommsConfig.lowLatency());
+			try {
+				assertEquals("<A/>", first.sendAndReceive("1", "<A/>").get(30, TimeUnit.SECONDS));
+				try {
+					new XMLSocketClient("localhost", 11857, SocketCommsConfig.lowLatency()).close();
+					fail("Connection the pool rejected should have been refused");
+				} catch (SocketException e) {
+					assertEquals(-1012, e.getErrorCode());
+				}
+				assertEquals(1, server.getMetrics().getRefusedConnections());
+				// Given back just after the REFUSE is sent
+				for (int i = 0; i < 100 && server.getAdmission().getConnections() > 1; i++) {
+					Thread.sleep(20);
+				}
+				assertEquals("Slot of the refused connection should have been given back", 1, server.getAdmission().getConnections());
+			} finally {
+				first.close();
+			}
+
+			// Still accepting, once the Thread is free again
+			XMLSocketClient next = null;
+			for (int i = 0; i < 100 && next == null; i++) {
+				try {
+					next = new XMLSocketClient("localhost", 11857, SocketCommsConfig.lowLatency());
+				} catch (SocketException e) {
+					assertEquals(-1012, e.getErrorCode());
+					Thread.sleep(20);
+				}
+			}
+			assertNotNull(next);
+			try {
+				assertEquals("<A/>", next.sendAndReceive("2", "<A/>").get(30, TimeUnit.SECONDS));
+			} finally {
+				next.close();
+			}
+		} finally {
+			server.terminateProcessing();
+			execPool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		CountDownLatch slowRelease = new CountDownLatch(1);
+		ExecutorService execPool = Executors.newFixedThreadPool(2);
+		XMLSocketServer server = new XMLSocketServer(execPool, new Echo(slowRelease), 11850, SocketCommsConfig.lowLatency().setMaxInFlight(1));
+		new Thread(server).start();
+
+		XMLSocketClient first = null;
+		XMLSocketClient second = null;
+		try {
+			first = new XMLSocketClient("localhost", 11850, SocketCommsConfig.lowLatency());
+			second = new XMLSocketClient("localhost", 11850, SocketCommsConfig.lowLatency());
+
+			CompletableFuture<String> slow = first.sendAndReceive("SLOW", "<A/>");
+			for (int i = 0; i < 100 && server.getAdmission().getInFlight() == 0; i++) {
+				Thread.sleep(20);
+			}
+			assertEquals(1, server.getAdmission().getInFlight());
+
+			try {
+				second.sendAndReceive("FAST", "<B/>").get(30, TimeUnit.SECONDS);
+				fail("Request over the limit should have been refused");
+			} catch (ExecutionException e) {
+				assertEquals(-1012, ((SocketException) e.getCause()).getErrorCode());
+				assertTrue(((SocketException) e.getCause()).getRetryAfter() >= 100);
+			}
+
+			slowRelease.countDown();
+			assertEquals("<A/>", slow.get(30, TimeUnit.SECONDS));
+			awaitNoneInFlight(server.getAdmission());
+			assertEquals("<B/>", second.sendAndReceive("AGAIN", "<B/>").get(30, TimeUnit.SECONDS));
+			awaitNoneInFlight(server.getAdmission());
+			assertEquals(0, server.getAdmission().getInFlight());
+			assertEquals(1, server.getMetrics().getShedRequests());
+		} finally {
+			slowRelease.countDown();
+			if (first != null) {
+				first.close();
+			}
+			if (second != null) {
+				second.close();
+			}
+			server.terminateProcessing();
+			execPool.shutdownNow();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * With a limit of one connection, a second is refused until the first closes.
+	  */
+	private void checkMaxConnections(int portNumber, AdmissionController admission, ServerMetrics metrics) throws Exception {
+		XMLSocketClient first = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+		try {
+			assertEquals("<A/>", first.sendAndReceive("1", "<A/>").get(30, TimeUnit.SECONDS));
+			try {
+				new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency()).close();
+				fail("Connection over the limit should have been refused");
+			} catch (SocketException e) {
+				assertEquals(-1012, e.getErrorCode());
+				assertTrue(e.getRetryAfter() >= 100);
+			}
+			assertEquals(1, metrics.getRefusedConnections());
+		} finally {
+			first.close();
+		}
+
+		for (int i = 0; i < 100 && admission.getConnections() > 0; i++) {
+			Thread.sleep(20);
+		}
+		XMLSocketClient next = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+		try {
+			assertEquals("<A/>", next.sendAndReceive("2", "<A/>").get(30, TimeUnit.SECONDS));
+		} finally {
+			next.close();
+		}
+	}
+
+	/**
+	  * A request's slot is given back just after its answer is sent, so may not be yet when the answer arrives.
+	  */
+	private void awaitNoneInFlight(AdmissionController admission) throws InterruptedException {
+		for (int i = 0; i < 100 && admission.getInFlight() > 0; i++) {
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	  * Answers every request with the request itself, holding up any with a TID starting SLOW until released.
+	  */
+	private static final class Echo implements LwIXMLSocketServerListener {
+		final private CountDownLatch slowRelease;
+
+		Echo(CountDownLatch slowRelease) {
+			this.slowRelease = slowRelease;
+		}
+
+		@Override
+		public boolean messageReceived(SocketEvent event) {
+			return true;
+		}
+
+		@Override
+		public String messageReceivedAndWantResponse(SocketEvent event) {
+			if (slowRelease != null && event.getTID().startsWith("SLOW")) {
+				try {
+					slowRelease.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return event.getReceivedMessage();
+		}
+
+		@Override
+		public void handleError(SocketEvent event, SocketException exception) {
+		}
+
+		@Override
+		public boolean canCloseServerSocket(SocketEvent event) {
+			return false;
+		}
+
+		@Override
+		public boolean getConsumeMessage() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerAsyncListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure an async listener can have many requests outstanding without a Thread waiting on each, with both server
+ * engines, and that a connection that isn't multiplexed is still answered in the order sent.
+ */
+public class TestAsyncListener {
+	static private final int NUM_REQUESTS = 1000;
+
+	static private final Async listener = new Async();
+	static private XMLSocketServer pooledServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			// No request pool for either
+			pooledServer = new XMLSocketServer(execPool, listener, 11853, SocketCommsConfig.lowLatency());
+			nioServer = new NioXMLSocketServer(listener, 11854, 1, SocketCommsConfig.lowLatency());
+			new Thread(pooledServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testManyOutstandingThreadPerConnection() {
+		sendManyRequests(11853);
+	}
+
+	@Test
+	public void testManyOutstandingNio() {
+		sendManyRequests(11854);
+	}
+
+	@Test
+	public void testInOrderThreadPerConnection() {
+		sendInOrder(11853);
+	}
+
+	@Test
+	public void testInOrderNio() {
+		sendInOrder(11854);
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (pooledServer != null) {
+			pooledServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Have NUM_REQUESTS held by the listener at once, then answer them in reverse order.
+	  */
+	private void sendManyRequests(int portNumber) {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+			assertTrue("Multiplexed without a request pool", client.isMultiplexed());
+			String prefix = "HOLD-" + portNumber + "-";
+			List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+			for (int i = 0; i < NUM_REQUESTS; i++) {
+				responses.add(client.sendAndReceive(prefix + i, "<R>" + i + "</R>"));
+			}
+			for (int i = NUM_REQUESTS - 1; i >= 0; i--) {
+				listener.awaitHeld(prefix + i).complete("<ANSWER>" + i + "</ANSWER>");
+			}
+			for (int i = 0; i < NUM_REQUESTS; i++) {
+				assertEquals("<ANSWER>" + i + "</ANSWER>", responses.get(i).get(30, TimeUnit.SECONDS));
+			}
+
+			int errors = listener.errors.get();
+			CompletableFuture<String> failed = client.sendAndReceive(prefix + "FAIL", "<R/>");
+			listener.awaitHeld(prefix + "FAIL").completeExceptionally(new IllegalStateException("Downstream service unavailable"));
+			assertNull(failed.get(30, TimeUnit.SECONDS));
+			assertEquals(errors + 1, listener.errors.get());
+
+			assertTrue(client.consume("C1", "<A/>").get(30, TimeUnit.SECONDS));
+			assertFalse(client.consume("C2", "<NO/>").get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	  * Send two requests without waiting, and answer the second first: the client, not multiplexed, must still get
+	  * the receipt and response of the first before those of the second.
+	  */
+	private void sendInOrder(int portNumber) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.readReady("localhost:" + portNumber);
+			socketComms.upgradeProtocol();
+			assertFalse(socketComms.isMultiplexed());
+
+			String prefix = "HOLD-" + portNumber + "-";
+			socketComms.sendMessage(new SocketTransferMessage(0, prefix + "1", SocketService.CONSUME_RESPOND, SocketFormat.XML, "<FIRST/>"));
+			socketComms.sendMessage(new SocketTransferMessage(0, prefix + "2", SocketService.CONSUME_RESPOND, SocketFormat.XML, "<SECOND/>"));
+			CompletableFuture<String> first = listener.awaitHeld(prefix + "1");
+			listener.awaitHeld(prefix + "2").complete("<SECOND_ANSWER/>");
+			first.complete("<FIRST_ANSWER/>");
+
+			assertAnswer(socketComms, prefix + "1", "Message consumed");
+			assertAnswer(socketComms, prefix + "1", "<FIRST_ANSWER/>");
+			assertAnswer(socketComms, prefix + "2", "Message consumed");
+			assertAnswer(socketComms, prefix + "2", "<SECOND_ANSWER/>");
+
+			boolean[] consumed = socketComms.sendMessages(Arrays.asList(
+					new SocketTransferMessage(0, "B1", SocketService.CONSUME, SocketFormat.XML, "<A/>"),
+					new SocketTransferMessage(0, "B2", SocketService.CONSUME, SocketFormat.XML, "<NO/>"),
+					new SocketTransferMessage(0, "B3", SocketService.CONSUME, SocketFormat.XML, "<C/>")));
+			assertTrue(Arrays.equals(new boolean[] {true, false, true}, consumed));
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "R", SocketService.CLOSE, SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private void assertAnswer(SocketComms socketComms, String TID, String payload) throws SocketException {
+		assertFalse(socketComms.next());
+		assertEquals(TID, socketComms.getTID());
+		assertEquals(SocketService.CONSUME, socketComms.getLastService());
+		assertEquals(payload, socketComms.removeMessageForTID(TID).toString());
+	}
+
+	/**
+	  * Holds the answer to any request with a TID starting HOLD until the test completes it, and answers the rest
+	  * from another Thread. Consumes anything but <NO/>.
+	  */
+	private static final class Async implements LwIXMLSocketServerAsyncListener {
+		final private ConcurrentHashMap<String,CompletableFuture<String>> held = new ConcurrentHashMap<String,CompletableFuture<String>>();
+		final AtomicInteger errors = new AtomicInteger();
+
+		CompletableFuture<String> awaitHeld(String TID) throws InterruptedException {
+			for (int i = 0; i < 500 && !held.containsKey(TID); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue("Request " + TID + " never reached the listener", held.containsKey(TID));
+			return held.remove(TID);
+		}
+
+		@Override
+		public CompletionStage<Boolean> messageReceivedAsync(final SocketEvent event) {
+			return CompletableFuture.supplyAsync(new Supplier<Boolean>() {
+				@Override
+				public Boolean get() {
+					return Boolean.valueOf(!"<NO/>".equals(event.getReceivedMessage()));
+				}
+			});
+		}
+
+		@Override
+		public CompletionStage<String> messageReceivedAndWantResponseAsync(SocketEvent event) {
+			if (event.getTID().startsWith("HOLD")) {
+				CompletableFuture<String> response = new CompletableFuture<String>();
+				held.put(event.getTID(), response);
+				return response;
+			}
+			return CompletableFuture.completedFuture(event.getReceivedMessage());
+		}
+
+		@Override
+		public boolean messageReceived(SocketEvent event) {
+			fail("Async listener should never be called synchronously");
+			return false;
+		}
+
+		@Override
+		public String messageReceivedAndWantResponse(SocketEvent event) {
+			fail("Async listener should never be called synchronously");
+			return null;
+		}
+
+		@Override
+		public void handleError(SocketEvent event, SocketException exception) {
+			errors.incrementAndGet();
+		}
+
+		@Override
+		public boolean canCloseServerSocket(SocketEvent event) {
+			return false;
+		}
+
+		@Override
+		public boolean getConsumeMessage() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure many small messages sent with sendMessages() are each consumed, in order, and answered together,
+ * with and without the BATCH service.
+ */
+public class TestBatchedSend {
+	static private final String REJECT = "<APP_DEFINED_REQUEST><REJECT/></APP_DEFINED_REQUEST>";
+
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+	static private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener consumer = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				received.add(event.getTID());
+				return !REJECT.equals(event.getReceivedMessage());
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(4);
+			requestPool = Executors.newFixedThreadPool(4);
+			theServer = new XMLSocketServer(execPool, consumer, 11830, SocketCommsConfig.lowLatency());
+			nioServer = new NioXMLSocketServer(consumer, 11831, 1);
+			nioServer.setRequestPool(requestPool);
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testPackUnpack() {
+		List<SocketTransferMessage> messages = messages("T", 3);
+		messages.add(new SocketTransferMessage(0, "12:34", SocketComms.SocketService.CONSUME, SocketComms.SocketFormat.XML, ""));
+
+		List<SocketTransferMessage> unpacked = MessageBatch.unpack(MessageBatch.pack(messages));
+		assertEquals(messages.size(), unpacked.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertEquals(messages.get(i).getTID(), unpacked.get(i).getTID());
+			assertEquals(messages.get(i).getPayload(), unpacked.get(i).getPayload());
+		}
+
+		try {
+			MessageBatch.unpack("2:T15:<A/>");
+			fail("Truncated batch should not unpack");
+		} catch (IllegalArgumentException e) {
+			// Good
+		}
+	}
+
+	@Test
+	public void testSmallBatch() {
+		sendBatch(11830, new SocketCommsConfig(), true, "S", 10);
+	}
+
+	/**
+	 * Ensure a batch too big for a single packet is still answered once.
+	 */
+	@Test
+	public void testBatchInParts() {
+		sendBatch(11830, new SocketCommsConfig(), true, "P", 2000);
+	}
+
+	@Test
+	public void testBatchInPartsWindowed() {
+		sendBatch(11830, new SocketCommsConfig().setSendWindow(4), true, "W", 2000);
+	}
+
+	@Test
+	public void testBatchMultiplexedNio() {
+		sendBatch(11831, new SocketCommsConfig().setMultiplex(true), true, "N", 500);
+	}
+
+	/**
+	 * Ensure a connection left on the original protocol is sent the messages one after another instead.
+	 */
+	@Test
+	public void testWithoutBatch() {
+		sendBatch(11830, new SocketCommsConfig(), false, "L", 50);
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send a batch, every 7th message of which is rejected by the listener, then check each was consumed, in order, as expected.
+	  */
+	private void sendBatch(int portNumber, SocketCommsConfig config, boolean upgrade, String prefix, int numMessages) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, config);
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+			if (upgrade) {
+				assertTrue(socketComms.upgradeProtocol());
+			}
+			assertEquals(upgrade, socketComms.isBatched());
+
+			List<SocketTransferMessage> messages = messages(prefix, numMessages);
+			boolean[] consumed = socketComms.sendMessages(messages);
+
+			assertEquals(numMessages, consumed.length);
+			for (int i = 0; i < numMessages; i++) {
+				assertEquals("Message " + i, i % 7 != 3, consumed[i]);
+			}
+
+			List<String> receivedTIDs = new ArrayList<String>();
+			synchronized(received) {
+				for (String TID : received) {
+					if (TID.startsWith(prefix)) {
+						receivedTIDs.add(TID);
+					}
+				}
+			}
+			assertEquals(numMessages, receivedTIDs.size());
+			for (int i = 0; i < numMessages; i++) {
+				assertEquals(prefix + i, receivedTIDs.get(i));
+			}
+
+			socketComms.sendMessage(new SocketTransferMessage(0, prefix, SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private List<SocketTransferMessage> messages(String prefix, int numMessages) {
+		List<SocketTransferMessage> messages = new ArrayList<SocketTransferMessage>();
+		for (int i = 0; i < numMessages; i++) {
+			String payload = (i % 7 == 3 ? REJECT : "<APP_DEFINED_REQUEST><KEY>" + i + "</KEY></APP_DEFINED_REQUEST>");
+			messages.add(new SocketTransferMessage(0, prefix + i, SocketComms.SocketService.CONSUME, SocketComms.SocketFormat.XML, payload));
+		}
+		return messages;
+	}
+}
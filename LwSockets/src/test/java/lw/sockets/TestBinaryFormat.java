@@ -0,0 +1,250 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure BINARY messages arrive exactly as sent, over both servers, and that legacy packets of multi-byte
+ * characters are never over-filled or split mid-character.
+ */
+public class TestBinaryFormat {
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				ByteBuffer bytes = event.getReceivedBytes();
+				if (bytes != null) {
+					return describe(bytes);
+				}
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			SocketCommsConfig config = SocketCommsConfig.lowLatency().setCompressThreshold(4096);
+			theServer = new XMLSocketServer(execPool, echo, 11839, config);
+			nioServer = new NioXMLSocketServer(echo, 11840, 1, config);
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testBinaryThreadPerConnection() {
+		sendBinary(11839, SocketCommsConfig.lowLatency());
+	}
+
+	@Test
+	public void testBinaryNio() {
+		sendBinary(11840, SocketCommsConfig.lowLatency());
+	}
+
+	@Test
+	public void testBinaryCompressed() {
+		sendBinary(11840, SocketCommsConfig.lowLatency().setCompressThreshold(4096));
+	}
+
+	/**
+	  * Ensure BINARY can't be sent before it's been agreed.
+	  */
+	@Test
+	public void testBinaryNotAgreed() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11839);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+			assertFalse(socketComms.isBinary());
+			try {
+				socketComms.sendMessage(new SocketTransferMessage(0, "N1", SocketComms.SocketService.CONSUME, new byte[] {1, 2, 3}));
+				fail("BINARY should not be sent over the legacy protocol");
+			} catch (SocketException e) {
+				assertEquals(-1013, e.getErrorCode());
+			}
+			socketComms.sendMessage(new SocketTransferMessage(0, "N2", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	/**
+	  * Ensure a BINARY message can be discarded, over both servers.
+	  */
+	@Test
+	public void testBinaryDiscard() {
+		discardBinary(11839);
+		discardBinary(11840);
+	}
+
+	/**
+	  * Ensure multi-byte characters sent in legacy packets arrive intact, however the message is split.
+	  */
+	@Test
+	public void testLegacyMultiByte() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11839);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+
+			StringBuilder wholeMessage = new StringBuilder("<A>");
+			for (int i = 0; i < 2000; i++) {
+				wholeMessage.append("caf\u00e9\ud83d\ude00").append(i);
+			}
+			wholeMessage.append("</A>");
+			socketComms.sendMessage(new SocketTransferMessage(0, "L1", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage.toString()));
+			// Acknowledgements of parts, then the receipt, then the response
+			do {
+				assertFalse(socketComms.next());
+				socketComms.removeMessageForTID("L1");
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(0, socketComms.getLastErrorNo());
+			do {
+				assertFalse(socketComms.next());
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(wholeMessage.toString(), socketComms.getMessageForTID("L1").toString());
+			socketComms.removeMessageForTID("L1");
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "L2", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send a small and a many-part BINARY message, each padded with NULs and whitespace, and expect the server to
+	  * have received exactly the bytes sent.
+	  */
+	private void sendBinary(int portNumber, SocketCommsConfig config) {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", portNumber, config);
+			byte[] small = {0, ' ', 'A', (byte) 0xC3, 0, '\n'};
+			assertEquals(describe(ByteBuffer.wrap(small)), client.sendAndReceive("B1", small).get(30, TimeUnit.SECONDS));
+
+			byte[] large = new byte[3 * FrameV2.MAX_BINARY_DATA_SIZE + 100];
+			for (int i = 0; i < large.length; i++) {
+				large[i] = (byte) (i % 7 == 0 ? 0 : i);
+			}
+			assertEquals(describe(ByteBuffer.wrap(large)), client.sendAndReceive("B2", large).get(30, TimeUnit.SECONDS));
+			assertTrue(client.consume("B3", new byte[0]).get(30, TimeUnit.SECONDS));
+			assertEquals("<A/>", client.sendAndReceive("B4", "<A/>").get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	  * Send a DISCARD of a BINARY message, and expect it to be answered.
+	  */
+	private void discardBinary(int portNumber) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+			assertTrue(socketComms.upgradeProtocol());
+			assertTrue(socketComms.isBinary());
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "D1", SocketComms.SocketService.DISCARD, new byte[] {1, 2, 3}));
+			assertFalse(socketComms.next());
+			assertEquals(SocketComms.SocketService.DISCARD, socketComms.getLastService());
+			assertEquals("D1", socketComms.getTID());
+			socketComms.removeMessageForTID("D1");
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "D2", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	static private String describe(ByteBuffer bytes) {
+		byte[] copy = new byte[bytes.remaining()];
+		bytes.duplicate().get(copy);
+		return "<BYTES length=\"" + copy.length + "\" hash=\"" + Arrays.hashCode(copy) + "\"/>";
+	}
+}
@@ -0,0 +1,174 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure pooled buffers are re-used by size class, given back only once released by everything holding them,
+ * reported if dropped without being released, and that an NIO server gives back all it uses.
+ */
+public class TestBufferPool {
+	static private NioXMLSocketServer nioServer;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			nioServer = new NioXMLSocketServer(echo, 11838, 1, SocketCommsConfig.lowLatency().setCompressThreshold(4096));
+			nioServer.getBufferPool().setLeakDetection(true);
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		PooledBuffer small = pool.acquire(10);
+		assertEquals(BufferPool.MIN_CLASS_SIZE, small.buffer().capacity());
+		assertTrue(small.buffer().isDirect());
+		PooledBuffer medium = pool.acquire(BufferPool.MIN_CLASS_SIZE + 1);
+		assertEquals(2 * BufferPool.MIN_CLASS_SIZE, medium.buffer().capacity());
+		PooledBuffer huge = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+		assertEquals(BufferPool.MAX_CLASS_SIZE + 1, huge.buffer().capacity());
+		assertEquals(3, pool.getInUseCount());
+
+		ByteBuffer reused = medium.buffer();
+		medium.release();
+		huge.release(); // too big to keep
+		assertEquals(2 * BufferPool.MIN_CLASS_SIZE, pool.getPooledBytes());
+		assertSame(reused, pool.acquire(2000).buffer());
+		assertEquals(1, pool.getReusedCount());
+		assertEquals(3, pool.getAllocatedCount());
+		assertEquals(0, pool.getPooledBytes());
+		small.release();
+	}
+
+	@Test
+	public void testMaxPooledBytes() {
+		BufferPool pool = new BufferPool(BufferPool.MIN_CLASS_SIZE);
+		PooledBuffer first = pool.acquire(1);
+		PooledBuffer second = pool.acquire(1);
+		first.release();
+		second.release(); // pool already full
+		assertEquals(BufferPool.MIN_CLASS_SIZE, pool.getPooledBytes());
+		assertEquals(0, pool.getInUseBytes());
+	}
+
+	@Test
+	public void testRefCount() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		PooledBuffer buffer = pool.acquire(100);
+		buffer.retain();
+		assertFalse(buffer.release());
+		assertEquals(0, pool.getPooledBytes());
+		assertTrue(buffer.release());
+		assertEquals(BufferPool.MIN_CLASS_SIZE, pool.getPooledBytes());
+		try {
+			buffer.release();
+			fail("Released more times than retained should be refused");
+		} catch (IllegalStateException e) {
+			// As expected
+		}
+		try {
+			buffer.retain();
+			fail("Retained after release should be refused");
+		} catch (IllegalStateException e) {
+			// As expected
+		}
+	}
+
+	@Test
+	public void testLeakDetection() throws InterruptedException {
+		BufferPool pool = new BufferPool(1024 * 1024).setLeakDetection(true);
+		pool.acquire(100); // dropped without release
+		pool.acquire(100).release();
+		assertEquals(1, pool.getInUseCount());
+
+		for (int i = 0; i < 50 && pool.getLeakedCount() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+			pool.reportLeaks();
+		}
+		assertEquals(1, pool.getLeakedCount());
+		assertEquals(0, pool.getInUseCount());
+	}
+
+	/**
+	  * Ensure every buffer used for a connection is given back once it closes.
+	  */
+	@Test
+	public void testNioConnectionGivesBack() throws Exception {
+		BufferPool pool = nioServer.getBufferPool();
+		XMLSocketClient client = new XMLSocketClient("localhost", 11838, SocketCommsConfig.lowLatency().setCompressThreshold(4096));
+		try {
+			String wholeMessage = largeMessage();
+			assertEquals(wholeMessage, client.sendAndReceive("P1", wholeMessage).get(30, TimeUnit.SECONDS));
+			assertEquals("<A/>", client.sendAndReceive("P2", "<A/>").get(30, TimeUnit.SECONDS));
+			assertTrue(pool.getInUseCount() > 0);
+		} finally {
+			client.close();
+		}
+
+		for (int i = 0; i < 100 && pool.getInUseCount() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(pool.toString(), 0, pool.getInUseCount());
+		assertTrue(pool.getPooledBytes() > 0);
+		assertEquals(0, pool.getLeakedCount());
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private String largeMessage() {
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 50000; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		return wholeMessage.append("</APP_DEFINED_REQUEST>").toString();
+	}
+}
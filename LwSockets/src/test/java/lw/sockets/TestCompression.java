@@ -0,0 +1,172 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure big messages go compressed, in far fewer parts, both ways and with both server engines,
+ * and arrive exactly as sent.
+ */
+public class TestCompression {
+	static private final int COMPRESS_THRESHOLD = 4096;
+
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			theServer = new XMLSocketServer(execPool, echo, 11832, SocketCommsConfig.lowLatency().setCompressThreshold(COMPRESS_THRESHOLD));
+			nioServer = new NioXMLSocketServer(echo, 11833, 1, SocketCommsConfig.lowLatency().setCompressThreshold(COMPRESS_THRESHOLD));
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testCompressedThreadPerConnection() {
+		sendLargeMsg(11832, SocketCommsConfig.lowLatency().setCompressThreshold(COMPRESS_THRESHOLD), "C1");
+	}
+
+	@Test
+	public void testCompressedNio() {
+		sendLargeMsg(11833, SocketCommsConfig.lowLatency().setCompressThreshold(COMPRESS_THRESHOLD).setSendWindow(4), "C2");
+	}
+
+	/**
+	 * Ensure a client that never compresses is still sent, and can read, compressed responses.
+	 */
+	@Test
+	public void testCompressedResponseOnly() {
+		sendLargeMsg(11832, SocketCommsConfig.lowLatency(), "C3");
+	}
+
+	@Test
+	public void testCompressedXMLSocketClient() {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", 11833, SocketCommsConfig.lowLatency().setCompressThreshold(COMPRESS_THRESHOLD));
+			String wholeMessage = largeMessage();
+			assertEquals(wholeMessage, client.sendAndReceive("C4", wholeMessage).get(30, TimeUnit.SECONDS));
+			assertEquals(wholeMessage, client.sendAndReceive("C5", wholeMessage).get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send about 1MB (60 or so uncompressed version 2 packets), expecting the same back in a handful of compressed parts.
+	  */
+	private void sendLargeMsg(int portNumber, SocketCommsConfig config, String TID) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, config);
+			socketComms.next(); // Read Server Ready message.
+			assertTrue(socketComms.upgradeProtocol());
+			assertTrue(socketComms.isCompressed());
+
+			String wholeMessage = largeMessage();
+			socketComms.sendMessage(new SocketTransferMessage(0, TID, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+			// Receipt, and any acknowledgements of parts...
+			do {
+				assertFalse(socketComms.next());
+				socketComms.removeMessageForTID(TID);
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(0, socketComms.getLastErrorNo());
+
+			// ...then the response, in parts
+			int numParts = 0;
+			do {
+				assertFalse(socketComms.next());
+				numParts++;
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+
+			assertEquals(wholeMessage, socketComms.getMessageForTID(TID).toString());
+			assertTrue("Compressed response should be in a handful of parts, but was in " + numParts, numParts <= (wholeMessage.length() / FrameV2.MAX_COMPRESSED_DATA_SIZE) + 1);
+			socketComms.removeMessageForTID(TID);
+
+			socketComms.sendMessage(new SocketTransferMessage(0, TID, SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private String largeMessage() {
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 50000; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		return wholeMessage.append("</APP_DEFINED_REQUEST>").toString();
+	}
+}
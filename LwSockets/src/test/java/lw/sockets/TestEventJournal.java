@@ -0,0 +1,138 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+
+import org.junit.Test;
+
+/**
+ * Ensure the event journal records the packets of every connection given it, cheaply: nothing when the logger
+ * wouldn't log it, one event in so many when sampling, and dropping rather than waiting when full.
+ */
+public class TestEventJournal {
+
+	@Test
+	public void testPacketsJournalled() throws Exception {
+		Path file = Files.createTempFile("TestEventJournal", ".log");
+		EventJournal journal = new EventJournal(1024, file).start();
+		SocketCommsConfig config = SocketCommsConfig.lowLatency().setEventJournal(journal);
+
+		ExecutorService execPool = Executors.newFixedThreadPool(2);
+		XMLSocketServer server = new XMLSocketServer(execPool, new ExampleSocketServer(), 11847, config);
+		new Thread(server).start();
+		try {
+			XMLSocketClient client = new XMLSocketClient("localhost", 11847, config);
+			try {
+				assertNotNull(client.sendAndReceive("J1", "<SECRET>1234</SECRET>").get(30, TimeUnit.SECONDS));
+			} finally {
+				client.close();
+			}
+		} finally {
+			server.terminateProcessing();
+			execPool.shutdown();
+		}
+		// The server's Thread may still be journalling its last packet after the client has the answer
+		assertTrue(execPool.awaitTermination(10, TimeUnit.SECONDS));
+		journal.close();
+		assertEquals(0, journal.getPendingCount());
+		assertEquals(0, journal.getDroppedCount());
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		Files.delete(file);
+		assertTrue(contains(lines, "[SERVER-", "Received CONSUME_RESPOND XML errNo=0 TID=J1"));
+		assertTrue(contains(lines, "[CLIENT-", "Sent CONSUME_RESPOND XML errNo=0 TID=J1"));
+		assertTrue(contains(lines, "[SERVER-", "Sent CONSUME XML errNo=0 TID=J1"));
+		// Payloads are left out unless asked for
+		assertFalse(contains(lines, "", "SECRET"));
+	}
+
+	@Test
+	public void testPayloadLogging() throws Exception {
+		Path file = Files.createTempFile("TestEventJournal", ".log");
+		EventJournal journal = new EventJournal(16, file).setPayloadLogging(true).start();
+		StringBuilder longPayload = new StringBuilder();
+		while (longPayload.length() < 2 * EventJournal.MAX_PAYLOAD_CHARS) {
+			longPayload.append("0123456789");
+		}
+		journal.packetSent(SocketType.CLIENT, 0, "P1", SocketService.CONSUME, SocketFormat.XML, 100, "xx<A/>xx", 2, 6);
+		journal.packetSent(SocketType.CLIENT, 0, "P2", SocketService.CONSUME, SocketFormat.XML, 100, longPayload, 0, longPayload.length());
+		journal.close();
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		Files.delete(file);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).endsWith("TID=P1 bytes=100 payload=[<A/>]"));
+		assertTrue(lines.get(1).endsWith("payload=[" + longPayload.substring(0, EventJournal.MAX_PAYLOAD_CHARS) + "]"));
+	}
+
+	@Test
+	public void testDroppedWhenFull() throws Exception {
+		Path file = Files.createTempFile("TestEventJournal", ".log");
+		EventJournal journal = new EventJournal(3, file); // rounded up to 4, and not yet started
+		for (int i = 0; i < 10; i++) {
+			journal.packetSent(SocketType.SERVER, 0, "D" + i, SocketService.CONSUME, SocketFormat.XML, 100, null, 0, 0);
+		}
+		assertEquals(4, journal.getPendingCount());
+		assertEquals(6, journal.getDroppedCount());
+
+		journal.start().close();
+		assertEquals(0, journal.getPendingCount());
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		Files.delete(file);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(3).contains("TID=D3 "));
+	}
+
+	@Test
+	public void testSampling() throws Exception {
+		Path file = Files.createTempFile("TestEventJournal", ".log");
+		EventJournal journal = new EventJournal(16384, file).setSampleEvery(10);
+		for (int i = 0; i < 10000; i++) {
+			journal.packetSent(SocketType.SERVER, 0, "S", SocketService.CONSUME, SocketFormat.XML, 100, null, 0, 0);
+		}
+		assertEquals(1000, journal.getPendingCount(), 200);
+		journal.start().close();
+		Files.delete(file);
+	}
+
+	@Test
+	public void testNothingRecordedWhenNotLogged() {
+		Logger logger = Logger.getLogger("gemha");
+		Level previous = logger.getLevel();
+		logger.setLevel(Level.WARNING);
+		try {
+			EventJournal journal = new EventJournal(16); // logged at INFO
+			journal.packetSent(SocketType.SERVER, 0, "N", SocketService.CONSUME, SocketFormat.XML, 100, null, 0, 0);
+			assertEquals(0, journal.getPendingCount());
+			assertEquals(0, journal.getDroppedCount());
+		} finally {
+			logger.setLevel(previous);
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private boolean contains(List<String> lines, String side, String event) {
+		for (String line : lines) {
+			if (line.contains(side) && line.contains(event)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,183 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+
+import org.junit.Test;
+
+/**
+ * Check FrameDecoder parses what FrameEncoder builds, exactly as the old String-based parsing did.
+ */
+public class TestFrameDecoder {
+	static private final int MESSAGE_SIZE = 1024;
+
+	private final FrameEncoder encoder = new FrameEncoder(MESSAGE_SIZE, MESSAGE_SIZE - 18 - 255, null);
+	private final FrameDecoder decoder = new FrameDecoder();
+
+	@Test
+	public void testLegacyPacket() {
+		SocketTransferMessage message = decodeLegacy(-12, "TID123", SocketService.CONSUME_RESPOND, "  <A>some data</A>  ");
+
+		assertEquals(-12, message.getErrNo());
+		assertEquals("TID123", message.getTID());
+		assertEquals(SocketService.CONSUME_RESPOND, message.getService());
+		assertEquals(SocketFormat.XML, message.getFormat());
+		assertEquals("<A>some data</A>", message.getPayload());
+	}
+
+	@Test
+	public void testLegacyPacketEmptyTIDAndPayload() {
+		SocketTransferMessage message = decodeLegacy(0, "", SocketService.CLOSE, "");
+
+		assertEquals("", message.getTID());
+		assertEquals("", message.getPayload());
+	}
+
+	@Test
+	public void testLegacyPacketNonAsciiTID() {
+		String TID = "caf\u00e9-\u00fcber";
+		String payload = "<A>\u00e9t\u00e9</A>";
+		SocketTransferMessage message = decodeLegacy(1, TID, SocketService.MORE, payload);
+
+		// Legacy packets are UTF-8, whatever the platform charset
+		assertEquals(TID, message.getTID());
+		assertEquals(payload, message.getPayload());
+	}
+
+	@Test
+	public void testLegacyErrNo() {
+		ByteBuffer packet = encoder.encodeLegacy(999, "", SocketService.CLOSE, SocketFormat.XML, "", 0, 0);
+
+		assertEquals(999, FrameDecoder.legacyErrNo(packet.array(), 0));
+	}
+
+	@Test
+	public void testV2Packet() {
+		String TID = "caf\u00e9";
+		String payload = "<A>\u00e9t\u00e9 \ud83d\ude00</A>";
+		ByteBuffer packet = encoder.encodeV2(-300, TID, SocketService.CONSUME, SocketFormat.XML, payload, 0, payload.length(), false);
+		byte[] bytes = new byte[packet.remaining() + 5];
+		packet.get(bytes, 5, packet.remaining());
+
+		SocketTransferMessage message = decodeV2(bytes, 5);
+
+		assertEquals(-300, message.getErrNo());
+		assertEquals(TID, message.getTID());
+		assertEquals(SocketService.CONSUME, message.getService());
+		assertEquals(SocketFormat.XML, message.getFormat());
+		assertEquals(payload, message.getPayload());
+	}
+
+	@Test
+	public void testV2PacketCompressed() {
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; payload.length() < FrameV2.MAX_COMPRESSED_DATA_SIZE - 100; i++) {
+			payload.append("<KEY>\u00e9").append(i).append("</KEY>");
+		}
+		byte[] bytes = encodeV2("T1", payload.toString(), true);
+
+		assertEquals(FrameV2.FLAG_COMPRESSED, bytes[5]);
+		assertTrue("Compressed packet should be far smaller, but was " + bytes.length, bytes.length < payload.length() / 4);
+		assertEquals(payload.toString(), decodeV2(bytes, 0).getPayload());
+	}
+
+	/**
+	 * Ensure a payload that doesn't get any smaller is sent as it is.
+	 */
+	@Test
+	public void testV2PacketNotWorthCompressing() {
+		byte[] bytes = encodeV2("T2", "<A/>", true);
+
+		assertEquals(0, bytes[5]);
+		assertEquals("<A/>", decodeV2(bytes, 0).getPayload());
+	}
+
+	@Test
+	public void testV2PacketBadCompressedPayload() {
+		byte[] bytes = encodeV2("T3", "<A>not compressed</A>", false);
+		bytes[5] = FrameV2.FLAG_COMPRESSED;
+
+		try {
+			decoder.decodeV2(bytes, 0);
+			fail("Payload that isn't compressed data should not be expanded");
+		} catch (SocketException e) {
+			assertEquals(-1011, e.getErrorCode());
+		}
+	}
+
+	/**
+	 * Ensure a legacy packet holds only as many chars as fit once encoded, never splitting a surrogate pair.
+	 */
+	@Test
+	public void testLegacyDataEndMultiByte() {
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			data.append("\u00e9\ud83d\ude00");
+		}
+		int room = MESSAGE_SIZE - 18 - 255;
+		int end = encoder.legacyDataEnd("T1", data, 0, data.length());
+		String part = data.substring(0, end);
+		int partBytes = part.getBytes(Charset.forName("UTF-8")).length;
+
+		assertTrue("Part of " + partBytes + " bytes doesn't fit", partBytes <= room);
+		assertFalse(Character.isHighSurrogate(part.charAt(part.length() - 1)));
+		assertEquals(part, decodeLegacy(0, "T1", SocketService.MORE, part).getPayload());
+
+		// All ASCII, so one byte per char
+		assertEquals(room, encoder.legacyDataEnd("T1", new String(new char[1500]).replace('\0', 'x'), 0, 1500));
+	}
+
+	/**
+	 * Ensure bytes arrive exactly as sent, NULs and whitespace included.
+	 */
+	@Test
+	public void testV2BinaryPacket() {
+		byte[] payload = {0, ' ', 1, (byte) 0xFF, 0, '\n', 0};
+		for (boolean compress : new boolean[] {false, true}) {
+			ByteBuffer packet = encoder.encodeV2(7, "B1", SocketService.CONSUME_RESPOND, payload, 0, payload.length, compress);
+			byte[] bytes = new byte[packet.remaining()];
+			packet.get(bytes);
+
+			SocketTransferMessage message = decodeV2(bytes, 0);
+			assertEquals(7, message.getErrNo());
+			assertEquals("B1", message.getTID());
+			assertEquals(SocketFormat.BINARY, message.getFormat());
+			assertNull(message.getPayload());
+			assertArrayEquals(payload, message.getBinaryPayload());
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private SocketTransferMessage decodeLegacy(int errNo, String TID, SocketService service, String payload) {
+		ByteBuffer packet = encoder.encodeLegacy(errNo, TID, service, SocketFormat.XML, payload, 0, payload.length());
+		byte[] bytes = new byte[packet.remaining()];
+		packet.get(bytes);
+		assertEquals(MESSAGE_SIZE, bytes.length);
+
+		return decoder.decodeLegacy(bytes, 0, bytes.length);
+	}
+
+	private byte[] encodeV2(String TID, String payload, boolean compress) {
+		ByteBuffer packet = encoder.encodeV2(0, TID, SocketService.CONSUME, SocketFormat.XML, payload, 0, payload.length(), compress);
+		byte[] bytes = new byte[packet.remaining()];
+		packet.get(bytes);
+		return bytes;
+	}
+
+	private SocketTransferMessage decodeV2(byte[] bytes, int offset) {
+		try {
+			return decoder.decodeV2(bytes, offset);
+		} catch (SocketException e) {
+			fail("Could not decode packet: Exception: " + e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Ensure the load generator drives both kinds of loop against its echo server, and that latencies are corrected
+ * for coordinated omission.
+ */
+public class TestLoadGenerator {
+
+	@Test
+	public void testRecordCorrected() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// A 10ms stall, when requests were expected every 1ms, held up 9 more requests for 9ms, 8ms ... 1ms
+		histogram.recordCorrected(TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(1));
+		assertEquals(10, histogram.getCount());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10), histogram.getMax());
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), histogram.getValueAtPercentile(50), TimeUnit.MILLISECONDS.toNanos(5) / LatencyHistogram.SUB_BUCKETS);
+
+		// No faster than expected, so nothing to back-fill
+		histogram.recordCorrected(500, 1000);
+		histogram.recordCorrected(500, 0);
+		assertEquals(12, histogram.getCount());
+	}
+
+	@Test
+	public void testClosedLoop() throws SocketException {
+		LoadGenerator.Report report = new LoadGenerator()
+				.setConnections(2)
+				.setDuration(300, 700)
+				.setPayloadMix("100:3,20000:1")
+				.setRespondRatio(0.5)
+				.runWithEchoServer(11845);
+
+		assertReport(report);
+		assertTrue(report.getRequests() > 0);
+		assertEquals(0, report.getErrors());
+		assertTrue(report.getCorrected().getCount() >= report.getRequests());
+		assertTrue(report.getThroughput() > 0);
+	}
+
+	@Test
+	public void testOpenLoop() throws SocketException {
+		LoadGenerator.Report report = new LoadGenerator()
+				.setConnections(2)
+				.setRate(200)
+				.setDuration(200, 1000)
+				.runWithEchoServer(11846);
+
+		assertReport(report);
+		assertEquals(0, report.getErrors());
+		assertEquals(0, report.getUnsent());
+		// The schedule is kept to, on loopback
+		assertEquals(200, report.getRequests(), 10);
+		assertEquals(200, report.getThroughput(), 10);
+		// Each latency runs from when the request was due, so can't be less than its service time
+		assertTrue(report.getCorrected().getValueAtPercentile(50) >= report.getServiceTime().getValueAtPercentile(50) - report.getServiceTime().getValueAtPercentile(50) / LatencyHistogram.SUB_BUCKETS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPayloadMix() {
+		new LoadGenerator().setPayloadMix("100:3,big:1");
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Check every figure the report prints is there, and makes sense.
+	  */
+	private void assertReport(LoadGenerator.Report report) {
+		assertTrue(report.getErrors() >= 0);
+		assertTrue(report.getUnsent() >= 0);
+		assertTrue(report.getThroughput() >= 0);
+		assertPercentiles(report.getCorrected());
+		assertPercentiles(report.getServiceTime());
+
+		String printed = report.toString();
+		assertTrue(printed.contains(report.getRequests() + " requests"));
+		assertTrue(printed.contains("corrected"));
+		assertTrue(printed.contains("service time"));
+	}
+
+	/**
+	  * Check each percentile the report prints is present, non-negative and no more than those above it.
+	  */
+	private void assertPercentiles(LatencyHistogram histogram) {
+		assertTrue(histogram.getCount() > 0);
+		long previous = 0;
+		for (double percentile : new double[] {50, 90, 99, 99.9, 99.99}) {
+			long value = histogram.getValueAtPercentile(percentile);
+			assertTrue("p" + percentile + " should be at least the percentile below it", value >= previous);
+			previous = value;
+		}
+		assertTrue(histogram.getMax() >= previous - previous / LatencyHistogram.SUB_BUCKETS);
+	}
+}
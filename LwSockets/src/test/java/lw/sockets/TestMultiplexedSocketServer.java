@@ -0,0 +1,209 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure many requests can be outstanding on one connection, with both server engines, and that a slow one
+ * doesn't hold up those sent after it.
+ */
+public class TestMultiplexedSocketServer {
+	static private final int NUM_REQUESTS = 50;
+	static private final String SLOW_REQUEST = "<APP_DEFINED_REQUEST><SLOW/></APP_DEFINED_REQUEST>";
+
+	static private XMLSocketServer pooledServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				if (SLOW_REQUEST.equals(event.getReceivedMessage())) {
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				// No response for an empty request
+				return (event.getReceivedMessage().length() == 0 ? null : event.getReceivedMessage());
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			requestPool = Executors.newFixedThreadPool(8);
+			pooledServer = new XMLSocketServer(execPool, echo, 11824);
+			pooledServer.setRequestPool(requestPool);
+			nioServer = new NioXMLSocketServer(echo, 11825, 1);
+			nioServer.setRequestPool(requestPool);
+			new Thread(pooledServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testOutOfOrderResponsesThreadPerConnection() {
+		sendManyRequests(11824);
+	}
+
+	@Test
+	public void testOutOfOrderResponsesNio() {
+		sendManyRequests(11825);
+	}
+
+	/**
+	 * Ensure a server without a request pool turns multiplexing down, leaving the conversation as it was.
+	 */
+	@Test
+	public void testMultiplexRefused() {
+		XMLSocketServer server = null;
+		Socket s = null;
+		try {
+			server = new XMLSocketServer(execPool, new ExampleSocketServer(), 11826);
+			new Thread(server).start();
+
+			s = new Socket("localhost", 11826);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, new SocketCommsConfig().setMultiplex(true));
+			socketComms.next(); // Read Server Ready message.
+			assertTrue(socketComms.upgradeProtocol());
+			assertFalse(socketComms.isMultiplexed());
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "R", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+			if (server != null) {
+				server.terminateProcessing();
+			}
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (pooledServer != null) {
+			pooledServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send a slow request, then many quick ones, without waiting for any answers. Then read the answers,
+	  * which must each match its request by TID, with the slow one last.
+	  */
+	private void sendManyRequests(int portNumber) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, new SocketCommsConfig().setMultiplex(true));
+			socketComms.next(); // Read Server Ready message.
+			assertTrue(socketComms.upgradeProtocol());
+			assertTrue(socketComms.isMultiplexed());
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "SLOW", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, SLOW_REQUEST));
+			for (int i = 0; i < NUM_REQUESTS; i++) {
+				socketComms.sendMessage(new SocketTransferMessage(0, "M" + i, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, request(i)));
+			}
+			socketComms.sendMessage(new SocketTransferMessage(0, "EMPTY", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, ""));
+
+			Set<String> answered = new HashSet<String>();
+			while (answered.size() < NUM_REQUESTS + 2) {
+				assertFalse("Connection lost", socketComms.next());
+				String TID = socketComms.getTID();
+				if (socketComms.getLastService() == SocketComms.SocketService.MORE) {
+					continue;
+				}
+				assertEquals(SocketComms.SocketService.CONSUME, socketComms.getLastService());
+
+				if (TID.equals("SLOW")) {
+					assertEquals("The slow request should be answered last", NUM_REQUESTS + 1, answered.size());
+					assertEquals(SLOW_REQUEST, socketComms.getMessageForTID(TID).toString());
+				}
+				else if (TID.equals("EMPTY")) {
+					assertEquals(1, socketComms.getLastErrorNo());
+				}
+				else {
+					assertEquals(0, socketComms.getLastErrorNo());
+					assertEquals(request(Integer.parseInt(TID.substring(1))), socketComms.getMessageForTID(TID).toString());
+				}
+				assertTrue("Answered twice: " + TID, answered.add(TID));
+				socketComms.removeMessageForTID(TID);
+			}
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "M", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private String request(int i) {
+		StringBuilder request = new StringBuilder("<APP_DEFINED_REQUEST>");
+		// Every 10th big enough to go in parts, so parts of different answers are interleaved
+		int numKeys = (i % 10 == 0 ? 3000 : 1);
+		for (int k = 0; k < numKeys; k++) {
+			request.append("<KEY>").append(i).append('.').append(k).append("</KEY>");
+		}
+		return request.append("</APP_DEFINED_REQUEST>").toString();
+	}
+}
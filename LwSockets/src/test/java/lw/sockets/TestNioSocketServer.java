@@ -0,0 +1,397 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestNioSocketServer {
+	// This is created BEFORE the class is instantiated
+	static private  NioXMLSocketServer theServer;
+
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	static private final String THROW_REQUEST = "<THROW/>";
+
+	@BeforeClass
+	static public  void classSetup() {
+		try {
+			// Only 2 event loops, so the many-connections test has to share them
+			theServer = new NioXMLSocketServer(new LwIXMLSocketServerListener() {
+				@Override
+				public boolean messageReceived(SocketEvent event) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Mesage for TID " + event.getTID() + " received.");
+					assertEquals(11820, event.getPortNumber());
+					assertEquals("<APP_DEFINED_REQUEST><KEY>2345</KEY><STATUS>SUCCESS</STATUS></APP_DEFINED_REQUEST>", event.getReceivedMessage());
+					return true;
+				}
+
+				@Override
+				public String messageReceivedAndWantResponse(SocketEvent event) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Mesage for TID " + event.getTID() + " received.");
+					assertEquals(11820, event.getPortNumber());
+					if (THROW_REQUEST.equals(event.getReceivedMessage())) {
+						throw new IllegalStateException("Listener failed");
+					}
+					return event.getReceivedMessage();
+				}
+
+				@Override
+				public void handleError(SocketEvent event, SocketException exception) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Exception was: " + exception);
+				}
+
+				@Override
+				public boolean canCloseServerSocket(SocketEvent event) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Request to close received with TID " + event.getTID());
+					return true;
+				}
+
+				@Override
+				public boolean getConsumeMessage() {
+					return true;
+				}
+			}
+			, 11820, 2);
+
+			new Thread(theServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	/**
+	 * Ensure correct msg is received by server, when sent asynchronously.
+	 */
+	@Test
+	public void testSendMsgAsynch() {
+		Socket s = openSocket();
+		SocketComms socketComms = openClientComms(s);
+
+		String wholeMessage = "<APP_DEFINED_REQUEST><KEY>2345</KEY><STATUS>SUCCESS</STATUS></APP_DEFINED_REQUEST>";
+
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "1", SocketComms.SocketService.CONSUME, SocketComms.SocketFormat.XML, wholeMessage));
+			socketComms.next();
+			assertEquals(0, socketComms.getLastErrorNo());
+			assertEquals("Message consumed", socketComms.getLastMessageReceived());
+		} catch (SocketException e) {
+			fail("Could not send message: Exception: " + e);
+		}
+
+		closeClientComms(s, socketComms, "1");
+	}
+
+	/**
+	 * Ensure a message too big for one packet is re-assembled by the server before delivery.
+	 */
+	@Test
+	public void testSendMultiPartMsgSynch() {
+		Socket s = openSocket();
+		SocketComms socketComms = openClientComms(s);
+
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 200; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		wholeMessage.append("</APP_DEFINED_REQUEST>");
+
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "2", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage.toString()));
+			// One "Awaiting more" for every packet but the last, then the receipt
+			int numParts = (wholeMessage.length() + 750) / 751;
+			for (int i = 0; i < numParts; i++) {
+				socketComms.next();
+				assertEquals(0, socketComms.getLastErrorNo());
+			}
+			// The response comes back in parts too
+			socketComms.removeMessageForTID("2");
+			do {
+				socketComms.next();
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		}
+
+		// In this test, expect the server to send back same msg
+		assertEquals(wholeMessage.toString(), socketComms.getMessageForTID("2").toString());
+
+		closeClientComms(s, socketComms, "2");
+	}
+
+	/**
+	 * Ensure a couple of event loops can look after many more connections than they have threads.
+	 */
+	@Test
+	public void testManyConnections() {
+		final int numConnections = 200;
+		Socket[] sockets = new Socket[numConnections];
+		SocketComms[] comms = new SocketComms[numConnections];
+
+		// Open them all first, so they are all connected (and idle) at the same time
+		for (int i = 0; i < numConnections; i++) {
+			sockets[i] = openSocket();
+			comms[i] = openClientComms(sockets[i]);
+		}
+
+		for (int i = 0; i < numConnections; i++) {
+			String wholeMessage = "<APP_DEFINED_REQUEST><KEY>" + i + "</KEY></APP_DEFINED_REQUEST>";
+			try {
+				comms[i].sendMessage(new SocketTransferMessage(new Integer(0), "C" + i, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+				comms[i].next();
+				assertEquals(0, comms[i].getLastErrorNo());
+				comms[i].next();
+			} catch (SocketException e) {
+				fail("Could not send/receive message on connection " + i + ": Exception: " + e);
+			}
+			assertEquals(wholeMessage, comms[i].getLastMessageReceived());
+		}
+
+		for (int i = 0; i < numConnections; i++) {
+			closeClientComms(sockets[i], comms[i], "C" + i);
+		}
+	}
+
+	/**
+	 * Ensure a large, multi-byte message survives the switch to protocol version 2.
+	 */
+	@Test
+	public void testSendMsgSynchProtocolV2() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11820);
+		}
+		catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		}
+
+		SocketComms socketComms = openClientComms(s);
+		try {
+			assertTrue(socketComms.upgradeProtocol());
+		} catch (SocketException e) {
+			fail("Could not upgrade protocol: Exception: " + e);
+		}
+
+		// Big enough to need more than one version 2 packet, with characters needing more than one byte
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 2000; i++) {
+			wholeMessage.append("<KEY>\u00e9\u20ac").append(i).append("</KEY>");
+		}
+		wholeMessage.append("</APP_DEFINED_REQUEST>");
+
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "3", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage.toString()));
+			// One "Awaiting more" for every packet but the last, then the receipt
+			do {
+				socketComms.next();
+				assertEquals(0, socketComms.getLastErrorNo());
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			// The response comes back in parts too
+			socketComms.removeMessageForTID("3");
+			do {
+				socketComms.next();
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		}
+
+		// In this test, expect the server to send back same msg
+		assertEquals(wholeMessage.toString(), socketComms.getMessageForTID("3").toString());
+
+		// tell server am finished, otherwise he'll detect closure of socket and close accepted socket on server side
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "3", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (SocketException e) {
+			fail("Could not explicitly close connection: Exception: " + e);
+		}
+		try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+	}
+
+	/**
+	 * Ensure a message of many parts goes ahead of the server's acknowledgements, when a send window is agreed,
+	 * and that the acknowledgements never reach the caller.
+	 */
+	@Test
+	public void testSendLargeMsgWindowed() {
+		Socket s = openSocket();
+		SocketComms socketComms = null;
+		try {
+			socketComms = new SocketComms(s, SocketType.CLIENT, new SocketCommsConfig().setSendWindow(8));
+			socketComms.next(); // Read Server Ready message.
+			assertTrue(socketComms.upgradeProtocol());
+			assertEquals(8, socketComms.getWindow());
+		} catch (SocketException e) {
+			fail("Could not upgrade protocol: Exception: " + e);
+		}
+
+		// About 1MB, so 60 or so version 2 packets
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 50000; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		wholeMessage.append("</APP_DEFINED_REQUEST>");
+
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "4", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage.toString()));
+			// The acknowledgements were all read by sendMessage(), so next is the receipt
+			socketComms.next();
+			assertEquals(SocketComms.SocketService.CONSUME, socketComms.getLastService());
+			assertEquals(0, socketComms.getLastErrorNo());
+			socketComms.removeMessageForTID("4");
+			// The response comes back in parts
+			do {
+				socketComms.next();
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		}
+
+		// In this test, expect the server to send back same msg
+		assertEquals(wholeMessage.toString(), socketComms.getMessageForTID("4").toString());
+
+		closeClientComms(s, socketComms, "4");
+	}
+
+	/**
+	 * Ensure a listener throwing a RuntimeException drops only its own connection, not the event loop it runs in.
+	 */
+	@Test
+	public void testListenerRuntimeException() {
+		// Connections are shared out in turn over 2 event loops, so the first and third share one
+		Socket[] sockets = new Socket[3];
+		SocketComms[] comms = new SocketComms[3];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = openSocket();
+			comms[i] = openClientComms(sockets[i]);
+		}
+
+		try {
+			comms[0].sendMessage(new SocketTransferMessage(new Integer(0), "T", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, THROW_REQUEST));
+			comms[0].next(); // the receipt
+			sockets[0].setSoTimeout(10000);
+			assertEquals("Connection of the failed listener call-back should have been closed", -1, sockets[0].getInputStream().read());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} catch (IOException e) {
+			fail("Could not read from socket - IOException: " + e.getMessage());
+		}
+		try {sockets[0].close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+
+		for (int i = 1; i < sockets.length; i++) {
+			String wholeMessage = "<APP_DEFINED_REQUEST><KEY>" + i + "</KEY></APP_DEFINED_REQUEST>";
+			try {
+				comms[i].sendMessage(new SocketTransferMessage(new Integer(0), "T" + i, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+				comms[i].next();
+				assertEquals(0, comms[i].getLastErrorNo());
+				comms[i].next();
+			} catch (SocketException e) {
+				fail("Could not send/receive message on connection " + i + ": Exception: " + e);
+			}
+			assertEquals(wholeMessage, comms[i].getLastMessageReceived());
+			closeClientComms(sockets[i], comms[i], "T" + i);
+		}
+	}
+
+	/**
+	 * Ensure work handed to an event loop as it ends is still run, and work handed to it after is refused.
+	 */
+	@Test
+	public void testEventLoopEnded() throws IOException {
+		final AtomicInteger ran = new AtomicInteger();
+		Runnable counting = new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		};
+
+		NioEventLoop eventLoop = new NioEventLoop("TestEventLoop");
+		eventLoop.execute(counting);
+		eventLoop.shutDown();
+		eventLoop.run(); // In this Thread, so ended once it returns
+		assertEquals("Task handed over before the loop ended should have been run", 1, ran.get());
+
+		try {
+			eventLoop.execute(counting);
+			fail("Task handed over after the loop ended should have been refused");
+		} catch (RejectedExecutionException e) {
+			// Expected, so the caller can release what the task would have
+		}
+		assertEquals(1, ran.get());
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Connect to the socket on "this" machine.
+	  *
+	  */
+	private Socket openSocket() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11820);
+		}
+		catch (UnknownHostException e) {
+			fail("Couldn't create new Client socket - UnknownHostException: " + e.getMessage());
+		}
+		catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		}
+
+		assertNotNull(s);
+		return s;
+	}
+
+	/**
+	  * Open a socket for communications
+	  *
+	  */
+	private SocketComms openClientComms(Socket s) {
+		SocketComms socketComms = null;
+		// May throw LwSocketException
+		try {
+			socketComms = new SocketComms(s, SocketType.CLIENT);
+			// Read Server Ready message.
+			socketComms.next();
+			assertEquals(SocketComms.SocketService.READY, socketComms.getLastService());
+		} catch (SocketException e) {
+			fail("Could not create new LwSocketComms object. LwSocketException: " + e.getMessage());
+		}
+
+		return socketComms;
+	}
+
+	/**
+	  * Tell server am finished, then close the socket.
+	  *
+	  */
+	private void closeClientComms(Socket s, SocketComms socketComms, String TID) {
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), TID, SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (SocketException e) {
+			fail("Could not explicitly close connection: Exception: " + e);
+		}
+		try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+	}
+}
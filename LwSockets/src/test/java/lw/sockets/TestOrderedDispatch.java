@@ -0,0 +1,229 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure that, with ordered dispatch, a slow listener holds up neither the Thread reading its connection nor (for
+ * NioXMLSocketServer) the other connections of the event loop, while requests are still answered in the order sent.
+ */
+public class TestOrderedDispatch {
+	static private final String SLOW_REQUEST = "<SLOW/>";
+
+	static private volatile CountDownLatch slowRelease;
+	static private final AtomicBoolean slowAnswered = new AtomicBoolean();
+	static private XMLSocketServer pooledServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				if (SLOW_REQUEST.equals(event.getReceivedMessage())) {
+					try {
+						slowRelease.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					slowAnswered.set(true);
+				}
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			SocketCommsConfig config = SocketCommsConfig.lowLatency().setOrderedDispatch(true);
+			execPool = Executors.newFixedThreadPool(4);
+			requestPool = Executors.newFixedThreadPool(4);
+			pooledServer = new XMLSocketServer(execPool, echo, 11851, config);
+			pooledServer.setRequestPool(requestPool);
+			// A single event loop, so a listener call-back made in it would hold up every connection
+			nioServer = new NioXMLSocketServer(echo, 11852, 1, config);
+			nioServer.setRequestPool(requestPool);
+			new Thread(pooledServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testOrderedDispatchThreadPerConnection() {
+		checkOrderedDispatch(11851);
+	}
+
+	@Test
+	public void testOrderedDispatchNio() {
+		checkOrderedDispatch(11852);
+	}
+
+	@Test
+	public void testErrorDoesNotStall() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			OrderedExecutor ordered = new OrderedExecutor(pool);
+			final CountDownLatch ran = new CountDownLatch(2);
+			ordered.execute(new Runnable() {
+				@Override
+				public void run() {
+					throw new AssertionError("Thrown by the test");
+				}
+			});
+			ordered.execute(new Runnable() {
+				@Override
+				public void run() {
+					ran.countDown();
+				}
+			});
+			ordered.execute(new Runnable() {
+				@Override
+				public void run() {
+					ran.countDown();
+				}
+			});
+			assertTrue("Tasks behind one throwing an Error should still be run", ran.await(10, TimeUnit.SECONDS));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testRejected() {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		pool.shutdown();
+		OrderedExecutor ordered = new OrderedExecutor(pool);
+		final AtomicBoolean ran = new AtomicBoolean();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				ran.set(true);
+			}
+		};
+		try {
+			ordered.execute(task);
+			fail("Should have been rejected");
+		}
+		catch(OrderedExecutor.RejectedTasks e) {
+			// Expected, so the caller can refuse the request
+			assertEquals(1, e.getTasks().size());
+			assertSame(task, e.getTasks().get(0));
+		}
+		assertFalse("Should not have been run in the calling Thread", ran.get());
+		assertEquals(0, ordered.getPendingCount());
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (slowRelease != null) {
+			slowRelease.countDown();
+		}
+		if (pooledServer != null) {
+			pooledServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send a slow request and a fast one, without waiting for answers, then check another connection is answered
+	  * while the slow one is held up, and that the answers to the two come in the order sent.
+	  */
+	private void checkOrderedDispatch(int portNumber) {
+		slowRelease = new CountDownLatch(1);
+		slowAnswered.set(false);
+		Socket s = null;
+		try {
+			s = new Socket("localhost", portNumber);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.readReady("localhost:" + portNumber);
+			socketComms.upgradeProtocol();
+			assertFalse(socketComms.isMultiplexed());
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "1", SocketService.CONSUME_RESPOND, SocketFormat.XML, SLOW_REQUEST));
+			socketComms.sendMessage(new SocketTransferMessage(0, "2", SocketService.CONSUME_RESPOND, SocketFormat.XML, "<FAST/>"));
+
+			XMLSocketClient other = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+			try {
+				assertEquals("<OTHER/>", other.sendAndReceive("O", "<OTHER/>").get(30, TimeUnit.SECONDS));
+				assertFalse("Other connection should not wait for the slow request", slowAnswered.get());
+			} finally {
+				other.close();
+			}
+
+			slowRelease.countDown();
+			assertAnswer(socketComms, "1", "Message consumed");
+			assertAnswer(socketComms, "1", SLOW_REQUEST);
+			assertAnswer(socketComms, "2", "Message consumed");
+			assertAnswer(socketComms, "2", "<FAST/>");
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "R", SocketService.CLOSE, SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			slowRelease.countDown();
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private void assertAnswer(SocketComms socketComms, String TID, String payload) throws SocketException {
+		assertFalse(socketComms.next());
+		assertEquals(TID, socketComms.getTID());
+		assertEquals(SocketService.CONSUME, socketComms.getLastService());
+		assertEquals(payload, socketComms.removeMessageForTID(TID).toString());
+	}
+}
@@ -0,0 +1,254 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure the shelf is bounded per message, by idle time and by a shared budget, and that servers answer a message
+ * too big to hold with REFUSE, then carry on as normal.
+ */
+public class TestReassemblyShelf {
+	static private final int MAX_MESSAGE_SIZE = 50000;
+
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			requestPool = Executors.newFixedThreadPool(4);
+			SocketCommsConfig config = SocketCommsConfig.lowLatency().setMaxMessageSize(MAX_MESSAGE_SIZE).setShelfIdleTimeout(60000).setShelfBudget(10 * MAX_MESSAGE_SIZE);
+			theServer = new XMLSocketServer(execPool, echo, 11836, config);
+			nioServer = new NioXMLSocketServer(echo, 11837, 1, config);
+			nioServer.setRequestPool(requestPool);
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testMaxMessageSize() {
+		ReassemblyShelf shelf = new ReassemblyShelf(10, 0);
+		assertTrue(shelf.append("T1", "12345"));
+		assertTrue(shelf.append("T1", "67890"));
+		assertEquals("1234567890", shelf.get("T1").toString());
+		assertFalse(shelf.append("T1", "X"));
+		assertTrue(shelf.isRefused("T1"));
+		assertNull(shelf.get("T1"));
+		assertFalse(shelf.append("T1", "Y")); // the rest is dropped too...
+		assertNull(shelf.remove("T1"));
+		assertTrue(shelf.append("T1", "Z")); // ...until removed
+		assertEquals("Z", shelf.get("T1").toString());
+	}
+
+	@Test
+	public void testIdleTimeout() throws InterruptedException {
+		ReassemblyShelf shelf = new ReassemblyShelf(0, 50);
+		assertTrue(shelf.append("T1", "Left part-sent"));
+		Thread.sleep(100);
+		assertTrue(shelf.append("T2", "Fresh"));
+		assertTrue(shelf.isRefused("T1"));
+		assertFalse(shelf.append("T1", "Straggler"));
+		Thread.sleep(100);
+		assertEquals(1, shelf.evictIdleIfFree()); // T2 refused in turn...
+		assertFalse(shelf.isRefused("T1")); // ...and T1 forgotten
+		assertEquals(1, shelf.size());
+	}
+
+	@Test
+	public void testIdleTimeoutWithoutTraffic() throws InterruptedException {
+		ShelfBudget budget = new ShelfBudget(Long.MAX_VALUE);
+		ReassemblyShelf shelf = new ReassemblyShelf(0, 50);
+		shelf.setBudget(budget);
+		shelf.startSweeping();
+		assertTrue(shelf.append("T1", "Left part-sent"));
+		assertTrue(shelf.append("T2", "Left part-sent"));
+
+		// Nothing more arrives, but they're evicted all the same
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (!(shelf.isRefused("T1") && shelf.isRefused("T2")) && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(20);
+		}
+		assertTrue(shelf.isRefused("T1"));
+		assertTrue(shelf.isRefused("T2"));
+		assertEquals(0, budget.getUsedBytes());
+		shelf.clear();
+	}
+
+	@Test
+	public void testSharedBudget() throws InterruptedException {
+		ShelfBudget budget = new ShelfBudget(10 * ReassemblyShelf.BYTES_PER_CHAR);
+		ReassemblyShelf idle = new ReassemblyShelf(0, 50);
+		ReassemblyShelf busy = new ReassemblyShelf(0, 50);
+		idle.setBudget(budget);
+		busy.setBudget(budget);
+
+		assertTrue(idle.append("T1", "12345678"));
+		assertFalse(busy.append("T2", "123"));
+		assertTrue(busy.isRefused("T2"));
+		busy.remove("T2");
+
+		// Room is made by evicting what's been left idle on the other shelf
+		Thread.sleep(100);
+		assertTrue(busy.append("T2", "123"));
+		assertTrue(idle.isRefused("T1"));
+		assertEquals(3 * ReassemblyShelf.BYTES_PER_CHAR, budget.getUsedBytes());
+
+		busy.clear();
+		idle.clear();
+		assertEquals(0, budget.getUsedBytes());
+	}
+
+	@Test
+	public void testRefusedThreadPerConnection() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11836);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+			assertTrue(socketComms.upgradeProtocol());
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "R1", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, message(2 * MAX_MESSAGE_SIZE)));
+			// Any acknowledgements of parts, then the refusal in place of a receipt
+			do {
+				assertFalse(socketComms.next());
+				socketComms.removeMessageForTID("R1");
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(SocketComms.SocketService.REFUSE, socketComms.getLastService());
+			assertEquals(1, socketComms.getLastErrorNo());
+
+			// Carry on as normal
+			String wholeMessage = message(MAX_MESSAGE_SIZE / 2);
+			socketComms.sendMessage(new SocketTransferMessage(0, "R2", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+			do {
+				assertFalse(socketComms.next());
+				socketComms.removeMessageForTID("R2");
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(0, socketComms.getLastErrorNo());
+			do {
+				assertFalse(socketComms.next());
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(wholeMessage, socketComms.getMessageForTID("R2").toString());
+			socketComms.removeMessageForTID("R2");
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "R3", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	@Test
+	public void testRefusedXMLSocketClient() {
+		sendWithClient(11836, "O");
+	}
+
+	@Test
+	public void testRefusedXMLSocketClientMultiplexed() {
+		sendWithClient(11837, "M");
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Expect a message too big to fail with -1012, and those either side of it to be answered as normal.
+	  */
+	private void sendWithClient(int portNumber, String TID) {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+			assertEquals("<A/>", client.sendAndReceive(TID + "1", "<A/>").get(30, TimeUnit.SECONDS));
+			try {
+				client.sendAndReceive(TID + "2", message(2 * MAX_MESSAGE_SIZE)).get(30, TimeUnit.SECONDS);
+				fail("Message too big should have been refused");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof SocketException);
+				assertEquals(-1012, ((SocketException) e.getCause()).getErrorCode());
+			}
+			assertTrue(client.consume(TID + "3", "<A/>").get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	private String message(int minSize) {
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; wholeMessage.length() < minSize; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		return wholeMessage.append("</APP_DEFINED_REQUEST>").toString();
+	}
+}
@@ -0,0 +1,208 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.Test;
+
+/**
+ * Ensure a resent request is answered with the response already computed, or being computed, rather than the
+ * listener computing it again.
+ */
+public class TestResponseCache {
+
+	@Test
+	public void testReplay() {
+		ResponseCache cache = newCache(new SocketCommsConfig().setResponseCacheSize(10));
+		Counting compute = new Counting(CompletableFuture.completedFuture("<ANSWER/>"));
+
+		assertEquals("<ANSWER/>", cache.get(new SocketEvent("1", 0, "<A/>"), compute).join());
+		assertEquals("<ANSWER/>", cache.get(new SocketEvent("1", 0, "<A/>"), compute).join());
+		assertEquals(1, compute.calls.get());
+
+		cache.get(new SocketEvent("2", 0, "<A/>"), compute).join();
+		assertEquals(2, compute.calls.get());
+	}
+
+	@Test
+	public void testSingleFlight() {
+		ResponseCache cache = newCache(new SocketCommsConfig().setResponseCacheSize(10));
+		CompletableFuture<String> slow = new CompletableFuture<String>();
+		Counting compute = new Counting(slow);
+
+		CompletableFuture<String> first = cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		CompletableFuture<String> resend = cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		assertFalse(resend.isDone());
+		assertEquals("Resend should wait for the first, not compute again", 1, compute.calls.get());
+
+		slow.complete("<ANSWER/>");
+		assertEquals("<ANSWER/>", first.join());
+		assertEquals("<ANSWER/>", resend.join());
+	}
+
+	@Test
+	public void testFailureForgotten() {
+		ResponseCache cache = newCache(new SocketCommsConfig().setResponseCacheSize(10));
+		CompletableFuture<String> failed = new CompletableFuture<String>();
+		failed.completeExceptionally(new IllegalStateException("Downstream service unavailable"));
+
+		assertTrue(cache.get(new SocketEvent("1", 0, "<A/>"), new Counting(failed)).isCompletedExceptionally());
+		assertEquals(0, cache.size());
+		assertEquals("<ANSWER/>", cache.get(new SocketEvent("1", 0, "<A/>"), new Counting(CompletableFuture.completedFuture("<ANSWER/>"))).join());
+	}
+
+	@Test
+	public void testBounds() throws InterruptedException {
+		ResponseCache cache = newCache(new SocketCommsConfig().setResponseCacheSize(2));
+		Counting compute = new Counting(CompletableFuture.completedFuture("<ANSWER/>"));
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		cache.get(new SocketEvent("2", 0, "<A/>"), compute);
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		cache.get(new SocketEvent("3", 0, "<A/>"), compute);
+		assertEquals(2, cache.size());
+		assertEquals(3, compute.calls.get());
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		assertEquals("Most recently used should be kept", 3, compute.calls.get());
+		cache.get(new SocketEvent("2", 0, "<A/>"), compute);
+		assertEquals("Least recently used should go first", 4, compute.calls.get());
+
+		cache = newCache(new SocketCommsConfig().setResponseCacheSize(10).setResponseCacheTtl(50));
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		Thread.sleep(100);
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		assertEquals("Expired response should be computed again", 6, compute.calls.get());
+	}
+
+	@Test
+	public void testKeyedByPayload() {
+		ResponseCache cache = newCache(new SocketCommsConfig().setResponseCacheSize(10).setResponseCacheKeyedByPayload(true));
+		Counting compute = new Counting(CompletableFuture.completedFuture("<ANSWER/>"));
+		cache.get(new SocketEvent("1", 0, "<A/>"), compute);
+		cache.get(new SocketEvent("1", 0, "<B/>"), compute);
+		assertEquals("Same TID, other payload, is not a resend", 2, compute.calls.get());
+		cache.get(new SocketEvent("1", 0, "<B/>"), compute);
+		assertEquals(2, compute.calls.get());
+
+		// Payloads sharing a hashCode() are still told apart
+		assertEquals("<Aa/>".hashCode(), "<BB/>".hashCode());
+		cache.get(new SocketEvent("2", 0, "<Aa/>"), compute);
+		cache.get(new SocketEvent("2", 0, "<BB/>"), compute);
+		assertEquals(4, compute.calls.get());
+		ByteBuffer bytes = ByteBuffer.wrap(new byte[] {31, 1});
+		ByteBuffer collides = ByteBuffer.wrap(new byte[] {0, 2});
+		assertEquals(bytes.hashCode(), collides.hashCode());
+		cache.get(new SocketEvent("3", 0, bytes), compute);
+		cache.get(new SocketEvent("3", 0, collides), compute);
+		assertEquals(6, compute.calls.get());
+		cache.get(new SocketEvent("3", 0, ByteBuffer.wrap(new byte[] {0, 2})), compute);
+		assertEquals(6, compute.calls.get());
+	}
+
+	@Test
+	public void testResendOverNewConnection() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		LwIXMLSocketServerListener counting = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return "<ANSWER>" + calls.incrementAndGet() + "</ANSWER>";
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+		SocketCommsConfig config = SocketCommsConfig.lowLatency().setResponseCacheSize(100);
+
+		ExecutorService execPool = Executors.newFixedThreadPool(2);
+		XMLSocketServer server = new XMLSocketServer(execPool, counting, 11855, config);
+		new Thread(server).start();
+		try {
+			checkResend(11855, server.getMetrics());
+		} finally {
+			server.terminateProcessing();
+			execPool.shutdownNow();
+		}
+		assertEquals(1, calls.get());
+
+		NioXMLSocketServer nioServer = new NioXMLSocketServer(counting, 11856, 1, config);
+		new Thread(nioServer).start();
+		try {
+			checkResend(11856, nioServer.getMetrics());
+		} finally {
+			nioServer.terminateProcessing();
+		}
+		assertEquals(2, calls.get());
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private ResponseCache newCache(SocketCommsConfig config) {
+		return new ResponseCache(config, new ServerMetrics(0, new ShelfBudget(Long.MAX_VALUE)));
+	}
+
+	/**
+	  * Send a request, then send it again over another connection, as a client that timed out would.
+	  */
+	private void checkResend(int portNumber, ServerMetrics metrics) throws Exception {
+		String answer;
+		XMLSocketClient client = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+		try {
+			answer = client.sendAndReceive("RESEND-1", "<A/>").get(30, TimeUnit.SECONDS);
+		} finally {
+			client.close();
+		}
+
+		XMLSocketClient retry = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+		try {
+			assertEquals(answer, retry.sendAndReceive("RESEND-1", "<A/>").get(30, TimeUnit.SECONDS));
+			assertEquals(1, metrics.getReplayedResponses());
+		} finally {
+			retry.close();
+		}
+	}
+
+	/**
+	  * Counts the computations asked for, each giving the same stage.
+	  */
+	private static final class Counting implements Supplier<CompletionStage<String>> {
+		final private CompletionStage<String> response;
+		final AtomicInteger calls = new AtomicInteger();
+
+		Counting(CompletionStage<String> response) {
+			this.response = response;
+		}
+
+		@Override
+		public CompletionStage<String> get() {
+			calls.incrementAndGet();
+			return response;
+		}
+	}
+}
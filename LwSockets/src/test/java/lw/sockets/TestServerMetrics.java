@@ -0,0 +1,164 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure latencies are held to the promised precision, and that a server's metrics count its traffic and can be
+ * read over JMX while it is open.
+ */
+public class TestServerMetrics {
+	static private XMLSocketServer theServer;
+	static private ExecutorService execPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			theServer = new XMLSocketServer(execPool, echo, 11843, SocketCommsConfig.lowLatency());
+			new Thread(theServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testHistogramPrecision() {
+		for (long value : new long[] {0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE}) {
+			int bucket = LatencyHistogram.bucket(value);
+			long highest = LatencyHistogram.highestValue(bucket);
+			assertTrue(value + " counted in bucket up to " + highest, value <= highest);
+			assertTrue(value + " counted in bucket up to " + highest, highest - value <= value / LatencyHistogram.SUB_BUCKETS);
+			if (bucket > 0) {
+				assertTrue(value + " should not fit the bucket before", value > LatencyHistogram.highestValue(bucket - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		histogram.record(-5); // counted as 0
+
+		assertEquals(1001, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / LatencyHistogram.SUB_BUCKETS);
+		assertEquals(1000000, histogram.getValueAtPercentile(100));
+		assertEquals(0, histogram.getValueAtPercentile(0));
+	}
+
+	@Test
+	public void testServerMetrics() throws Exception {
+		ServerMetrics metrics = theServer.getMetrics();
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("lw.sockets:type=XMLSocketServer,port=11843");
+		assertTrue(mBeanServer.isRegistered(name));
+
+		StringBuilder wholeMessage = new StringBuilder("<A>");
+		while (wholeMessage.length() < 3 * FrameV2.MAX_DATA_SIZE) {
+			wholeMessage.append("<KEY>").append(wholeMessage.length()).append("</KEY>");
+		}
+		wholeMessage.append("</A>");
+
+		XMLSocketClient client = new XMLSocketClient("localhost", 11843, SocketCommsConfig.lowLatency());
+		try {
+			for (int i = 0; i < 10; i++) {
+				assertEquals("<A/>", client.sendAndReceive("S" + i, "<A/>").get(30, TimeUnit.SECONDS));
+			}
+			assertEquals(wholeMessage.toString(), client.sendAndReceive("L", wholeMessage.toString()).get(30, TimeUnit.SECONDS));
+			assertEquals(1L, mBeanServer.getAttribute(name, "ActiveConnections"));
+		} finally {
+			client.close();
+		}
+
+		assertEquals(11L, mBeanServer.getAttribute(name, "Requests"));
+		assertEquals(11L, mBeanServer.getAttribute(name, "ListenerCalls"));
+		assertTrue(metrics.getRequestLatencyP50Micros() >= 2000);
+		assertTrue(metrics.getRequestLatencyP999Micros() >= metrics.getRequestLatencyP50Micros());
+		assertTrue(metrics.getListenerLatencyMaxMicros() >= 2000);
+		assertTrue(metrics.getMoreFramesOut() >= 3);
+		assertTrue(metrics.getBytesIn() > wholeMessage.length());
+		assertTrue(metrics.getBytesOut() > wholeMessage.length());
+		assertEquals(0, metrics.getShelfBytes());
+		TabularData byService = (TabularData) mBeanServer.getAttribute(name, "FramesInByService");
+		assertEquals(11L, byService.get(new Object[] {"CONSUME_RESPOND"}).get("value"));
+		assertTrue((Long) byService.get(new Object[] {"MORE"}).get("value") >= 3);
+
+		for (int i = 0; i < 100 && metrics.getActiveConnections() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, metrics.getActiveConnections());
+		assertEquals(1, metrics.getTotalConnections());
+	}
+
+	@Test
+	public void testUnregisteredOnClose() throws Exception {
+		ObjectName name = new ObjectName("lw.sockets:type=NioXMLSocketServer,port=11844");
+		NioXMLSocketServer nioServer = new NioXMLSocketServer(new ExampleSocketServer(), 11844, 1, SocketCommsConfig.lowLatency());
+		assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		assertEquals(name, nioServer.getMetrics().getObjectName());
+		nioServer.terminateProcessing();
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+	}
+}
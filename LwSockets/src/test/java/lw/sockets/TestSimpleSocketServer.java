@@ -304,6 +304,61 @@ public class TestSimpleSocketServer {
 		}
 	}
 
+	/**
+	 * Ensure a large, multi-byte message survives the switch to protocol version 2.
+	 */
+	@Test
+	public void testSendMsgSynchProtocolV2() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11819);
+		}
+		catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		}
+
+		SocketComms socketComms = openClientComms(s);
+		try {
+			assertTrue(socketComms.upgradeProtocol());
+		} catch (SocketException e) {
+			fail("Could not upgrade protocol: Exception: " + e);
+		}
+
+		// Big enough to need more than one version 2 packet, with characters needing more than one byte
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 2000; i++) {
+			wholeMessage.append("<KEY>\u00e9\u20ac").append(i).append("</KEY>");
+		}
+		wholeMessage.append("</APP_DEFINED_REQUEST>");
+
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "9", SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage.toString()));
+			// One "Awaiting more" for every packet but the last, then the receipt
+			do {
+				socketComms.next();
+				assertEquals(0, socketComms.getLastErrorNo());
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			// The response comes back in parts too
+			socketComms.removeMessageForTID("9");
+			do {
+				socketComms.next();
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		}
+
+		// In this test, expect the server to send back same msg
+		assertEquals(wholeMessage.toString(), socketComms.getMessageForTID("9").toString());
+
+		// tell server am finished, otherwise he'll detect closure of socket and close accepted socket on server side
+		try {
+			socketComms.sendMessage(new SocketTransferMessage(new Integer(0), "9", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (SocketException e) {
+			fail("Could not explicitly close connection: Exception: " + e);
+		}
+		try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+	}
+
 	@AfterClass
 	static public void classTearDown() {
 		// Note: this method called regardless of success of BeforeClass (like a finally section)
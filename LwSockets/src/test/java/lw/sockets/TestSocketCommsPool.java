@@ -0,0 +1,179 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure pooled connections are re-used, bounded, and replaced when broken.
+ */
+public class TestSocketCommsPool {
+	static private XMLSocketServer theServer;
+	static private ExecutorService execPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return true;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				return event.getReceivedMessage();
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(8);
+			theServer = new XMLSocketServer(execPool, echo, 11829, SocketCommsConfig.lowLatency());
+			new Thread(theServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testConnectionReused() {
+		SocketCommsPool pool = new SocketCommsPool("localhost", 11829, SocketCommsConfig.lowLatency(), 4);
+		try {
+			pool.warmUp(1);
+			assertEquals(1, pool.getNumIdle());
+
+			SocketComms first = pool.borrow();
+			roundTrip(first, "P1");
+			pool.release(first);
+
+			SocketComms second = pool.borrow();
+			assertSame(first, second);
+			roundTrip(second, "P2");
+			pool.release(second);
+
+			assertEquals(1, pool.getNumConnections());
+		} catch (SocketException e) {
+			fail("Could not use pooled connection: Exception: " + e);
+		} finally {
+			pool.close();
+		}
+		assertEquals(0, pool.getNumConnections());
+	}
+
+	@Test
+	public void testMaxConnections() {
+		SocketCommsPool pool = new SocketCommsPool("localhost", 11829, SocketCommsConfig.lowLatency(), 2).setBorrowTimeout(200);
+		try {
+			SocketComms first = pool.borrow();
+			SocketComms second = pool.borrow();
+			assertNotSame(first, second);
+
+			try {
+				pool.borrow();
+				fail("Should not be able to borrow more than maxConnections");
+			} catch (SocketException e) {
+				assertEquals(-1009, e.getErrorCode());
+			}
+
+			pool.release(second);
+			assertSame(second, pool.borrow());
+			assertEquals(2, pool.getNumConnections());
+		} catch (SocketException e) {
+			fail("Could not use pooled connection: Exception: " + e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testBrokenConnectionEvicted() {
+		SocketCommsPool pool = new SocketCommsPool("localhost", 11829, SocketCommsConfig.lowLatency(), 2);
+		try {
+			SocketComms broken = pool.borrow();
+			broken.closeConnection();
+			pool.release(broken);
+			assertEquals(0, pool.getNumConnections());
+
+			SocketComms replacement = pool.borrow();
+			assertNotSame(broken, replacement);
+			roundTrip(replacement, "P3");
+			pool.release(replacement);
+		} catch (SocketException e) {
+			fail("Could not use pooled connection: Exception: " + e);
+		} finally {
+			pool.close();
+		}
+	}
+
+	/**
+	 * Ensure a connection the server has closed while it was idle is found out before being lent again.
+	 */
+	@Test
+	public void testClosedByServerWhileIdle() {
+		SocketCommsPool pool = new SocketCommsPool("localhost", 11829, SocketCommsConfig.lowLatency(), 2).setValidateAfterIdle(0);
+		try {
+			SocketComms closedByServer = pool.borrow();
+			// Only the pool should do this, but it makes the server close its end
+			closedByServer.sendMessage(new SocketTransferMessage(0, "P4", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+			pool.release(closedByServer);
+			Thread.sleep(200);
+
+			SocketComms replacement = pool.borrow();
+			assertNotSame(closedByServer, replacement);
+			roundTrip(replacement, "P5");
+			pool.release(replacement);
+			assertEquals(1, pool.getNumConnections());
+		} catch (SocketException e) {
+			fail("Could not use pooled connection: Exception: " + e);
+		} catch (InterruptedException e) {
+			fail("Interrupted");
+		} finally {
+			pool.close();
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private void roundTrip(SocketComms comms, String TID) throws SocketException {
+		String wholeMessage = "<APP_DEFINED_REQUEST><KEY>" + TID + "</KEY></APP_DEFINED_REQUEST>";
+		comms.sendMessage(new SocketTransferMessage(0, TID, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+		assertFalse(comms.next()); // receipt
+		comms.removeMessageForTID(TID);
+		assertFalse(comms.next()); // response
+		assertEquals(wholeMessage, comms.getMessageForTID(TID).toString());
+		comms.removeMessageForTID(TID);
+	}
+}
@@ -0,0 +1,244 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerStreamListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure a LwIXMLSocketServerStreamListener is passed each part of a message as it arrives, and then its end,
+ * with both server engines.
+ */
+public class TestStreamListener {
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+	// What the listener has been passed so far, by TID. Parts are counted, not kept.
+	static private final Map<String,int[]> partsReceived = new ConcurrentHashMap<String,int[]>();
+	static private final Set<String> discarded = ConcurrentHashMap.newKeySet();
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerStreamListener counter = new LwIXMLSocketServerStreamListener() {
+			@Override
+			public void messagePartReceived(SocketEvent event) {
+				int[] counts = partsReceived.get(event.getTID());
+				if (counts == null) {
+					counts = new int[2];
+					partsReceived.put(event.getTID(), counts);
+				}
+				counts[0]++;
+				counts[1] += event.getReceivedMessage().length();
+			}
+
+			@Override
+			public boolean messageStreamEnded(SocketEvent event) {
+				return partsReceived.remove(event.getTID()) != null;
+			}
+
+			@Override
+			public String messageStreamEndedWantResponse(SocketEvent event) {
+				int[] counts = partsReceived.remove(event.getTID());
+				return "<PARTS>" + counts[0] + "</PARTS><CHARS>" + counts[1] + "</CHARS>";
+			}
+
+			@Override
+			public void messageStreamDiscarded(SocketEvent event) {
+				partsReceived.remove(event.getTID());
+				discarded.add(event.getTID());
+			}
+
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				fail("Whole message should never be passed to a stream listener");
+				return false;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				fail("Whole message should never be passed to a stream listener");
+				return null;
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			requestPool = Executors.newFixedThreadPool(4);
+			theServer = new XMLSocketServer(execPool, counter, 11834, SocketCommsConfig.lowLatency());
+			nioServer = new NioXMLSocketServer(counter, 11835, 1, SocketCommsConfig.lowLatency());
+			nioServer.setRequestPool(requestPool);
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testLegacyPackets() {
+		sendLargeMsg(new SocketCommsConfig(), false, "L");
+	}
+
+	@Test
+	public void testVersion2PacketsWindowed() {
+		sendLargeMsg(new SocketCommsConfig().setSendWindow(4), true, "W");
+	}
+
+	@Test
+	public void testMultiplexedNio() {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", 11835, SocketCommsConfig.lowLatency());
+			assertTrue(client.isMultiplexed());
+
+			String wholeMessage = largeMessage();
+			int numParts = (wholeMessage.length() + FrameV2.MAX_DATA_SIZE - 1) / FrameV2.MAX_DATA_SIZE;
+			assertEquals("<PARTS>" + numParts + "</PARTS><CHARS>" + wholeMessage.length() + "</CHARS>", client.sendAndReceive("N1", wholeMessage).get(30, TimeUnit.SECONDS));
+			assertTrue(client.consume("N2", "<A/>").get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Ensure messages can't be batched, as there's no whole message to unpack them from, so go one after another.
+	 */
+	@Test
+	public void testNoBatch() {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11834);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, SocketCommsConfig.lowLatency());
+			socketComms.next(); // Read Server Ready message.
+			assertTrue(socketComms.upgradeProtocol());
+			assertFalse(socketComms.isBatched());
+
+			List<SocketTransferMessage> messages = new ArrayList<SocketTransferMessage>();
+			for (int i = 0; i < 5; i++) {
+				messages.add(new SocketTransferMessage(0, "B" + i, SocketComms.SocketService.CONSUME, SocketComms.SocketFormat.XML, "<A/>"));
+			}
+			for (boolean consumed : socketComms.sendMessages(messages)) {
+				assertTrue(consumed);
+			}
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "D1", SocketComms.SocketService.DISCARD, SocketComms.SocketFormat.XML, "Discard me"));
+			socketComms.next();
+			assertEquals(SocketComms.SocketService.DISCARD, socketComms.getLastService());
+			assertTrue(discarded.contains("D1"));
+
+			socketComms.sendMessage(new SocketTransferMessage(0, "B", SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Send a message big enough to go in many parts, expecting back the number of parts and chars the listener was passed.
+	  */
+	private void sendLargeMsg(SocketCommsConfig config, boolean upgrade, String TID) {
+		Socket s = null;
+		try {
+			s = new Socket("localhost", 11834);
+			SocketComms socketComms = new SocketComms(s, SocketType.CLIENT, config);
+			socketComms.next(); // Read Server Ready message.
+			socketComms.removeMessageForTID(socketComms.getTID());
+			if (upgrade) {
+				assertTrue(socketComms.upgradeProtocol());
+			}
+
+			String wholeMessage = largeMessage();
+			int maxDataSize = (upgrade ? FrameV2.MAX_DATA_SIZE : socketComms.getMessageSize() - 18 - 255);
+			int numParts = (wholeMessage.length() + maxDataSize - 1) / maxDataSize;
+			socketComms.sendMessage(new SocketTransferMessage(0, TID, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+			// Receipt, and any acknowledgements of parts...
+			do {
+				assertFalse(socketComms.next());
+				socketComms.removeMessageForTID(TID);
+			} while (socketComms.getLastService() == SocketComms.SocketService.MORE);
+			assertEquals(0, socketComms.getLastErrorNo());
+
+			assertFalse(socketComms.next());
+			assertEquals("<PARTS>" + numParts + "</PARTS><CHARS>" + wholeMessage.length() + "</CHARS>", socketComms.getMessageForTID(TID).toString());
+			socketComms.removeMessageForTID(TID);
+
+			socketComms.sendMessage(new SocketTransferMessage(0, TID, SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (s != null) {
+				try {s.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+		}
+	}
+
+	private String largeMessage() {
+		StringBuilder wholeMessage = new StringBuilder("<APP_DEFINED_REQUEST>");
+		for (int i = 0; i < 20000; i++) {
+			wholeMessage.append("<KEY>").append(i).append("</KEY>");
+		}
+		return wholeMessage.append("</APP_DEFINED_REQUEST>").toString();
+	}
+}
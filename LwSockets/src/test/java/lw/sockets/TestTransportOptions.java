@@ -0,0 +1,79 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import lw.sockets.SocketComms.SocketType;
+
+import org.junit.Test;
+
+/**
+ * Ensure the settings of a SocketCommsConfig are applied to the sockets of both ends of a connection.
+ *
+ * Their effect on round-trip latency (with Nagle's algorithm on, the response is held back until the client
+ * acknowledges the receipt before it) is measured by RoundTripBenchmark, in the LwSocketsBenchmarks project.
+ */
+public class TestTransportOptions {
+
+	@Test
+	public void testOptionsApplied() throws IOException {
+		SocketCommsConfig config = SocketCommsConfig.lowLatency().setSendBufferSize(64 * 1024).setReceiveBufferSize(64 * 1024).setReadTimeout(5000);
+
+		ServerSocket servSocket = new ServerSocket(11822);
+		Socket client = null;
+		Socket accepted = null;
+		try {
+			client = new Socket("localhost", 11822);
+			accepted = servSocket.accept();
+
+			// Client end, set up by SocketComms, server end as accepted by either server
+			new SocketComms(client, SocketType.CLIENT, config);
+			SocketComms.applyConfig(accepted, config);
+
+			for (Socket s : new Socket[] {client, accepted}) {
+				assertTrue(s.getTcpNoDelay());
+				assertEquals(5000, s.getSoTimeout());
+				// The operating system may round buffer sizes up (Linux doubles them), never down
+				assertTrue(s.getSendBufferSize() >= 64 * 1024);
+				assertTrue(s.getReceiveBufferSize() >= 64 * 1024);
+			}
+		} catch (SocketException e) {
+			fail("Could not create SocketComms: Exception: " + e);
+		} finally {
+			if (client != null) {
+				try {client.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+			if (accepted != null) {
+				try {accepted.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+			servSocket.close();
+		}
+	}
+
+	@Test
+	public void testDefaultsUntouched() throws IOException {
+		ServerSocket servSocket = new ServerSocket(11823);
+		Socket client = null;
+		try {
+			client = new Socket("localhost", 11823);
+			boolean tcpNoDelay = client.getTcpNoDelay();
+			int sendBufferSize = client.getSendBufferSize();
+
+			new SocketComms(client, SocketType.CLIENT, new SocketCommsConfig());
+
+			assertEquals(tcpNoDelay, client.getTcpNoDelay());
+			assertEquals(sendBufferSize, client.getSendBufferSize());
+			assertEquals(0, client.getSoTimeout());
+		} catch (SocketException e) {
+			fail("Could not create SocketComms: Exception: " + e);
+		} finally {
+			if (client != null) {
+				try {client.close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+			}
+			servSocket.close();
+		}
+	}
+}
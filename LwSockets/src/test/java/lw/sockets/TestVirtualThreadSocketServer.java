@@ -0,0 +1,139 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+import lw.sockets.SocketComms.SocketType;
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestVirtualThreadSocketServer {
+	// This is created BEFORE the class is instantiated
+	static private  XMLSocketServer theServer;
+
+	private static final Logger logger = Logger.getLogger("gemha");
+
+	@BeforeClass
+	static public  void classSetup() {
+		if (!VirtualThreads.isAvailable()) {
+			return; // testNotAvailable() covers this JVM
+		}
+
+		try {
+			theServer = new XMLSocketServer(new LwIXMLSocketServerListener() {
+				@Override
+				public boolean messageReceived(SocketEvent event) {
+					return true;
+				}
+
+				@Override
+				public String messageReceivedAndWantResponse(SocketEvent event) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Mesage for TID " + event.getTID() + " received.");
+					assertEquals(11821, event.getPortNumber());
+					return event.getReceivedMessage();
+				}
+
+				@Override
+				public void handleError(SocketEvent event, SocketException exception) {
+					logger.info("[LISTENER-" + Thread.currentThread().getName() + "]: Exception was: " + exception);
+				}
+
+				@Override
+				public boolean canCloseServerSocket(SocketEvent event) {
+					return true;
+				}
+
+				@Override
+				public boolean getConsumeMessage() {
+					return true;
+				}
+			}
+			, 11821);
+
+			new Thread(theServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	/**
+	 * Ensure the virtual thread mode is refused cleanly where the JVM cannot support it.
+	 */
+	@Test
+	public void testNotAvailable() {
+		if (VirtualThreads.isAvailable()) {
+			return;
+		}
+
+		try {
+			new XMLSocketServer(new ExampleSocketServer(), 11821);
+			fail("Expected SocketException, as virtual threads not available");
+		} catch (SocketException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Ensure every connection is served at once - with a fixed pool, those beyond the pool size would never get their READY message.
+	 */
+	@Test
+	public void testManyConcurrentConnections() {
+		if (!VirtualThreads.isAvailable()) {
+			return;
+		}
+
+		final int numConnections = 500;
+		Socket[] sockets = new Socket[numConnections];
+		SocketComms[] comms = new SocketComms[numConnections];
+
+		try {
+			for (int i = 0; i < numConnections; i++) {
+				sockets[i] = new Socket("localhost", 11821);
+				comms[i] = new SocketComms(sockets[i], SocketType.CLIENT);
+				// Read Server Ready message.
+				comms[i].next();
+				assertEquals(SocketComms.SocketService.READY, comms[i].getLastService());
+			}
+		} catch (IOException e) {
+			fail("Couldn't create new Client socket - IOException: " + e.getMessage());
+		} catch (SocketException e) {
+			fail("Could not create new LwSocketComms object. LwSocketException: " + e.getMessage());
+		}
+
+		for (int i = 0; i < numConnections; i++) {
+			String wholeMessage = "<APP_DEFINED_REQUEST><KEY>" + i + "</KEY></APP_DEFINED_REQUEST>";
+			try {
+				comms[i].sendMessage(new SocketTransferMessage(new Integer(0), "V" + i, SocketComms.SocketService.CONSUME_RESPOND, SocketComms.SocketFormat.XML, wholeMessage));
+				comms[i].next();
+				assertEquals(0, comms[i].getLastErrorNo());
+				comms[i].next();
+			} catch (SocketException e) {
+				fail("Could not send/receive message on connection " + i + ": Exception: " + e);
+			}
+			assertEquals(wholeMessage, comms[i].getLastMessageReceived());
+		}
+
+		for (int i = 0; i < numConnections; i++) {
+			try {
+				comms[i].sendMessage(new SocketTransferMessage(new Integer(0), "V" + i, SocketComms.SocketService.CLOSE, SocketComms.SocketFormat.XML, "Close me"));
+			} catch (SocketException e) {
+				fail("Could not explicitly close connection: Exception: " + e);
+			}
+			try {sockets[i].close();} catch (IOException e) { /* Ignore, cannot do anything anyway and we're finished */}
+		}
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+	}
+}
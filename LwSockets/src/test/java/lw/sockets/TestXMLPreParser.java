@@ -0,0 +1,169 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Ensure XML messages are parsed into a DOM before they reach the listener, and that those not well-formed are
+ * refused rather than passed on.
+ */
+public class TestXMLPreParser {
+	static private XMLSocketServer theServer;
+	static private NioXMLSocketServer nioServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener describer = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return event.getDocument() != null;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				Document document = event.getDocument();
+				if (document == null) {
+					return "<NOT_PARSED/>";
+				}
+				return "<PARSED root=\"" + document.getDocumentElement().getLocalName() + "\" length=\"" + event.getReceivedMessage().length() + "\"/>";
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(2);
+			requestPool = Executors.newFixedThreadPool(4);
+			SocketCommsConfig config = SocketCommsConfig.lowLatency().setParseXML(true);
+			theServer = new XMLSocketServer(execPool, describer, 11841, config);
+			nioServer = new NioXMLSocketServer(describer, 11842, 1, config);
+			nioServer.setRequestPool(requestPool);
+			new Thread(theServer).start();
+			new Thread(nioServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	@Test
+	public void testParse() throws SocketException {
+		XMLPreParser parser = new XMLPreParser();
+		Document document = parser.parse("T1", new StringBuilder("<?xml version=\"1.0\"?>\n<a:ROOT xmlns:a=\"urn:a\" xmlns=\"urn:b\" id=\"1\"><KEY a:type=\"x\">caf\u00e9</KEY><![CDATA[<raw>]]><!-- note --></a:ROOT>\n"));
+
+		Element root = document.getDocumentElement();
+		assertEquals("urn:a", root.getNamespaceURI());
+		assertEquals("ROOT", root.getLocalName());
+		assertEquals("1", root.getAttribute("id"));
+		Element key = (Element) root.getFirstChild();
+		assertEquals("urn:b", key.getNamespaceURI());
+		assertEquals("x", key.getAttributeNS("urn:a", "type"));
+		assertEquals("caf\u00e9<raw>", root.getTextContent().replace(" note ", ""));
+		assertEquals(1, parser.getParsedCount());
+		assertEquals(1, parser.getPooledCount());
+	}
+
+	@Test
+	public void testMalformed() {
+		XMLPreParser parser = new XMLPreParser();
+		for (String xml : Arrays.asList("<A><B></A>", "<A/><B/>", "", "<A>&undeclared;</A>", "<!DOCTYPE A [<!ENTITY e \"x\">]><A>&e;</A>", "<p:A/>")) {
+			try {
+				parser.parse("T2", xml);
+				fail("Should not have parsed: " + xml);
+			} catch (SocketException e) {
+				assertEquals(-1014, e.getErrorCode());
+			}
+		}
+		assertEquals(6, parser.getRejectedCount());
+		assertEquals(1, parser.getPooledCount()); // re-used each time
+	}
+
+	@Test
+	public void testParsedThreadPerConnection() {
+		sendWithClient(11841, "O");
+	}
+
+	@Test
+	public void testParsedMultiplexed() {
+		sendWithClient(11842, "M");
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (theServer != null) {
+			theServer.terminateProcessing();
+		}
+		if (nioServer != null) {
+			nioServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * Expect well-formed messages to reach the listener parsed, and those that aren't to fail with -1012.
+	  */
+	private void sendWithClient(int portNumber, String TID) {
+		XMLSocketClient client = null;
+		try {
+			client = new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+			assertEquals("<PARSED root=\"A\" length=\"9\"/>", client.sendAndReceive(TID + "1", "<A>1</A> ").get(30, TimeUnit.SECONDS));
+			try {
+				client.sendAndReceive(TID + "2", "<A>1</B>").get(30, TimeUnit.SECONDS);
+				fail("Message not well-formed should have been refused");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof SocketException);
+				assertEquals(-1012, ((SocketException) e.getCause()).getErrorCode());
+			}
+			assertTrue(client.consume(TID + "3", "<A/>").get(30, TimeUnit.SECONDS));
+			try {
+				client.consume(TID + "4", "not XML").get(30, TimeUnit.SECONDS);
+				fail("Message not well-formed should have been refused");
+			} catch (ExecutionException e) {
+				assertEquals(-1012, ((SocketException) e.getCause()).getErrorCode());
+			}
+			assertEquals("<NOT_PARSED/>", client.sendAndReceive(TID + "5", new byte[] {'<', 'A', '/', '>'}).get(30, TimeUnit.SECONDS));
+		} catch (Exception e) {
+			fail("Could not send/receive message: Exception: " + e);
+		} finally {
+			if (client != null) {
+				client.close();
+			}
+		}
+	}
+}
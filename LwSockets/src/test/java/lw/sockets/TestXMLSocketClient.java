@@ -0,0 +1,231 @@
+package lw.sockets;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Ensure XMLSocketClient matches answers to requests, with a server that multiplexes and with one that doesn't.
+ */
+public class TestXMLSocketClient {
+	static private final String SLOW_REQUEST = "<APP_DEFINED_REQUEST><SLOW/></APP_DEFINED_REQUEST>";
+
+	static private XMLSocketServer multiplexedServer;
+	static private XMLSocketServer orderedServer;
+	static private ExecutorService execPool;
+	static private ExecutorService requestPool;
+
+	@BeforeClass
+	static public  void classSetup() {
+		LwIXMLSocketServerListener echo = new LwIXMLSocketServerListener() {
+			@Override
+			public boolean messageReceived(SocketEvent event) {
+				return event.getReceivedMessage().length() > 0;
+			}
+
+			@Override
+			public String messageReceivedAndWantResponse(SocketEvent event) {
+				if (SLOW_REQUEST.equals(event.getReceivedMessage())) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				// No response for an empty request
+				return (event.getReceivedMessage().length() == 0 ? null : event.getReceivedMessage());
+			}
+
+			@Override
+			public void handleError(SocketEvent event, SocketException exception) {
+			}
+
+			@Override
+			public boolean canCloseServerSocket(SocketEvent event) {
+				return false;
+			}
+
+			@Override
+			public boolean getConsumeMessage() {
+				return true;
+			}
+		};
+
+		try {
+			execPool = Executors.newFixedThreadPool(4);
+			requestPool = Executors.newFixedThreadPool(8);
+			multiplexedServer = new XMLSocketServer(execPool, echo, 11827, SocketCommsConfig.lowLatency());
+			multiplexedServer.setRequestPool(requestPool);
+			orderedServer = new XMLSocketServer(execPool, echo, 11828, SocketCommsConfig.lowLatency());
+			new Thread(multiplexedServer).start();
+			new Thread(orderedServer).start();
+		} catch (SocketException e) {
+			fail("Could not create socket server. Exception: " + e);
+		}
+	}
+
+	/**
+	 * Ensure thousands of requests can be outstanding at once, from a single Thread.
+	 */
+	@Test
+	public void testManyOutstandingMultiplexed() {
+		XMLSocketClient client = openClient(11827);
+		assertTrue(client.isMultiplexed());
+
+		sendManyRequests(client, 2000);
+
+		client.close();
+	}
+
+	/**
+	 * Ensure answers are still matched up when the server answers strictly in order, acknowledging parts.
+	 */
+	@Test
+	public void testManyOutstandingOrdered() {
+		XMLSocketClient client = openClient(11828);
+		assertFalse(client.isMultiplexed());
+
+		sendManyRequests(client, 200);
+
+		client.close();
+	}
+
+	@Test
+	public void testNoResponseMultiplexed() {
+		XMLSocketClient client = openClient(11827);
+
+		assertNull(get(client.sendAndReceive("N1", "")));
+		assertFalse(get(client.consume("N2", "")));
+
+		client.close();
+	}
+
+	/**
+	 * A server that doesn't multiplex sends nothing for no response, so it's only known once a later request is answered.
+	 */
+	@Test
+	public void testNoResponseOrdered() {
+		XMLSocketClient client = openClient(11828);
+
+		CompletableFuture<String> none = client.sendAndReceive("N1", "");
+		CompletableFuture<String> some = client.sendAndReceive("N2", "<A/>");
+
+		assertEquals("<A/>", get(some));
+		assertTrue(none.isDone());
+		assertNull(get(none));
+
+		client.close();
+	}
+
+	@Test
+	public void testCloseFailsOutstanding() {
+		XMLSocketClient client = openClient(11827);
+
+		CompletableFuture<String> slow = client.sendAndReceive("S1", SLOW_REQUEST);
+		client.close();
+
+		try {
+			slow.get(5, TimeUnit.SECONDS);
+			fail("Request outstanding when closed should not complete normally");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof SocketException);
+		} catch (InterruptedException e) {
+			fail("Interrupted");
+		} catch (TimeoutException e) {
+			fail("Request outstanding when closed was never completed");
+		}
+
+		CompletableFuture<String> afterClose = client.sendAndReceive("S2", "<A/>");
+		assertTrue(afterClose.isCompletedExceptionally());
+	}
+
+	@AfterClass
+	static public void classTearDown() {
+		// Note: this method called regardless of success of BeforeClass (like a finally section)
+		if (multiplexedServer != null) {
+			multiplexedServer.terminateProcessing();
+		}
+		if (orderedServer != null) {
+			orderedServer.terminateProcessing();
+		}
+		if (execPool != null) {
+			execPool.shutdown();
+		}
+		if (requestPool != null) {
+			requestPool.shutdown();
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private XMLSocketClient openClient(int portNumber) {
+		try {
+			return new XMLSocketClient("localhost", portNumber, SocketCommsConfig.lowLatency());
+		} catch (SocketException e) {
+			fail("Could not connect: Exception: " + e);
+			return null;
+		}
+	}
+
+	/**
+	  * Send all the requests without waiting, some big enough to go in parts and some to be consumed, then check every answer.
+	  */
+	private void sendManyRequests(XMLSocketClient client, int numRequests) {
+		List<CompletableFuture<String>> responses = new ArrayList<CompletableFuture<String>>();
+		List<CompletableFuture<Boolean>> consumed = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i = 0; i < numRequests; i++) {
+			if (i % 10 == 5) {
+				consumed.add(client.consume("C" + i, request(i)));
+			}
+			else {
+				responses.add(client.sendAndReceive("R" + i, request(i)));
+			}
+		}
+		assertTrue(client.getOutstandingCount() > 0);
+
+		int r = 0;
+		for (int i = 0; i < numRequests; i++) {
+			if (i % 10 != 5) {
+				assertEquals(request(i), get(responses.get(r++)));
+			}
+		}
+		for (CompletableFuture<Boolean> c : consumed) {
+			assertTrue(get(c));
+		}
+		assertEquals(0, client.getOutstandingCount());
+	}
+
+	private String request(int i) {
+		StringBuilder request = new StringBuilder("<APP_DEFINED_REQUEST>");
+		// Every 50th big enough to go in parts
+		int numKeys = (i % 50 == 0 ? 3000 : 1);
+		for (int k = 0; k < numKeys; k++) {
+			request.append("<KEY>").append(i).append('.').append(k).append("</KEY>");
+		}
+		return request.append("</APP_DEFINED_REQUEST>").toString();
+	}
+
+	private <T> T get(CompletableFuture<T> future) {
+		try {
+			return future.get(30, TimeUnit.SECONDS);
+		} catch (Exception e) {
+			fail("Request failed: " + e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package lw.sockets;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark, with the GC profiler on (so allocation per operation is reported alongside each time),
+ * and the round-trips over 1, 4 and 16 connections. Results are written to benchmarks-*.json too, for comparing runs.
+ *
+ * Usage: java -cp target/benchmarks.jar lw.sockets.BenchmarkMain [JMH options, e.g. -f 3 or -p payloadSize=100]
+ *
+ * For a single benchmark, the JMH command line is just as good: java -jar target/benchmarks.jar FrameCodec -prof gc
+ */
+public class BenchmarkMain {
+	private static final int[] CONNECTION_COUNTS = {1, 4, 16};
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		new Runner(options(commandLine)
+				.include(FrameCodecBenchmark.class.getSimpleName())
+				.include(ReassemblyBenchmark.class.getSimpleName())
+				.result("benchmarks-codec.json")
+				.build()).run();
+
+		for (int numConnections : CONNECTION_COUNTS) {
+			new Runner(options(commandLine)
+					.include(RoundTripBenchmark.class.getSimpleName())
+					.threads(numConnections)
+					.result("benchmarks-roundtrip-" + numConnections + ".json")
+					.build()).run();
+		}
+	}
+
+	private static ChainedOptionsBuilder options(CommandLineOptions commandLine) {
+		return new OptionsBuilder()
+				.parent(commandLine)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON);
+	}
+}
@@ -0,0 +1,139 @@
+package lw.sockets;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import lw.sockets.SocketComms.SocketFormat;
+import lw.sockets.SocketComms.SocketService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a single packet, of either protocol, as done for every packet sent and received.
+ *
+ * legacyStringBuilt is how legacy packets were built before FrameEncoder (padSpace(), String.format() and fillString(),
+ * then getBytes()), kept here so the two can be compared on the same payload.
+ *
+ * Lives in package lw.sockets, so can reach the package-private codec classes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+	private static final int MAX_LEGACY_DATA_SIZE = SocketComms.MESSAGE_SIZE - 18 - 255;
+
+	/**
+	  * Chars of payload. A legacy packet carries at most MAX_LEGACY_DATA_SIZE of them, so is given the first part of the bigger ones.
+	  */
+	@Param({"64", "1024", "16384"})
+	public int payloadSize;
+
+	private String TID;
+	private String payload;
+	private int legacyEnd;
+	private FrameEncoder encoder;
+	private FrameDecoder decoder;
+	private byte[] legacyPacket;
+	private byte[] v2Packet;
+
+	@Setup
+	public void setup() {
+		TID = "BENCHMARK-TID-0001";
+		payload = Payloads.xml(payloadSize);
+		legacyEnd = Math.min(payloadSize, MAX_LEGACY_DATA_SIZE);
+		encoder = new FrameEncoder(SocketComms.MESSAGE_SIZE, MAX_LEGACY_DATA_SIZE, null);
+		decoder = new FrameDecoder();
+		legacyPacket = toArray(encoder.encodeLegacy(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload, 0, legacyEnd));
+		v2Packet = toArray(encoder.encodeV2(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload, 0, payload.length(), false));
+	}
+
+	@TearDown
+	public void tearDown() {
+		encoder.release();
+		decoder.release();
+	}
+
+	@Benchmark
+	public ByteBuffer encodeLegacy() {
+		return encoder.encodeLegacy(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload, 0, legacyEnd);
+	}
+
+	@Benchmark
+	public byte[] legacyStringBuilt() {
+		return legacyPacket(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload.substring(0, legacyEnd));
+	}
+
+	@Benchmark
+	public ByteBuffer encodeV2() {
+		return encoder.encodeV2(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload, 0, payload.length(), false);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeV2Compressed() {
+		return encoder.encodeV2(0, TID, SocketService.CONSUME_RESPOND, SocketFormat.XML, payload, 0, payload.length(), true);
+	}
+
+	@Benchmark
+	public SocketTransferMessage decodeLegacy() {
+		return decoder.decodeLegacy(legacyPacket, 0, legacyPacket.length);
+	}
+
+	@Benchmark
+	public SocketTransferMessage decodeV2() throws SocketException {
+		return decoder.decodeV2(v2Packet, 0);
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	private static byte[] toArray(ByteBuffer packet) {
+		byte[] bytes = new byte[packet.remaining()];
+		packet.get(bytes);
+		return bytes;
+	}
+
+	/**
+	  * Build a legacy packet the way SocketComms.sendPacket() once did.
+	  */
+	private static byte[] legacyPacket(int errNo, String TID, SocketService lastService, SocketFormat lastFormat, String dataPart) {
+		if (TID.length() > 255) {
+			TID = TID.substring(0, 255);
+		}
+		dataPart = padSpace(TID, 255) + dataPart;
+
+		dataPart = String.format("%03d_%03d_%03d_%05d_" + dataPart, errNo, lastService.asNumber(), lastFormat.asNumber(), dataPart.length());
+		dataPart = fillString(dataPart);
+
+		return dataPart.getBytes();
+	}
+
+	private static String padSpace(String s, int size) {
+		while (s.length() < size)
+			s = s + " ";
+
+		return s;
+	}
+
+	private static String fillString(String str) {
+		int len = SocketComms.MESSAGE_SIZE - str.length();
+		for (int i = len; i > 0 ; i--)
+			str = str + '\0';
+
+		return str;
+	}
+}
@@ -0,0 +1,28 @@
+package lw.sockets;
+
+/**
+ * @author wadel
+ *
+ * Package-private class making the XML payloads the benchmarks send.
+ *
+ */
+final class Payloads {
+
+	private Payloads() {
+	}
+
+	/**
+	  * @return a well-formed XML message of exactly the given number of chars (or a little more, if fewer than fit the outer element)
+	  */
+	static String xml(int size) {
+		StringBuilder message = new StringBuilder(size).append("<REQUEST>");
+		int key = 0;
+		while (message.length() + "<KEY>nnnnnn</KEY></REQUEST>".length() <= size) {
+			message.append("<KEY>").append(String.format("%06d", key++ % 1000000)).append("</KEY>");
+		}
+		while (message.length() + "</REQUEST>".length() < size) {
+			message.append(' ');
+		}
+		return message.append("</REQUEST>").toString();
+	}
+}
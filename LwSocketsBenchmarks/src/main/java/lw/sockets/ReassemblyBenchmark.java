@@ -0,0 +1,60 @@
+package lw.sockets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reassembly of a message sent in many parts: each part appended to the shelf, then the whole message taken off it,
+ * as done by a server for every MORE message received.
+ *
+ * Parts are the size of a full legacy packet, or of a full version 2 packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+	@Param({"4096", "65536", "1048576"})
+	public int messageSize;
+
+	@Param({"751", "16384"})
+	public int partSize;
+
+	private String TID;
+	private String[] parts;
+	private ReassemblyShelf shelf;
+
+	@Setup
+	public void setup() {
+		TID = "BENCHMARK-TID-0001";
+		String message = Payloads.xml(messageSize);
+		parts = new String[(message.length() + partSize - 1) / partSize];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = message.substring(i * partSize, Math.min(message.length(), (i + 1) * partSize));
+		}
+		shelf = new ReassemblyShelf(0, 0);
+		shelf.setBudget(new ShelfBudget(Long.MAX_VALUE));
+	}
+
+	@Benchmark
+	public StringBuilder reassemble() {
+		for (String part : parts) {
+			shelf.append(TID, part);
+		}
+		return shelf.remove(TID);
+	}
+}
@@ -0,0 +1,173 @@
+package lw.sockets;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import lw.sockets.interfaces.LwIXMLSocketServerListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loopback round-trips, CONSUME and CONSUME_RESPOND, against an XMLSocketServer running in the same JVM.
+ *
+ * Each benchmark thread has a connection (an XMLSocketClient) of its own, so the number of connections is the number
+ * of threads, set with -t (see BenchmarkMain, which runs 1, 4 and 16).
+ *
+ * The listener does nothing but answer, so what is measured is the transport: framing, parts, shelf and sockets.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+	private static final Logger logger = Logger.getLogger("gemha");	// held, so the level set below sticks
+	private static final int MAX_CONNECTIONS = 64;
+
+	/**
+	  * The server, shared by every benchmark thread.
+	  */
+	@State(Scope.Benchmark)
+	public static class Server {
+		/**
+		  * Chars per message. Those above FrameV2.MAX_DATA_SIZE go in parts.
+		  */
+		@Param({"100", "4096", "65536"})
+		public int payloadSize;
+
+		/**
+		  * Whether connections are set up with SocketCommsConfig.lowLatency(), or with the socket defaults. With the
+		  * defaults, expect CONSUME_RESPOND round-trips held up by Nagle's algorithm: the server writes the receipt and
+		  * then the response, and the response waits for the client's delayed acknowledgement of the receipt
+		  * (40ms on Linux, 200ms on Windows).
+		  */
+		@Param({"true", "false"})
+		public boolean lowLatency;
+
+		int portNumber;
+		String payload;
+		SocketCommsConfig config;
+		private ExecutorService execPool;
+		private XMLSocketServer server;
+
+		@Setup(Level.Trial)
+		public void start() throws SocketException, IOException {
+			// Only warnings, so no logging at all is part of what's measured
+			logger.setLevel(java.util.logging.Level.WARNING);
+
+			payload = Payloads.xml(payloadSize);
+			config = (lowLatency ? SocketCommsConfig.lowLatency() : new SocketCommsConfig());
+			portNumber = freePort();
+			execPool = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+			server = new XMLSocketServer(execPool, new Echo(), portNumber, config);
+			new Thread(server, "RoundTripBenchmark-" + portNumber).start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			if (server != null) {
+				server.terminateProcessing();
+			}
+			if (execPool != null) {
+				execPool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	  * The connection of a benchmark thread.
+	  */
+	@State(Scope.Thread)
+	public static class Connection {
+		private XMLSocketClient client;
+		private long nextTID = 0;
+
+		@Setup(Level.Trial)
+		public void connect(Server server) throws SocketException {
+			client = new XMLSocketClient("localhost", server.portNumber, server.config);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			if (client != null) {
+				client.close();
+			}
+		}
+
+		String nextTID() {
+			return "R" + nextTID++;
+		}
+	}
+
+	@Benchmark
+	public Boolean consume(Server server, Connection connection) throws Exception {
+		return connection.client.consume(connection.nextTID(), server.payload).get(30, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public String consumeRespond(Server server, Connection connection) throws Exception {
+		return connection.client.sendAndReceive(connection.nextTID(), server.payload).get(30, TimeUnit.SECONDS);
+	}
+
+	//////////////////////////////////////////////////////////////////
+	// Start: Helper methods ...
+	//////////////////////////////////////////////////////////////////
+
+	/**
+	  * @return a port nothing is listening on, so forks run one after another never clash
+	  */
+	private static int freePort() throws IOException {
+		ServerSocket probe = new ServerSocket(0);
+		try {
+			return probe.getLocalPort();
+		}
+		finally {
+			probe.close();
+		}
+	}
+
+	/**
+	  * Consumes everything, and answers every request with the request itself.
+	  */
+	private static final class Echo implements LwIXMLSocketServerListener {
+		@Override
+		public boolean messageReceived(SocketEvent event) {
+			return true;
+		}
+
+		@Override
+		public String messageReceivedAndWantResponse(SocketEvent event) {
+			return event.getReceivedMessage();
+		}
+
+		@Override
+		public void handleError(SocketEvent event, SocketException exception) {
+		}
+
+		@Override
+		public boolean canCloseServerSocket(SocketEvent event) {
+			return false;
+		}
+
+		@Override
+		public boolean getConsumeMessage() {
+			return true;
+		}
+	}
+}